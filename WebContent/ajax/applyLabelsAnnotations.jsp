@@ -27,10 +27,19 @@ String docID = request.getParameter("docId");
 
 Collection<Document> docs;
 if(!Util.nullOrEmpty(docsetID)) {
-    DataSet dataset = (DataSet) session.getAttribute(docsetID);
-    docs = dataset.getDocs();
-} else if (!Util.nullOrEmpty(docID))
-    docs = archive.getAllDocsAsSet().stream().filter(doc->doc.getUniqueId().equals(docID)).collect(Collectors.toSet());
+    docs = ResultSetStore.getInstance().getDocs(docsetID);
+    if (docs == null) {
+        JSONObject obj = new JSONObject();
+        obj.put("status", 1);
+        obj.put("errorMessage", "This result set has expired, please search again.");
+        out.println (obj);
+        JSPHelper.log.info(obj);
+        return;
+    }
+} else if (!Util.nullOrEmpty(docID)) {
+    Document doc = archive.getDocIndex().get(docID);
+    docs = (doc == null) ? new ArrayList<>() : Collections.singletonList(doc);
+}
 else
     docs = archive.getAllDocs();
 
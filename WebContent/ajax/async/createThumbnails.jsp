@@ -0,0 +1,86 @@
+<%@page language="java" contentType="application/json;charset=UTF-8"%>
+<%@page import="edu.stanford.muse.index.Archive"%>
+<%@ page import="edu.stanford.muse.util.Util" %>
+<%@ page import="edu.stanford.muse.webapp.JSPHelper" %>
+<%@ page import="org.json.JSONObject"%>
+<%@ page import="java.io.File"%><%@ page import="com.google.common.collect.Multimap"%><%@ page import="edu.stanford.epadd.util.OperationInfo"%><%@ page import="edu.stanford.muse.email.StatusProvider"%><%@ page import="java.util.function.Consumer"%><%@ page import="edu.stanford.muse.email.StaticStatusProvider"%><%@ page import="edu.stanford.muse.datacache.ThumbnailService"%>
+
+<%
+
+{
+    //<editor-fold desc="Setting up the operation object to execute this operation asynchronously">
+    //get the operation ID from the request parameter.
+    String actionName = request.getRequestURI();
+    String opID = request.getParameter("opID");
+    Multimap<String,String> paramMap = JSPHelper.convertRequestToMap(request);
+    //create a new operation object with the information necessary to run this long running async task.
+    OperationInfo opinfo = new OperationInfo(actionName,opID,paramMap) {
+        @Override
+        public void onStart(JSONObject resultJSON) {
+            //creating a lambda expression that will be used by functions to set the statusprovider without knowing the
+            //operationinfo object
+            Consumer<StatusProvider> setStatusProvider = statusProvider->this.setStatusProvider(statusProvider);
+            createThumbnails(this.getParametersMap(),setStatusProvider,resultJSON);
+        }@Override
+        public void onCancel() {
+            //the thread running createThumbnails is interrupted on cancel, which stops the thumbnail workers too
+        }
+    };
+    //</editor-fold>
+
+    //<editor-fold desc="Store this operation in global map so that others can access this operation">
+    JSPHelper.setOperationInfo(session,opID,opinfo);
+    //</editor-fold>
+
+    //<editor-fold desc="Starting the operation">
+    opinfo.run();
+    //</editor-fold>
+    //just send an empty response telling that the operation has been started.
+    JSONObject obj = new JSONObject();
+    out.println(obj);
+}
+%>
+<%! public void createThumbnails(Multimap<String,String> paramsMap, Consumer<StatusProvider> setStatusProvider, JSONObject resultJSON){
+    setStatusProvider.accept(new StaticStatusProvider("Starting up..."));
+
+    Archive archive = JSPHelper.getArchive(paramsMap);
+    if (archive == null) {
+        resultJSON.put("status", 1);
+        resultJSON.put("error", "No archive in session");
+        JSPHelper.log.info(resultJSON);
+        return;
+    }
+
+    String error = "";
+    String sofficepath = JSPHelper.getParam(paramsMap,"sofficepath");
+    String convertpath = JSPHelper.getParam(paramsMap,"convertpath");
+    //Check if we have executables on these paths. If not then return immediately with error message.
+    //soffice is needed for all documents except pdfs, convert is optional and only used for pdfs that can not be rendered otherwise.
+    if(Util.nullOrEmpty(sofficepath) || !new File(sofficepath).exists()){
+        error="Path to 'soffice' is not valid. Please check again!";
+    }
+    if(!Util.nullOrEmpty(convertpath) && !new File(convertpath).exists()){
+        error="Path to 'convert' is not valid. Please check again!";
+    }
+    if(!Util.nullOrEmpty(error)){
+        //means we had error. Build the response object accordingly.
+        resultJSON.put("status", 1);
+        resultJSON.put("error", error);
+        JSPHelper.log.info(resultJSON);
+        return;
+    }
+
+    archive.getBlobStore().setExecutablePath("convert",convertpath);
+    archive.getBlobStore().setExecutablePath("soffice",sofficepath);
+    //the service renders the attachments on a pool of workers and reports its progress as the status of this operation
+    ThumbnailService thumbnailService = new ThumbnailService(archive.getBlobStore(), sofficepath, convertpath);
+    setStatusProvider.accept(thumbnailService);
+    int thumbgenerated = thumbnailService.generate(archive.getBlobStore().uniqueBlobs);
+    if (thumbnailService.isCancelled() || Thread.currentThread().isInterrupted())
+        return;
+
+    resultJSON.put("status", 0);
+    resultJSON.put("result", "Generated thumbnails for "+thumbgenerated+" attachments successfully!");
+    JSPHelper.log.info(resultJSON);
+}
+%>
@@ -3,7 +3,7 @@
 <%@page language="java" import="org.json.*"%>
 <%@page language="java" import="edu.stanford.muse.email.*"%>
 <%@page language="java" import="edu.stanford.muse.util.*"%>
-<%@page language="java" import="edu.stanford.muse.webapp.JSPHelper"%><%@ page import="edu.stanford.epadd.util.OperationInfo"%>
+<%@page language="java" import="edu.stanford.muse.webapp.JSPHelper"%><%@ page import="edu.stanford.epadd.util.OperationInfo"%><%@ page import="edu.stanford.epadd.util.JobScheduler"%>
 <%
 	// prevent caching of this page - sometimes the ajax seems to show stale status
 	JSPHelper.setPageUncacheable(response);
@@ -30,25 +30,10 @@
 
     }else{
         if(operationInfo.getResultJSON()==null){
-            //means the operation is not yet over, read statusprovider
-            StatusProvider obj = operationInfo.getStatusProvider();
-            if(obj==null){
-            //statusprovider is null implies operation not started yet. set appropriate json.
-            	JSONObject json = new JSONObject();
-                try {
-                    json.put("message", "Starting up ...");
-                    json.put("sp_not_ready", true);
-                    out.println(json);
-                } catch (JSONException jsone) {
-                    try {
-                        json.put("error", jsone.toString());
-                        out.println(json);
-                    } catch (Exception e) { Util.report_exception(e); }
-                }
-            }else{
-            //statusprovider is non-null send the status accordingly.
-            out.println(obj.getStatusMessage());//getStatusMessage will have one field 'resType' as "progress" to denote that the return information is about the progress not about the completion of the operation
-            }
+            //means the operation is not yet over (or not started yet, waiting for its turn), the scheduler reads its statusprovider
+            //and fills in the elapsed and remaining time so that all operations report the same fields.
+            //getStatusMessage will have one field 'resType' as "progress" to denote that the return information is about the progress not about the completion of the operation
+            out.println(JobScheduler.getInstance().getStatusJSON(operationInfo));
         }else{
             //means the operation is over. Get the resultJSON and send it out. before sending add a field called resType = done in it.
             JSONObject res = operationInfo.getResultJSON();
@@ -0,0 +1,21 @@
+<%@page language="java" contentType="application/json;charset=UTF-8"%>
+<%@page trimDirectiveWhitespaces="true"%>
+<%@page language="java" import="org.json.*"%>
+<%@page language="java" import="edu.stanford.muse.webapp.JSPHelper"%><%@ page import="edu.stanford.epadd.util.JobScheduler"%><%@ page import="edu.stanford.epadd.util.OperationInfo"%>
+<%
+	// lists the recent long running operations (jobs) and their states, most recent first.
+	// with opID, tells whether that job is still around so that a reloaded page can go back to polling its status.
+	// with archiveID, only the jobs on that archive.
+	JSPHelper.setPageUncacheable(response);
+	JSONObject json = new JSONObject();
+	String opID = request.getParameter("opID");
+	if (opID != null) {
+		OperationInfo operationInfo = JSPHelper.getOperationInfo(session, opID);
+		json.put("opID", opID);
+		json.put("live", operationInfo != null);
+		if (operationInfo != null && operationInfo.getState() != null)
+			json.put("state", operationInfo.getState().name());
+	} else
+		json.put("jobs", JobScheduler.getInstance().getJobs(request.getParameter("archiveID")));
+	out.println(json);
+%>
@@ -15,10 +15,14 @@
 
 <%
 	String datasetId = request.getParameter("datasetId");
-	DataSet dataset = (DataSet) JSPHelper.getSessionAttribute(session, datasetId);
+	DataSet dataset = ResultSetStore.getInstance().get(datasetId);
+	if (dataset == null) {
+		//the years of the pages come from the dataset, so there is no page to render
+		out.println ("<div><div class=\"page\">Sorry, this result set has expired, please search again. (Doc set:" + datasetId + ")</div></div>");
+		return;
+	}
 	//get query params which were stored in dataset object
 	Multimap<String,String> queryparams = dataset.getQueryParams();
-	boolean error = (dataset == null);
 
 	String archiveID = request.getParameter("archiveID");
 
@@ -44,19 +48,14 @@
 		//non zero attachments.
 		int year = yearwiseAttachments.second.get(i).first;
 		out.println ("<div class=\"page\" pageId=\"" + year + "\" display=\"none\">");
-		if (error)
-			out.println ("Sorry, error reading document " + year + ". Session may have timed out. Please log out and try again. (Doc set:" + datasetId + ")");
-		else
-		{
-			try {
-				out.println ("<script>$('.qtip').remove()</script>");
-				out.println (dataset.getPageForAttachments(year, isHacky, archiveID,queryparams));
-				out.println ("\n");
-                out.println ("<script src=\"js/epadd.js\"></script>"); // @chinmay, do we need this? epadd.js should already be included
-				out.println ("<script>initialiseqtip()</script>");
-			} catch (Exception e) {
-				out.println ("Sorry... exception reading page content for attachments: " + e);
-			}
+		try {
+			out.println ("<script>$('.qtip').remove()</script>");
+			out.println (dataset.getPageForAttachments(year, isHacky, archiveID,queryparams));
+			out.println ("\n");
+            out.println ("<script src=\"js/epadd.js\"></script>"); // @chinmay, do we need this? epadd.js should already be included
+			out.println ("<script>initialiseqtip()</script>");
+		} catch (Exception e) {
+			out.println ("Sorry... exception reading page content for attachments: " + e);
 		}
 		out.println ("</div>");
 
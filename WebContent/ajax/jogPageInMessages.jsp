@@ -10,7 +10,7 @@
 
 <%
 	String datasetId = request.getParameter("datasetId");
-	DataSet dataset = (DataSet) JSPHelper.getSessionAttribute(session, datasetId);
+	DataSet dataset = ResultSetStore.getInstance().get(datasetId);
 	boolean error = (dataset == null);
 
 	String archiveID = request.getParameter("archiveID");
@@ -31,7 +31,7 @@
 	{
 		out.println ("<div class=\"page\" pageId=\"" + i + "\" display=\"none\">");
 		if (error)
-			out.println ("Sorry, error reading document " + i + ". Session may have timed out. Please log out and try again. (Doc set:" + datasetId + ")");
+			out.println ("Sorry, error reading document " + i + ". This result set has expired, please search again. (Doc set:" + datasetId + ")");
 		else
 		{
 			try {
@@ -8,16 +8,11 @@ JSPHelper.setPageUncacheable(response);
 response.setContentType("application/json; charset=utf-8");
 
 String docsetID = request.getParameter("docsetID");
-DataSet dataset = (DataSet) JSPHelper.getSessionAttribute(session, docsetID);
-boolean error = (dataset == null);
+boolean error = !ResultSetStore.getInstance().release(docsetID);
 if (error)
 	out.println("{status: 'error'}");
 else
-{
-	dataset.clear();
-	session.removeAttribute(docsetID);
 	out.println("{status: 'ok'}");
-}
 JSPHelper.logRequestComplete(request);
 
 %>
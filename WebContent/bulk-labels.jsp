@@ -1,6 +1,6 @@
 <%@page contentType="text/html; charset=UTF-8"%>
 <%@ page import="org.json.JSONArray" %>
-<%@ page import="edu.stanford.muse.index.DataSet" %>
+<%@ page import="edu.stanford.muse.index.ResultSetStore" %>
 <%@ page import="edu.stanford.muse.webapp.ModeConfig" %>
 <%@ page import="edu.stanford.muse.index.Document" %>
 <%@ page import="edu.stanford.muse.LabelManager.LabelManager" %>
@@ -40,9 +40,9 @@
     String docsetID = request.getParameter("docsetID");
     if (docsetID == null)
         docsetID = "";
-    DataSet browseSet = (DataSet) session.getAttribute(docsetID);
-
-    Collection<Document> docs = (browseSet == null) ? archive.getAllDocs() : browseSet.getDocs();
+    Collection<Document> docs = ResultSetStore.getInstance().getDocs(docsetID);
+    if (docs == null)
+        docs = archive.getAllDocs();
 
     String title = Util.pluralize (docs.size(), "message");
     if (!Util.nullOrEmpty(docsetID))
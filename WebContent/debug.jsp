@@ -62,6 +62,8 @@ Build Info: <%= edu.stanford.epadd.Version.buildInfo%><br/>
 
     <b>Memory status</b><br/>
     <%=Util.getMemoryStats()%><br/>
+    Archives in memory: <%=Util.escapeHTML(edu.stanford.muse.index.ArchiveReaderWriter.getResidencyStats().toString())%><br/>
+    Result sets: <%=Util.escapeHTML(edu.stanford.muse.index.ResultSetStore.getInstance().getStats().toString())%><br/>
 
 	<br/><br/>
     <a name="configuration"></a>
@@ -66,8 +66,11 @@
     Collection<Document> selectedDocs;
 
     if(!Util.nullOrEmpty(docsetID)){
-        DataSet docset = (DataSet) session.getAttribute(docsetID);
-        selectedDocs = docset.getDocs();
+        selectedDocs = ResultSetStore.getInstance().getDocs(docsetID);
+        if (selectedDocs == null) {
+            out.println ("Sorry, this result set has expired, please search again.");
+            return;
+        }
     }else {
         selectedDocs = new LinkedHashSet<>(archive.getAllDocs());
     }
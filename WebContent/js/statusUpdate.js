@@ -3,6 +3,7 @@ var currentOp;
 // ideally currentOp should be hidden, right now it can't be, because cancelOp needs it. so only one status div per page is possible.
 var MIN_POLL_MILLIS = 2000, MAX_POLL_MILLIS = 10000;
 var TEASER_REFRESH_MILLIS = 500;
+var PENDING_OP_KEY = 'epadd.pendingOp';
 var CANCEL_SELECTOR = '#cancel'; // ideally should be passed in as a param, currently fixed. It means nothing else on the page that includes div_status can have a #cancel element
 
 // page: URL to hit that kicks off a long-running operation. We'll ajax fetch this page, and expect a json response with fields {error: String, cancelled: boolean, resultPage: String}.
@@ -12,12 +13,13 @@ var CANCEL_SELECTOR = '#cancel'; // ideally should be passed in as a param, curr
 // onready (optional) = function called over event: onready statechange
 // if redirect_page is specified, on success, it redirects to that page, instead of whatever the page's response is
 // need to clean up this onready stuff
-function fetch_page_with_progress(page, spage, sdiv, sdiv_text, post_params, onready, redirect_page)
+// if resume_opID is given, page is not fetched, we go back to polling the status of that operation (see resume_pending_op)
+function fetch_page_with_progress(page, spage, sdiv, sdiv_text, post_params, onready, redirect_page, resume_opID)
 {
 	// little helper class to hold details
 	function Operation() {
         //add operation ID
-        this.id = Math.round(Math.random()*10000000+1);
+        this.id = resume_opID ? resume_opID : Math.round(Math.random()*10000000+1);
         //add to post_params with name as opID
 		//post_params.opID = this.id;
 		this.done = false; // done will be set when op is complete or cancelled
@@ -32,6 +34,7 @@ function fetch_page_with_progress(page, spage, sdiv, sdiv_text, post_params, onr
 	}
 
 	function onSuccess(response,onready,redirect_page){
+		forget_pending_op();
 
 		if(response.status===1){
             $(currentOp.status_div).hide();
@@ -98,7 +101,7 @@ function fetch_page_with_progress(page, spage, sdiv, sdiv_text, post_params, onr
 
             // ok, so the op was successful, have we been told what ready function to call or page to to redirect on the client side by the caller?
             if (onready) {
-                onready();
+                onready(response);
                 return;
             }
 
@@ -496,6 +499,8 @@ function fetch_page_with_progress(page, spage, sdiv, sdiv_text, post_params, onr
 	currentOp.status_div = sdiv;
 	currentOp.status_div_text = sdiv_text;
 	currentOp.orig_doc_title = document.title;
+	// remember the op for this tab, so that its status can be shown again if the page is reloaded while it runs
+	try { sessionStorage.setItem(PENDING_OP_KEY, JSON.stringify({id: currentOp.id, status_page: spage})); } catch (e) { }
 
 	sdiv_text.innerHTML = 'Starting up...';
 	// display status box in the middle of the window
@@ -509,9 +514,41 @@ function fetch_page_with_progress(page, spage, sdiv, sdiv_text, post_params, onr
 	sdiv.style.left = (window.innerWidth/2)- 320+"px"; // the total width is 640px
 	sdiv.style.top = (window.innerHeight/2) - 65+"px";
 
+	if (resume_opID)
+		return poll_status(onready, redirect_page);
 	return kick_off_page_fetch(page, post_params, onready, redirect_page);
 	// end of this function. the rest are private helper functions
 
 
 }
 
+function forget_pending_op()
+{
+	try { sessionStorage.removeItem(PENDING_OP_KEY); } catch (e) { }
+}
+
+// if an op started from this tab was still running when the page was (re)loaded, show its status again.
+// the server keeps running the op irrespective of the page, see JobScheduler.
+function resume_pending_op()
+{
+	var pending = null;
+	try { pending = JSON.parse(sessionStorage.getItem(PENDING_OP_KEY)); } catch (e) { }
+	if (!pending || !pending.id || !document.getElementById('status') || !document.getElementById('status_text'))
+		return;
+	$.ajax({type: 'GET',
+		dataType: 'json',
+		url: 'ajax/jobs.jsp',
+		data: {opID: pending.id},
+		cache: false,
+		success: function (response) {
+			if (response && response.live)
+				fetch_page_with_progress(null, pending.status_page, document.getElementById('status'), document.getElementById('status_text'), undefined, undefined, undefined, pending.id);
+			else
+				forget_pending_op();
+		},
+		error: function() { epadd.log('unable to check for a pending operation'); }
+	});
+}
+
+// not $(document).ready, some pages load this script before jquery
+document.addEventListener("DOMContentLoaded", resume_pending_op);
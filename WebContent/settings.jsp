@@ -191,52 +191,24 @@
                 var archiveID='<%=archiveID%>';
                 //path to soffice program (from Libreoffice)
                 var sofficepath = $('#libreofficpath').val();
-                //path to convert program (from ImageMagick)
+                //path to convert program (from ImageMagick), only needed for pdfs that can not be rendered otherwise
                 var convertpath = $('#convertpath').val();
-                //if any of them is empty then return with warning.
-                if (!sofficepath || !convertpath) {
-                    epadd.error("Please provide path to 'soffice' and 'convert' executables which are needed to create thumbnails.");
+                //if soffice is empty then return with warning.
+                if (!sofficepath) {
+                    epadd.error("Please provide path to 'soffice' executable which is needed to create thumbnails.");
                     return;
                 }
                 //pass to backend three params, archiveID, path to convert program, path to soffice program.
-                var $spinner = $('#spinner-div');
-                $spinner.show();
-                $spinner.addClass('fa-spin');
-                $('#spinner-div').fadeIn();
-                $('#createThumbnails').fadeOut();
                 var data = {'archiveID': archiveID,'sofficepath':sofficepath,'convertpath':convertpath};
-
-
-                $.ajax({type: 'POST',
-                    dataType: 'json',
-                    url: 'ajax/createThumbnails.jsp',
-                    data: data,
-                    success: function (response) {
-                        $spinner.removeClass('fa-spin');
-                        $('#spinner-div').fadeOut();
-                        $('#createThumbnails').fadeIn();
-
-                        if (response) {
-                            if (response.status === 0) {
-                                epadd.info("Successfully created the thumbnails for all attachments.",function(){
-                                    $('#thumbnail-gen-result').val(response.result)
-                                })
-                            } else{
-
-                                epadd.error('Error creating thumbnails:  ' + response.status + ', Message: ' + response.error);
-                            }
-                        }
-                        else{
-                            epadd.error('Error creating thumbnails. Improper response received!');
-                        }
-                    },
-                    error: function(jq, textStatus, errorThrown) {
-                        $('#spinner-div').fadeOut();
-                        $('#createThumbnails').fadeIn();
-                        epadd.error('Sorry, there was an error while creating the thumbnails for attachments. The ePADD program has either quit, or there was an internal error. Please retry and if the error persists, report it to epadd_project@stanford.edu.');
-                    }
-                });
-                //On success return the number that was
+                var params = epadd.convertParamsToAmpersandSep(data)
+                //thumbnails are generated in the background, the status box shows how many of the attachments are done.
+                var promptmethod = function(j){
+                    epadd.info("Successfully created the thumbnails for all attachments.",function(){
+                        if (j)
+                            $('#thumbnail-gen-result').val(j.result)
+                    })
+                }
+                fetch_page_with_progress("ajax/async/createThumbnails.jsp", "status", document.getElementById('status'), document.getElementById('status_text'), params,promptmethod);
             }
 
 
@@ -0,0 +1,433 @@
+package edu.stanford.epadd.util;
+
+import edu.stanford.muse.Config;
+import edu.stanford.muse.email.StatusProvider;
+import edu.stanford.muse.index.ArchiveReaderWriter;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the long operations of the ajax/async jsps (OperationInfo's) as jobs.
+ *
+ * Earlier every operation got a thread of its own as soon as its jsp was hit, so e.g. two exports at once would thrash the disk and an export could run
+ * while the same archive was being saved. Here an operation waits in a queue till:
+ * - the resource pools it needs (CPU, DISK, INDEX_WRITER) have a free slot. The size of the pools can be set with -Depadd.jobs.cpu=n etc.
+ * - no other job holds its archive in a conflicting way. Jobs that modify the archive need it exclusively, jobs that only read it (exports, checks) can share it.
+ * Waiting jobs are started in order of priority and then of submission. A job that can't start yet holds up the later jobs that need any of its resources or its archive,
+ * so big jobs are not starved by a stream of small ones.
+ *
+ * Cancelling a queued job just takes it off the queue, a running one is interrupted and its OperationInfo.isCancelled() turns true.
+ * Jobs are kept by their opID independent of the session, so the status of a job can still be polled after a browser reload,
+ * and the state changes of jobs are written to <settings>/jobs.json, so a list of the recent jobs (and of the ones that were cut short by a restart) is available.
+ * getStatusJSON reports the status of all jobs with the same fields: message, pctComplete, secsElapsed and secsRemaining.
+ */
+public class JobScheduler {
+    private static final Logger log = LogManager.getLogger(JobScheduler.class);
+
+    public enum Resource {
+        CPU(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), DISK(1), INDEX_WRITER(1);
+
+        private final int capacity;
+
+        Resource(int defaultCapacity) {
+            int capacity = defaultCapacity;
+            String prop = System.getProperty("epadd.jobs." + name().toLowerCase());
+            if (prop != null) {
+                try {
+                    capacity = Math.max(1, Integer.parseInt(prop));
+                } catch (NumberFormatException nfe) {
+                    log.warn("Bad value for epadd.jobs." + name().toLowerCase() + ": " + prop);
+                }
+            }
+            this.capacity = capacity;
+        }
+    }
+
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    /** how a job uses the archive it works on */
+    public enum ArchiveAccess { NONE, SHARED, EXCLUSIVE }
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED, INTERRUPTED }
+
+    /** what a kind of operation needs to run */
+    public static class JobSpec {
+        final Priority priority;
+        final ArchiveAccess access;
+        final Set<Resource> resources;
+        //archive id for jobs that are not given one, e.g. imports which all go into the one appraisal archive
+        final Supplier<String> defaultArchiveKey;
+
+        JobSpec(Priority priority, ArchiveAccess access, Supplier<String> defaultArchiveKey, Resource... resources) {
+            this.priority = priority;
+            this.access = access;
+            this.defaultArchiveKey = defaultArchiveKey;
+            this.resources = resources.length == 0 ? EnumSet.noneOf(Resource.class) : EnumSet.copyOf(Arrays.asList(resources));
+        }
+    }
+
+    //the jobs by name of their jsp. loading is interactive and light, so it needs nothing and is not held up by other jobs
+    private static final Map<String, JobSpec> SPECS = new LinkedHashMap<>();
+    private static final JobSpec DEFAULT_SPEC = new JobSpec(Priority.NORMAL, ArchiveAccess.SHARED, null, Resource.CPU);
+    static {
+        SPECS.put("loadArchive", new JobSpec(Priority.HIGH, ArchiveAccess.NONE, null));
+        SPECS.put("save-archive", new JobSpec(Priority.HIGH, ArchiveAccess.EXCLUSIVE, null, Resource.DISK));
+        SPECS.put("setOwnersAddress", new JobSpec(Priority.HIGH, ArchiveAccess.EXCLUSIVE, null, Resource.CPU));
+        SPECS.put("doFetchAndIndex", new JobSpec(Priority.NORMAL, ArchiveAccess.EXCLUSIVE, ArchiveReaderWriter::getImportArchiveID, Resource.CPU, Resource.DISK, Resource.INDEX_WRITER));
+        SPECS.put("recomputeAddressbook", new JobSpec(Priority.NORMAL, ArchiveAccess.EXCLUSIVE, null, Resource.CPU));
+        SPECS.put("nertrainandrecognise", new JobSpec(Priority.NORMAL, ArchiveAccess.EXCLUSIVE, null, Resource.CPU, Resource.INDEX_WRITER));
+        SPECS.put("createThumbnails", new JobSpec(Priority.LOW, ArchiveAccess.EXCLUSIVE, null, Resource.CPU));
+        SPECS.put("export-from-appraisal", new JobSpec(Priority.LOW, ArchiveAccess.SHARED, null, Resource.DISK));
+        SPECS.put("export-from-processing", new JobSpec(Priority.LOW, ArchiveAccess.SHARED, null, Resource.DISK));
+        SPECS.put("verify-bag-checksum", new JobSpec(Priority.LOW, ArchiveAccess.SHARED, null, Resource.DISK));
+        SPECS.put("downloadData", new JobSpec(Priority.LOW, ArchiveAccess.SHARED, null, Resource.DISK));
+    }
+
+    /** @return the spec of the operation invoked through the given jsp, e.g. /epadd/ajax/async/save-archive.jsp */
+    static JobSpec specFor(String actionName) {
+        if (actionName == null)
+            return DEFAULT_SPEC;
+        String name = actionName.substring(actionName.lastIndexOf('/') + 1);
+        if (name.endsWith(".jsp"))
+            name = name.substring(0, name.length() - ".jsp".length());
+        return SPECS.getOrDefault(name, DEFAULT_SPEC);
+    }
+
+    //no. of recent jobs kept in the journal
+    private static final int MAX_HISTORY = 200;
+    //finished jobs whose result is never collected (the browser went away) are dropped after this long
+    private static final long MAX_UNCOLLECTED_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static class Holder {
+        static final JobScheduler instance = new JobScheduler(new File(Config.SETTINGS_DIR + File.separator + "jobs.json"));
+    }
+
+    public static JobScheduler getInstance() {
+        return Holder.instance;
+    }
+
+    //everything below is guarded by this
+    //waiting jobs, in the order they are to be started
+    private final List<OperationInfo> queue = new ArrayList<>();
+    private final Map<String, OperationInfo> jobs = new LinkedHashMap<>();
+    private final Map<Resource, Integer> inUse = new EnumMap<>(Resource.class);
+    private final Map<String, Integer> archiveReaders = new LinkedHashMap<>();
+    private final Set<String> archiveWriters = new LinkedHashSet<>();
+    //journal entries by opID, oldest first
+    private final LinkedHashMap<String, JSONObject> history = new LinkedHashMap<>();
+    private long nextSeq;
+
+    private final File journalFile;
+    private final ExecutorService threads;
+
+    JobScheduler(File journalFile) {
+        this.journalFile = journalFile;
+        AtomicInteger nThreads = new AtomicInteger();
+        this.threads = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "epadd-job-" + nThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        readJournal();
+    }
+
+    private static final Comparator<OperationInfo> QUEUE_ORDER = Comparator.<OperationInfo, Priority>comparing(op -> op.spec.priority).thenComparingLong(op -> op.seq);
+
+    /** queues the operation, it is started as soon as it can be */
+    public synchronized void submit(OperationInfo op) {
+        op.spec = specFor(op.getActionName());
+        //jobs are keyed by archive id, whichever way they name their archive, so that jobs on the same archive exclude each other
+        op.archiveKey = op.getParam("archiveID");
+        if (op.archiveKey == null && op.getParam("dir") != null)
+            op.archiveKey = ArchiveReaderWriter.getArchiveIDForDir(op.getParam("dir"));
+        if (op.archiveKey == null && op.spec.defaultArchiveKey != null)
+            op.archiveKey = op.spec.defaultArchiveKey.get();
+        op.seq = nextSeq++;
+        op.submittedMillis = System.currentTimeMillis();
+        op.state = State.QUEUED;
+        if (op.getOpID() != null)
+            jobs.put(op.getOpID(), op);
+        queue.add(op);
+        queue.sort(QUEUE_ORDER);
+        log.info("Queued job " + describe(op) + ", " + queue.size() + " job(s) waiting");
+        journal(op);
+        expireUncollected();
+        dispatch();
+    }
+
+    /** @return the job with the given id, null if there is no such job or its result has been collected */
+    public synchronized OperationInfo get(String opID) {
+        return opID == null ? null : jobs.get(opID);
+    }
+
+    /** forgets the job once its result has been sent to the client */
+    public synchronized void remove(String opID) {
+        OperationInfo op = jobs.get(opID);
+        if (op != null && op.state != State.QUEUED && op.state != State.RUNNING)
+            jobs.remove(opID);
+    }
+
+    /** takes the operation off the queue if it hasn't started, else interrupts it */
+    public synchronized void cancel(OperationInfo op) {
+        if (op.state == State.QUEUED) {
+            queue.remove(op);
+            finish(op, State.CANCELLED);
+            dispatch();
+        } else if (op.state == State.RUNNING) {
+            Thread t = op.thread;
+            if (t != null)
+                t.interrupt();
+        }
+    }
+
+    private boolean isFree(OperationInfo op) {
+        for (Resource r : op.spec.resources)
+            if (inUse.getOrDefault(r, 0) >= r.capacity)
+                return false;
+        if (op.archiveKey == null || op.spec.access == ArchiveAccess.NONE)
+            return true;
+        if (archiveWriters.contains(op.archiveKey))
+            return false;
+        return op.spec.access == ArchiveAccess.SHARED || archiveReaders.getOrDefault(op.archiveKey, 0) == 0;
+    }
+
+    /** starts the waiting jobs that can run now */
+    private void dispatch() {
+        //resources and archives wanted by an earlier job that is still waiting, later jobs can't jump ahead of it on those
+        Set<Resource> wanted = EnumSet.noneOf(Resource.class);
+        Set<String> wantedArchives = new LinkedHashSet<>();
+        for (Iterator<OperationInfo> it = queue.iterator(); it.hasNext(); ) {
+            OperationInfo op = it.next();
+            boolean needsArchive = op.archiveKey != null && op.spec.access != ArchiveAccess.NONE;
+            if (!Collections.disjoint(wanted, op.spec.resources) || (needsArchive && wantedArchives.contains(op.archiveKey)) || !isFree(op)) {
+                wanted.addAll(op.spec.resources);
+                if (needsArchive)
+                    wantedArchives.add(op.archiveKey);
+                continue;
+            }
+            it.remove();
+            for (Resource r : op.spec.resources)
+                inUse.merge(r, 1, Integer::sum);
+            if (needsArchive) {
+                if (op.spec.access == ArchiveAccess.EXCLUSIVE)
+                    archiveWriters.add(op.archiveKey);
+                else
+                    archiveReaders.merge(op.archiveKey, 1, Integer::sum);
+            }
+            start(op);
+        }
+    }
+
+    private void start(OperationInfo op) {
+        op.state = State.RUNNING;
+        op.startedMillis = System.currentTimeMillis();
+        log.info("Starting job " + describe(op) + " after waiting " + (op.startedMillis - op.submittedMillis) + "ms");
+        journal(op);
+        threads.execute(() -> {
+            op.thread = Thread.currentThread();
+            //keep the archive in memory while the job is using it
+            String archiveID = op.archiveKey;
+            ArchiveReaderWriter.acquireArchive(archiveID);
+            try {
+                //cancelled between being started and getting a thread
+                if (!op.isCancelled())
+                    op.onStart(op.result());
+            } catch (Throwable t) {
+                Util.print_exception("Job " + describe(op) + " failed", t, log);
+                //let the client know, else it would wait for a result forever
+                if (op.result().length() == 0) {
+                    op.result().put("status", 1);
+                    op.result().put("error", "The operation failed: " + t);
+                }
+            } finally {
+                ArchiveReaderWriter.releaseArchive(archiveID);
+                op.thread = null;
+                //don't leave the interrupt of a cancel on the pooled thread
+                Thread.interrupted();
+                finished(op);
+            }
+        });
+    }
+
+    private synchronized void finished(OperationInfo op) {
+        for (Resource r : op.spec.resources)
+            inUse.merge(r, -1, Integer::sum);
+        if (op.archiveKey != null) {
+            if (op.spec.access == ArchiveAccess.EXCLUSIVE)
+                archiveWriters.remove(op.archiveKey);
+            else if (op.spec.access == ArchiveAccess.SHARED)
+                archiveReaders.computeIfPresent(op.archiveKey, (k, n) -> n > 1 ? n - 1 : null);
+        }
+        State state = op.isCancelled() ? State.CANCELLED : (op.result().optInt("status", 0) != 0 ? State.FAILED : State.DONE);
+        finish(op, state);
+        log.info("Job " + describe(op) + " ended " + state + " after " + Util.commatize(op.finishedMillis - op.startedMillis) + "ms");
+        dispatch();
+    }
+
+    private void finish(OperationInfo op, State state) {
+        //a job cancelled before it got to run (or that gave up on the cancel without a result) has to have a result too, else the client would poll for it forever
+        if (state == State.CANCELLED && op.result().length() == 0) {
+            op.result().put("status", 0);
+            op.result().put("cancelled", true);
+            op.result().put("responseText", "Operation cancelled by the user");
+        }
+        op.state = state;
+        op.finishedMillis = System.currentTimeMillis();
+        journal(op);
+    }
+
+    /** drops finished jobs whose result nobody came for */
+    private void expireUncollected() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(op -> op.state != State.QUEUED && op.state != State.RUNNING && now - op.finishedMillis > MAX_UNCOLLECTED_MILLIS);
+    }
+
+    private static String describe(OperationInfo op) {
+        return op.getOpID() + " (" + op.getActionName() + (op.archiveKey != null ? " on " + op.archiveKey : "") + ", " + op.spec.priority + ")";
+    }
+
+    /** @return no. of jobs that have to finish or start before this waiting job can start */
+    private int nAhead(OperationInfo op) {
+        int n = queue.indexOf(op);
+        for (OperationInfo other : jobs.values())
+            if (other.state == State.RUNNING)
+                n++;
+        return Math.max(0, n);
+    }
+
+    /**
+     * @return the status of the job as a json string, with the message, pctComplete, secsElapsed and secsRemaining fields that the status polling expects.
+     * The elapsed time is filled in from the job's start and the remaining time estimated from the percentage complete when the status provider doesn't give them.
+     */
+    public String getStatusJSON(OperationInfo op) {
+        JSONObject json = new JSONObject();
+        long now = System.currentTimeMillis();
+        if (op.state == State.QUEUED) {
+            int n;
+            synchronized (this) {
+                n = nAhead(op);
+            }
+            json.put("message", "Waiting for " + n + " other operation" + (n == 1 ? "" : "s") + " to finish...");
+            json.put("queued", true);
+            json.put("jobsAhead", n);
+            json.put("pctComplete", 0);
+            json.put("secsElapsed", (now - op.submittedMillis) / 1000);
+            json.put("secsRemaining", -1);
+        } else {
+            StatusProvider sp = op.getStatusProvider();
+            if (sp == null) {
+                json.put("message", "Starting up ...");
+                json.put("sp_not_ready", true);
+            } else {
+                String status = sp.getStatusMessage();
+                try {
+                    json = new JSONObject(status);
+                } catch (Exception e) {
+                    json.put("message", status);
+                }
+            }
+            long elapsed = (now - (op.startedMillis > 0 ? op.startedMillis : op.submittedMillis)) / 1000;
+            if (json.optLong("secsElapsed", -1) < 0)
+                json.put("secsElapsed", elapsed);
+            int pct = json.optInt("pctComplete", -1);
+            if (json.optLong("secsRemaining", -1) < 0 && pct > 0 && pct < 100)
+                json.put("secsRemaining", json.getLong("secsElapsed") * (100 - pct) / pct);
+        }
+        if (op.state != null)
+            json.put("jobState", op.state.name());
+        return json.toString();
+    }
+
+    /** @return the jobs in the journal, most recent first, with the live status of the ones still running. Only the ones on the given archive if it is not null */
+    public synchronized JSONArray getJobs(String archiveKey) {
+        JSONArray arr = new JSONArray();
+        List<JSONObject> entries = new ArrayList<>(history.values());
+        Collections.reverse(entries);
+        for (JSONObject entry : entries) {
+            if (archiveKey != null && !archiveKey.equals(entry.optString("archive", null)))
+                continue;
+            JSONObject j = new JSONObject(entry.toString());
+            OperationInfo op = jobs.get(entry.optString("opID"));
+            if (op != null && (op.state == State.QUEUED || op.state == State.RUNNING))
+                j.put("status", new JSONObject(getStatusJSON(op)));
+            arr.put(j);
+        }
+        return arr;
+    }
+
+    /** records the current state of the job in the journal */
+    private void journal(OperationInfo op) {
+        if (op.getOpID() == null)
+            return;
+        JSONObject entry = new JSONObject();
+        entry.put("opID", op.getOpID());
+        entry.put("action", op.getActionName());
+        if (op.archiveKey != null)
+            entry.put("archive", op.archiveKey);
+        entry.put("priority", op.spec.priority.name());
+        entry.put("state", op.state.name());
+        entry.put("submitted", op.submittedMillis);
+        if (op.startedMillis > 0)
+            entry.put("started", op.startedMillis);
+        if (op.finishedMillis > 0)
+            entry.put("finished", op.finishedMillis);
+        if (op.state == State.FAILED)
+            entry.put("error", op.result().optString("error", ""));
+        history.remove(op.getOpID());
+        history.put(op.getOpID(), entry);
+        while (history.size() > MAX_HISTORY)
+            history.remove(history.keySet().iterator().next());
+        writeJournal();
+    }
+
+    private void writeJournal() {
+        JSONArray arr = new JSONArray();
+        for (JSONObject entry : history.values())
+            arr.put(entry);
+        try {
+            journalFile.getParentFile().mkdirs();
+            File tmp = new File(journalFile.getPath() + ".tmp");
+            Files.write(tmp.toPath(), arr.toString(1).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Util.print_exception("Unable to write the jobs journal to " + journalFile, e, log);
+        }
+    }
+
+    /** reads the journal of the earlier run, the jobs that were waiting or running when it stopped are marked INTERRUPTED */
+    private void readJournal() {
+        if (!journalFile.exists())
+            return;
+        try {
+            JSONArray arr = new JSONArray(new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8));
+            boolean changed = false;
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject entry = arr.getJSONObject(i);
+                String state = entry.optString("state");
+                if (State.QUEUED.name().equals(state) || State.RUNNING.name().equals(state)) {
+                    entry.put("state", State.INTERRUPTED.name());
+                    changed = true;
+                }
+                history.put(entry.optString("opID"), entry);
+            }
+            if (changed)
+                writeJournal();
+        } catch (Exception e) {
+            Util.print_exception("Unable to read the jobs journal from " + journalFile + ", starting a new one", e, log);
+        }
+    }
+}
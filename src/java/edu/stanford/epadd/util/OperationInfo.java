@@ -6,19 +6,16 @@ import edu.stanford.muse.email.StaticStatusProvider;
 import edu.stanford.muse.email.StatusProvider;
 import org.json.JSONObject;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Collection;
 
 /**
  * This class contains the metadata about the current operation that is in progress.
- * Mainly used for the bookkeeping of
+ * Mainly used for the bookkeeping of the long running operations invoked from the ajax/async jsps: their status, result and cancellation.
+ * The operation is run as a job of the JobScheduler, which decides when it can start (see JobScheduler for the resources it needs).
  */
 public abstract class OperationInfo {
     //to denote the status of this operation
     private StatusProvider statusProvider;
-    //to denote the threadID that is running this operation.
-    private ExecutorService executorID;
     //Result object in case this operation got over.
     private final JSONObject resultJSON;
     //operationID - unique to every operation object.
@@ -28,6 +25,18 @@ public abstract class OperationInfo {
     //map of passed parameters
     private final Multimap<String, String> parametersMap;
 
+    //<editor-fold desc="Job bookkeeping, set by the JobScheduler">
+    //set when the operation is cancelled, long running code can check it through isCancelled()
+    private volatile boolean cancelled;
+    volatile JobScheduler.State state;
+    JobScheduler.JobSpec spec;
+    //key of the archive this operation works on, null if none
+    String archiveKey;
+    long seq, submittedMillis, startedMillis, finishedMillis;
+    //thread running the operation, to interrupt it on cancel
+    volatile Thread thread;
+    //</editor-fold>
+
     public OperationInfo(String actionName, String opID, Multimap<String,String> parametersMap){
         this.actionName = actionName;
         this.opID = opID;
@@ -51,22 +60,55 @@ public abstract class OperationInfo {
         return resultJSON;
     }
 
+    /** @return the result object, empty till the operation is over */
+    JSONObject result() {
+        return resultJSON;
+    }
+
     public Multimap<String, String> getParametersMap(){
         return parametersMap;
     }
+
+    public String getOpID() {
+        return opID;
+    }
+
+    public String getActionName() {
+        return actionName;
+    }
+
+    /** @return the value of the given request parameter, null if absent */
+    String getParam(String key) {
+        if (parametersMap == null)
+            return null;
+        Collection<String> values = parametersMap.get(key);
+        return values == null || values.isEmpty() ? null : values.iterator().next();
+    }
+
+    public JobScheduler.State getState() {
+        return state;
+    }
+
+    /** cancellation token of this operation, true once cancel() is called */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     public void run(){
-        //execute onStart method on a new thread and put that thread ID in this class variable (threadID)
-        executorID = Executors.newSingleThreadExecutor();
-        executorID.submit(() -> {
-            onStart(resultJSON);
-        });
+        //queue onStart with the scheduler, it is run on a thread of the scheduler as soon as the resources it needs are free
+        JobScheduler.getInstance().submit(this);
     }
 
     public void cancel(){
-        //kill the thread corresponding to threadID and execute onCancel method.
-        executorID.shutdownNow();
+        cancelled = true;
+        //let the current step know, most status providers are also the ones that do the work and stop when cancelled
+        StatusProvider sp = statusProvider;
+        if (sp != null)
+            sp.cancel();
+        //take the operation off the queue, or interrupt the thread running it
+        JobScheduler.getInstance().cancel(this);
         //set status provider telling that the operation is being cancelled.
-        setStatusProvider(new StaticStatusProvider("Canelling the operation..."));
+        setStatusProvider(new StaticStatusProvider("Cancelling the operation..."));
         onCancel();
         //after operation is cancelled set appropriate JSON object as result to be sent to the client and also set resType as done.
         resultJSON.put("status", 0);
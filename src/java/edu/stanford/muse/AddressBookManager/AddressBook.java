@@ -94,6 +94,12 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
      */
     transient private Map<String, String> emailMaskingMap = null;
 
+    /**
+     * observations of the addresses of the messages being processed, computed ahead (see AddressBookBuilder), by identity of the address objects.
+     * null when not building, then addresses are observed as they come.
+     */
+    transient Map<Address, AddressObservation> observations = null;
+
 
     /**
      * create a new contact set with the given list of self addrs. selfAddrs can be null or empty
@@ -241,6 +247,13 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
      * In any case it also adds it nameTokenToContact map for all words in the name.
      */
     private void addNameForContactAndUpdateMaps(String name, Contact c) {
+        if (Util.nullOrEmpty(name))
+            return;
+        addNameForContactAndUpdateMaps(name, c, nameToContactKey(name));
+    }
+
+    /** same as addNameForContactAndUpdateMaps(name, c), with the key for nameToContact computed ahead by nameToContactKey(name) */
+    private void addNameForContactAndUpdateMaps(String name, Contact c, String nameToContactKey) {
         if (Util.nullOrEmpty(name))
             return;
 
@@ -248,25 +261,34 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
         name = name.trim();
         c.getNames().add(name);
 
+        if (nameToContactKey != null)
+            nameToContact.put(nameToContactKey, c);
+    }
+
+    /** @return the key under which the name goes into nameToContact, null if it should not go there */
+    private static String nameToContactKey(String name) {
+        if (Util.nullOrEmpty(name))
+            return null;
+        name = name.trim();
         // nameToContact is very important, so only add to it if we're fairly certain about the name.
         if (Util.tokenize(name).size() > 1)
-            nameToContact.put(EmailUtils.normalizePersonNameForLookup(name), c);
+            return EmailUtils.normalizePersonNameForLookup(name);
         else {
             //consider the case when there is no space but special character like . as we found in an example. In that case one should separate that out
             StringTokenizer st = new StringTokenizer(name, ".", false);
             if (st.countTokens() > 1)
-                nameToContact.put(EmailUtils.normalizePersonNameForLookup(name), c);
-
+                return EmailUtils.normalizePersonNameForLookup(name);
         }
+        return null;
     }
 
     /**
      * the Contacts for name and email are unified if they are not already the same
      * returns the contact for name/email (creates a new contact if needed)
      * name could be null (or empty, which is equivalent), email cannot be
-     *
+     * nameLookupKey and nameToContactKey are the lookup keys of name (EmailUtils.normalizePersonNameForLookup and nameToContactKey), computed ahead
      */
-    private synchronized Contact unifyContact(String email, String name) {
+    private synchronized Contact unifyContact(String email, String name, String nameLookupKey, String nameToContactKey) {
         // we'll implement a weaker pre-condition: both name and email could be null
         if (Util.nullOrEmpty(email)) {
             log.warn("Confused: email is null or empty:\n" + Util.stackTrace());
@@ -289,7 +311,7 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
            //Case 3- create a new contact
 
         if (!Util.nullOrEmpty(name)) {
-            Collection<Contact> cNames = lookupByName(name);
+            Collection<Contact> cNames = Util.nullOrEmpty(nameLookupKey) ? Collections.EMPTY_LIST : nameToContact.get(nameLookupKey);
             if(cNames!=null) {
                 if(cNames.size()>1){
                     StringBuilder s = new StringBuilder("INFO:::When building the addressbook, name " + name + " mapped to the following contacts\n");
@@ -318,7 +340,7 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
         }
         if (cEmail != null) {
             if (!Util.nullOrEmpty(name))
-                addNameForContactAndUpdateMaps(name, cEmail);
+                addNameForContactAndUpdateMaps(name, cEmail, nameToContactKey);
             return cEmail;
         }
 
@@ -335,7 +357,7 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
         addEmailAddressForContact(email, c);
 
         if (!Util.nullOrEmpty(name )) {
-            addNameForContactAndUpdateMaps(name, c);
+            addNameForContactAndUpdateMaps(name, c, nameToContactKey);
         }
 
         return c;
@@ -417,7 +439,8 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
         if (a == null)
             return false;
 
-        String email = EmailUtils.cleanEmailAddress(a.getAddress());
+        AddressObservation o = observations == null ? null : observations.get(a);
+        String email = o != null ? o.email : EmailUtils.cleanEmailAddress(a.getAddress());
         Contact selfContact = getContactForSelf();
         return selfContact != null && selfContact.getEmails().contains(email);
 
@@ -479,44 +502,82 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
         Any evidence of a name belonging to an email address should be logged by calling this method.
         Warning: can return null if the email address is null! */
     Contact registerAddress(InternetAddress a, boolean isTrustedAssociation) {
-        // get email and name and normalize. email cannot be null, but name can be.
-        String email = a.getAddress();
-        email = EmailUtils.cleanEmailAddress(email);
-        if (Util.nullOrEmpty(email)) {
-            return null; // we see this happening in the scamletters dataset -- email addr itself is empty!
+        AddressObservation o = observations == null ? null : observations.get(a);
+        if (o == null)
+            o = AddressObservation.observe(a);
+        return registerAddress(o, isTrustedAssociation);
+    }
+
+    /**
+     * The normalized email and name of an address, as registerAddress uses them, along with the lookup keys of the name.
+     * Computing these (cleaning, checking for banned words, normalizing the name for lookup) is most of the cost of registering an address,
+     * and does not depend on the state of the address book, so AddressBookBuilder computes them for all messages ahead, on several threads.
+     */
+    static final class AddressObservation {
+        // email cannot be null, but name can be.
+        final String email;
+        // name is empty if it is not a valid name for the email, preservedName is the name anyway, to be associated with the email if the name is not trusted
+        final String name, preservedName;
+        final String nameLookupKey, nameToContactKey, preservedNameToContactKey;
+
+        private AddressObservation(String email, String name, String preservedName) {
+            this.email = email;
+            this.name = name;
+            this.preservedName = preservedName;
+            this.nameLookupKey = Util.nullOrEmpty(name) ? null : EmailUtils.normalizePersonNameForLookup(name);
+            this.nameToContactKey = nameToContactKey(name);
+            this.preservedNameToContactKey = Util.nullOrEmpty(preservedName) || preservedName.equals(name) ? nameToContactKey : nameToContactKey(preservedName);
         }
 
-        String name = a.getPersonal();
-        name = Util.unescapeHTML(name);
-        name = EmailUtils.cleanPersonName(name);
-        String preservedName = name;//to store the name temporarily in case it gets wiped out either because of containing banned words or due to non-trusted association of name-email pair.
+        static AddressObservation observe(InternetAddress a) {
+            // get email and name and normalize. email cannot be null, but name can be.
+            String email = a.getAddress();
+            email = EmailUtils.cleanEmailAddress(email);
+            if (Util.nullOrEmpty(email)) {
+                return new AddressObservation(email, null, null); // we see this happening in the scamletters dataset -- email addr itself is empty!
+            }
 
-        //region Check 1: Checks if name is a valid name or not.
-        if (!Util.nullOrEmpty(name)) {
-            // watch out for bad "names" and ignore them
-            if (name.toLowerCase().equals("'" + email.toLowerCase() + "'")) // sometimes the "name" field is just the same as the email address with quotes around it
-                name = "";
-            if (name.contains("@"))
-                name = ""; // name can't be an email address!
-        }
-        //endregion
+            String name = a.getPersonal();
+            name = Util.unescapeHTML(name);
+            name = EmailUtils.cleanPersonName(name);
+            String preservedName = name;//to store the name temporarily in case it gets wiped out either because of containing banned words or due to non-trusted association of name-email pair.
+
+            //region Check 1: Checks if name is a valid name or not.
+            if (!Util.nullOrEmpty(name)) {
+                // watch out for bad "names" and ignore them
+                if (name.toLowerCase().equals("'" + email.toLowerCase() + "'")) // sometimes the "name" field is just the same as the email address with quotes around it
+                    name = "";
+                if (name.contains("@"))
+                    name = ""; // name can't be an email address!
+            }
+            //endregion
 
-        //region Check 2: Checks if name contains banned words or not.
-        for (String s : DictUtils.bannedStartStringsForEmailAddresses) {
-            if (email.toLowerCase().startsWith(s)) {
-                log.info("not going to consider name-email pair. email: " + email + " name: " + name + " because email starts with " + s);
-                name = ""; // usually something like info@paypal.com or info@evite.com or invitations-noreply@linkedin.com -- we need to ignore the name part of such an email address, so it doesn't get merged with anything else.
-                break;
+            //region Check 2: Checks if name contains banned words or not.
+            for (String s : DictUtils.bannedStartStringsForEmailAddresses) {
+                if (email.toLowerCase().startsWith(s)) {
+                    log.info("not going to consider name-email pair. email: " + email + " name: " + name + " because email starts with " + s);
+                    name = ""; // usually something like info@paypal.com or info@evite.com or invitations-noreply@linkedin.com -- we need to ignore the name part of such an email address, so it doesn't get merged with anything else.
+                    break;
+                }
             }
+            //endregion
+            return new AddressObservation(email, name, preservedName);
         }
-        //endregion
+    }
+
+    private Contact registerAddress(AddressObservation o, boolean isTrustedAssociation) {
+        String email = o.email;
+        if (Util.nullOrEmpty(email)) {
+            return null; // we see this happening in the scamletters dataset -- email addr itself is empty!
+        }
+        String name = o.name;
 
         //region Check 3: Checks if this is a trusted name-address association
         if(!isTrustedAssociation)
             name="";
         //endregion
 
-        Contact c = unifyContact(email, name);
+        Contact c = isTrustedAssociation ? unifyContact(email, name, o.nameLookupKey, o.nameToContactKey) : unifyContact(email, name, null, null);
 
         //Following code snippet not needed as unifyContact does the work of adding names and emails in the contact appropriately.
         /*// DEBUG point: enable this to see all the incoming names and email addrs
@@ -536,7 +597,7 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
 
         if(Util.nullOrEmpty(name)){
             //means we emptied it because of either Check 1, Check 2 or Check 3 above. Now add it so that we can do search based on this 'non-trusted' association of name-email
-            addNameForContactAndUpdateMaps(preservedName,c);
+            addNameForContactAndUpdateMaps(o.preservedName, c, o.preservedNameToContactKey);
         }
 
         //region Nice to have feature: not needed right now.
@@ -644,10 +705,10 @@ private transient          Map<Contact, Set<EmailDocument>> L1_Summary_SentDocs
 
         if (fromTrustedAddr) {//if this message is from trusted sender then process all name-email pairs present in this message as trusted ones.
             b = processContacts(ed.getToCCBCC(), ed.from, ed.sentToMailingLists,true);
-            log.info("Processing trusted contacts from " + ((ed.from != null && ed.from.length > 0) ? ed.from[0] : ""));
+            log.debug("Processing trusted contacts from " + ((ed.from != null && ed.from.length > 0) ? ed.from[0] : ""));
         } else{
             b = processContacts(ed.getToCCBCC(), ed.from, ed.sentToMailingLists,false);
-            log.info("Processing non-trusted contacts from " + ((ed.from != null && ed.from.length > 0) ? ed.from[0] : ""));
+            log.debug("Processing non-trusted contacts from " + ((ed.from != null && ed.from.length > 0) ? ed.from[0] : ""));
         }
 
         if (!b && noToCCBCC) { // if we already reported no to address problem, no point reporting this error, it causes needless duplication of error messages.
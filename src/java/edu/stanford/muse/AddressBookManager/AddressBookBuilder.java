@@ -0,0 +1,231 @@
+package edu.stanford.muse.AddressBookManager;
+
+import edu.stanford.muse.AddressBookManager.AddressBook.AddressObservation;
+import edu.stanford.muse.index.EmailDocument;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds an address book from all the messages of an archive.
+ * Registering an address is mostly cleaning up its email and name and normalizing the name for lookup, which does not depend on the address book.
+ * The builder does that part on a pool of threads, chunk by chunk, each thread keeping a table of the (email, name) pairs it has already observed, since the same pairs occur over and over.
+ * The observations are then fed to AddressBook.processContactsFromMessage on a single thread, in the order of the messages.
+ * Merging contacts depends on the order in which names and emails are seen (e.g. an ambiguous name goes to the first contact it was seen with),
+ * so replaying in order is what keeps the contacts identical to processing the messages one by one, while the replay itself is reduced to map lookups and unions.
+ * The chunks are observed ahead of the replay, and reused for the second pass.
+ */
+public class AddressBookBuilder {
+    private static final Logger log = LogManager.getLogger(AddressBookBuilder.class);
+
+    private static final int CHUNK_SIZE = 10000;
+
+    //(email, name) pairs already observed by a thread of the pool
+    private static final ThreadLocal<Map<List<String>, AddressObservation>> threadObservations = ThreadLocal.withInitial(HashMap::new);
+
+    private final AddressBook addressBook;
+    private final int nThreads;
+
+    public AddressBookBuilder(AddressBook addressBook) {
+        this(addressBook, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AddressBookBuilder(AddressBook addressBook, int nThreads) {
+        this.addressBook = addressBook;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * processes the contacts of all docs in 2 passes, as needed for a new address book:
+     * the first pass to unify and find all own email addrs, the second to count the messages with the real contacts,
+     * because we may have misclassified messages wrt sent/received in the first round.
+     * the address book should not be used by anyone else while this is going on.
+     */
+    public void build(Collection<EmailDocument> docs, Collection<String> trustedAddrs) {
+        List<EmailDocument> list = docs instanceof List ? (List<EmailDocument>) docs : new ArrayList<>(docs);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "addressbook-builder");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            long startMillis = System.currentTimeMillis();
+            List<Future<Map<Address, AddressObservation>>> chunks = observe(executor, list);
+
+            log.debug("First pass processing contacts for " + list.size() + " messages");
+            process(list, chunks, trustedAddrs);
+            addressBook.organizeContacts();
+
+            log.debug("Second pass processing contacts for " + list.size() + " messages");
+            addressBook.resetCounts();
+            process(list, chunks, trustedAddrs);
+            addressBook.organizeContacts();
+            log.info("Address book with " + addressBook.allContacts().size() + " contacts built from " + list.size() + " messages on " + nThreads + " threads in " + Util.commatize(System.currentTimeMillis() - startMillis) + "ms");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** starts observing the addresses of docs on the executor, chunk by chunk, and returns the observations of each chunk */
+    private static List<Future<Map<Address, AddressObservation>>> observe(ExecutorService executor, List<EmailDocument> docs) {
+        List<Future<Map<Address, AddressObservation>>> chunks = new ArrayList<>();
+        for (int from = 0; from < docs.size(); from += CHUNK_SIZE) {
+            List<EmailDocument> chunk = docs.subList(from, Math.min(docs.size(), from + CHUNK_SIZE));
+            chunks.add(executor.submit(() -> observe(chunk)));
+        }
+        return chunks;
+    }
+
+    /** @return the observations of the addresses of docs, by identity of the address objects (InternetAddress.equals ignores the name) */
+    private static Map<Address, AddressObservation> observe(List<EmailDocument> docs) {
+        Map<List<String>, AddressObservation> seen = threadObservations.get();
+        Map<Address, AddressObservation> result = new IdentityHashMap<>();
+        for (EmailDocument ed : docs) {
+            observe(ed.from, seen, result);
+            observe(ed.to, seen, result);
+            observe(ed.cc, seen, result);
+            observe(ed.bcc, seen, result);
+        }
+        return result;
+    }
+
+    private static void observe(Address[] addrs, Map<List<String>, AddressObservation> seen, Map<Address, AddressObservation> result) {
+        if (addrs == null)
+            return;
+        for (Address a : addrs) {
+            if (!(a instanceof InternetAddress) || result.containsKey(a))
+                continue;
+            InternetAddress ia = (InternetAddress) a;
+            //a list, so that a null name and the name "null" (or any other null part) don't collide the way they would in a string key
+            List<String> key = Arrays.asList(ia.getAddress(), ia.getPersonal());
+            AddressObservation o = seen.get(key);
+            if (o == null) {
+                o = AddressObservation.observe(ia);
+                seen.put(key, o);
+            }
+            result.put(a, o);
+        }
+    }
+
+    /** runs processContactsFromMessage over docs in order, with the observations of each chunk as they become available */
+    private void process(List<EmailDocument> docs, List<Future<Map<Address, AddressObservation>>> chunks, Collection<String> trustedAddrs) {
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                addressBook.observations = await(chunks.get(i));
+                for (EmailDocument ed : docs.subList(i * CHUNK_SIZE, Math.min(docs.size(), (i + 1) * CHUNK_SIZE)))
+                    addressBook.processContactsFromMessage(ed, trustedAddrs);
+            }
+        } finally {
+            addressBook.observations = null;
+        }
+    }
+
+    /** @return the observations of a chunk, null if they could not be computed, in which case the addresses are observed as they are registered */
+    private static Map<Address, AddressObservation> await(Future<Map<Address, AddressObservation>> chunk) {
+        try {
+            return chunk.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            Util.print_exception("Unable to observe the addresses of a chunk of messages ahead, registering them as they come", ee, log);
+        }
+        return null;
+    }
+
+    /**
+     * benchmark on a synthetic corpus: builds the address book one message at a time and with the builder, checks that the contacts are identical and prints the times.
+     * args: [#messages (default 1M)] [#threads]
+     */
+    public static void main(String[] args) throws Exception {
+        int nMessages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int nThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String ownerEmail = "owner@example.com", ownerName = "Owner Name";
+        List<EmailDocument> docs = syntheticCorpus(nMessages, ownerEmail, ownerName, new Random(0));
+        Set<String> trustedAddrs = new LinkedHashSet<>(Collections.singleton(ownerEmail));
+
+        long startMillis = System.currentTimeMillis();
+        AddressBook sequential = new AddressBook(new String[]{ownerEmail}, new String[]{ownerName});
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass > 0)
+                sequential.resetCounts();
+            for (EmailDocument ed : docs)
+                sequential.processContactsFromMessage(ed, trustedAddrs);
+            sequential.organizeContacts();
+        }
+        long sequentialMillis = System.currentTimeMillis() - startMillis;
+
+        startMillis = System.currentTimeMillis();
+        AddressBook built = new AddressBook(new String[]{ownerEmail}, new String[]{ownerName});
+        new AddressBookBuilder(built, nThreads).build(docs, trustedAddrs);
+        long builderMillis = System.currentTimeMillis() - startMillis;
+
+        List<Contact> expected = sequential.allContacts(), actual = built.allContacts();
+        Util.ASSERT(expected.size() == actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Contact e = expected.get(i), a = actual.get(i);
+            Util.ASSERT(new ArrayList<>(e.getEmails()).equals(new ArrayList<>(a.getEmails())));
+            Util.ASSERT(new ArrayList<>(e.getNames()).equals(new ArrayList<>(a.getNames())));
+            Util.ASSERT(e.mailingListState == a.mailingListState);
+        }
+        Util.ASSERT(new ArrayList<>(sequential.getDataErrors()).equals(new ArrayList<>(built.getDataErrors())));
+
+        System.out.println(Util.commatize(nMessages) + " messages, " + expected.size() + " contacts");
+        System.out.println("one message at a time: " + Util.commatize(sequentialMillis) + "ms");
+        System.out.println("builder (" + nThreads + " threads): " + Util.commatize(builderMillis) + "ms");
+    }
+
+    /** messages among a fixed population, with each person writing their name in a few ways, from a few addresses, and some mailing lists */
+    private static List<EmailDocument> syntheticCorpus(int nMessages, String ownerEmail, String ownerName, Random random) throws Exception {
+        int nPeople = Math.max(10, nMessages / 50);
+        String[] firsts = {"John", "Mary", "Robert", "Patricia", "Michael", "Linda", "David", "Susan", "James", "Karen", "Wei", "Priya", "Ahmed", "Olga", "Kenji"};
+        String[] lasts = {"Smith", "Johnson", "Lee", "Garcia", "Brown", "Miller", "Davis", "Wilson", "Chen", "Patel", "Khan", "Ivanova", "Tanaka", "Lopez", "Clark"};
+        String[][] emails = new String[nPeople][], names = new String[nPeople][];
+        for (int p = 0; p < nPeople; p++) {
+            // a few people share the same name, which is what makes unification order dependent
+            int n = random.nextInt(nPeople - nPeople / 20);
+            String first = firsts[n % firsts.length], last = lasts[(n / firsts.length) % lasts.length];
+            for (int suffix = n / (firsts.length * lasts.length); suffix > 0; suffix /= 26)
+                last += (char) ('a' + suffix % 26);
+            emails[p] = new String[1 + random.nextInt(3)];
+            for (int e = 0; e < emails[p].length; e++)
+                emails[p][e] = (e == 0 ? first.toLowerCase() + "." + last.toLowerCase() + p : last.toLowerCase() + p + "_" + e) + "@" + (e == 0 ? "example.com" : "mail" + e + ".org");
+            names[p] = new String[]{first + " " + last, last + ", " + first, "'" + emails[p][0] + "'", ""};
+        }
+        String[] lists = {"announce@lists.example.com", "info@example.org", "noreply@example.net"};
+
+        List<EmailDocument> docs = new ArrayList<>(nMessages);
+        long date = new GregorianCalendar(2000, Calendar.JANUARY, 1).getTimeInMillis();
+        for (int m = 0; m < nMessages; m++) {
+            EmailDocument ed = new EmailDocument();
+            ed.date = new Date(date + m * 60000L);
+            int p = random.nextInt(nPeople);
+            boolean sent = random.nextInt(3) == 0;
+            ed.from = new Address[]{sent ? new InternetAddress(ownerEmail, ownerName) : person(emails[p], names[p], random)};
+            int nTo = 1 + random.nextInt(3);
+            ed.to = new Address[nTo];
+            for (int t = 0; t < nTo; t++) {
+                if (!sent && t == 0)
+                    ed.to[t] = random.nextInt(10) == 0 ? new InternetAddress(lists[random.nextInt(lists.length)], "List") : new InternetAddress(ownerEmail, ownerName);
+                else {
+                    int q = random.nextInt(nPeople);
+                    ed.to[t] = person(emails[q], names[q], random);
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                int q = random.nextInt(nPeople);
+                ed.cc = new Address[]{person(emails[q], names[q], random)};
+            }
+            docs.add(ed);
+        }
+        return docs;
+    }
+
+    private static InternetAddress person(String[] emails, String[] names, Random random) throws Exception {
+        return new InternetAddress(emails[random.nextInt(emails.length)], names[random.nextInt(names.length)]);
+    }
+}
@@ -4,6 +4,7 @@ import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 import edu.stanford.muse.Config;
 import edu.stanford.muse.AuthorityMapper.AuthorityMapper;
+import edu.stanford.muse.AuthorityMapper.FastAuthorityMatcher;
 import edu.stanford.muse.index.Archive;
 import edu.stanford.muse.index.ArchiveReaderWriter;
 import edu.stanford.muse.util.Pair;
@@ -16,10 +17,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.queryparser.classic.ParseException;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 import static edu.stanford.muse.ie.FASTIndexer.FIELD_NAME_FAST_ID;
 import static edu.stanford.muse.ie.variants.EntityBook.canonicalize;
@@ -56,17 +54,22 @@ public class CorrespondentAuthorityMapper extends AuthorityMapper implements   j
         cmapper.openFastIndex ();
 
         // compute candidates if we don't have them yet. may need some way to force recomputation in the future, even if already computed.
-        if (cmapper.cnameToFastIdCandidates.isEmpty() || cmapper.cnameToCount.isEmpty()) {
-            // this can take a while.... might need to make a progress bar available for large archives
-            cmapper.setupCandidatesAndCounts(archive);
-        }
+        // this can take a while.... might need to make a progress bar available for large archives
+        if (cmapper.cnameToFastIdCandidates.isEmpty())
+            cmapper.setupCandidates(archive);
+        if (cmapper.cnameToCount.isEmpty())
+            cmapper.setupCounts(archive);
         return cmapper;
     }
 
-    /** this should be called during creation time, or any time the cnameToFastIdCandidates has to be recomputed */
-    private void setupCandidatesAndCounts(Archive archive) {
+    /** this should be called during creation time, or any time the cnameToFastIdCandidates has to be recomputed.
+     * all the names to be looked up are collected first and then matched in one batch against the (shared) FAST index */
+    private void setupCandidates(Archive archive) {
         AddressBook ab = archive.getAddressBook();
 
+        // cname -> names of the contact to look up, in contact order
+        Map<String, List<String>> cnameToNames = new LinkedHashMap<>();
+        Map<String, String> cnameToContactName = new LinkedHashMap<>();
         List<Contact> contacts = ab.allContacts();
         for (Contact c : contacts) {
             try {
@@ -86,13 +89,8 @@ public class CorrespondentAuthorityMapper extends AuthorityMapper implements   j
                         if (nameTokens.size() < 2)
                             continue; // only match when 2 or more words are present in the name
 
-                        List<Document> hits = lookupNameInFastIndex(name);
-                        if (hits.size() > 20)
-                            log.warn ("Warning: many (" + hits.size() + ") hits for authority name=" + name + " (associated with contact " + contactName + ")");
-                        for (Document d : hits) {
-                            Long fastId = Long.parseLong(d.get(FIELD_NAME_FAST_ID));
-                            cnameToFastIdCandidates.put(cname, fastId);
-                        }
+                        cnameToNames.computeIfAbsent(cname, k -> new ArrayList<>()).add(name);
+                        cnameToContactName.putIfAbsent(cname, contactName);
                     }
                 }
             } catch (Exception e) {
@@ -100,6 +98,32 @@ public class CorrespondentAuthorityMapper extends AuthorityMapper implements   j
             }
         }
 
+        Set<String> allNames = new LinkedHashSet<>();
+        cnameToNames.values().forEach(allNames::addAll);
+        Map<String, List<Long>> nameToFastIds;
+        try {
+            nameToFastIds = FastAuthorityMatcher.getInstance().lookup(allNames);
+        } catch (IOException e) {
+            Util.print_exception("Unable to open FAST index for matching authorities", e, log);
+            return;
+        }
+
+        for (String cname : cnameToNames.keySet()) {
+            for (String name : cnameToNames.get(cname)) {
+                List<Long> fastIds = nameToFastIds.get(name);
+                if (fastIds == null)
+                    continue;
+                if (fastIds.size() > 20)
+                    log.warn ("Warning: many (" + fastIds.size() + ") hits for authority name=" + name + " (associated with contact " + cnameToContactName.get(cname) + ")");
+                for (Long fastId : fastIds)
+                    cnameToFastIdCandidates.put(cname, fastId);
+            }
+        }
+    }
+
+    /** fills in cnameToCount, the number of messages for each correspondent */
+    private void setupCounts(Archive archive) {
+        AddressBook ab = archive.getAddressBook();
         List<Pair<Contact, Integer>> pairs = ab.sortedContactsAndCounts((Collection) archive.getAllDocs());
         for (Pair<Contact, Integer> p : pairs) {
             Contact c = p.getFirst();
@@ -134,16 +158,7 @@ public class CorrespondentAuthorityMapper extends AuthorityMapper implements   j
         //it was read from two csv files (candidateCorrespondentAuthorities.csv and confirmedCorrespondentAuthorities.csv).
         if(cnameToCount==null || cnameToCount.size()==0){
             Archive archive = ArchiveReaderWriter.getArchiveForArchiveID(archiveID);
-
-            List<Pair<Contact, Integer>> pairs = ab.sortedContactsAndCounts((Collection) archive.getAllDocs());
-            for (Pair<Contact, Integer> p : pairs) {
-                Contact c = p.getFirst();
-                String lname = c.pickBestName();
-                String lcname = canonicalize(lname);
-                if (Util.nullOrEmpty(lcname))
-                    continue;
-                cnameToCount.put(lcname, p.getSecond());
-            }
+            setupCounts(archive);
         }
         /////////////////////////////////////////////////////////////
         Integer nMessages = (cnameToCount != null) ? cnameToCount.get(cname) : null;
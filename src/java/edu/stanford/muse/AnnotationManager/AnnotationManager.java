@@ -3,60 +3,115 @@ package edu.stanford.muse.AnnotationManager;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
+import edu.stanford.muse.util.DocIdOrdinals;
 import edu.stanford.muse.util.Util;
 import edu.stanford.muse.webapp.JSPHelper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 //import org.apache.commons.logging.Log;
 //import org.apache.commons.logging.LogFactory;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Annotations of docs, stored column-wise: doc id -> ordinal (DocIdOrdinals), ordinal -> index of the annotation text in a dictionary
+ * of distinct texts. Bulk annotation of a set of docs (the usual case, from the browse page) stores the text once, not once per doc,
+ * and appending the same text to many docs with the same annotation creates the new text only once.
+ * Texts that are no longer used by any doc stay in the dictionary, they are dropped when the annotations are saved and read back.
+ *
+ * Saved in a compact binary file next to the csv, and the csv is still written as the human readable view of the annotations.
+ */
 public class AnnotationManager{
 
     private static final Logger log =  LogManager.getLogger(AnnotationManager.class);
+    private static final int MAGIC = 0x414e4e53; // ANNS
+    private static final int VERSION = 1;
 
-    //mapping from object id (string) to annotation (String).
-
-    //moving forward we can think of internalizing strings so that storage is minimized.
-    private final Map<String,String> docToAnnotation;
-
+    private final DocIdOrdinals docOrdinals;
+    //doc ordinal -> index in annotations, 0 = no annotation
+    private int[] docToAnnotation;
+    private final List<String> annotations;
+    private final Map<String,Integer> annotationToIndex;
 
     public AnnotationManager (){
-        docToAnnotation = new LinkedHashMap<>();
+        docOrdinals = new DocIdOrdinals();
+        docToAnnotation = new int[16];
+        annotations = new ArrayList<>();
+        annotationToIndex = new HashMap<>();
+        annotations.add(null);
     }
 
+    private int intern(String annotation){
+        return annotationToIndex.computeIfAbsent(annotation, a-> {
+            annotations.add(a);
+            return annotations.size()-1;
+        });
+    }
+
+    private int addDoc(String docid){
+        int ordinal = docOrdinals.getOrAdd(docid);
+        if(ordinal>=docToAnnotation.length)
+            docToAnnotation = Arrays.copyOf(docToAnnotation, Math.max(ordinal+1, docToAnnotation.length*2));
+        return ordinal;
+    }
 
     //set same annotation for a set of ids
     //the invariant is: if annotation is not empty then that info is in the map.. if annotation is empty
     //then that info is not in the map (if and only if relation)
-    public void setAnnotationToAll(Set<String> docids, String annotation){
+    public synchronized void setAnnotationToAll(Set<String> docids, String annotation){
         if(Util.nullOrEmpty(annotation)){
-            //remove all docids from docToAnnotation map
-            docToAnnotation.keySet().removeAll(docids);
+            //clear the annotation of all docids
+            for(String docid: docids){
+                int ordinal = docOrdinals.ordinalOf(docid);
+                if(ordinal>=0)
+                    docToAnnotation[ordinal] = 0;
+            }
         }else{
-            //put docid, annotation in the map
-            docids.forEach(docid->docToAnnotation.put(docid,annotation));
+            int index = intern(annotation);
+            for(String docid: docids)
+                docToAnnotation[addDoc(docid)] = index;
         }
     }
 
-
     //get annotation for a set of ids
     //if not found in map return empty..
-    public String getAnnotation(String docid){
-        if(docToAnnotation.containsKey(docid)){
-            return docToAnnotation.get(docid);
-        }else
+    public synchronized String getAnnotation(String docid){
+        int ordinal = docOrdinals.ordinalOf(docid);
+        if(ordinal<0 || docToAnnotation[ordinal]==0)
             return "";
+        return annotations.get(docToAnnotation[ordinal]);
     }
 
+    //append same annotation for a set of ids
+    //the invariant is: if annotation is not empty then that info is in the map.. if annotation is empty
+    //then that info is not in the map (if and only if relation)
+    public synchronized void appendAnnotationToAll(Set<String> docids, String annotationText) {
+        if(Util.nullOrEmpty(annotationText)){
+            //appending empty annotation does not have any impact. Leave unchanged.
+
+        }else{
+            //get existing annotation if any, then concatenate the annotationText to it. Docs with the same existing annotation share the result.
+            Map<Integer,Integer> existingToAppended = new HashMap<>();
+            for(String docid: docids){
+                int ordinal = addDoc(docid);
+                docToAnnotation[ordinal] = existingToAppended.computeIfAbsent(docToAnnotation[ordinal], existing->
+                        intern((existing==0 ? "" : annotations.get(existing)) + annotationText));
+            }
+        }
+    }
 
-    //write annotation manager in human readable format
+    //path of the binary file for the given csv path
+    private static String binaryFilePath(String csvpath){
+        return csvpath.endsWith(".csv") ? csvpath.substring(0, csvpath.length()-".csv".length()) + ".dat" : csvpath + ".dat";
+    }
 
-    public void writeObjectToStream(String filepath, Map<String,String> docidToSignature){
+    //write annotation manager to the binary file and in human readable format to filepath. Returns the path of the binary file.
+    public synchronized String writeObjectToStream(String filepath, Map<String,String> docidToSignature){
+        String binarypath = binaryFilePath(filepath);
+        writeBinary(binarypath);
         try{
             FileWriter fw = new FileWriter(filepath);
             CSVWriter csvwriter = new CSVWriter(fw, ',', '"',' ',"\n");
@@ -67,30 +122,85 @@ public class AnnotationManager{
             line.add ("annotation");
             csvwriter.writeNext(line.toArray(new String[line.size()]));
 
-            // write the records
-            for(String docid: docToAnnotation.keySet()){
-                String annotation =  docToAnnotation.get(docid); {
-                    line = new ArrayList<>();
-                    line.add(docid);
-                    line.add(annotation);
-                    String sig = docidToSignature.getOrDefault(docid,"ERROR! No document found in archive for this unique id");
-                    String d = sig.replace("\n","").replace("\"","").replace(","," ");
-                    //get the signature of this doc from docidToSignature map
-                    //line.add(d);
-                    csvwriter.writeNext(line.toArray(new String[line.size()]));
-                }
+            // write the records, in the order in which the docs were first annotated
+            for(int ordinal=0; ordinal<docOrdinals.size(); ordinal++){
+                if(docToAnnotation[ordinal]==0)
+                    continue;
+                line = new ArrayList<>();
+                line.add(docOrdinals.id(ordinal));
+                line.add(annotations.get(docToAnnotation[ordinal]));
+                csvwriter.writeNext(line.toArray(new String[line.size()]));
             }
             csvwriter.close();
             fw.close();
         } catch (IOException e) {
             JSPHelper.log.warn("Unable to write docid to annotation map in csv file");
-            return;
         }
+        return binarypath;
     }
 
-    //read annotation manager from a human readable file
+    private void writeBinary(String binarypath){
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(binarypath)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            //write only the annotated docs and the texts in use, renumbered in order of first use
+            BitSet annotated = new BitSet(docOrdinals.size());
+            int[] indexToSaved = new int[annotations.size()];
+            List<String> saved = new ArrayList<>();
+            for(int ordinal=0; ordinal<docOrdinals.size(); ordinal++){
+                int index = docToAnnotation[ordinal];
+                if(index==0)
+                    continue;
+                annotated.set(ordinal);
+                if(indexToSaved[index]==0){
+                    saved.add(annotations.get(index));
+                    indexToSaved[index] = saved.size();
+                }
+            }
+            out.writeInt(saved.size());
+            for(String annotation: saved){
+                byte[] b = annotation.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            docOrdinals.write(out, annotated);
+            for(int ordinal = annotated.nextSetBit(0); ordinal>=0; ordinal = annotated.nextSetBit(ordinal+1))
+                DocIdOrdinals.writeVInt(out, indexToSaved[docToAnnotation[ordinal]]);
+        } catch (IOException e) {
+            Util.print_exception("Unable to write annotations to " + binarypath, e, log);
+        }
+    }
+
+    private static AnnotationManager readBinary(File binaryfile) throws IOException {
+        AnnotationManager annotationManager = new AnnotationManager();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(binaryfile)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Unknown format of annotations file " + binaryfile);
+            int nAnnotations = in.readInt();
+            for (int i = 0; i < nAnnotations; i++) {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                annotationManager.intern(new String(b, StandardCharsets.UTF_8));
+            }
+            DocIdOrdinals docs = DocIdOrdinals.read(in);
+            for (int ordinal = 0; ordinal < docs.size(); ordinal++)
+                annotationManager.docToAnnotation[annotationManager.addDoc(docs.id(ordinal))] = DocIdOrdinals.readVInt(in);
+        }
+        return annotationManager;
+    }
+
+    //read annotation manager from the binary file, or from the human readable file if there is no binary file (archives saved before it was introduced)
 
     public static AnnotationManager readObjectFromStream(String filepath){
+        File binaryfile = new File(binaryFilePath(filepath));
+        if(binaryfile.exists()){
+            try {
+                return readBinary(binaryfile);
+            } catch (IOException e) {
+                Util.print_exception("Unable to read annotations from " + binaryfile + ", trying the csv file", e, log);
+            }
+        }
+
         File annotationfile = new File(filepath);
         AnnotationManager annotationManager = new AnnotationManager();
         if(annotationfile.exists()){
@@ -105,7 +215,7 @@ public class AnnotationManager{
                 while ((record = csvreader.readNext()) != null) {
                     String docid = record[0];
                     String annotation = record[1];//skip record[2] for the time being
-                    annotationManager.docToAnnotation.put(docid,annotation);
+                    annotationManager.setAnnotationToAll(Collections.singleton(docid),annotation);
                 }
 
                 csvreader.close();
@@ -119,20 +229,4 @@ public class AnnotationManager{
         return annotationManager;
 
     }
-
-    //append same annotation for a set of ids
-    //the invariant is: if annotation is not empty then that info is in the map.. if annotation is empty
-    //then that info is not in the map (if and only if relation)
-    public void appendAnnotationToAll(Set<String> docids, String annotationText) {
-        if(Util.nullOrEmpty(annotationText)){
-            //appending empty annotation does not have any impact. Leave unchanged.
-
-        }else{
-            //get existing annotation if any, then concatenate the annotationText to it.
-            docids.forEach(docid->{
-                String existing = docToAnnotation.getOrDefault(docid,"");
-                docToAnnotation.put(docid,existing+annotationText);
-            });
-        }
-    }
 }
@@ -248,9 +248,8 @@ public class AuthorityMapper implements java.io.Serializable {
     public void openFastIndex () throws IOException {
         String dir = Config.FAST_INDEX_DIR;
         indexReader = DirectoryReader.open(FSDirectory.open (new File(dir).toPath()));
-        StandardAnalyzer analyzer = new StandardAnalyzer(new CharArraySet(new ArrayList<String>(), true /* ignore case */));
         indexSearcher = new IndexSearcher(indexReader);
-        parser = new QueryParser(FASTIndexer.FIELD_NAME_LABELS, analyzer);
+        parser = new QueryParser(FASTIndexer.FIELD_NAME_LABELS, new FASTIndexer.LabelsAnalyzer());
     }
 
     private void closeFastIndex () throws IOException {
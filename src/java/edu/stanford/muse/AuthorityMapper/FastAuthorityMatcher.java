@@ -0,0 +1,231 @@
+package edu.stanford.muse.AuthorityMapper;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.stanford.muse.Config;
+import edu.stanford.muse.ie.FASTIndexer;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static edu.stanford.muse.ie.FASTIndexer.FIELD_NAME_FAST_ID;
+
+/**
+ * Matches names against the FAST authority index in batches.
+ * The FAST index is the same for all archives, so there is a single matcher per index dir, with
+ * - one IndexSearcher shared by all the lookups (IndexSearcher is thread safe), reopened when the FAST index is rebuilt,
+ * - a thread pool on which the lookups of a batch run concurrently,
+ * - a bounded name -> candidate fast ids cache that is shared across archives, and dropped when the searcher is reopened.
+ *   entries are tagged with the version of the index they were looked up in, entries of another version are not used.
+ * Only the top MAX_HITS hits of a name are collected. Their fast ids are read from doc values, falling back to the stored field for indexes built
+ * before doc values were added.
+ */
+public class FastAuthorityMatcher {
+    private static final Logger log = LogManager.getLogger(FastAuthorityMatcher.class);
+
+    /** same as the number of hits considered by AuthorityMapper.lookupNameInFastIndex */
+    private static final int MAX_HITS = 10000;
+    private static final int MAX_CACHED_NAMES = 500000;
+
+    private static final Map<String, FastAuthorityMatcher> dirToMatcher = new LinkedHashMap<>();
+
+    private final String dir;
+    private final SearcherManager searcherManager;
+    private final Analyzer analyzer;
+    private final ExecutorService executor;
+    // least recently used names are dropped beyond MAX_CACHED_NAMES
+    private final Cache<String, Candidates> nameToCandidates = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_NAMES).build();
+
+    private FastAuthorityMatcher(String dir) throws IOException {
+        this.dir = dir;
+        searcherManager = new SearcherManager(FSDirectory.open(new File(dir).toPath()), null);
+        // the candidates of a name may be different in the rebuilt index
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    log.info("FAST index at " + dir + " has changed, reopened it and cleared the candidates cache");
+                    nameToCandidates.invalidateAll();
+                }
+            }
+        });
+        analyzer = new FASTIndexer.LabelsAnalyzer();
+        int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "fast-authority-matcher");
+            t.setDaemon(true); // don't hold up jvm shutdown
+            return t;
+        });
+    }
+
+    /** returns the matcher for the FAST index configured in Config.FAST_INDEX_DIR */
+    public static FastAuthorityMatcher getInstance() throws IOException {
+        return getInstance(Config.FAST_INDEX_DIR);
+    }
+
+    public static synchronized FastAuthorityMatcher getInstance(String dir) throws IOException {
+        FastAuthorityMatcher matcher = dirToMatcher.get(dir);
+        if (matcher == null) {
+            matcher = new FastAuthorityMatcher(dir);
+            dirToMatcher.put(dir, matcher);
+        }
+        return matcher;
+    }
+
+    /** the key for the cache, has to be the same for names that result in the same query */
+    private static String normalize(String name) {
+        // be careful, double quotes inside the name can mess things up and result in spurious hits. see AuthorityMapper.lookupNameInFastIndex
+        return name.replaceAll("\"", "");
+    }
+
+    /** candidate fast ids of a name, with the version of the index they were looked up in */
+    private static class Candidates {
+        final long indexVersion;
+        final List<Long> fastIds;
+
+        Candidates(long indexVersion, List<Long> fastIds) {
+            this.indexVersion = indexVersion;
+            this.fastIds = fastIds;
+        }
+    }
+
+    /** the version of the index the searcher is on, it changes when the index is rebuilt */
+    private static long indexVersion(IndexSearcher searcher) {
+        IndexReader reader = searcher.getIndexReader();
+        return reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : 0;
+    }
+
+    /**
+     * @return the fast ids of the hits, in the order of the hits, reading the id from doc values if available.
+     * the hits are visited in doc id order, so a single doc values iterator per segment is enough
+     */
+    private static List<Long> getFastIds(IndexSearcher searcher, ScoreDoc[] hits) throws IOException {
+        Integer[] byDoc = new Integer[hits.length];
+        for (int i = 0; i < hits.length; i++)
+            byDoc[i] = i;
+        Arrays.sort(byDoc, Comparator.comparingInt(i -> hits[i].doc));
+
+        Long[] fastIds = new Long[hits.length];
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext context = null;
+        NumericDocValues docValues = null;
+        for (int i : byDoc) {
+            int leaf = ReaderUtil.subIndex(hits[i].doc, leaves);
+            if (context == null || context.ord != leaf) {
+                context = leaves.get(leaf);
+                docValues = context.reader().getNumericDocValues(FIELD_NAME_FAST_ID);
+            }
+            int doc = hits[i].doc - context.docBase;
+            if (docValues != null && docValues.advanceExact(doc))
+                fastIds[i] = docValues.longValue();
+            else {
+                // old index without doc values
+                Document d = context.reader().document(doc, Collections.singleton(FIELD_NAME_FAST_ID));
+                IndexableField f = d.getField(FIELD_NAME_FAST_ID);
+                if (f != null)
+                    fastIds[i] = f.numericValue() != null ? f.numericValue().longValue() : Long.parseLong(f.stringValue());
+            }
+        }
+
+        List<Long> result = new ArrayList<>(hits.length);
+        for (Long fastId : fastIds)
+            if (fastId != null)
+                result.add(fastId);
+        return result;
+    }
+
+    /** looks up a single name, results are cached */
+    public List<Long> lookup(String name) throws IOException, ParseException {
+        searcherManager.maybeRefresh();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return lookup(name, searcher);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    private List<Long> lookup(String name, IndexSearcher searcher) throws IOException, ParseException {
+        String key = normalize(name);
+        // an entry from another version of the index is not used, and is replaced with this one.
+        // such entries can be put back by lookups on the old searcher that were running when the cache was cleared on a reopen
+        long version = indexVersion(searcher);
+        Candidates cached = nameToCandidates.getIfPresent(key);
+        if (cached != null && cached.indexVersion == version)
+            return cached.fastIds;
+
+        // QueryParser is not thread safe, so a new one for every lookup. it is cheap to create.
+        QueryParser parser = new QueryParser(FASTIndexer.FIELD_NAME_LABELS, analyzer);
+        Query query = parser.parse("\"" + key + "\"");
+        // the top hits by decreasing score and then by doc id, the same order as a search sorted by relevance
+        TopDocs top = searcher.search(query, MAX_HITS);
+        List<Long> result = Collections.unmodifiableList(getFastIds(searcher, top.scoreDocs));
+        nameToCandidates.put(key, new Candidates(version, result));
+        return result;
+    }
+
+    /**
+     * looks up all the names concurrently.
+     * @return map of name -> candidate fast ids, in the iteration order of names. names whose lookup failed are absent.
+     */
+    public Map<String, List<Long>> lookup(Collection<String> names) throws IOException {
+        long st = System.currentTimeMillis();
+        // the whole batch is looked up on the same searcher, picking up a rebuilt index first
+        searcherManager.maybeRefresh();
+        IndexSearcher searcher = searcherManager.acquire();
+        Map<String, Future<List<Long>>> futures = new LinkedHashMap<>();
+        Map<String, List<Long>> result = new LinkedHashMap<>();
+        try {
+            for (String name : names) {
+                if (futures.containsKey(name))
+                    continue;
+                futures.put(name, executor.submit(() -> lookup(name, searcher)));
+            }
+
+            for (Map.Entry<String, Future<List<Long>>> e : futures.entrySet()) {
+                try {
+                    result.put(e.getKey(), e.getValue().get());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while looking up names in the FAST index");
+                    break;
+                } catch (ExecutionException ee) {
+                    Util.print_exception("Error looking up name in FAST index: " + e.getKey(), ee.getCause(), log);
+                }
+            }
+        } finally {
+            // if interrupted, lookups not started yet are dropped rather than run on a released searcher
+            for (Future<List<Long>> f : futures.values())
+                f.cancel(false);
+            searcherManager.release(searcher);
+        }
+        log.info("Looked up " + futures.size() + " names in the FAST index at " + dir + " in " + (System.currentTimeMillis() - st) + "ms, " + nameToCandidates.size() + " names cached");
+        return result;
+    }
+}
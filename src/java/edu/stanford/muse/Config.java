@@ -10,6 +10,8 @@ import org.json.simple.parser.JSONParser;
 //import org.apache.commons.logging.Log;
 //import org.apache.commons.logging.LogFactory;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /*
@@ -51,6 +53,21 @@ public class Config {
     public static   int		MAX_DOCS_PER_QUERY	= 10000;
     public static   int		MAX_TEXT_SIZE_TO_ANNOTATE	= 100000; // messages with bodies longer than this will not be annotated
 
+    // heap budget for archives loaded read-only (discovery/delivery), least recently used ones are unloaded beyond this. <= 0 means no limit.
+    public static   long	ARCHIVE_HEAP_BUDGET_MB		= Runtime.getRuntime().maxMemory()/(2*1024*1024);
+    // archives used more recently than this are not unloaded, even if over the budget, since a request may be working on them
+    public static   long	ARCHIVE_MIN_IDLE_SECS		= 300;
+    // memory for the result sets of the browse pages (see ResultSetStore), least recently used ones are spilled to disk beyond this
+    public static   long	RESULT_SET_STORE_MB		= 64;
+    // result sets not used for this long are dropped, whether in memory or spilled
+    public static   long	RESULT_SET_MAX_AGE_HOURS		= 24;
+    // during import, the heap is considered under pressure when the live data (after gc) goes beyond this % of the heap, see IngestionMemoryGovernor
+    public static   int		INGESTION_HEAP_HIGH_PCT		= 75;
+    // message bodies bigger than this are read through a temp file during import rather than buffered in memory
+    public static   long	INGESTION_SPILL_BODY_MB		= 8;
+    // # of connections per account over which imap messages are prefetched while the fetcher processes earlier ones, 0 to prefetch in the fetcher itself
+    public static   int		IMAP_PREFETCH_CONNECTIONS	= 2;
+
     public static   Boolean 	OPENNLP_NER = false;
     public static   String DEFAULT_SETTINGS_DIR = System.getProperty("user.home") + File.separator + "epadd-settings";
     private static   String DEFAULT_BASE_DIR = System.getProperty("user.home");
@@ -137,6 +154,62 @@ public class Config {
                 Util.print_exception(e, log);
             }
         }
+        s = props.getProperty("ARCHIVE_HEAP_BUDGET_MB");
+        if (s != null) {
+            try {
+                ARCHIVE_HEAP_BUDGET_MB = Long.parseLong(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
+        s = props.getProperty("ARCHIVE_MIN_IDLE_SECS");
+        if (s != null) {
+            try {
+                ARCHIVE_MIN_IDLE_SECS = Long.parseLong(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
+        s = props.getProperty("RESULT_SET_STORE_MB");
+        if (s != null) {
+            try {
+                RESULT_SET_STORE_MB = Long.parseLong(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
+        s = props.getProperty("RESULT_SET_MAX_AGE_HOURS");
+        if (s != null) {
+            try {
+                RESULT_SET_MAX_AGE_HOURS = Long.parseLong(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
+        s = props.getProperty("INGESTION_HEAP_HIGH_PCT");
+        if (s != null) {
+            try {
+                INGESTION_HEAP_HIGH_PCT = Integer.parseInt(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
+        s = props.getProperty("INGESTION_SPILL_BODY_MB");
+        if (s != null) {
+            try {
+                INGESTION_SPILL_BODY_MB = Long.parseLong(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
+        s = props.getProperty("IMAP_PREFETCH_CONNECTIONS");
+        if (s != null) {
+            try {
+                IMAP_PREFETCH_CONNECTIONS = Integer.parseInt(s);
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+        }
         s = props.getProperty("OPENNLP_NER");
         if (!Util.nullOrEmpty(s))
             OPENNLP_NER = Boolean.parseBoolean(s);
@@ -310,6 +383,27 @@ public class Config {
 		return is;
 	}
 
+	/**
+	 * @return SHA-256 (hex) of the contents of the resource, read from wherever getResourceAsStream finds it, null if it can't be read.
+	 * Used to tell whether something derived from a resource and saved (a compiled table, a binary model) is still current, whether the resource
+	 * is overridden in the settings folder or comes with the war.
+	 */
+	public static String getResourceChecksum(String path) {
+		try (InputStream is = getResourceAsStream(path)) {
+			if (is == null)
+				return null;
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while ((n = is.read(buf)) >= 0)
+				digest.update(buf, 0, n);
+			return Util.byteArrayToHexString(digest.digest());
+		} catch (IOException | NoSuchAlgorithmException e) {
+			Util.print_exception("Unable to checksum resource " + path, e, log);
+			return null;
+		}
+	}
+
 	public static void main(String args[]){
 	    loadRepositoryDetails();
 	    Map<String,String> details = getRepoDetails("fff");
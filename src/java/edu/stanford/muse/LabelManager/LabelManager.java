@@ -2,12 +2,11 @@ package edu.stanford.muse.LabelManager;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
-import com.google.common.collect.LinkedHashMultimap;
-import com.google.common.collect.Multimap;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import edu.stanford.muse.index.Archive;
+import edu.stanford.muse.util.DocIdOrdinals;
 import edu.stanford.muse.util.Pair;
 import edu.stanford.muse.util.Util;
 import org.apache.logging.log4j.LogManager;
@@ -16,8 +15,13 @@ import org.apache.logging.log4j.Logger;
 //import org.apache.commons.logging.LogFactory;
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by chinmay on 21/12/17.
@@ -40,6 +44,9 @@ public class LabelManager implements Serializable{
 
     private static final String JSONFILENAME="label-info.json";
     private static final String CSVFILENAME="docidmap.csv";
+    private static final String DOCSFILENAME="label-docs.dat";
+    private static final int DOCSFILE_MAGIC = 0x4c424453; // LBDS
+    private static final int DOCSFILE_VERSION = 1;
 
     public static final String ALL_EXPIRED="allexpired";
     public enum LabType {
@@ -50,15 +57,18 @@ public class LabelManager implements Serializable{
         OTHER, RESTRICTED_UNTIL, RESTRICTED_FOR_YEARS
     }
 
-    //Map from Document ID to set of Label ID's
-    private Multimap<String,String> docToLabelID = null;
+    //Doc ID's of the labelled docs -> ordinals, and Label ID -> bitset of the ordinals of the docs that have that label.
+    //Bulk operations (on a set of docs) are just a few bitset operations per label, and label counts are cardinalities.
+    private DocIdOrdinals docOrdinals = null;
+    private Map<String,BitSet> labelIDToDocs = null;
     //Map from Label ID's to Label Information
     private Map<String,Label> labelInfoMap=null;
 
     private String archiveID=null;
 
     public LabelManager(String archiveID){
-        docToLabelID = LinkedHashMultimap.create();
+        docOrdinals = new DocIdOrdinals();
+        labelIDToDocs = new LinkedHashMap<>();
         labelInfoMap = new LinkedHashMap<>();
         this.archiveID = archiveID;
         InitialLabelSetup(archiveID);
@@ -149,36 +159,129 @@ public class LabelManager implements Serializable{
         }
     }
 
+    private BitSet docsWithLabel(String labelid){
+        return labelIDToDocs.computeIfAbsent(labelid, l -> new BitSet(docOrdinals.size()));
+    }
+
     //set label for an email document
-    public void setLabels(String docid, Set<String> labelIDs){
-        labelIDs.forEach(labelid-> docToLabelID.put(docid,labelid));
+    public synchronized void setLabels(String docid, Set<String> labelIDs){
+        int ordinal = docOrdinals.getOrAdd(docid);
+        labelIDs.forEach(labelid-> docsWithLabel(labelid).set(ordinal));
+    }
 
+    //set labels for a set of email documents
+    public synchronized void setLabels(Collection<String> docids, Set<String> labelIDs){
+        BitSet docs = docOrdinals.toOrdinals(docids, true);
+        labelIDs.forEach(labelid-> docsWithLabel(labelid).or(docs));
     }
 
     //remove label; only if this is not applied to any message. otherwise return status as 1 and error message.
     public Pair<Integer,String> removeLabel(String labid){
         String name = getLabel(labid).labName;
-        if(docToLabelID.containsValue(labid)){
+        if(getLabelCount(labid)>0){
             return new Pair(1,edu.stanford.muse.util.Messages.getMessage(archiveID, "messages","label-manager.label-mess.start") + name + edu.stanford.muse.util.Messages.getMessage(archiveID, "messages","label-manager.label-mess.later") );
         }else{
             //means this label isnot present in doctOlABelidmap so just remove it from labelinfo
             labelInfoMap.remove(labid);
+            synchronized (this) {
+                labelIDToDocs.remove(labid);
+            }
             return new Pair(0, edu.stanford.muse.util.Messages.getMessage(archiveID, "messages","label-manager.remove-label") +name);
         }
 
     }
 
     //remove label for an email document
-    public void unsetLabels(String docid, Set<String> labelIDs){
-        labelIDs.forEach(labelid-> docToLabelID.remove(docid,labelid));
+    public synchronized void unsetLabels(String docid, Set<String> labelIDs){
+        int ordinal = docOrdinals.ordinalOf(docid);
+        if(ordinal<0)
+            return;
+        labelIDs.forEach(labelid-> {
+            BitSet docs = labelIDToDocs.get(labelid);
+            if(docs!=null)
+                docs.clear(ordinal);
+        });
+    }
+
+    //remove labels for a set of email documents
+    public synchronized void unsetLabels(Collection<String> docids, Set<String> labelIDs){
+        BitSet docs = docOrdinals.toOrdinals(docids, false);
+        labelIDs.forEach(labelid-> {
+            BitSet labelled = labelIDToDocs.get(labelid);
+            if(labelled!=null)
+                labelled.andNot(docs);
+        });
     }
 
     //put only a set of labels on a document
-    public void putOnlyTheseLabels(String docid, Set<String> labelIDs){
-        docToLabelID.removeAll(docid);
-        labelIDs.forEach(labelid-> docToLabelID.put(docid,labelid));
+    public synchronized void putOnlyTheseLabels(String docid, Set<String> labelIDs){
+        int ordinal = docOrdinals.getOrAdd(docid);
+        labelIDToDocs.values().forEach(docs-> docs.clear(ordinal));
+        labelIDs.forEach(labelid-> docsWithLabel(labelid).set(ordinal));
+    }
+
+    //put only a set of labels on a set of documents
+    public synchronized void putOnlyTheseLabels(Collection<String> docids, Set<String> labelIDs){
+        BitSet docs = docOrdinals.toOrdinals(docids, true);
+        labelIDToDocs.values().forEach(labelled-> labelled.andNot(docs));
+        labelIDs.forEach(labelid-> docsWithLabel(labelid).or(docs));
+    }
+
+
+    //Bulk operations over docs numbered otherwise, e.g. by the ordinals of the archive's DocIndex. mapping[i] is the ordinal here of doc i (see ordinalsOf),
+    //so a bitset of docs is translated with one array lookup per doc and then applied with a bitset operation per label.
+
+    //ordinals of the given docs, in order, adding the docs not labelled yet
+    public synchronized int[] ordinalsOf(List<String> docids){
+        int[] result = new int[docids.size()];
+        for(int i=0; i<result.length; i++)
+            result[i] = docOrdinals.getOrAdd(docids.get(i));
+        return result;
+    }
+
+    private static BitSet translate(BitSet docs, int[] mapping){
+        BitSet result = new BitSet(mapping.length);
+        for(int i = docs.nextSetBit(0); i>=0 && i<mapping.length; i = docs.nextSetBit(i+1))
+            result.set(mapping[i]);
+        return result;
+    }
+
+    //the docs among the given ones that have any of the given labels, numbered as the given ones are
+    public synchronized BitSet docsWithAnyLabel(BitSet docs, int[] mapping, Set<String> labelIDs){
+        BitSet labelled = new BitSet(docOrdinals.size());
+        labelIDs.forEach(labelid-> {
+            BitSet withLabel = labelIDToDocs.get(labelid);
+            if(withLabel!=null)
+                labelled.or(withLabel);
+        });
+        BitSet result = new BitSet(mapping.length);
+        if(labelled.isEmpty())
+            return result;
+        for(int i = docs.nextSetBit(0); i>=0 && i<mapping.length; i = docs.nextSetBit(i+1))
+            if(labelled.get(mapping[i]))
+                result.set(i);
+        return result;
+    }
+
+    public synchronized void setLabels(BitSet docs, int[] mapping, Set<String> labelIDs){
+        BitSet translated = translate(docs, mapping);
+        labelIDs.forEach(labelid-> docsWithLabel(labelid).or(translated));
+    }
+
+    public synchronized void unsetLabels(BitSet docs, int[] mapping, Set<String> labelIDs){
+        BitSet translated = translate(docs, mapping);
+        labelIDs.forEach(labelid-> {
+            BitSet labelled = labelIDToDocs.get(labelid);
+            if(labelled!=null)
+                labelled.andNot(translated);
+        });
     }
 
+    public synchronized void putOnlyTheseLabels(BitSet docs, int[] mapping, Set<String> labelIDs){
+        BitSet translated = translate(docs, mapping);
+        labelIDToDocs.values().forEach(labelled-> labelled.andNot(translated));
+        labelIDs.forEach(labelid-> docsWithLabel(labelid).or(translated));
+    }
 
     public boolean isRestrictionLabel(String labid){
         Label lab = labelInfoMap.getOrDefault(labid,null);
@@ -202,8 +305,55 @@ public class LabelManager implements Serializable{
     }
 
     //get all label IDs for an email document ( any type)
-    public Set<String> getLabelIDs(String docid){
-        return new LinkedHashSet<>(docToLabelID.get(docid));
+    public synchronized Set<String> getLabelIDs(String docid){
+        Set<String> result = new LinkedHashSet<>();
+        int ordinal = docOrdinals.ordinalOf(docid);
+        if(ordinal<0)
+            return result;
+        labelIDToDocs.forEach((labelid, docs)-> {
+            if(docs.get(ordinal))
+                result.add(labelid);
+        });
+        return result;
+    }
+
+    public synchronized boolean hasLabel(String docid, String labelID){
+        int ordinal = docOrdinals.ordinalOf(docid);
+        BitSet docs = labelIDToDocs.get(labelID);
+        return ordinal>=0 && docs!=null && docs.get(ordinal);
+    }
+
+    //true if the document has any of the given labels
+    public synchronized boolean hasAnyLabel(String docid, Set<String> labelIDs){
+        int ordinal = docOrdinals.ordinalOf(docid);
+        if(ordinal<0)
+            return false;
+        for(String labelid: labelIDs){
+            BitSet docs = labelIDToDocs.get(labelid);
+            if(docs!=null && docs.get(ordinal))
+                return true;
+        }
+        return false;
+    }
+
+    //number of documents with the given label
+    public synchronized int getLabelCount(String labelID){
+        BitSet docs = labelIDToDocs.get(labelID);
+        return docs==null ? 0 : docs.cardinality();
+    }
+
+    //label ID -> number of documents among the given ones with that label, for all labels applied to at least one of them
+    public synchronized Map<String,Integer> getLabelCounts(Collection<String> docids){
+        BitSet docs = docOrdinals.toOrdinals(docids, false);
+        Map<String,Integer> result = new LinkedHashMap<>();
+        labelIDToDocs.forEach((labelid, labelled)-> {
+            BitSet tmp = (BitSet) labelled.clone();
+            tmp.and(docs);
+            int count = tmp.cardinality();
+            if(count>0)
+                result.put(labelid,count);
+        });
+        return result;
     }
 
     //get all labels of a given type
@@ -225,10 +375,12 @@ public class LabelManager implements Serializable{
     }
 
     /*
-    argument is the directory where json and csv files will be generated. Label meta data will be stored
-    in a json file whereas the mapping of docids to labelids will be stored as csv.
+    argument is the directory where the files will be generated. Label meta data will be stored in a json file whereas the mapping of
+    labelids to docids will be stored in a compact binary file (DOCSFILENAME). If docidToSignature is not null (e.g. when the archive is
+    created or exported) the mapping is also written as a human readable csv of docid,labelid; otherwise any older csv in the dir is deleted
+    since it would be stale. The csv is only deleted once the binary file is written, so a failed write does not lose any label.
      */
-    public void writeObjectToStream(String dirname,Map<String,String> docidToSignature){
+    public void writeObjectToStream(String dirname,Map<String,String> docidToSignature) throws IOException {
         // writing labelinfo map to json format
         FileWriter writer = null;
         try {
@@ -247,29 +399,86 @@ public class LabelManager implements Serializable{
             }
         }
 
+        synchronized (this) {
+            writeDocsFile(dirname);
+            File csvfile = new File(dirname + File.separator + CSVFILENAME);
+            if (docidToSignature != null)
+                writeCSV(csvfile);
+            else if (csvfile.exists() && !csvfile.delete())
+                log.warn("Unable to delete stale docid to label map csv file " + csvfile);
+        }
+    }
+
+    //all docs with at least one label
+    private BitSet labelledDocs(){
+        BitSet result = new BitSet(docOrdinals.size());
+        labelIDToDocs.values().forEach(result::or);
+        return result;
+    }
+
+    //the docs file is written to a temp file that is then moved in place, so a failed or partial write leaves the earlier file as is
+    private void writeDocsFile(String dirname) throws IOException {
+        File f = new File(dirname + File.separator + DOCSFILENAME);
+        File tmp = new File(dirname + File.separator + DOCSFILENAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)), 1 << 16))) {
+            out.writeInt(DOCSFILE_MAGIC);
+            out.writeInt(DOCSFILE_VERSION);
+            //only the docs that are still labelled are written, the ordinals are renumbered accordingly
+            BitSet labelled = labelledDocs();
+            docOrdinals.write(out, labelled);
+            int[] rank = docOrdinals.rank(labelled);
+            out.writeInt(labelIDToDocs.size());
+            for (Map.Entry<String, BitSet> e : labelIDToDocs.entrySet()) {
+                out.writeUTF(e.getKey());
+                DocIdOrdinals.writeBitSet(out, e.getValue(), rank);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void readDocsFile(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 1 << 16))) {
+            if (in.readInt() != DOCSFILE_MAGIC || in.readInt() != DOCSFILE_VERSION)
+                throw new IOException("Unknown format of docid to label map file " + f);
+            docOrdinals = DocIdOrdinals.read(in);
+            labelIDToDocs = new LinkedHashMap<>();
+            int nLabels = in.readInt();
+            for (int i = 0; i < nLabels; i++) {
+                String labelid = in.readUTF();
+                labelIDToDocs.put(labelid, DocIdOrdinals.readBitSet(in));
+            }
+        }
+    }
 
-        //writing docToLabelIDmap to csv
+    //writes the docid to labelid map to csv, for readability. Docs in ordinal order, i.e. in the order in which they were first labelled.
+    private void writeCSV(File csvfile){
         try{
-        FileWriter fw = new FileWriter(dirname+ File.separator+CSVFILENAME);
+        FileWriter fw = new FileWriter(csvfile);
             CSVWriter csvwriter = new CSVWriter(fw, ',', '"',' ',"\n");
 
-        // write the header line: "DocID,LabelID,signature ".
+        // write the header line: "DocID,LabelID".
         List<String> line = new ArrayList<>();
         line.add ("DocID");
         line.add ("LabelID");
-        //line.add("Signature");
         csvwriter.writeNext(line.toArray(new String[line.size()]));
 
         // write the records
-        for(String docid: docToLabelID.keySet()){
-            for(String labid: docToLabelID.get(docid)) {
+        BitSet labelled = labelledDocs();
+        for(int ordinal = labelled.nextSetBit(0); ordinal>=0; ordinal = labelled.nextSetBit(ordinal+1)){
+            String docid = docOrdinals.id(ordinal);
+            for(Map.Entry<String,BitSet> e: labelIDToDocs.entrySet()) {
+                if(!e.getValue().get(ordinal))
+                    continue;
                 line = new ArrayList<>();
                 line.add(docid);
-                line.add(labid);
-                String sig = docidToSignature.getOrDefault(docid,"ERROR! No document found in archive for this unique id");
-                String d = sig.replace("\n","").replace("\"","").replace(","," ");
-                                //get the signature of this doc from docidToSignature map
-                //line.add(d);
+                line.add(e.getKey());
                 csvwriter.writeNext(line.toArray(new String[line.size()]));
             }
            }
@@ -277,9 +486,7 @@ public class LabelManager implements Serializable{
             fw.close();
         } catch (IOException e) {
             log.warn("Unable to write docid to label map in csv file");
-            return;
         }
-
     }
 
     public static LabelManager readObjectFromStream(String archiveID,String dirname){
@@ -302,7 +509,18 @@ public class LabelManager implements Serializable{
                 log.warn("Unable to close labelinfo file");
             }
         }
-        /// reading docToLabelIDmap from csv
+        //reading the docid to labelid map from the binary file, or from the csv for archives saved before the binary file was introduced
+        File docsfile = new File(dirname + File.separator + DOCSFILENAME);
+        if(docsfile.exists()) {
+            try {
+                lm.readDocsFile(docsfile);
+                return lm;
+            } catch (IOException e) {
+                Util.print_exception("Unable to read docid to label map from " + docsfile + ", trying the csv file", e, log);
+                lm.docOrdinals = new DocIdOrdinals();
+                lm.labelIDToDocs = new LinkedHashMap<>();
+            }
+        }
         try{
             FileReader fr = new FileReader(dirname+ File.separator+CSVFILENAME);
             CSVReader csvreader = new CSVReader(fr, ',', '"', ' ');
@@ -311,7 +529,7 @@ public class LabelManager implements Serializable{
             String[] record = null;
             record = csvreader.readNext();//skip the first line.
             while ((record = csvreader.readNext()) != null) {
-                lm.docToLabelID.put(record[0],record[1]);//skip record 2 for the time being..
+                lm.setLabels(record[0], Collections.singleton(record[1]));//skip record 2 for the time being..
             }
 
             csvreader.close();
@@ -328,19 +546,21 @@ public class LabelManager implements Serializable{
     /*
     Returns a new labelmanager to capture what all labels and docs are being exported from a module
      */
-    public LabelManager getLabelManagerForExport(Set<String> docids, Archive.Export_Mode mode){
+    public synchronized LabelManager getLabelManagerForExport(Set<String> docids, Archive.Export_Mode mode){
         LabelManager tmp = new LabelManager(archiveID);
         tmp.labelInfoMap.putAll(labelInfoMap);
-        tmp.docToLabelID.putAll(docToLabelID);
+        tmp.docOrdinals = new DocIdOrdinals(docOrdinals);
+        //in labelDocMap keep only those docs which are being exported, i.e. AND every label's docs with the exported docs.
+        BitSet exported = docOrdinals.toOrdinals(docids, false);
+        Collection<String> labelidsleft;
         if(mode== Archive.Export_Mode.EXPORT_APPRAISAL_TO_PROCESSING){
-            //all labels are exported.. But in labelDocMap keep only those docs which are being exported.
-            tmp.docToLabelID.keySet().retainAll(docids);
+            //all labels are exported..
+            labelidsleft = labelIDToDocs.keySet();
         }else{
             //only non-restricted labels are exported[even if of date type].. In labelDocMap keep only those docs which are being exported.
             tmp.labelInfoMap = tmp.labelInfoMap.entrySet().stream().filter(entry->entry.getValue().getType()!=LabType.RESTRICTION).collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue));
             //Following requirement #260 on github don't export system labels.
             tmp.labelInfoMap = tmp.labelInfoMap.entrySet().stream().filter(entry->!entry.getValue().isSysLabel()).collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue));
-            tmp.docToLabelID.keySet().retainAll(docids);
             //alsow, following #260, label 'Reviewed' to be removed if exported to discovery module.
             if(mode== Archive.Export_Mode.EXPORT_PROCESSING_TO_DISCOVERY){
                 tmp.labelInfoMap = tmp.labelInfoMap.entrySet().stream().filter(entry->!entry.getKey().equalsIgnoreCase(LABELID_REVIEWED)).collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue));
@@ -348,28 +568,21 @@ public class LabelManager implements Serializable{
             //also, following #260, retain only those labels from docidmap for which there is  info in labelInfoMap-- for example if reviewed is removed from labelinfomap
             //then remove it from the doc map as well. Same for restriction types as well. Although there is a catch. When exporting from processing to delivery, don't remove
             //reviewed label but remove this label from all documents (if applied).
-            Collection<String> labelidsleft = new LinkedHashSet<>(tmp.labelInfoMap.keySet());
+            labelidsleft = new LinkedHashSet<>(tmp.labelInfoMap.keySet());
             //Contd.. To achieve this, remove LabelID-Reviewed from labelidsleft collection if mode is export_processing_to_delivery.
             if(mode == Archive.Export_Mode.EXPORT_PROCESSING_TO_DELIVERY){
                 labelidsleft.remove(LABELID_REVIEWED);
             }
-
-            //Now remove all those lables in docToLabelID map which don't appear in labelidsleft.
-
-            Multimap<String,String> tmpdocToLabelID = LinkedHashMultimap.create();
-            for(String docid: tmp.docToLabelID.keySet()){
-                    Collection<String> labids = new LinkedHashSet<>(tmp.docToLabelID.get(docid));
-                    //retain only those labids which are still left in labelinfomap
-                    labids.retainAll(labelidsleft);
-                    if(labids.size()>0)
-                    {
-                        //if there are non-zero such labels only then add this document's info in docToLabelIDMap.
-                        for(String labid: labids){
-                            tmpdocToLabelID.put(docid,labid);
-                        }
-                    }
-            }
-            tmp.docToLabelID = tmpdocToLabelID;
+        }
+        //Now keep only those labels which appear in labelidsleft.
+        for(String labid: labelidsleft){
+            BitSet docs = labelIDToDocs.get(labid);
+            if(docs==null)
+                continue;
+            docs = (BitSet) docs.clone();
+            docs.and(exported);
+            if(!docs.isEmpty())
+                tmp.labelIDToDocs.put(labid,docs);
         }
         return tmp;
     }
@@ -473,10 +686,23 @@ public class LabelManager implements Serializable{
         syslabelids.forEach(lid->oldToNewLabelID.put(lid,lid));
         /////////////////////////////////////////////////////////////////////
 
-        for(String docid: other.docToLabelID.keySet()){
-            //get newlabid's generated in above for loop
-            Set<String> newlabels = other.docToLabelID.get(docid).stream().map(labid->oldToNewLabelID.get(labid)).collect(Collectors.toSet());
-            newlabels.forEach(labelid-> docToLabelID.put(docid,labelid));
+        synchronized (this) {
+            //other's doc ordinal -> this label manager's doc ordinal, assigned as needed
+            int[] otherToThis = new int[other.docOrdinals.size()];
+            Arrays.fill(otherToThis, -1);
+            for (Map.Entry<String, BitSet> e : other.labelIDToDocs.entrySet()) {
+                //get newlabid's generated in above for loop
+                String newlabid = oldToNewLabelID.get(e.getKey());
+                if (newlabid == null)
+                    continue;
+                BitSet docs = docsWithLabel(newlabid);
+                BitSet otherdocs = e.getValue();
+                for (int o = otherdocs.nextSetBit(0); o >= 0; o = otherdocs.nextSetBit(o + 1)) {
+                    if (otherToThis[o] < 0)
+                        otherToThis[o] = docOrdinals.getOrAdd(other.docOrdinals.id(o));
+                    docs.set(otherToThis[o]);
+                }
+            }
         }
 
         return result;
@@ -485,11 +711,7 @@ public class LabelManager implements Serializable{
     /*
     Returns true if any label is applied to any message. False otherwise
      */
-    public boolean isAnyLabel(){
-
-        if(docToLabelID.size()==0)
-            return false;
-        else
-            return  true;
+    public synchronized boolean isAnyLabel(){
+        return labelIDToDocs.values().stream().anyMatch(docs-> !docs.isEmpty());
     }
 }
@@ -14,6 +14,7 @@
    limitations under the License.
 */
 package edu.stanford.muse.datacache;
+import edu.stanford.muse.util.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 //import org.apache.commons.logging.Log;
@@ -51,6 +52,8 @@ transient private static final ParseContext context = new ParseContext();*/
 private String getName() { return filename; }
 public String getResourceURI() { return this.filename; }
 // public String getContentHash() { return this.content_hash_string; }
+/** hex string of the content hash, null if not set */
+public String getContentHashString() { return contentHash == null ? null : Util.byteArrayToHexString(contentHash); }
 public Date getModifiedDate() { return modifiedDate; }
 
 public long getSize() { return size; }
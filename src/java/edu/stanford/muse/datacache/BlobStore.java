@@ -652,85 +652,36 @@ public class BlobStore implements Serializable {
     /**
      * generates thumbnail for the given image and adds it as a "tn" supplement
      * On successful generation it returns true.
+     * To generate thumbnails for many blobs, use a ThumbnailService on all of them at once, which converts them in parallel and in batches.
      */
     public boolean generate_thumbnail(Blob b) throws IOException {
         if (this.hasView(b, "tn")) {
             log.info("Already have thumbnail for blob " + b);
             return false;
         }
-
-        String filename = full_filename_normalized(b,false);
-
-        String tmp_filename = TMP_DIR + File.separatorChar + filename;
-        String pdfFilePath=null;
-        String tnFilename = null;
-        boolean noThumb = false;
+        if (this.executablePathMap == null)
+            return false;
         String libreoffice = this.executablePathMap.get("soffice");//"/Applications/LibreOffice.app/Contents/MacOS/soffice";
         String convert = this.executablePathMap.get("convert");//"/usr/local/bin/convert";
-       // if(either is null return false)
-        if(Util.nullOrEmpty(libreoffice) || Util.nullOrEmpty(convert) || !new File(libreoffice).exists() || !new File(convert).exists())
-            return false;
-        //For now we are only generating thumnbnails for non image attachments using libreoffice writer.
-        if ( Util.is_doc_filename(filename) && new File(libreoffice).exists()) { //exclude pdf files too..
-            //First generate pdf file using libreoffice writer.
-  //          tnFilename = tmp_filename;
-            createBlobCopy(b, tmp_filename); //create a copy of the blob  in temp directory.
-            try {
-                if(!Util.is_pdf_filename(filename)) {
-                    //Following command will generate the pdf file with the same name (only extension changed to pdf).
-                    String[] pdfcmd = new String[]{libreoffice, "--headless", "--convert-to", "pdf", "--outdir", TMP_DIR+File.separatorChar, tmp_filename};
-                   Util.run_command(pdfcmd);
-                   //check if pdf file was created or not.
-                    if(!new File(tmp_filename).exists()){
-                        log.warn("Could not generate pdf. Command "+Arrays.toString(pdfcmd)+" failed\n");
-                        noThumb=true;
-                    }
-                }
-                //Split into basefile name and extension.
-                Pair<String,String> nameExtension = Util.splitIntoFileBaseAndExtension(filename);
-                pdfFilePath = TMP_DIR + File.separator + nameExtension.first+".pdf"; //This file must have been generated by libreoffice command above.
-                String outputImagePath = TMP_DIR + File.separator + nameExtension.first+".png";//This is the output file from the convert command below.
-                //now use pdfToImage to convert this pdf file to image file and assign the generated file name to tnFilename variable.
-                //Using some density to make image readable. desnsity 100 didn't give good image resolution. More desnity also mean more time to create image.
-                String[] convertcmd = new String[]{convert,"-density", "100", pdfFilePath+"[0]", outputImagePath};
-                Util.run_command(new String[]{convert,"-density", "100", pdfFilePath+"[0]", outputImagePath}); //[0] is to convert only first page of the pdf.
-                //outputImagePath will be the path of thumbnail.
-                tnFilename = outputImagePath;
-                if(!new File(tnFilename).exists())
-                {
-                    log.warn("Could not generate thumbnail. Command "+Arrays.toString(convertcmd)+" failed\n");
-                    //means something wrong happened during conversion. Can not generate thumbnail.
-                    noThumb=true;
-                }
-            } catch (Exception e) {
-                log.warn("libreoffice failed: " + e.getMessage() + "\n" + Util.stackTrace(e));
-                noThumb = true;
-            }
-        }  else {
-            noThumb = true;
-            // log.info ("No thumbnail for attachment file named: " + b.filename);
-        }
+        return new ThumbnailService(this, libreoffice, convert, 1, 60 * 1000).generate(Collections.singletonList(b)) > 0;
+    }
 
-        if (!noThumb) {
-            // add thumbnail to data store
-            if (tnFilename != null) {
-                //Name that should be used to store the thumbnail. Make it same as the basename of the file with 'png' suffix and 'tn' prefix.
-                String tnFnameInStore = "tn"+Util.splitIntoFileBaseAndExtension(full_filename_original(b)).first+".png";
-                this.addView(b, tnFnameInStore, "tn", new FileInputStream(tnFilename));
-                log.info("Generating thumbnail for data with tn filename: " + tnFilename);
-            }else{
-                log.info("No thumbnail will be generated for "+filename+"\n");
-            }
+    /** @return the file with the thumbnail of the given blob, null if it has none */
+    synchronized File getThumbnailFile(Blob b) {
+        Object filename = getView(b, "tn");
+        if (!(filename instanceof String))
+            return null;
+        File f = new File(dir + File.separatorChar + filename);
+        return f.exists() ? f : null;
+    }
 
-            // best effort to delete the intermediate files, dont worry too much if we fail.
-            if (!new File(tmp_filename).delete())
-                log.warn("REAL WARNING: Unable to delete file: " + tmp_filename); //tmp_filename is the original file copied to temp directory.
-            if (pdfFilePath!=null && !new File(pdfFilePath).delete())
-                log.warn("REAL WARNING: Unable to delete intermediate pdf file: " + pdfFilePath);
-            return true;
+    /** adds the given image file as the thumbnail of the blob. Name that is used to store the thumbnail is the basename of the blob with 'png' suffix and 'tn' prefix. */
+    void addThumbnail(Blob b, File png) throws IOException {
+        String tnFnameInStore = "tn"+Util.splitIntoFileBaseAndExtension(full_filename_original(b)).first+".png";
+        try (InputStream is = new FileInputStream(png)) {
+            this.addView(b, tnFnameInStore, "tn", is);
         }
-        else
-            return false;
+        log.info("Added thumbnail for data with tn filename: " + tnFnameInStore);
     }
 
     /* copy blob to filePath */
@@ -0,0 +1,359 @@
+package edu.stanford.muse.datacache;
+
+import edu.stanford.muse.email.StatusProvider;
+import edu.stanford.muse.util.JSONUtils;
+import edu.stanford.muse.util.Pair;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates the "tn" thumbnails of the document attachments of a blob store, i.e. an image of the first page of each.
+ *
+ * BlobStore.generate_thumbnail used to start a new soffice to convert each document to pdf and then a new ImageMagick convert to render its first page,
+ * one attachment after another. LibreOffice takes several seconds to start, mostly in setting up its user profile, so thumbnails for a large archive took days.
+ * Here:
+ * - a bounded pool of workers converts the documents in parallel. Each worker has its own LibreOffice profile dir, kept warm across its conversions
+ *   (parallel soffices on the same profile lock each other out), and converts a batch of documents per soffice launch so the startup is paid once per batch.
+ * - the first page of the pdf is rendered in the JVM with PDFBox (which we have through tika) instead of a convert process per document.
+ *   convert is used only if PDFBox can't render the pdf (or is turned off with -Dthumbnails.pdfbox=false) and a path to it is given.
+ * - every document has a time limit, a soffice that is stuck on a document is killed and the rest of its batch is converted again one by one.
+ * - attachments are rendered once per content hash, blobs with the same content (e.g. the same attachment under different names) share the rendered image,
+ *   and blobs whose content already has a thumbnail from an earlier run copy it.
+ *
+ * A service is used for one run, and is the status provider for that run.
+ */
+public class ThumbnailService implements StatusProvider {
+    private static final Logger log = LogManager.getLogger(ThumbnailService.class);
+    private static final long serialVersionUID = 1L;
+
+    //no. of documents converted by a single soffice launch
+    private static final int BATCH_SIZE = 16;
+    private static final long DEFAULT_JOB_TIMEOUT_MILLIS = 60 * 1000;
+    //same resolution as the "convert -density 100" we used earlier, higher takes longer and the thumbnails are shown small anyway
+    private static final float DPI = 100;
+    //pdfbox used to crash the VM on some Macs, -Dthumbnails.pdfbox=false renders with convert only
+    private static final boolean USE_PDFBOX = !"false".equals(System.getProperty("thumbnails.pdfbox"));
+
+    private final transient BlobStore store;
+    private final String soffice, convert;
+    private final int nWorkers;
+    private final long jobTimeoutMillis;
+    //dir for the copies, pdfs and soffice profiles of a run
+    private transient File workDir;
+
+    private final AtomicInteger nDone = new AtomicInteger(), nGenerated = new AtomicInteger();
+    private volatile int nTotal;
+    private volatile long startMillis;
+    private volatile boolean cancelled;
+    private transient ExecutorService workers;
+
+    /**
+     * @param soffice path to LibreOffice's soffice, needed for documents other than pdfs
+     * @param convert path to ImageMagick's convert, optional, used only for pdfs that PDFBox fails on
+     */
+    public ThumbnailService(BlobStore store, String soffice, String convert) {
+        this(store, soffice, convert, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), DEFAULT_JOB_TIMEOUT_MILLIS);
+    }
+
+    public ThumbnailService(BlobStore store, String soffice, String convert, int nWorkers, long jobTimeoutMillis) {
+        this.store = store;
+        this.soffice = soffice;
+        this.convert = convert;
+        this.nWorkers = nWorkers;
+        this.jobTimeoutMillis = jobTimeoutMillis;
+    }
+
+    private static boolean isExecutable(String path) {
+        return !Util.nullOrEmpty(path) && new File(path).exists();
+    }
+
+    /** a document whose thumbnail is to be rendered: the blobs that share its content and where its copy, pdf and thumbnail go */
+    private static class Job {
+        final String hash;
+        final List<Blob> blobs = new ArrayList<>();
+        File input, pdf, png;
+
+        Job(String hash) {
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * generates the thumbnails of the given blobs that don't have one yet, blocks till all of them are done or the run is cancelled
+     * @return no. of blobs for which a thumbnail was generated
+     */
+    public int generate(Collection<Blob> blobs) {
+        startMillis = System.currentTimeMillis();
+        //blobs with the same content are rendered once, or not at all if one of them already has a thumbnail
+        Map<String, Job> jobs = new LinkedHashMap<>();
+        Map<String, File> existing = new LinkedHashMap<>();
+        for (Blob b : blobs) {
+            String filename = store.full_filename_normalized(b, false);
+            if (filename == null || !Util.is_doc_filename(filename))
+                continue;
+            String hash = b.getContentHashString();
+            if (hash == null)
+                hash = "blob-" + store.index(b);
+            File tn = store.getThumbnailFile(b);
+            if (tn != null) {
+                existing.putIfAbsent(hash, tn);
+                continue;
+            }
+            jobs.computeIfAbsent(hash, Job::new).blobs.add(b);
+        }
+
+        List<Job> pdfs = new ArrayList<>(), docs = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            File tn = existing.get(job.hash);
+            if (tn != null) {
+                //same content as an attachment that already has a thumbnail
+                addThumbnail(job, tn);
+                continue;
+            }
+            if (Util.is_pdf_filename(store.full_filename_normalized(job.blobs.get(0), false)))
+                pdfs.add(job);
+            else
+                docs.add(job);
+        }
+        if (!isExecutable(soffice)) {
+            if (!docs.isEmpty())
+                log.warn("No soffice at " + soffice + ", skipping thumbnails for " + docs.size() + " non-pdf documents");
+            docs.clear();
+        }
+        nTotal = pdfs.size() + docs.size();
+        log.info("Generating thumbnails for " + nTotal + " unique documents (" + pdfs.size() + " pdfs) with " + nWorkers + " workers, "
+                + nGenerated.get() + " blobs copied from existing thumbnails of the same content");
+        if (nTotal == 0)
+            return nGenerated.get();
+
+        try {
+            workDir = Files.createTempDirectory(new File(System.getProperty("java.io.tmpdir")).toPath(), "epadd-thumbnails").toFile();
+        } catch (IOException e) {
+            Util.print_exception("Unable to create a temp dir for thumbnails", e, log);
+            return nGenerated.get();
+        }
+        AtomicInteger nextProfile = new AtomicInteger();
+        //each worker thread keeps its own soffice profile for all its batches
+        ThreadLocal<File> profiles = ThreadLocal.withInitial(() -> new File(workDir, "profile-" + nextProfile.getAndIncrement()));
+        workers = Executors.newFixedThreadPool(nWorkers, r -> {
+            Thread t = new Thread(r, "thumbnail-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Job job : pdfs)
+            workers.execute(() -> render(job));
+        for (int i = 0; i < docs.size(); i += BATCH_SIZE) {
+            List<Job> batch = docs.subList(i, Math.min(docs.size(), i + BATCH_SIZE));
+            workers.execute(() -> {
+                try {
+                    convertBatch(batch, profiles.get());
+                } catch (Exception e) {
+                    Util.print_exception("Thumbnail worker failed on a batch", e, log);
+                }
+            });
+        }
+
+        //cancel() drops the jobs not started yet and interrupts the running ones, so this returns soon after
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS))
+                ;
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+        }
+        //the profiles are only for this run, the rendered images have been copied into the blob store
+        Util.deleteDir(workDir.getAbsolutePath(), log);
+        log.info("Generated thumbnails for " + nGenerated.get() + " blobs in " + Util.commatize(System.currentTimeMillis() - startMillis) + "ms");
+        return nGenerated.get();
+    }
+
+    /** copies the inputs of the batch into a dir of its own and converts them to pdf with one soffice, then renders each */
+    private void convertBatch(List<Job> batch, File profile) {
+        if (cancelled)
+            return;
+        File batchDir;
+        try {
+            batchDir = Files.createTempDirectory(workDir.toPath(), "batch").toFile();
+        } catch (IOException e) {
+            Util.print_exception("Unable to create a dir for the thumbnail batch", e, log);
+            nDone.addAndGet(batch.size());
+            return;
+        }
+        List<Job> copied = new ArrayList<>();
+        for (Job job : batch) {
+            Blob b = job.blobs.get(0);
+            //the content hash is safe as a file name, the extension tells soffice what kind of document it is
+            Pair<String, String> nameExtension = Util.splitIntoFileBaseAndExtension(store.full_filename_normalized(b, false));
+            String ext = Util.nullOrEmpty(nameExtension.second) ? "" : "." + nameExtension.second;
+            job.input = new File(batchDir, job.hash + ext);
+            job.pdf = new File(batchDir, job.hash + ".pdf");
+            job.png = new File(batchDir, job.hash + ".png");
+            try {
+                store.createBlobCopy(b, job.input.getAbsolutePath());
+                copied.add(job);
+            } catch (IOException e) {
+                Util.print_exception("Unable to copy blob " + b + " for its thumbnail", e, log);
+                nDone.incrementAndGet();
+            }
+        }
+
+        List<Job> failed = toPdf(copied, profile, batchDir);
+        if (!failed.isEmpty() && copied.size() > 1) {
+            //the batch was cut short by a document that soffice got stuck on or crashed on, give the rest their own soffice and time limit
+            log.warn("soffice did not convert " + failed.size() + " of a batch of " + copied.size() + ", converting them one at a time");
+            List<Job> stillFailed = new ArrayList<>();
+            for (Job job : failed)
+                if (!cancelled)
+                    stillFailed.addAll(toPdf(Collections.singletonList(job), profile, batchDir));
+            failed = stillFailed;
+        }
+        for (Job job : failed)
+            log.warn("Could not generate pdf for thumbnail of " + job.blobs.get(0));
+        nDone.addAndGet(failed.size());
+        for (Job job : copied)
+            if (!failed.contains(job))
+                render(job);
+        Util.deleteDir(batchDir.getAbsolutePath(), log);
+    }
+
+    /**
+     * converts the inputs of the jobs to pdf with a single soffice, which is killed if it takes longer than the time limit for that many documents
+     * @return the jobs for which no pdf was produced
+     */
+    private List<Job> toPdf(List<Job> jobs, File profile, File outDir) {
+        if (jobs.isEmpty())
+            return jobs;
+        List<String> cmd = new ArrayList<>(Arrays.asList(soffice, "-env:UserInstallation=" + profile.toURI(), "--headless", "--invisible", "--nologo", "--norestore",
+                "--convert-to", "pdf", "--outdir", outDir.getAbsolutePath()));
+        for (Job job : jobs)
+            cmd.add(job.input.getAbsolutePath());
+        run(cmd, jobTimeoutMillis * jobs.size(), new File(outDir, "soffice.log"));
+
+        List<Job> failed = new ArrayList<>();
+        for (Job job : jobs)
+            if (!job.pdf.exists())
+                failed.add(job);
+        return failed;
+    }
+
+    /** runs the command, killing it if it takes longer than timeoutMillis. output goes to the log file, so the process never blocks on a full pipe */
+    private boolean run(List<String> cmd, long timeoutMillis, File logFile) {
+        Process p = null;
+        try {
+            p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(logFile)).start();
+            if (!p.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("Killing " + cmd.get(0) + " after " + timeoutMillis + "ms: " + cmd);
+                return false;
+            }
+            return p.exitValue() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            Util.print_exception("Unable to run " + cmd, e, log);
+            return false;
+        } finally {
+            if (p != null && p.isAlive())
+                p.destroyForcibly();
+        }
+    }
+
+    /** renders the first page of the job's pdf (the blob itself if it is a pdf) and adds it as the thumbnail of all the blobs of the job */
+    private void render(Job job) {
+        try {
+            if (cancelled)
+                return;
+            File tmp = null;
+            if (job.pdf == null) {
+                tmp = job.pdf = File.createTempFile(job.hash, ".pdf", workDir);
+                job.png = new File(workDir, tmp.getName() + ".png");
+                store.createBlobCopy(job.blobs.get(0), job.pdf.getAbsolutePath());
+            }
+            try {
+                if (renderFirstPage(job.pdf, job.png) || renderFirstPageWithConvert(job.pdf, job.png))
+                    addThumbnail(job, job.png);
+                else
+                    log.warn("Could not generate thumbnail for " + job.blobs.get(0));
+            } finally {
+                if (tmp != null) {
+                    tmp.delete();
+                    job.png.delete();
+                }
+            }
+        } catch (Exception e) {
+            Util.print_exception("Unable to generate thumbnail for " + job.blobs.get(0), e, log);
+        } finally {
+            nDone.incrementAndGet();
+        }
+    }
+
+    /** @return true if the first page of pdf was rendered to png with PDFBox */
+    private boolean renderFirstPage(File pdf, File png) {
+        if (!USE_PDFBOX)
+            return false;
+        try (PDDocument doc = PDDocument.load(pdf)) {
+            if (doc.getNumberOfPages() == 0)
+                return false;
+            BufferedImage image = new PDFRenderer(doc).renderImageWithDPI(0, DPI, ImageType.RGB);
+            return ImageIO.write(image, "png", png);
+        } catch (Exception | LinkageError e) {
+            //encrypted and broken pdfs, fonts PDFBox can't handle and so on
+            log.warn("PDFBox could not render " + pdf + ": " + e);
+            return false;
+        }
+    }
+
+    private boolean renderFirstPageWithConvert(File pdf, File png) {
+        if (!isExecutable(convert))
+            return false;
+        //[0] is to convert only the first page of the pdf
+        run(Arrays.asList(convert, "-density", Integer.toString((int) DPI), pdf.getAbsolutePath() + "[0]", png.getAbsolutePath()), jobTimeoutMillis,
+                new File(png.getParentFile(), "convert.log"));
+        return png.exists();
+    }
+
+    private void addThumbnail(Job job, File png) {
+        for (Blob b : job.blobs) {
+            try {
+                store.addThumbnail(b, png);
+                nGenerated.incrementAndGet();
+            } catch (IOException e) {
+                Util.print_exception("Unable to add thumbnail for " + b, e, log);
+            }
+        }
+    }
+
+    public String getStatusMessage() {
+        int done = nDone.get(), total = nTotal;
+        if (total == 0)
+            return JSONUtils.getStatusJSON("Looking for attachments that need thumbnails...");
+        long elapsed = (System.currentTimeMillis() - startMillis) / 1000;
+        long remaining = done == 0 ? -1 : elapsed * (total - done) / done;
+        return JSONUtils.getStatusJSON("Generating thumbnails: " + Util.commatize(done) + " of " + Util.commatize(total) + " documents",
+                done * 100 / total, elapsed, remaining);
+    }
+
+    public void cancel() {
+        cancelled = true;
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
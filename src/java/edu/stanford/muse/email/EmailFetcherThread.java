@@ -44,6 +44,7 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.SearchTerm;
 import java.io.*;
 import java.util.*;
 
@@ -79,8 +80,6 @@ class EmailFetcherStats implements Cloneable, Serializable {
 public class EmailFetcherThread implements Runnable, Serializable {
     private final static long serialVersionUID = 1L;
 
-    private static final int IMAP_PREFETCH_BUFSIZE = 20 * 1024 * 1024;
-    /* used for buffering imap prefetch data -- necessary for good imap performance*/
     private static final String FORCED_ENCODING = "UTF-8";
 
     public static final Logger log =  LogManager.getLogger(EmailFetcherThread.class);
@@ -560,7 +559,14 @@ public class EmailFetcherThread implements Runnable, Serializable {
                 //Cases: encoding              charset [ For now always assume utf-8 charset but it can be different]
                 ///1      quoted-printable
                 ///2      base64
-                if (encoding.toLowerCase().equals("quoted-printable")) {
+                boolean encoded = encoding.toLowerCase().equals("quoted-printable") || encoding.equals("base64");
+                if (IngestionMemoryGovernor.get().shouldSpill(p.getSize())) {
+                    // too big to be buffered in memory, raw bytes + decoded bytes + string, decode it through a temp file instead
+                    if (encoded && bodyPart != null)
+                        content = IngestionMemoryGovernor.get().spillAndDecode(bodyPart.getRawInputStream(), encoding.toLowerCase(), charset);
+                    else
+                        content = IngestionMemoryGovernor.get().spillAndDecode(p.getInputStream(), "binary", encoded ? charset : java.nio.charset.Charset.defaultCharset().name());
+                } else if (encoding.toLowerCase().equals("quoted-printable")) {
 
                     byte b[] = null;
                     ///Following code handles if by chance this part was not an instance of MimeBodyPart (which it should be) then fallback upon getting
@@ -934,49 +940,27 @@ public class EmailFetcherThread implements Runnable, Serializable {
 
     /**
      * best effort to prefetch messages for messages[startMsgIdx] onwards, up to
-     * the IMAP_PREFETCH_BUFSIZE
+     * the prefetch buffer size decided by the IngestionMemoryGovernor (buffering imap prefetch data is necessary for good imap performance).
+     * the bytes prefetched are acquired from the governor and set in prefetchedBytes, the caller should release them once done with the messages.
      * return List<String> if bodyTextOnly is true, otherwise List<MimeMessage>
      */
-    private List<?> do_imap_prefetch(Message[] messages, int startMsgIdx, Folder folder, boolean bodyTextOnly) {
+    private List<?> do_imap_prefetch(Message[] messages, int startMsgIdx, Folder folder, boolean bodyTextOnly, long[] prefetchedBytes) {
         // its perfectly ok for correctness for this method to do nothing and return null
         List<?> prefetchedMessages = null;
+        prefetchedBytes[0] = 0;
         try {
 
-            if (IMAP_PREFETCH_BUFSIZE > 0 && folder instanceof IMAPFolder) {
-                int prefetch_messages_size = 0;
-
-                int start_message_num = messages[startMsgIdx].getMessageNumber();
-                int end_message_num = start_message_num;
-
-                List<Integer> messageNums = new ArrayList<>();
-
-                // figure out message num range to fetch. if anything is unusual -- bad content type, non-consec. msg nums etc -- break out.
-                // non consec. message numbers are a problem because they cause a very long imap command string, which we found was returning an "invalid command" response.
-                int prev_message_num = -1;
-                for (int msgIdx = startMsgIdx; msgIdx < messages.length; msgIdx++) {
-                    if (bodyTextOnly) {
-                        String contentType = messages[msgIdx].getContentType().toLowerCase();
-                        if (!contentType.startsWith("multipart/") && !contentType.startsWith("text/plain")) {
-                            log.info("Warn: message idx" + msgIdx + " msg#" + messages[msgIdx].getMessageNumber() + " has unexpected content type " + contentType);
-                            break;
-                        }
-                    }
-
-                    // check if sequence is as expected
-                    int next_message_num = messages[msgIdx].getMessageNumber(); // may be better to switch this to uid and prefetcher uses uid fetch
-                    if (next_message_num != prev_message_num + 1 && prev_message_num != -1)
-                        break;
-
-                    // if this message would push prefetch size beyond the buf size, break out, not including this message
-                    if (prefetch_messages_size + messages[msgIdx].getSize() >= IMAP_PREFETCH_BUFSIZE)
-                        break;
-                    prev_message_num = next_message_num;
-                    prefetch_messages_size += messages[msgIdx].getSize();
-                    messageNums.add(next_message_num);
-                }
-
+            if (folder instanceof IMAPFolder) {
+                long[] size = new long[1];
+                List<Integer> messageNums = planPrefetch(messages, startMsgIdx, bodyTextOnly, IngestionMemoryGovernor.get().prefetchBufferBytes(), size);
                 if (messageNums.size() == 0)
                     return null;
+                long prefetch_messages_size = size[0];
+                int start_message_num = messageNums.get(0), end_message_num = messageNums.get(messageNums.size() - 1);
+
+                // waits here if the heap is under pressure and other fetchers have prefetched messages in memory
+                IngestionMemoryGovernor.get().acquire(prefetch_messages_size);
+                prefetchedBytes[0] = prefetch_messages_size;
 
                 // now we prefetch messages from start_message_num to end_message_num
                 long startMillis = System.currentTimeMillis();
@@ -993,6 +977,41 @@ public class EmailFetcherThread implements Runnable, Serializable {
         return prefetchedMessages;
     }
 
+    /**
+     * figures out the message nums to prefetch together for messages[startMsgIdx] onwards, up to bufSize bytes.
+     * if anything is unusual -- bad content type, non-consec. msg nums etc -- breaks out, so the result may be empty.
+     * non consec. message numbers are a problem because they cause a very long imap command string, which we found was returning an "invalid command" response.
+     * the total size of the messages is returned in size[0].
+     */
+    static List<Integer> planPrefetch(Message[] messages, int startMsgIdx, boolean bodyTextOnly, long bufSize, long[] size) throws MessagingException {
+        List<Integer> messageNums = new ArrayList<>();
+        long prefetch_messages_size = 0;
+        int prev_message_num = -1;
+        for (int msgIdx = startMsgIdx; msgIdx < messages.length; msgIdx++) {
+            if (bodyTextOnly) {
+                String contentType = messages[msgIdx].getContentType().toLowerCase();
+                if (!contentType.startsWith("multipart/") && !contentType.startsWith("text/plain")) {
+                    log.info("Warn: message idx" + msgIdx + " msg#" + messages[msgIdx].getMessageNumber() + " has unexpected content type " + contentType);
+                    break;
+                }
+            }
+
+            // check if sequence is as expected
+            int next_message_num = messages[msgIdx].getMessageNumber(); // may be better to switch this to uid and prefetcher uses uid fetch
+            if (next_message_num != prev_message_num + 1 && prev_message_num != -1)
+                break;
+
+            // if this message would push prefetch size beyond the buf size, break out, not including this message
+            if (prefetch_messages_size + messages[msgIdx].getSize() >= bufSize)
+                break;
+            prev_message_num = next_message_num;
+            prefetch_messages_size += messages[msgIdx].getSize();
+            messageNums.add(next_message_num);
+        }
+        size[0] = prefetch_messages_size;
+        return messageNums;
+    }
+
     private void fetchHeaders(Message[] messages) throws MessagingException {
         // fetch headers (don't do it for mbox folders, waste of time)
         // this is an essential perf. step so that we fetch the headers in bulk.
@@ -1046,7 +1065,7 @@ public class EmailFetcherThread implements Runnable, Serializable {
                 EmailDocument ed = convertToEmailDocument(mm, "dummy"); // id doesn't really matter here
                 if (archive.containsDoc(ed)) {
                     //get more info about the already present message (duplicate)
-                    Document alreadypresent = archive.getAllUniqueDocsMap().get(ed);
+                    Document alreadypresent = archive.getEqualDoc(ed);
                     archive.getDupMessageInfo().put(alreadypresent,new Tuple2(ed.folderName,ed.messageID));
 
                     stats.nMessagesAlreadyPresent++;
@@ -1101,7 +1120,9 @@ public class EmailFetcherThread implements Runnable, Serializable {
         if (offset == 0)
             fetchStartTime = System.currentTimeMillis();
 
-        currentStatus = JSONUtils.getStatusJSON((emailStore instanceof MboxEmailStore) ? "Parsing " + folder.getName() + " (can take a while)..." : "Reading " + folder.getName() + "...");
+        // mbox folders are read without a javamail folder, see run()
+        String folderName = folder != null ? folder.getName() : new File(folder_name()).getName();
+        currentStatus = JSONUtils.getStatusJSON((emailStore instanceof MboxEmailStore) ? "Parsing " + folderName + " (can take a while)..." : "Reading " + folderName + "...");
 
         // bulk fetch of all message headers
         int n = messages.length;
@@ -1117,10 +1138,22 @@ public class EmailFetcherThread implements Runnable, Serializable {
         // prefetchedMessages will be a temp cache of prefetched messages
         int first_i_prefetched = -1, last_i_prefetched = -1;
         List<?> prefetchedMessages = null; // the type of this can be either list<string> if text only, otherwise list<mimemmessage>
+        long[] prefetchedBytes = new long[1]; // bytes of the current prefetch, acquired from the IngestionMemoryGovernor
 
         long highestUID = archive.getLastUIDForFolder(fetchedFolderInfo.accountKey, fetchedFolderInfo.longName);
         long lastAssignedUID = highestUID;
         boolean bodyTextOnly = !fetchConfig.downloadAttachments;
+
+        // prefetch in the background over connections of their own if possible, overlapping the network transfer with the processing below
+        ImapPrefetchPipeline pipeline = null;
+        if (Config.IMAP_PREFETCH_CONNECTIONS > 0 && folder instanceof IMAPFolder && emailStore instanceof ImapPopEmailStore && messages.length > 0) {
+            try {
+                pipeline = new ImapPrefetchPipeline((ImapPopEmailStore) emailStore, folder_name(), messages, bodyTextOnly, Config.IMAP_PREFETCH_CONNECTIONS);
+            } catch (Exception e) {
+                Util.print_exception("Unable to start the prefetch pipeline, prefetching in the fetcher thread instead", e, log);
+            }
+        }
+
         try {
             archive.openForWrite();
             for (int i = 0; i < messages.length; i++) {
@@ -1141,7 +1174,21 @@ public class EmailFetcherThread implements Runnable, Serializable {
                     // last_i_prefetched tracks what is the last index into idxs that we have prefetched.
                     // when we run out of prefetched messages, we do another bulk prefetch
 
-                    prefetchedMessages = do_imap_prefetch(messages, i, folder, bodyTextOnly);
+                    IngestionMemoryGovernor.get().release(prefetchedBytes[0]); // done with the previous prefetch
+                    prefetchedBytes[0] = 0;
+                    prefetchedMessages = null;
+                    if (pipeline != null) {
+                        ImapPrefetchPipeline.Batch batch = pipeline.take(i); // the bytes of the batch are released by the pipeline
+                        if (batch != null && !batch.claimed) {
+                            // no prefetch connection was left to fetch this batch (e.g. they could not be opened), prefetch in this thread from now on
+                            log.warn("Prefetch connections for " + Util.blur(folder_name()) + " are gone, prefetching in the fetcher thread instead");
+                            pipeline.close();
+                            pipeline = null;
+                        } else if (batch != null)
+                            prefetchedMessages = batch.messages;
+                    }
+                    if (pipeline == null)
+                        prefetchedMessages = do_imap_prefetch(messages, i, folder, bodyTextOnly, prefetchedBytes);
                     if (prefetchedMessages != null) {
                         first_i_prefetched = i;
                         last_i_prefetched = i + prefetchedMessages.size();
@@ -1153,7 +1200,7 @@ public class EmailFetcherThread implements Runnable, Serializable {
                 long unprocessedSecs = Util.getUnprocessedMessage(i + offset, totalMessages, elapsedMillis);
                 int N_TEASERS = 50; // 50 ok here, because it takes a long time to fetch and process messages, so teaser computation is relatively not expensive
                 int nTriesForThisMessage = 0;
-                currentStatus = getStatusJSONWithTeasers("Reading " + Util.commatize(totalMessages) + " messages from " + folder.getName() + "...", pctDone, elapsedMillis / 1000, unprocessedSecs, emails, N_TEASERS);
+                currentStatus = getStatusJSONWithTeasers("Reading " + Util.commatize(totalMessages) + " messages from " + folderName + "...", pctDone, elapsedMillis / 1000, unprocessedSecs, emails, N_TEASERS);
 
                 int messageNum = mm.getMessageNumber();
 
@@ -1187,7 +1234,7 @@ public class EmailFetcherThread implements Runnable, Serializable {
                     if (archive.containsDoc(ed)) {
                         stats.nMessagesAlreadyPresent++;
                         //get more info about the already present message (duplicate)
-                        Document alreadypresent = archive.getAllUniqueDocsMap().get(ed);
+                        Document alreadypresent = archive.getEqualDoc(ed);
                         archive.getDupMessageInfo().put(alreadypresent,new Tuple2(ed.folderName,ed.messageID));
 
 
@@ -1249,9 +1296,6 @@ public class EmailFetcherThread implements Runnable, Serializable {
                     // will also work, but will be slow as javamail accesses and fetches each mm separately, instead of using the bulk prefetched version
                     // even when prefetched, the processMessagePart is somewhat expensive because the attachments have to be extracted etc.
 
-                    // we could overlap processMessagePart with do_imap_prefetch by prefetching in a separate thread, since prefetch is network limited.
-                    // but profiling shows processMessagePart takes only 1/4th the time of do_imap_prefetch so overlapping would be a relatively small gain.
-                    // not worth the effort right now.
                     ed.attachments = attachmentsList;
                     if (fetchConfig.downloadAttachments)
                         ed.attachmentsYetToBeDownloaded = false; // we've already downloaded our attachments
@@ -1304,6 +1348,11 @@ public class EmailFetcherThread implements Runnable, Serializable {
                             retry = true;
                             log.info("Re-opening email store; attempt #" + (nTriesForThisMessage + 1) + " for message " + i);
                             nTriesForThisMessage++;
+                            // the messages are read afresh, so the batches planned by the pipeline no longer line up with them
+                            if (pipeline != null) {
+                                pipeline.close();
+                                pipeline = null;
+                            }
                             messages = openFolderAndGetMessages();
                             fetchHeaders(messages);
                             --i; // adjust the message index n try again
@@ -1328,6 +1377,9 @@ public class EmailFetcherThread implements Runnable, Serializable {
             //				if (cancelled && false) // TODO: disable for now as currently only indexes are rolled back and allDocs/blobs are not rolled back in sync yet
             //					archive.rollbackIndexWrites();
             //				else
+            IngestionMemoryGovernor.get().release(prefetchedBytes[0]);
+            if (pipeline != null)
+                pipeline.close();
             currentStatus = JSONUtils.getStatusJSON("Saving archive...");
             archive.close();
         }
@@ -1434,23 +1486,31 @@ public class EmailFetcherThread implements Runnable, Serializable {
         // use_uid is set only if we are reading the whole folder. otherwise we won't use it, and we won't update the highest UID seen for the folder in the archive.
         try {
             //			long t1 = System.currentTimeMillis();
-            int nMessages = openFolderAndGetMessageCount();
-            log.info("Total number of messages: " + nMessages);
-
             if (emailStore instanceof MboxEmailStore) {
-                // this is a special for mbox'es because we run out of memory if we try to openFolderAndGetMessages()
-                // so we process in batches
-                //TODO: Ideally, should cap on buffer size rather than on number of messages.
-                final int BATCH = 10000;
-                int nbatches = nMessages / BATCH;
+                // mboxes are read with an MboxReader, which maps the file and parses its messages lazily, instead of through the mstor folder.
+                // we still process in batches, sized by the governor from the heap headroom when each batch starts, but a batch no longer re-scans the file
+                MboxReader mbox = MboxReader.open(new File(folder_name()));
+                int nMessages = mbox.size();
+                log.info("Total number of messages: " + nMessages);
+                SearchTerm filterTerm = (fetchConfig.filter != null && fetchConfig.filter.isActive()) ? fetchConfig.filter.convertToSearchTerm(false) : null;
                 nMessagesProcessedSuccess = 0;
                 long st = System.currentTimeMillis();
                 int b;
-                for (b = 0; b < nbatches + 1; b++) {
-                    begin_msg_index = b * BATCH + 1;
-                    end_msg_index = Math.min((b + 1) * BATCH, nMessages) + 1;
-                    log.info("Fetching messages in index [" + begin_msg_index + ", " + end_msg_index + "] batch: " + b + "/" + nbatches + "\nTotal Messages: " + nMessages);
-                    Message[] messages = openFolderAndGetMessages();
+                int next_msg_index = 1;
+                for (b = 0; next_msg_index <= nMessages || b == 0; b++) {
+                    int batchSize = IngestionMemoryGovernor.get().mboxBatchSize();
+                    begin_msg_index = next_msg_index;
+                    end_msg_index = Math.min(begin_msg_index - 1 + batchSize, nMessages) + 1;
+                    next_msg_index = end_msg_index;
+                    log.info("Fetching messages in index [" + begin_msg_index + ", " + end_msg_index + "] batch: " + b + " of size " + batchSize + "\nTotal Messages: " + nMessages);
+                    Message[] messages = mbox.getMessages(begin_msg_index - 1, end_msg_index - 1);
+                    if (filterTerm != null) {
+                        List<Message> matching = new ArrayList<>();
+                        for (Message m : messages)
+                            if (filterTerm.match(m))
+                                matching.add(m);
+                        messages = matching.toArray(new Message[0]);
+                    }
                     currentStatus = JSONUtils.getStatusJSON("");
                     if (isCancelled)
                         return;
@@ -1463,8 +1523,8 @@ public class EmailFetcherThread implements Runnable, Serializable {
                             } else {
                                 // this is for memory test screening mode.
                                 // we create a dummy archive without any real contents
-                                for (int i = 0; i < nMessages; i++) {
-                                    String unique_id_as_string = Long.toString(i);
+                                for (int i = 0; i < messages.length; i++) {
+                                    String unique_id_as_string = Long.toString(begin_msg_index - 1 + i);
 
                                     // well, we already converted to emaildoc above during removeMessagesAlreadyInArchive
                                     // not a serious perf. concern now, but revisit if needed
@@ -1478,8 +1538,11 @@ public class EmailFetcherThread implements Runnable, Serializable {
                     }
                     log.info("Fetch stats for this fetcher thread: " + stats);
                 }
-                log.info("Read #" + nMessages + " messages in #" + b + " batches of size: " + BATCH + " in " + (System.currentTimeMillis() - st) + "ms");
+                log.info("Read #" + nMessages + " messages in #" + b + " batches in " + (System.currentTimeMillis() - st) + "ms, memory governor: " + IngestionMemoryGovernor.get().getStats());
             } else {
+                int nMessages = openFolderAndGetMessageCount();
+                log.info("Total number of messages: " + nMessages);
+
                 // IMAP etc are pretty efficient with lazily populating message objects, so unlike mbox, its ok to use openFolderAndGetMessages() on the entire folder.
                 // remember to init the begin/end_msg_index before calling openFolderAndGetMessages
                 begin_msg_index = 1;
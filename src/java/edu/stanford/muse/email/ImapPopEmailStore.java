@@ -237,6 +237,18 @@ public class ImapPopEmailStore extends EmailStore {
 
 	//	connects to the store, returns it as well as stores it in this.store
 	public Store connect() throws MessagingException
+	{
+		return connect(true);
+	}
+
+	/** opens another connection to the account, independent of this.store, e.g. to prefetch messages in parallel (see ImapPrefetchPipeline).
+	 * the caller should close it */
+	Store newConnection() throws MessagingException
+	{
+		return connect(false);
+	}
+
+	private Store connect(boolean isDefault) throws MessagingException
 	{
 		if (Util.nullOrEmpty(connectOptions.protocol)) // should be at least imap or pop
 			return null;
@@ -257,11 +269,14 @@ public class ImapPopEmailStore extends EmailStore {
 		    }
 		}
 
-		session = Session.getInstance(mstoreProps, null);
+		Session session = Session.getInstance(mstoreProps, null);
+		if (isDefault)
+			this.session = session;
 	//	session.setDebug(DEBUG);
 		Store st = session.getStore(connectOptions.protocol);
 		st.connect(connectOptions.server, connectOptions.port, connectOptions.userName, Util.nullOrEmpty(oauthToken) ? connectOptions.password : ""); // no password if oauth
-		this.store = st;
+		if (isDefault)
+			this.store = st;
 		return st;
 	}
 	
@@ -0,0 +1,218 @@
+package edu.stanford.muse.email;
+
+import com.sun.mail.imap.IMAPFolder;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches the messages of an imap folder in the background, over several connections of their own to the account,
+ * while the fetcher thread processes the messages already prefetched. Earlier the fetcher alternated between a bulk prefetch
+ * (network bound) and processing the messages of that prefetch (cpu bound), so one of the two was always idle.
+ *
+ * The prefetch batches are planned upfront with the same rules as EmailFetcherThread.do_imap_prefetch, then taken in order by the connections.
+ * At most a window of batches is fetched ahead of the fetcher (the bounded queue), and their bytes are acquired from the IngestionMemoryGovernor,
+ * so the pipeline also backs off when the heap is under pressure.
+ * The fetcher takes the batches in order with take(), a batch that could not be fetched comes back with null messages, in which case the
+ * fetcher reads those messages one at a time as usual. A batch that comes back unclaimed was never fetched because no connection was left
+ * (e.g. none could be opened), in which case the fetcher drops the pipeline and prefetches in its own thread.
+ */
+class ImapPrefetchPipeline {
+    private static final Logger log = LogManager.getLogger(ImapPrefetchPipeline.class);
+
+    /** a range of consecutive messages fetched with one command */
+    static class Batch {
+        final int startIdx; // index of the first message of the batch in the messages being fetched
+        final List<Integer> messageNums;
+        final long bytes;
+        volatile List<?> messages; // List<String> if body text only, otherwise List<MimeMessage>, null if not fetched
+        volatile boolean claimed; // by a connection, in which case its bytes and a window slot are held until released
+        boolean released;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Batch(int startIdx, List<Integer> messageNums, long bytes) {
+            this.startIdx = startIdx;
+            this.messageNums = messageNums;
+            this.bytes = bytes;
+        }
+
+        int size() {
+            return messageNums.size();
+        }
+    }
+
+    private final ImapPopEmailStore emailStore;
+    private final String folderName;
+    private final boolean bodyTextOnly;
+    private final List<Batch> batches = new ArrayList<>();
+    private final Semaphore window;
+    private final AtomicInteger nextBatchToClaim = new AtomicInteger(), liveConnections = new AtomicInteger();
+    private final ExecutorService executor;
+    private int nextBatchToTake;
+    private volatile boolean closed;
+
+    // fetch-rate metrics
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLong nBytesFetched = new AtomicLong(), nMessagesFetched = new AtomicLong(), fetchMillis = new AtomicLong();
+    private final AtomicInteger nBatchesFailed = new AtomicInteger();
+    private long takeWaitMillis;
+
+    /**
+     * plans the batches for all of messages and starts prefetching them over nConnections new connections to the account.
+     * @param messages the messages of the folder to be fetched, with their headers already fetched (their sizes and content types are needed here)
+     */
+    ImapPrefetchPipeline(ImapPopEmailStore emailStore, String folderName, Message[] messages, boolean bodyTextOnly, int nConnections) throws MessagingException {
+        this.emailStore = emailStore;
+        this.folderName = folderName;
+        this.bodyTextOnly = bodyTextOnly;
+
+        long bufSize = IngestionMemoryGovernor.get().prefetchBufferBytes();
+        long[] size = new long[1];
+        for (int i = 0; i < messages.length; ) {
+            List<Integer> messageNums = EmailFetcherThread.planPrefetch(messages, i, bodyTextOnly, bufSize, size);
+            if (messageNums.isEmpty()) {
+                i++; // this message can't be prefetched, the fetcher will read it by itself
+                continue;
+            }
+            batches.add(new Batch(i, messageNums, size[0]));
+            i += messageNums.size();
+        }
+
+        // one batch being fetched per connection, and one more per connection ready and waiting for the fetcher
+        window = new Semaphore(2 * nConnections);
+        executor = Executors.newFixedThreadPool(nConnections, r -> {
+            Thread t = new Thread(r, "ImapPrefetch-" + Util.blur(folderName));
+            t.setDaemon(true);
+            return t;
+        });
+        liveConnections.set(nConnections);
+        for (int i = 0; i < nConnections; i++)
+            executor.execute(this::fetchBatches);
+        executor.shutdown();
+        log.info("Prefetching " + messages.length + " messages of " + Util.blur(folderName) + " in " + batches.size() + " batches over " + nConnections + " connections");
+    }
+
+    /** runs on each connection: claims batches in order and fetches them, until there are no more */
+    private void fetchBatches() {
+        Store store = null;
+        Folder folder = null;
+        try {
+            store = emailStore.newConnection();
+            folder = emailStore.openFolderWithoutCount(store, folderName);
+            if (!(folder instanceof IMAPFolder)) {
+                log.warn("Unable to open " + Util.blur(folderName) + " on a prefetch connection");
+                return;
+            }
+
+            while (!closed) {
+                window.acquire();
+                int b = nextBatchToClaim.getAndIncrement();
+                if (b >= batches.size()) {
+                    window.release();
+                    break;
+                }
+                Batch batch = batches.get(b);
+                batch.claimed = true;
+                IngestionMemoryGovernor.get().acquire(batch.bytes);
+                try {
+                    long start = System.currentTimeMillis();
+                    ImapPrefetcher prefetcher = bodyTextOnly ? new TextOnlyImapPrefetcher(emailStore.session, batch.messageNums) : new ImapPrefetcher(emailStore.session, batch.messageNums);
+                    List<?> result = (List<?>) ((IMAPFolder) folder).doCommand(prefetcher);
+                    // the fetcher matches prefetched messages to messages by position, so a partial result is no good
+                    if (result != null && result.size() == batch.size()) {
+                        batch.messages = result;
+                        nBytesFetched.addAndGet(batch.bytes);
+                        nMessagesFetched.addAndGet(batch.size());
+                    } else
+                        nBatchesFailed.incrementAndGet();
+                    fetchMillis.addAndGet(System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    nBatchesFailed.incrementAndGet();
+                    Util.print_exception("Unable to prefetch " + batch.size() + " messages from " + Util.blur(folderName) + ", they will be read one at a time", e, log);
+                } finally {
+                    batch.done.countDown();
+                    if (closed)
+                        release(batch); // close() may have given up waiting for this batch
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Util.print_exception("Prefetch connection failed for " + Util.blur(folderName), e, log);
+        } finally {
+            try {
+                if (folder != null && folder.isOpen())
+                    folder.close(false);
+                if (store != null)
+                    store.close();
+            } catch (Exception e) {
+                Util.print_exception(e, log);
+            }
+            // if this was the last connection, the batches nobody claimed will never come, let the fetcher go ahead without them
+            if (liveConnections.decrementAndGet() == 0)
+                for (Batch batch : batches)
+                    batch.done.countDown();
+        }
+    }
+
+    /**
+     * @return the prefetched batch that starts at message idx, waiting for it if it is still being fetched.
+     * null if no batch starts there, e.g. because the message can't be prefetched.
+     * the batches before it are released, messages must be taken in increasing order of idx.
+     */
+    Batch take(int idx) throws InterruptedException {
+        while (nextBatchToTake < batches.size() && batches.get(nextBatchToTake).startIdx < idx)
+            release(batches.get(nextBatchToTake++));
+        if (nextBatchToTake >= batches.size() || batches.get(nextBatchToTake).startIdx != idx)
+            return null;
+
+        Batch batch = batches.get(nextBatchToTake);
+        long start = System.currentTimeMillis();
+        batch.done.await();
+        takeWaitMillis += System.currentTimeMillis() - start;
+        return batch;
+    }
+
+    /** gives back the window slot and the bytes held by the batch, once the fetcher is done with its messages */
+    private synchronized void release(Batch batch) {
+        if (!batch.claimed || batch.released)
+            return;
+        batch.released = true;
+        batch.messages = null;
+        IngestionMemoryGovernor.get().release(batch.bytes);
+        window.release();
+    }
+
+    /** stops prefetching, releases everything held and logs the fetch rates. the pipeline is not usable after this */
+    void close() {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (Batch batch : batches)
+            if (batch.done.getCount() == 0)
+                release(batch);
+        log.info("Prefetch pipeline for " + Util.blur(folderName) + " done: " + getStats());
+    }
+
+    /** @return fetch-rate metrics of the pipeline so far */
+    String getStats() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startMillis);
+        long kb = nBytesFetched.get() / 1024;
+        return nMessagesFetched.get() + " messages, " + Util.commatize(kb) + "KB prefetched in " + Util.commatize(elapsed) + "ms (" + Util.commatize(kb * 1000 / elapsed) + " KB/sec overall, "
+                + Util.commatize(kb * 1000 / Math.max(1, fetchMillis.get())) + " KB/sec per connection), " + nBatchesFailed.get() + " of " + batches.size() + " batches failed, fetcher waited " + Util.commatize(takeWaitMillis) + "ms for prefetches";
+    }
+}
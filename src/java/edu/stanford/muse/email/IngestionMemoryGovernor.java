@@ -0,0 +1,216 @@
+package edu.stanford.muse.email;
+
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.*;
+import java.lang.management.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides how much work is in flight during import, based on the live heap usage rather than on fixed sizes.
+ * The JVM notifies the governor (MemoryPoolMXBean collection usage thresholds) when the data still live after a gc goes beyond
+ * Config.INGESTION_HEAP_HIGH_PCT of the heap; from then on until the heap recovers, the fetchers are held back and use small batches.
+ *
+ * - sizes the mbox batches (instead of a fixed 10000 messages) and the imap prefetch buffers (instead of a fixed 20MB) from the heap headroom
+ * - the imap prefetches acquire their bytes before fetching and release them once processed; a fetcher waits (backpressure)
+ *   while the heap is under pressure and other fetchers have bytes in flight, instead of running out of memory midway through the import
+ * - message bodies bigger than the spill threshold are read through a temp file instead of being buffered (several times over) in memory
+ *
+ * Decisions are logged, so that the import log shows why batches got smaller or fetchers waited.
+ */
+public class IngestionMemoryGovernor {
+    private static final Logger log = LogManager.getLogger(IngestionMemoryGovernor.class);
+
+    private static final long MB = 1024 * 1024;
+    private static final int MIN_MBOX_BATCH = 500, MAX_MBOX_BATCH = 50000;
+    private static final long EST_BYTES_PER_MBOX_MESSAGE = 32 * 1024; // heap held by a parsed mbox message until it is indexed
+    private static final long MIN_PREFETCH_BYTES = MB, MAX_PREFETCH_BYTES = 64 * MB;
+    private static final int LOW_PCT_GAP = 10; // pressure is off once the live data is this many % below the high threshold
+    private static final long MAX_WAIT_MILLIS = 60 * 1000; // a fetcher never waits longer than this for memory, it goes ahead with a minimal batch
+
+    private static IngestionMemoryGovernor instance;
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>(); // heap pools with collection usage thresholds, i.e. the old generation
+    private volatile boolean underPressure;
+    private long inFlightBytes;
+    private long lastPrefetchBytes = -1;
+    private int nWaits, nSpills;
+    private long waitMillis;
+
+    public static synchronized IngestionMemoryGovernor get() {
+        if (instance == null)
+            instance = new IngestionMemoryGovernor();
+        return instance;
+    }
+
+    private IngestionMemoryGovernor() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported())
+                continue;
+            long max = pool.getUsage().getMax();
+            if (max <= 0)
+                continue; // no defined max, nothing to compare with
+            pool.setCollectionUsageThreshold(max * Config.INGESTION_HEAP_HIGH_PCT / 100);
+            pools.add(pool);
+        }
+
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        if (memoryBean instanceof NotificationEmitter)
+            ((NotificationEmitter) memoryBean).addNotificationListener((notification, handback) -> {
+                if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+                    thresholdExceeded(info);
+                }
+            }, null, null);
+
+        StringBuilder sb = new StringBuilder();
+        for (MemoryPoolMXBean pool : pools)
+            sb.append(pool.getName()).append(" ");
+        log.info("Ingestion memory governor watching heap pools [" + sb.toString().trim() + "] at " + Config.INGESTION_HEAP_HIGH_PCT + "% of " + Runtime.getRuntime().maxMemory() / MB + "MB max heap");
+    }
+
+    private synchronized void thresholdExceeded(MemoryNotificationInfo info) {
+        if (!underPressure)
+            log.warn("Heap under pressure: " + info.getPoolName() + " has " + info.getUsage().getUsed() / MB + "MB live after gc, of " + info.getUsage().getMax() / MB + "MB. Holding back the fetchers");
+        underPressure = true;
+    }
+
+    /** @return true if the heap is under pressure. the jvm tells us when it goes under pressure, but not when it recovers, so that is checked here */
+    public synchronized boolean isUnderPressure() {
+        if (underPressure && liveBytesPct() < Config.INGESTION_HEAP_HIGH_PCT - LOW_PCT_GAP) {
+            underPressure = false;
+            log.info("Heap pressure is off, " + liveBytesPct() + "% live after gc. Fetchers resume normal batch sizes");
+            notifyAll();
+        }
+        return underPressure;
+    }
+
+    /** @return the max % of the heap pools live after the last gc, 0 if not known */
+    private int liveBytesPct() {
+        int pct = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0)
+                pct = Math.max(pct, (int) (usage.getUsed() * 100 / usage.getMax()));
+        }
+        return pct;
+    }
+
+    /** @return estimate of the heap that can still be filled before going under pressure */
+    private long headroomBytes() {
+        Runtime r = Runtime.getRuntime();
+        long live = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null)
+                live += usage.getUsed();
+        }
+        if (pools.isEmpty())
+            live = r.totalMemory() - r.freeMemory(); // overestimates, since it includes garbage, but that's on the safe side
+        return Math.max(0, r.maxMemory() * Config.INGESTION_HEAP_HIGH_PCT / 100 - live);
+    }
+
+    /** @return the # of messages to read from an mbox in the next batch, all of them are in memory together */
+    public int mboxBatchSize() {
+        int size;
+        if (isUnderPressure())
+            size = MIN_MBOX_BATCH;
+        else
+            size = (int) Math.max(MIN_MBOX_BATCH, Math.min(MAX_MBOX_BATCH, headroomBytes() / 2 / EST_BYTES_PER_MBOX_MESSAGE));
+        log.info("Next mbox batch will have " + size + " messages" + (underPressure ? " (heap under pressure)" : ", heap headroom is " + headroomBytes() / MB + "MB"));
+        return size;
+    }
+
+    /** @return the max # of bytes of messages to prefetch together from an imap folder */
+    public synchronized long prefetchBufferBytes() {
+        long bytes;
+        if (isUnderPressure())
+            bytes = MIN_PREFETCH_BYTES;
+        else
+            bytes = Math.max(MIN_PREFETCH_BYTES, Math.min(MAX_PREFETCH_BYTES, headroomBytes() / 16));
+        // log only if it changes noticeably, this is called once per prefetch
+        if (lastPrefetchBytes < 0 || bytes > lastPrefetchBytes * 2 || bytes < lastPrefetchBytes / 2) {
+            log.info("Imap prefetch buffer set to " + bytes / 1024 + "KB" + (underPressure ? " (heap under pressure)" : ""));
+            lastPrefetchBytes = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * blocks while the heap is under pressure and other fetchers have bytes in flight, then accounts for the given bytes as in flight.
+     * the caller must release the same # of bytes once it is done with them.
+     */
+    public synchronized void acquire(long bytes) {
+        long start = System.currentTimeMillis();
+        boolean waited = false;
+        try {
+            while (isUnderPressure() && inFlightBytes > 0 && System.currentTimeMillis() - start < MAX_WAIT_MILLIS) {
+                if (!waited)
+                    log.info("Fetcher " + Thread.currentThread().getName() + " waiting for memory: heap under pressure with " + inFlightBytes / 1024 + "KB in flight");
+                waited = true;
+                wait(1000);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (waited) {
+            long elapsed = System.currentTimeMillis() - start;
+            nWaits++;
+            waitMillis += elapsed;
+            log.info("Fetcher " + Thread.currentThread().getName() + " resumed after waiting " + elapsed + "ms for memory" + (underPressure ? ", going ahead though the heap is still under pressure" : ""));
+        }
+        inFlightBytes += bytes;
+    }
+
+    public synchronized void release(long bytes) {
+        inFlightBytes = Math.max(0, inFlightBytes - bytes);
+        notifyAll();
+    }
+
+    /** @return true if a message part of this size (in bytes, as reported by javamail, -1 if unknown) should be read through a temp file */
+    public boolean shouldSpill(long size) {
+        long threshold = Config.INGESTION_SPILL_BODY_MB * MB;
+        if (isUnderPressure())
+            threshold /= 4;
+        return size > threshold;
+    }
+
+    /**
+     * reads the text of a part through a temp file: the raw (still encoded) bytes are copied to the file and decoded from there,
+     * so only the decoded text is ever in memory, instead of the raw bytes, the decoded bytes and the text together.
+     * @param encoding content transfer encoding of raw, as understood by MimeUtility.decode
+     */
+    public String spillAndDecode(InputStream raw, String encoding, String charset) throws IOException, MessagingException {
+        File f = File.createTempFile("epadd-body-", ".tmp");
+        try {
+            long nBytes = Util.copy_stream_to_file(raw, f.getAbsolutePath());
+            synchronized (this) {
+                nSpills++;
+            }
+            log.info("Spilled message body of " + nBytes / 1024 + "KB to a temp file for decoding");
+            StringBuilder sb = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, nBytes));
+            try (Reader r = new InputStreamReader(MimeUtility.decode(new BufferedInputStream(new FileInputStream(f), 64 * 1024), encoding), charset)) {
+                char[] buf = new char[64 * 1024];
+                int n;
+                while ((n = r.read(buf)) > 0)
+                    sb.append(buf, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            if (!f.delete())
+                f.deleteOnExit();
+        }
+    }
+
+    public synchronized String getStats() {
+        return "heap under pressure: " + underPressure + ", " + liveBytesPct() + "% live after gc, " + inFlightBytes / 1024 + "KB in flight, " + nWaits + " waits for " + waitMillis + "ms, " + nSpills + " bodies spilled";
+    }
+}
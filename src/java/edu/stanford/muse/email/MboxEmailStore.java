@@ -129,8 +129,8 @@ public class MboxEmailStore extends EmailStore implements Serializable {
 					else
 						folderBeingScannedShortName = folderBeingScanned;
 
-					Pair<Folder, Integer> pair = openFolder(null, f.getPath());
-					int count = pair.getSecond();
+					// counting with the MboxReader also indexes the file for the fetch later, see MboxReader
+					int count = MboxReader.countMessages(f);
 					if (count == 1) { // many files are wrongly considered mbox with count 1. Ignore them if they also have a suffix that is known to cause noise. we're being cautious and ignoring these files only if they are noisy
 						for(String disallowedFileName : DictUtils.excludedFilesFromImport){
 							if (path.endsWith (disallowedFileName))
@@ -145,14 +145,11 @@ public class MboxEmailStore extends EmailStore implements Serializable {
 
 						log.info ("Ignoring file " + path + " because it has only 1 message and its name matches a suffix that indicates it's likely not an mbox file.");
 					}
-					Folder f1 = pair.getFirst();
-					boolean validFolder = count > 0 && f1 != null;
+					boolean validFolder = count > 0;
 					// we'll cache the folder info even if its not a valid folder.
 					// this ensures we don't have to scan invalid folders again
 				//	if (validFolder)
 					{
-						if (f1 != null)
-							f1.close(false);
 						// put the info in the cache
 						FolderInfo fi = new FolderInfo(null, folderBeingScanned, folderBeingScannedShortName, count, fileSize);
 						folderCache.put(f.getPath(), fi);
@@ -0,0 +1,414 @@
+package edu.stanford.muse.email;
+
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.SharedInputStream;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads an mbox file by memory-mapping it, instead of through the mstor javamail provider.
+ *
+ * The messages are located with an index of the offsets of their "From " separator lines, built with a single scan of the file
+ * (8 bytes at a time, looking for newlines in a whole word at once) and saved in the settings dir, so that it need not be scanned again,
+ * e.g. between counting the messages of the folder and fetching them, or when resuming an import. If the mbox has only been appended to
+ * since it was indexed (as mail clients do), only the new part is scanned.
+ *
+ * Messages are parsed lazily: getMessage returns a MimeMessage of which only the headers have been parsed, its content is read from
+ * the mapped file when it is asked for, so a batch of messages costs little memory and each byte of the mbox is read about once.
+ * With mstor, the folder was re-opened and re-scanned for each batch of messages, and parsed messages were held in its cache.
+ */
+public class MboxReader {
+    private static final Logger log = LogManager.getLogger(MboxReader.class);
+
+    private static final int MAGIC = 0x4d425849; // MBXI
+    private static final int VERSION = 1;
+    private static final long WINDOW_SIZE = 1L << 30; // a single mapping can't be larger than 2GB, so big files are mapped in windows
+    private static final byte[] SEPARATOR = "From ".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_SEPARATOR_LENGTH = 1024; // only the start of a (malformed) long "From " line is kept, the date is near its start
+    // date formats of the "From " line, most common first. the date is asctime's, some writers add the time zone
+    private static final String[] SEPARATOR_DATE_FORMATS = new String[]{"EEE MMM d HH:mm:ss yyyy", "EEE MMM d HH:mm:ss Z yyyy", "EEE MMM d HH:mm:ss z yyyy", "EEE MMM d HH:mm yyyy"};
+
+    private static final Session session;
+
+    static {
+        Properties props = new Properties();
+        props.setProperty("mail.mime.address.strict", "false");
+        session = Session.getInstance(props, null);
+    }
+
+    private final File file;
+    private final long length;
+    private MappedByteBuffer[] windows;
+    private long[] offsets; // offsets of the "From " lines of the messages, followed by the length of the file
+
+    private MboxReader(File file) throws IOException {
+        this.file = file;
+        this.length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            windows = new MappedByteBuffer[(int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = i * WINDOW_SIZE;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, length - start));
+                windows[i].order(ByteOrder.LITTLE_ENDIAN); // so that the first byte of a word is its lowest byte
+            }
+        } // the mappings stay valid after the channel is closed
+    }
+
+    /** @return a reader for the mbox, with its messages indexed. an mbox has to start with a "From " line, other files have no messages */
+    public static MboxReader open(File file) throws IOException {
+        MboxReader reader = new MboxReader(file);
+        reader.index();
+        return reader;
+    }
+
+    /** @return the # of messages in the mbox file, 0 if it is not an mbox. builds and saves its index if needed */
+    public static int countMessages(File file) throws IOException {
+        if (!looksLikeMbox(file))
+            return 0; // don't bother mapping and scanning files that aren't mboxes at all
+        return open(file).size();
+    }
+
+    private static boolean looksLikeMbox(File file) throws IOException {
+        byte[] b = new byte[SEPARATOR.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(b);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(b, SEPARATOR);
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    private byte byteAt(long pos) {
+        return windows[(int) (pos / WINDOW_SIZE)].get((int) (pos % WINDOW_SIZE));
+    }
+
+    /** true if a "From " line starts at pos */
+    private boolean isSeparatorAt(long pos) {
+        if (pos + SEPARATOR.length > length)
+            return false;
+        for (int i = 0; i < SEPARATOR.length; i++)
+            if (byteAt(pos + i) != SEPARATOR[i])
+                return false;
+        return true;
+    }
+
+    /** reads the saved index if it is current, scans the file otherwise (or only its new part, if it has only been appended to) */
+    private void index() {
+        File indexFile = indexFile();
+        SavedIndex savedIndex = readIndex(indexFile);
+        long[] saved = savedIndex == null ? null : savedIndex.offsets;
+        if (saved != null && savedIndex.lastModified == file.lastModified() && saved[saved.length - 1] == length) {
+            offsets = saved;
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        LongList list;
+        long from = 0;
+        if (saved != null && saved.length > 1 && saved[saved.length - 1] < length && isSeparatorAt(saved[saved.length - 1]) && isSeparatorAt(saved[saved.length - 2])) {
+            // the file has grown, and the separators at the end of the old part are still where they were: assume it was appended to
+            // keep the old end: it is the "From " line of the first new message, and its newline (at from-1) is not scanned
+            list = new LongList(saved);
+            from = saved[saved.length - 1];
+        } else {
+            list = new LongList(new long[0]);
+            if (isSeparatorAt(0))
+                list.add(0);
+        }
+        if (list.size() > 0) // not an mbox otherwise
+            scan(from, list);
+        list.add(length);
+        offsets = list.toArray();
+        log.info("Indexed " + size() + " messages in " + Util.blurPath(file.getPath()) + " (" + Util.commatize((length - from) / 1024) + "KB scanned) in " + (System.currentTimeMillis() - start) + "ms");
+        if (size() > 0)
+            saveIndex(indexFile);
+    }
+
+    /** adds the offsets of the "From " lines starting after the newlines in the file from pos onwards, word by word */
+    private void scan(long pos, LongList list) {
+        final long NEWLINES = 0x0a0a0a0a0a0a0a0aL, ONES = 0x0101010101010101L, HIGHS = 0x8080808080808080L;
+        for (int w = (int) (pos / WINDOW_SIZE); w < windows.length; w++) {
+            MappedByteBuffer buf = windows[w];
+            long base = w * WINDOW_SIZE;
+            int i = (int) Math.max(0, pos - base), limit = buf.limit();
+            for (; i + 8 <= limit; i += 8) {
+                // the bytes of the word that are newlines become 0, and the high bit of each 0 byte is set in t.
+                // bytes above a 0 byte may be set falsely, so each candidate is checked
+                long word = buf.getLong(i) ^ NEWLINES;
+                long t = (word - ONES) & ~word & HIGHS;
+                while (t != 0) {
+                    int b = Long.numberOfTrailingZeros(t) >>> 3;
+                    if (buf.get(i + b) == '\n' && isSeparatorAt(base + i + b + 1))
+                        list.add(base + i + b + 1);
+                    t &= t - 1;
+                }
+            }
+            for (; i < limit; i++)
+                if (buf.get(i) == '\n' && isSeparatorAt(base + i + 1))
+                    list.add(base + i + 1);
+        }
+    }
+
+    /** @return a message of the mbox, parsed only as far as its headers, numbered from 1 like javamail message numbers */
+    public MimeMessage getMessage(int i) throws MessagingException {
+        long start = offsets[i], end = offsets[i + 1];
+        // the message starts after the "From " line
+        long pos = start;
+        while (pos < end && byteAt(pos) != '\n')
+            pos++;
+        byte[] separator = new byte[(int) Math.min(pos - start, MAX_SEPARATOR_LENGTH)];
+        for (int j = 0; j < separator.length; j++)
+            separator[j] = byteAt(start + j);
+        return new MboxMessage(new MappedSharedInputStream(Math.min(pos + 1, end), end), i + 1, new String(separator, StandardCharsets.ISO_8859_1));
+    }
+
+    /** @return messages [from, to) of the mbox, see getMessage */
+    public MimeMessage[] getMessages(int from, int to) throws MessagingException {
+        MimeMessage[] messages = new MimeMessage[to - from];
+        for (int i = from; i < to; i++)
+            messages[i - from] = getMessage(i);
+        return messages;
+    }
+
+    private File indexFile() {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return new File(Config.SETTINGS_DIR + File.separator + "mbox-index" + File.separator + Util.hash(path) + ".idx");
+    }
+
+    private void saveIndex(File f) {
+        f.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(file.getAbsolutePath());
+            out.writeLong(file.lastModified());
+            out.writeInt(offsets.length);
+            long last = 0;
+            for (long offset : offsets) {
+                writeVLong(out, offset - last);
+                last = offset;
+            }
+        } catch (IOException e) {
+            Util.print_exception("Unable to save mbox index to " + f, e, log);
+        }
+    }
+
+    private static class SavedIndex {
+        long lastModified;
+        long[] offsets;
+    }
+
+    /** @return the index saved in f, null if there is none or it cannot be read */
+    private static SavedIndex readIndex(File f) {
+        if (!f.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            in.readUTF();
+            SavedIndex saved = new SavedIndex();
+            saved.lastModified = in.readLong();
+            saved.offsets = new long[in.readInt()];
+            long last = 0;
+            for (int i = 0; i < saved.offsets.length; i++)
+                saved.offsets[i] = last = last + readVLong(in);
+            return saved.offsets.length > 0 ? saved : null;
+        } catch (Exception e) {
+            Util.print_exception("Unable to read mbox index from " + f + ", the mbox will be scanned again", e, log);
+            return null;
+        }
+    }
+
+    private static void writeVLong(DataOutput out, long l) throws IOException {
+        while ((l & ~0x7FL) != 0) {
+            out.writeByte((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.writeByte((int) l);
+    }
+
+    private static long readVLong(DataInput in) throws IOException {
+        long l = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            l |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return l;
+        }
+    }
+
+    /** growable list of longs, the offsets of a big mbox would be a lot of boxed Longs */
+    private static class LongList {
+        long[] a;
+        int n;
+
+        LongList(long[] prefix) {
+            a = Arrays.copyOf(prefix, Math.max(1024, prefix.length * 2));
+            n = prefix.length;
+        }
+
+        void add(long l) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, a.length * 2);
+            a[n++] = l;
+        }
+
+        int size() {
+            return n;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(a, n);
+        }
+    }
+
+    /**
+     * @return the date on a "From " separator line, e.g. "From john@example.com Sat Jan  3 01:05:34 1996", null if there is none that can be parsed.
+     * the date is in the format of asctime, optionally with a time zone, and is taken to be in the default time zone if it has none
+     */
+    static Date parseSeparatorDate(String line) {
+        if (!line.startsWith("From "))
+            return null;
+        // skip the sender
+        String[] fields = line.substring("From ".length()).trim().split("\\s+", 2);
+        if (fields.length < 2)
+            return null;
+        String date = fields[1].replaceAll("\\s+", " ");
+        for (String format : SEPARATOR_DATE_FORMATS) {
+            SimpleDateFormat sdf = new SimpleDateFormat(format, Locale.US);
+            sdf.setLenient(false);
+            // anything after the date, like "remote from host", is ignored
+            Date d = sdf.parse(date, new ParsePosition(0));
+            if (d != null)
+                return d;
+        }
+        return null;
+    }
+
+    /** a message whose content stays in the mapped file until read */
+    private static class MboxMessage extends MimeMessage {
+        private final String separator;
+
+        MboxMessage(InputStream is, int messageNumber, String separator) throws MessagingException {
+            super(session, is);
+            this.separator = separator;
+            setMessageNumber(messageNumber);
+        }
+
+        /** the date on the "From " separator line of the message, as mstor used to provide it */
+        @Override
+        public Date getReceivedDate() {
+            return parseSeparatorDate(separator);
+        }
+    }
+
+    /**
+     * stream over a range of the mapped file. being a SharedInputStream, MimeMessage and MimeBodyPart keep sub-streams of it
+     * for their content instead of copying the content into byte arrays.
+     */
+    private class MappedSharedInputStream extends InputStream implements SharedInputStream {
+        private final long start, end;
+        private long pos, mark;
+
+        MappedSharedInputStream(long start, long end) {
+            this.start = this.pos = this.mark = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            return pos < end ? byteAt(pos++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (pos >= end)
+                return -1;
+            int n = (int) Math.min(len, end - pos);
+            for (int copied = 0; copied < n; ) {
+                // copy as much as possible from the window that pos is in
+                // duplicate() and position() return ByteBuffer only from java 9, use them through the java 8 types
+                ByteBuffer buf = windows[(int) (pos / WINDOW_SIZE)].duplicate();
+                int inWindow = (int) (pos % WINDOW_SIZE);
+                int chunk = Math.min(n - copied, buf.limit() - inWindow);
+                ((Buffer) buf).position(inWindow);
+                buf.get(b, off + copied, chunk);
+                copied += chunk;
+                pos += chunk;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = pos;
+        }
+
+        @Override
+        public synchronized void reset() {
+            pos = mark;
+        }
+
+        @Override
+        public long getPosition() {
+            return pos - start;
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            if (start < 0)
+                throw new IllegalArgumentException("start < 0");
+            if (end == -1)
+                end = this.end - this.start;
+            return new MappedSharedInputStream(this.start + start, this.start + end);
+        }
+    }
+}
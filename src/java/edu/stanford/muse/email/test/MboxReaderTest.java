@@ -0,0 +1,50 @@
+package edu.stanford.muse.email.test;
+
+import edu.stanford.muse.email.MboxReader;
+import org.junit.Test;
+
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import static org.junit.Assert.*;
+
+/**
+ * The received date of an mbox message is the date on its "From " line, as mstor provided it, so messages without a Date: header still have a date
+ */
+public class MboxReaderTest {
+
+    @Test
+    public void testReceivedDateFromSeparator() throws Exception {
+        File mbox = new File(Files.createTempDirectory("mbox-test").toFile(), "test.mbox");
+        try (PrintWriter pw = new PrintWriter(mbox, "UTF-8")) {
+            pw.print("From john@example.com Wed Jan  3 01:05:34 1996\n" +
+                    "From: john@example.com\n" +
+                    "Subject: no date\n" +
+                    "\n" +
+                    "no Date: header\n" +
+                    "\n" +
+                    "From jane@example.com Thu Jan  4 10:00:00 1996\n" +
+                    "From: jane@example.com\n" +
+                    "Date: Fri, 5 Jan 1996 10:00:00 +0000\n" +
+                    "Subject: dated\n" +
+                    "\n" +
+                    "has a Date: header\n");
+        }
+
+        MboxReader reader = MboxReader.open(mbox);
+        assertEquals(2, reader.size());
+
+        MimeMessage undated = reader.getMessage(0);
+        assertNull(undated.getSentDate());
+        // the separator has no time zone, it is in the default one
+        assertEquals(new GregorianCalendar(1996, Calendar.JANUARY, 3, 1, 5, 34).getTime(), undated.getReceivedDate());
+
+        MimeMessage dated = reader.getMessage(1);
+        assertNotNull(dated.getSentDate());
+        assertEquals(new GregorianCalendar(1996, Calendar.JANUARY, 4, 10, 0, 0).getTime(), dated.getReceivedDate());
+    }
+}
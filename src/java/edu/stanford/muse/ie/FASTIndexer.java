@@ -8,8 +8,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 //import org.apache.commons.logging.Log;
 //import org.apache.commons.logging.LogFactory;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -41,13 +44,34 @@ public class FASTIndexer {
     private static final PrintStream err = System.err;
 
     public static void main (String args[]) throws IOException, ParseException {
-        if (args.length != 2) {
-            out.println("usage java FASTIndexer <.nt file> <output directory");
+        if (args.length < 2) {
+            out.println("usage java FASTIndexer <.nt file> [<.nt file> ...] <output directory>");
             return;
         }
 
-        //index (args[0], args[1]);
-        test (args[1]);
+        String outputDir = args[args.length-1];
+        List<String> ntFiles = Arrays.asList(args).subList(0, args.length-1);
+        new FASTParallelLoader(Runtime.getRuntime().availableProcessors()).index(ntFiles, outputDir);
+        test (outputDir);
+    }
+
+    /**
+     * Analyzer for the labels field: standard tokenization and lower casing, but no stop words (names like "The Who" should be searchable).
+     * This must be the same analyzer when indexing and when querying the FAST index.
+     */
+    public static class LabelsAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            StandardTokenizer src = new StandardTokenizer();
+            TokenStream tok = new StandardFilter(src);
+            tok = new LowerCaseFilter(tok);
+            return new TokenStreamComponents(src, tok);
+        }
+
+        @Override
+        protected TokenStream normalize(String fieldName, TokenStream in) {
+            return new LowerCaseFilter(new StandardFilter(in));
+        }
     }
 
     // example line:
@@ -64,9 +88,8 @@ public class FASTIndexer {
         }
 
 
-        StandardAnalyzer analyzer = new StandardAnalyzer(new CharArraySet(new ArrayList<String>(), true /* ignore case */)); // empty chararrayset, so effectively no stop words
         Directory index = FSDirectory.open(new File(outputDir).toPath());
-        IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
+        IndexWriterConfig iwc = new IndexWriterConfig(new LabelsAnalyzer());
         iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
         indexWriter = new IndexWriter(index, iwc);
 
@@ -122,7 +145,7 @@ public class FASTIndexer {
 
                 if (currentFastId != fastId) {
                     // done with all the lines for one fast id, process it now
-                    processFastEntity (currentFastId, predicateToObject);
+                    addFastEntity (currentFastId, predicateToObject);
 
                     // start a new fast id
                     currentFastId = fastId;
@@ -134,7 +157,7 @@ public class FASTIndexer {
 
             // just cleanup at the last line
             if (predicateToObject.size() > 0)
-                processFastEntity (currentFastId, predicateToObject);
+                addFastEntity (currentFastId, predicateToObject);
 
             indexWriter.close();
         } catch (Exception e){
@@ -165,8 +188,15 @@ public class FASTIndexer {
         return new Pair<>(name, extent);
     }
 
-    /** assembles a fast entity, given all the pred->objs for subject with the given fastid */
-    private static void processFastEntity(long fastId, Multimap<String, String> predToObject) throws IOException {
+    private static void addFastEntity(long fastId, Multimap<String, String> predToObject) throws IOException {
+        Document luceneDoc = processFastEntity(fastId, predToObject);
+        if (luceneDoc != null)
+            indexWriter.addDocument(luceneDoc);
+    }
+
+    /** assembles a fast entity, given all the pred->objs for subject with the given fastid.
+     * @return the lucene doc for the entity, or null if it is not to be indexed */
+    static Document processFastEntity(long fastId, Multimap<String, String> predToObject) {
 
         String wikipediaId = "?", viafId = "?", lcshId = "?", lcnafId = "?";
         String type = "?";
@@ -206,9 +236,6 @@ public class FASTIndexer {
                 // <http://id.worldcat.org/fast/348231> <http://schema.org/sameAs> <https://viaf.org/viaf/52010985> .
                 // <http://id.worldcat.org/fast/348231> <http://schema.org/sameAs> <http://id.loc.gov/authorities/names/n94112934> .
                 // <http://id.worldcat.org/fast/369807> <http://schema.org/sameAs> <http://id.loc.gov/authorities/subjects/sh96000006> .
-                if (fastId == 348231) {
-                    out.println ("found obama");
-                }
                 if (pred.equals("<http://schema.org/sameAs>")) {
                     for (String obj : objs) {
                         if (obj.startsWith("<http://id.loc.gov/authorities/names/")) {
@@ -283,21 +310,22 @@ public class FASTIndexer {
 
         // we'll ignore anything non-Person
         if (!"Person".equals (type))
-            return;
-
-        String alt = (altLabels.size() == 0) ? "" : ((altLabels.size() == 1) ? "alt: " + altLabels.get(0) : altLabels.size() + "alt: " + Util.join (altLabels, ";"));
-        out.println ("fast id: " + fastId + " pref name " + prefLabel + " "
-                + (extent != null ? "" : "Extent: " + extent)
-                + " " + alt + " viaf: " + viafId + " lcsh id " + lcshId + " lcnaf id " + lcnafId + " wiki " + wikipediaId);
+            return null;
 
+        if (log.isDebugEnabled()) {
+            String alt = (altLabels.size() == 0) ? "" : ((altLabels.size() == 1) ? "alt: " + altLabels.get(0) : altLabels.size() + "alt: " + Util.join(altLabels, ";"));
+            log.debug("fast id: " + fastId + " pref name " + prefLabel + " "
+                    + (extent != null ? "" : "Extent: " + extent)
+                    + " " + alt + " viaf: " + viafId + " lcsh id " + lcshId + " lcnaf id " + lcnafId + " wiki " + wikipediaId);
+        }
 
         if (Util.nullOrEmpty(prefLabel)) {
             err.println ("WARNING: prefLabel = null or empty for fast id " + fastId);
-            return;
+            return null;
         }
         if (fastId < 0) {
             err.println("WARNING: fast Id is not valid: " + fastId);
-            return;
+            return null;
         }
 
         String labels = prefLabel;
@@ -315,7 +343,10 @@ public class FASTIndexer {
             if (fastId >= 0) {
              //Change since lucene 7.2.1- ePADD v5,
                 //http://lucene.472066.n3.nabble.com/Storing-numeric-fields-in-Apache-6-td4273399.html
+                // point for exact lookups by id, doc values to read the id of hits without loading stored fields,
+                // stored field is still needed by readers of indexes that predate doc values
                 luceneDoc.add(new LongPoint(FIELD_NAME_FAST_ID,fastId));
+                luceneDoc.add(new NumericDocValuesField(FIELD_NAME_FAST_ID, fastId));
                 luceneDoc.add(new StoredField(FIELD_NAME_FAST_ID, fastId));
             }
             if (!Util.nullOrEmpty(wikipediaId))
@@ -333,16 +364,15 @@ public class FASTIndexer {
             if (!Util.nullOrEmpty(extent))
                 luceneDoc.add(new StringField(FIELD_NAME_EXTENT, extent, Field.Store.YES));
 
-            indexWriter.addDocument(luceneDoc);
+            return luceneDoc;
         }
     }
 
     private static void queryFast(String dir, String name, int nExpectedHits) throws IOException, ParseException {
         IndexReader indexReader = DirectoryReader.open(FSDirectory.open (new File(dir).toPath()));
-        StandardAnalyzer analyzer = new StandardAnalyzer(new CharArraySet(new ArrayList<String>(), true /* ignore case */)); // empty chararrayset, so effectively no stop words
         IndexSearcher indexSearcher = new IndexSearcher(indexReader);
 
-        QueryParser parser = new QueryParser(FIELD_NAME_LABELS, analyzer);
+        QueryParser parser = new QueryParser(FIELD_NAME_LABELS, new LabelsAnalyzer());
 
         Query query = parser.parse("\"" + name + "\"");
         TopDocs docs = indexSearcher.search (query,  10000,Sort.RELEVANCE);
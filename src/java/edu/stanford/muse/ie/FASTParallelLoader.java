@@ -0,0 +1,394 @@
+package edu.stanford.muse.ie;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the FAST authority index from one or more N-Triples files, using all the cores and bounded memory.
+ * FASTIndexer.index reads the file on a single thread and relies on all the triples of a subject being next to each other.
+ * This loader works in 3 stages:
+ * 1. the files are split into chunks at line boundaries. chunks are parsed on worker threads, each chunk is sorted by fast id
+ *    and written out as a run file in a temp dir. only one chunk per worker is in memory at a time.
+ * 2. the runs are merged (external sort) so that all the triples of a subject come together, irrespective of where they are in the input.
+ *    ties are broken by the position in the input, so the order of the triples within a subject is the same as in the input.
+ * 3. each subject is assembled into a lucene doc (FASTIndexer.processFastEntity) and added by a pool of writer threads sharing one IndexWriter.
+ * Throughput of each stage is logged in MB/s and s/GB of input.
+ */
+public class FASTParallelLoader {
+    private static final Logger log = LogManager.getLogger(FASTParallelLoader.class);
+
+    private static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final int QUEUE_SIZE = 10000;
+    private static final double MB = 1024.0 * 1024, GB = MB * 1024;
+
+    // same as FASTIndexer's pattern. e.g. <http://id.worldcat.org/fast/348231> <http://www.w3.org/2004/02/skos/core#prefLabel> "Obama, Barack" .
+    private static final Pattern triplePattern = Pattern.compile("([^\\s]*)\\s+([^\\s]*)\\s+(.*) \\.");
+    private static final String FAST_SUBJECT_PREFIX = "<http://id.worldcat.org/fast/";
+
+    private final int nThreads;
+    private final long chunkSize;
+    private final int queueSize;
+
+    public FASTParallelLoader(int nThreads) {
+        this(nThreads, DEFAULT_CHUNK_SIZE);
+    }
+
+    public FASTParallelLoader(int nThreads, long chunkSize) {
+        this(nThreads, chunkSize, QUEUE_SIZE);
+    }
+
+    /** @param queueSize max. number of merged subjects waiting for the writer threads */
+    public FASTParallelLoader(int nThreads, long chunkSize, int queueSize) {
+        this.nThreads = Math.max(1, nThreads);
+        this.chunkSize = chunkSize;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /** a byte range of an input file, [start, end). a line belongs to the chunk in which it starts */
+    private static class Chunk {
+        final File file;
+        final long start, end;
+        final int seq; // position of the chunk in the input, used to keep the input order for ties
+
+        Chunk(File file, long start, long end, int seq) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.seq = seq;
+        }
+    }
+
+    /** one parsed triple. seq is the line's position in its chunk */
+    private static class Triple {
+        final long fastId;
+        final int seq;
+        final String predicate, object;
+
+        Triple(long fastId, int seq, String predicate, String object) {
+            this.fastId = fastId;
+            this.seq = seq;
+            this.predicate = predicate;
+            this.object = object;
+        }
+    }
+
+    private static void log(String stage, long bytes, long startMillis) {
+        double secs = Math.max(1, System.currentTimeMillis() - startMillis) / 1000.0;
+        log.info(String.format("%s: %.1f MB in %.1fs, %.1f MB/s, %.1f s/GB", stage, bytes / MB, secs, bytes / MB / secs, secs / (bytes / GB)));
+    }
+
+    private List<Chunk> split(List<String> files) {
+        List<Chunk> chunks = new ArrayList<>();
+        for (String f : files) {
+            File file = new File(f);
+            long len = file.length();
+            for (long start = 0; start < len; start += chunkSize)
+                chunks.add(new Chunk(file, start, Math.min(len, start + chunkSize), chunks.size()));
+        }
+        return chunks;
+    }
+
+    /** reads the next line as UTF-8, returns null at EOF. pos[0] is advanced by the number of bytes consumed */
+    private static String readLine(InputStream in, ByteArrayOutputStream buf, long[] pos) throws IOException {
+        buf.reset();
+        int b;
+        boolean any = false;
+        while ((b = in.read()) >= 0) {
+            any = true;
+            pos[0]++;
+            if (b == '\n')
+                break;
+            buf.write(b);
+        }
+        if (!any)
+            return null;
+        String line = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    /** parses all the lines that start in the chunk, sorts the triples by fast id and writes them to a run file */
+    private File parseChunk(Chunk chunk, File tmpDir, AtomicLong nLines) throws IOException {
+        List<Triple> triples = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(chunk.file), 1 << 16)) {
+            long[] pos = new long[]{0};
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+            // a chunk not at the start of the file owns lines starting at or after its start, so skip to the first line start.
+            // backing up by one byte handles a chunk that starts exactly at a line start
+            if (chunk.start > 0) {
+                long toSkip = chunk.start - 1;
+                while (toSkip > 0) {
+                    long skipped = in.skip(toSkip);
+                    if (skipped <= 0)
+                        throw new EOFException("Unable to seek to " + chunk.start + " in " + chunk.file);
+                    toSkip -= skipped;
+                }
+                pos[0] = chunk.start - 1;
+                readLine(in, buf, pos);
+            }
+
+            int seq = 0;
+            while (pos[0] < chunk.end) {
+                String line = readLine(in, buf, pos);
+                if (line == null)
+                    break;
+                nLines.incrementAndGet();
+                Triple t = parse(line, seq++);
+                if (t != null)
+                    triples.add(t);
+            }
+        }
+
+        triples.sort((t1, t2) -> t1.fastId != t2.fastId ? Long.compare(t1.fastId, t2.fastId) : Integer.compare(t1.seq, t2.seq));
+
+        File run = new File(tmpDir, "run-" + chunk.seq);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            for (Triple t : triples) {
+                out.writeLong(t.fastId);
+                writeString(out, t.predicate);
+                writeString(out, t.object);
+            }
+        }
+        return run;
+    }
+
+    /** the same line level checks as FASTIndexer.index. returns null for lines to be skipped */
+    private static Triple parse(String line, int seq) {
+        Matcher m = triplePattern.matcher(line);
+        if (!m.find() || m.groupCount() != 3) {
+            log.warn("This is not an nt file! line: " + line);
+            return null;
+        }
+
+        String subject = m.group(1), predicate = m.group(2), object = m.group(3);
+        subject = Util.convertSlashUToUnicode(subject);
+        if (!subject.startsWith(FAST_SUBJECT_PREFIX) || subject.startsWith("<http://id.worldcat.org/fast/void"))
+            return null;
+
+        String fastIdStr = Util.baseName(subject); // "15615>"
+        fastIdStr = fastIdStr.substring(0, fastIdStr.length() - 1);
+        long fastId;
+        try { fastId = Long.parseLong(fastIdStr); }
+        catch (Exception e) { log.warn("Unable to parse fast id on line " + line); return null; }
+
+        return new Triple(fastId, seq, Util.convertSlashUToUnicode(predicate), Util.convertSlashUToUnicode(object));
+    }
+
+    // writeUTF is limited to 64K, objects can be longer
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** cursor on a run file, for the k-way merge */
+    private static class RunReader implements Closeable {
+        final int runSeq;
+        final DataInputStream in;
+        long fastId;
+        String predicate, object;
+
+        RunReader(File run, int runSeq) throws IOException {
+            this.runSeq = runSeq;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        /** returns false at the end of the run */
+        boolean next() throws IOException {
+            try {
+                fastId = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            predicate = readString(in);
+            object = readString(in);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** marks the end of the stream of entities for the writer threads */
+    private static final Multimap<String, String> END = LinkedHashMultimap.create();
+
+    /**
+     * Indexes the given N-Triples files into a new FAST index in outputDir.
+     */
+    public void index(List<String> ntFiles, String outputDir) throws IOException {
+        long totalBytes = 0;
+        for (String f : ntFiles)
+            totalBytes += new File(f).length();
+
+        File outputFile = new File(outputDir);
+        if (!outputFile.exists())
+            outputFile.mkdirs();
+        File tmpDir = java.nio.file.Files.createTempDirectory("fast-runs").toFile();
+        log.info("Indexing " + ntFiles + " (" + Util.commatize(totalBytes) + " bytes) into " + outputDir + " with " + nThreads + " threads, runs in " + tmpDir);
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        try {
+            // stage 1: parse chunks into sorted runs
+            long st = System.currentTimeMillis();
+            List<Chunk> chunks = split(ntFiles);
+            AtomicLong nLines = new AtomicLong();
+            List<Future<File>> futures = new ArrayList<>();
+            for (Chunk chunk : chunks)
+                futures.add(pool.submit(() -> parseChunk(chunk, tmpDir, nLines)));
+            List<File> runs = new ArrayList<>();
+            for (Future<File> f : futures)
+                runs.add(get(f));
+            log.info("Parsed " + Util.commatize(nLines.get()) + " lines into " + runs.size() + " runs");
+            log("Parse", totalBytes, st);
+
+            // stage 2 and 3: merge runs, and assemble and write entities on the pool
+            st = System.currentTimeMillis();
+            IndexWriterConfig iwc = new IndexWriterConfig(new FASTIndexer.LabelsAnalyzer());
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            iwc.setRAMBufferSizeMB(256);
+            AtomicLong nDocs = new AtomicLong();
+            try (IndexWriter writer = new IndexWriter(FSDirectory.open(outputFile.toPath()), iwc)) {
+                BlockingQueue<Pair> queue = new ArrayBlockingQueue<>(queueSize);
+                List<Future<?>> writers = new ArrayList<>();
+                for (int i = 0; i < nThreads; i++)
+                    writers.add(pool.submit(() -> {
+                        while (true) {
+                            Pair p = queue.take();
+                            if (p.predToObject == END)
+                                return null;
+                            Document doc = toDocument(p.fastId, p.predToObject);
+                            if (doc != null) {
+                                writer.addDocument(doc);
+                                nDocs.incrementAndGet();
+                            }
+                        }
+                    }));
+
+                long nEntities = merge(runs, queue, writers);
+                for (int i = 0; i < nThreads; i++)
+                    put(queue, new Pair(-1L, END), writers);
+                for (Future<?> f : writers)
+                    get(f);
+                writer.forceMerge(1);
+                log.info("Merged " + Util.commatize(nEntities) + " subjects, indexed " + Util.commatize(nDocs.get()) + " docs");
+            }
+            log("Merge and write", totalBytes, st);
+        } finally {
+            pool.shutdownNow();
+            File[] files = tmpDir.listFiles();
+            if (files != null)
+                for (File f : files)
+                    f.delete();
+            tmpDir.delete();
+        }
+    }
+
+    private static class Pair {
+        final long fastId;
+        final Multimap<String, String> predToObject;
+
+        Pair(long fastId, Multimap<String, String> predToObject) {
+            this.fastId = fastId;
+            this.predToObject = predToObject;
+        }
+    }
+
+    /** the lucene doc for a subject, null if it is not to be indexed */
+    protected Document toDocument(long fastId, Multimap<String, String> predToObject) {
+        return FASTIndexer.processFastEntity(fastId, predToObject);
+    }
+
+    /** k-way merge of the runs, each subject with all its pred->objs is put on the queue. returns the number of subjects */
+    private long merge(List<File> runs, BlockingQueue<Pair> queue, List<Future<?>> writers) throws IOException {
+        // order by fast id, then by run (= input order)
+        PriorityQueue<RunReader> heap = new PriorityQueue<>((r1, r2) -> r1.fastId != r2.fastId ? Long.compare(r1.fastId, r2.fastId) : Integer.compare(r1.runSeq, r2.runSeq));
+        List<RunReader> readers = new ArrayList<>();
+        long nEntities = 0;
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader r = new RunReader(runs.get(i), i);
+                readers.add(r);
+                if (r.next())
+                    heap.add(r);
+            }
+
+            long currentFastId = -1L;
+            Multimap<String, String> predToObject = LinkedHashMultimap.create();
+            while (!heap.isEmpty()) {
+                RunReader r = heap.poll();
+                if (r.fastId != currentFastId) {
+                    if (predToObject.size() > 0) {
+                        put(queue, new Pair(currentFastId, predToObject), writers);
+                        nEntities++;
+                    }
+                    currentFastId = r.fastId;
+                    predToObject = LinkedHashMultimap.create();
+                }
+                predToObject.put(r.predicate, r.object);
+                if (r.next())
+                    heap.add(r);
+            }
+            if (predToObject.size() > 0) {
+                put(queue, new Pair(currentFastId, predToObject), writers);
+                nEntities++;
+            }
+        } finally {
+            for (RunReader r : readers)
+                r.close();
+        }
+        return nEntities;
+    }
+
+    /**
+     * puts p on the queue, but waits for room only while all the writers are running.
+     * nothing drains the queue once a writer fails, so the merge is stopped with the writer's failure instead of blocking for good.
+     */
+    private static void put(BlockingQueue<Pair> queue, Pair p, List<Future<?>> writers) throws IOException {
+        try {
+            do {
+                //throws the failure of a writer that has stopped; a writer returns normally only after taking END
+                for (Future<?> f : writers)
+                    if (f.isDone())
+                        get(f);
+            } while (!queue.offer(p, 100, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing FAST entities");
+        }
+    }
+
+    private static <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing FAST entities");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package edu.stanford.muse.ie;
+
+import edu.stanford.muse.ie.variants.EntityStore;
+import edu.stanford.muse.index.Archive;
+import edu.stanford.muse.index.DocIndex;
+import edu.stanford.muse.index.Document;
+import edu.stanford.muse.index.EmailDocument;
+import edu.stanford.muse.ner.NER;
+import edu.stanford.muse.ner.model.NEType;
+import edu.stanford.muse.util.Pair;
+import edu.stanford.muse.util.Span;
+import opennlp.tools.util.featuregen.FeatureGeneratorUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A precomputed index over the entity mentions of an archive, used by {@link ProperNounLinker#getNearestMatches}.
+ * Docs are numbered by ordinal in date order, so a date window is a contiguous range of ordinals.
+ * Two postings maps are kept:
+ * <ul>
+ *     <li>token -> (docOrdinal, entity) pairs for every multi-word entity containing the token</li>
+ *     <li>acronym -> (docOrdinal, entity) pairs, the expansions of the acronym</li>
+ * </ul>
+ * Along with the hierarchy bucket (an int id per hierarchy level) of every doc, so that the distance between two mentions
+ * can be computed without going back to the documents or the lucene index.
+ * The index is built once (after NER) with a single pass over the stored names and is not updated incrementally,
+ * call {@link Archive#clearMentionIndex()} whenever the names in the archive change.
+ */
+public class MentionIndex {
+    private static final Logger log = LogManager.getLogger(MentionIndex.class);
+
+    //all the docs with a date, sorted by date; the position of the doc in this array is its ordinal
+    private final EmailDocument[] docs;
+    private final long[] dates;
+    //levelIds[level][docOrdinal] is the id of the value of hierarchy level for the doc, -1 if the value is null
+    private final int[][] levelIds;
+    private final List<Map<String, Integer>> levelValueToId;
+
+    private final List<String> entityTexts = new ArrayList<>();
+    private final List<Short> entityTypes = new ArrayList<>();
+
+    //postings are packed as [docOrdinal, entityId, docOrdinal, entityId, ...] and are sorted by docOrdinal
+    private final Map<String, int[]> tokenPostings = new HashMap<>();
+    private final Map<String, int[]> acronymPostings = new HashMap<>();
+
+    private final Hierarchy hierarchy;
+
+    /** Growable array of packed postings, only used while building the index */
+    private static class PostingsBuilder {
+        int[] vals = new int[4];
+        int size = 0;
+
+        void add(int docOrdinal, int entityId) {
+            //the same entity can be added more than once for a doc through different tokens, the postings for a token are appended doc by doc so checking the tail is enough
+            if (size >= 2 && vals[size - 2] == docOrdinal && vals[size - 1] == entityId)
+                return;
+            if (size + 2 > vals.length)
+                vals = Arrays.copyOf(vals, vals.length * 2);
+            vals[size++] = docOrdinal;
+            vals[size++] = entityId;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(vals, size);
+        }
+    }
+
+    private MentionIndex(List<EmailDocument> datedDocs, Hierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+        this.docs = datedDocs.toArray(new EmailDocument[datedDocs.size()]);
+        this.dates = new long[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            dates[i] = docs[i].getDate().getTime();
+
+        int numLevels = hierarchy.getNumLevels();
+        levelIds = new int[numLevels][docs.length];
+        levelValueToId = new ArrayList<>();
+        for (int l = 0; l < numLevels; l++) {
+            Map<String, Integer> valueToId = new HashMap<>();
+            levelValueToId.add(valueToId);
+            for (int i = 0; i < docs.length; i++) {
+                String val = hierarchy.getValue(l, docs[i]);
+                if (val == null) {
+                    levelIds[l][i] = -1;
+                    continue;
+                }
+                Integer id = valueToId.get(val);
+                if (id == null) {
+                    id = valueToId.size();
+                    valueToId.put(val, id);
+                }
+                levelIds[l][i] = id;
+            }
+        }
+    }
+
+    /**
+     * Builds the index with one pass over the names in the archive's entity store, lucene docs are loaded only for docs that are not in the store.
+     */
+    public static MentionIndex build(Archive archive) {
+        long st = System.currentTimeMillis();
+        List<EmailDocument> datedDocs = new ArrayList<>();
+        for (Document doc : archive.getAllDocs()) {
+            if (doc instanceof EmailDocument && ((EmailDocument) doc).getDate() != null)
+                datedDocs.add((EmailDocument) doc);
+        }
+        datedDocs.sort(Comparator.comparing(EmailDocument::getDate));
+
+        MentionIndex index = new MentionIndex(datedDocs, new EmailHierarchy());
+
+        Set<String> fieldsToLoad = new LinkedHashSet<>();
+        fieldsToLoad.add(NER.NAMES);
+        fieldsToLoad.add(NER.NAMES_TITLE);
+
+        EntityStore store = archive.getEntityBookManager().getEntityStore();
+        DocIndex docIndex = archive.getDocIndex();
+
+        Map<String, Integer> entityIds = new HashMap<>();
+        Map<String, PostingsBuilder> tokenBuilders = new HashMap<>(), acronymBuilders = new HashMap<>();
+        for (int di = 0; di < index.docs.length; di++) {
+            EmailDocument ed = index.docs[di];
+            List<Span> names = new ArrayList<>();
+            int ordinal = docIndex.ordinalOf(ed.getUniqueId());
+            if (store != null && ordinal >= 0 && ordinal < store.nDocs())
+                names.addAll(Arrays.asList(store.getNames(ordinal, true)));
+            else {
+                try {
+                    org.apache.lucene.document.Document ldoc = archive.getLuceneDoc(ed.getUniqueId(), fieldsToLoad);
+                    names.addAll(Arrays.asList(NER.getNames(ldoc, true)));
+                } catch (IOException e) {
+                    edu.stanford.muse.util.Util.print_exception("Failed to fetch lucene doc for doc id: " + ed.getUniqueId(), e, log);
+                }
+            }
+            //people in the header are also candidates
+            for (String hp : ed.getAllNames()) {
+                Span s = new Span(hp, -1, -1);
+                s.setType(NEType.Type.PERSON.getCode(), 1.0f);
+                names.add(s);
+            }
+
+            for (Span name : names) {
+                if (name == null || name.text == null)
+                    continue;
+                Integer eid = entityIds.get(name.text);
+                if (eid == null) {
+                    eid = index.entityTexts.size();
+                    entityIds.put(name.text, eid);
+                    index.entityTexts.add(name.text);
+                    index.entityTypes.add(name.type);
+                }
+                String acr = Util.getAcronym(name.text);
+                if (acr.length() > 2)
+                    acronymBuilders.computeIfAbsent(acr, k -> new PostingsBuilder()).add(di, eid);
+                //a name with a single token cannot contain the mention as a word
+                String[] tokens = name.text.split(" ");
+                if (tokens.length < 2)
+                    continue;
+                for (String tok : tokens) {
+                    if (tok.length() == 0)
+                        continue;
+                    tokenBuilders.computeIfAbsent(tok, k -> new PostingsBuilder()).add(di, eid);
+                }
+            }
+        }
+        tokenBuilders.forEach((k, v) -> index.tokenPostings.put(k, v.toArray()));
+        acronymBuilders.forEach((k, v) -> index.acronymPostings.put(k, v.toArray()));
+
+        log.info("Built mention index over " + index.docs.length + " docs, " + index.entityTexts.size() + " entities, "
+                + index.tokenPostings.size() + " tokens and " + index.acronymPostings.size() + " acronyms in " + (System.currentTimeMillis() - st) + "ms");
+        return index;
+    }
+
+    /** same as the match criterion that getNearestMatches used when scanning the names of every doc */
+    private static boolean isMatch(String text, String tText, boolean isAcronym) {
+        return (isAcronym && !text.equals(tText) && Util.getAcronym(text).equals(tText)) ||
+                (text.contains(" " + tText + " ") || text.startsWith(tText + " ") || text.endsWith(" " + tText));
+    }
+
+    /** first index i in [lo, hi) such that dates[postings[2*i]] >= time */
+    private int lowerBound(int[] postings, long time) {
+        int lo = 0, hi = postings.length / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dates[postings[2 * mid]] < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the hierarchy level at which the doc is related to the mention i.e. the first level with the same value for both, -1 if unrelated
+     */
+    private int level(int docOrdinal, int[] mentionLevelIds) {
+        for (int l = 0; l < mentionLevelIds.length; l++)
+            if (mentionLevelIds[l] >= 0 && mentionLevelIds[l] == levelIds[l][docOrdinal])
+                return l;
+        return -1;
+    }
+
+    /**
+     * Walks the postings of the mention (acronym expansions and the tokens of the mention) in the date window around the mention,
+     * the docs are considered in the order of hierarchy level and then the distance in time from the mention.
+     * No more than maxDocs docs are considered.
+     * @return entity matches paired with the hierarchy level at which they are found
+     */
+    public List<Pair<ProperNounLinker.EmailMention, Integer>> nearestMatches(ProperNounLinker.EmailMention mention, int maxMatches, long window, int maxDocs) {
+        List<Pair<ProperNounLinker.EmailMention, Integer>> matches = new ArrayList<>();
+        String tText = mention.entity.text;
+        if (tText == null || tText.length() <= 2 || mention.date == null)
+            return matches;
+        boolean isAcronym = FeatureGeneratorUtil.tokenFeature(tText).equals("ac");
+
+        int numLevels = hierarchy.getNumLevels();
+        int[] mentionLevelIds = new int[numLevels];
+        for (int l = 0; l < numLevels; l++) {
+            String val = hierarchy.getValue(l, mention.ed);
+            Integer id = val == null ? null : levelValueToId.get(l).get(val);
+            mentionLevelIds[l] = id == null ? -1 : id;
+        }
+
+        List<int[]> lists = new ArrayList<>();
+        if (isAcronym && acronymPostings.containsKey(tText))
+            lists.add(acronymPostings.get(tText));
+        //all the tokens of the mention should be present in the entity, the first one is enough to select the candidates
+        String firstToken = tText.split(" ")[0];
+        if (tokenPostings.containsKey(firstToken))
+            lists.add(tokenPostings.get(firstToken));
+
+        long mt = mention.date.getTime();
+        long st = mt - window / 2, et = mt + window / 2;
+
+        //per level: docOrdinal -> entity ids, docs in the level are later ordered by the distance from the mention date
+        List<Map<Integer, List<Integer>>> levelToDocEntities = new ArrayList<>();
+        for (int l = 0; l < numLevels; l++)
+            levelToDocEntities.add(new HashMap<>());
+        Map<Integer, Boolean> processed = new HashMap<>();
+        for (int[] postings : lists) {
+            for (int i = lowerBound(postings, st); i < postings.length / 2; i++) {
+                int docOrdinal = postings[2 * i], eid = postings[2 * i + 1];
+                if (dates[docOrdinal] > et)
+                    break;
+                Boolean match = processed.get(eid);
+                if (match == null) {
+                    match = isMatch(entityTexts.get(eid), tText, isAcronym);
+                    processed.put(eid, match);
+                }
+                if (!match)
+                    continue;
+                int level = level(docOrdinal, mentionLevelIds);
+                if (level < 0)
+                    continue;
+                levelToDocEntities.get(level).computeIfAbsent(docOrdinal, k -> new ArrayList<>()).add(eid);
+            }
+        }
+
+        Set<Integer> considered = new HashSet<>();
+        int docsProcessed = 0;
+        for (int level = 0; level < numLevels; level++) {
+            Map<Integer, List<Integer>> docEntities = levelToDocEntities.get(level);
+            List<Integer> docOrdinals = new ArrayList<>(docEntities.keySet());
+            docOrdinals.sort(Comparator.comparingLong(d -> Math.abs(dates[d] - mt)));
+            for (Integer docOrdinal : docOrdinals) {
+                for (Integer eid : docEntities.get(docOrdinal)) {
+                    if (!considered.add(eid))
+                        continue;
+                    Span s = new Span(entityTexts.get(eid), -1, -1);
+                    s.setType(entityTypes.get(eid), 1.0f);
+                    matches.add(new Pair<>(new ProperNounLinker.EmailMention(s, docs[docOrdinal], hierarchy), level));
+                    if (matches.size() >= maxMatches)
+                        return matches;
+                }
+                if (++docsProcessed > maxDocs)
+                    return matches;
+            }
+        }
+        return matches;
+    }
+
+    public int getNumDocs() {
+        return docs.length;
+    }
+
+    public int getNumEntities() {
+        return entityTexts.size();
+    }
+}
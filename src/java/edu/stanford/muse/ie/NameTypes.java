@@ -28,6 +28,7 @@ public class NameTypes {
 	public static void readTypes(Map<String, NameInfo> hitTitles) {
 		// types.gz is of the form First_Last Subtype|Type
 		try {
+			//a view of the memory mapped DBpedia table, scanned in title order
 			Map<String, String> dbpedia = EmailUtils.readDBpedia();
 			//LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new GZIPInputStream(NameTypes.class.getClassLoader().getResourceAsStream(typesFile)), "UTF-8"));
 			Set<String> seenTitles = new HashSet<>();
@@ -45,15 +46,16 @@ public class NameTypes {
 			}
 
 			//lnr = new LineNumberReader(new InputStreamReader(new GZIPInputStream(NameTypes.class.getClassLoader().getResourceAsStream(typesFile)), "UTF-8"));
-			for (String title : dbpedia.keySet())
+			for (Map.Entry<String, String> e : dbpedia.entrySet())
 			{
+				String title = e.getKey();
 				if (title == null)
 					break;
 				String r = title.toLowerCase();
 				NameInfo I = hitTitles.get(r);
 				if (I == null || ambiguousTitles.contains(r))
 					continue;
-				String type = dbpedia.get(title);
+				String type = e.getValue();
 
 				if (!r.contains(" ") && type.endsWith("Person")) // if it's a person, it should have at least 2 tokens. Note: _ is the word separator for r
 					continue;
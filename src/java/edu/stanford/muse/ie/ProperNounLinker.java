@@ -387,117 +387,23 @@ public class ProperNounLinker {
         }
     }
 
-    /**Use this method with caution! Don't use this method for bulk resolutions by making repeated calls to the method.
-     * The response time of this method can be in the order of fraction of secs.
+    /**
      * Given an EmailMention, gets the closest possible resolutions in the archive.
-     * Uses EMailHierarchy to measure distance between email mentions.*/
+     * Uses EMailHierarchy to measure distance between email mentions.
+     * The lookup is a walk over the postings of the archive's {@link MentionIndex} restricted to one year around the mention,
+     * the index is built on the first call (after NER) and no lucene docs are loaded after that.*/
     public static List<Pair<EmailMention,Integer>> getNearestMatches(EmailMention mention, int maxMatches, Archive archive) {
         //maximum number of documents to consider before giving up on the search
         int MAX_DOCS = 1000;
         //Collect one year of docs
         long WINDOW = 365 * 24 * 3600 * 1000l;
-        Date st = new Date(mention.date.getTime() - WINDOW / 2), et = new Date(mention.date.getTime() + WINDOW / 2);
-        Calendar scal = new GregorianCalendar(), ecal = new GregorianCalendar();
-        scal.setTime(st);
-        ecal.setTime(et);
-        Collection<DatedDocument> docs = (Collection) archive.getAllDocs();
-        List<DatedDocument> sdocs = IndexUtils.selectDocsByDateRange(docs, scal.get(Calendar.YEAR), scal.get(Calendar.MONTH), scal.get(Calendar.DATE),
-                ecal.get(Calendar.YEAR), ecal.get(Calendar.MONTH), ecal.get(Calendar.DATE));
-        Set<String> docIds = sdocs.stream().map(Document::getUniqueId).collect(Collectors.toSet());
-
-        Hierarchy hierarchy = new EmailHierarchy();
-        String[] vlevels = new String[hierarchy.getNumLevels()];
-        for(int i=0;i<hierarchy.getNumLevels();i++)
-            vlevels[i] = hierarchy.getValue(i, mention.ed);
-
-        boolean isAcronym = mention.entity.text.length()>2 && FeatureGeneratorUtil.tokenFeature(mention.entity.text).equals("ac");
-        if(mention.entity.text.length()<=2)
+        if(mention.entity.text == null || mention.entity.text.length()<=2)
             return new ArrayList<>();
 
-        long addingTime = 0, ldocTime = 0, pst = 0;
-        List<Pair<EmailMention, Integer>> matches = new ArrayList<>();
-
-        //order the docs based on distance from the current doc
-        //Under the assumption that the hierarchy would always impose distance between two email mentions at doc level granularity in the least
-        Map<Integer, List<String>> docDist = new LinkedHashMap<>();
-        for(String docId: docIds){
-            EmailDocument ed = archive.docForId(docId);
-            int dist = -1;
-            for(int i=0;i<hierarchy.getNumLevels();i++)
-                if(vlevels[i]!=null && vlevels[i].equals(hierarchy.getValue(i, ed))) {
-                    dist = i;
-                    break;
-                }
-            if(dist == -1)
-                continue;
-            if(!docDist.containsKey(dist))
-                docDist.put(dist, new ArrayList<>());
-            docDist.get(dist).add(docId);
-        }
-
-        Set<String> fieldsToLoad = new LinkedHashSet<>();
-        fieldsToLoad.add(NER.NAMES);fieldsToLoad.add(NER.NAMES_TITLE);
-
-        //cache stuff
-        Map<String, Boolean> processed = new LinkedHashMap<>();
-        Set<String> considered = new LinkedHashSet<>();
-
-        int docsProcessed = 0;
-        outer:
-        for (Integer level=0;level<hierarchy.getNumLevels();level++) {
-            if(!docDist.containsKey(level))
-                continue;
-            for(String docId: docDist.get(level)) {
-                long st1 = System.currentTimeMillis();
-                org.apache.lucene.document.Document ldoc = null;
-                try {
-                    ldoc = archive.getLuceneDoc(docId, fieldsToLoad);
-                }catch(IOException e){
-                    edu.stanford.muse.util.Util.print_exception("Failed to fetch lucene doc for doc id: " + docId, e, log);
-                    continue;
-                }
-                ldocTime += System.currentTimeMillis() - st1;
-                st1 = System.currentTimeMillis();
-                Span[] entities = NER.getNames(ldoc, true);
-                pst += (System.currentTimeMillis() - st1);
-                st1 = System.currentTimeMillis();
-                List<Span> names = new ArrayList<>();
-                names.addAll(Arrays.asList(entities));
-                EmailDocument ed = archive.docForId(docId);
-                List<String> hpeople = ed.getAllNames();
-                for (String hp : hpeople) {
-                    Span s = new Span(hp, -1, -1);
-                    s.setType(NEType.Type.PERSON.getCode(), 1.0f);
-                    names.add(s);
-                }
-
-                for (Span name : names) {
-                    if (name == null || name.text == null)
-                        continue;
-                    String tText = mention.entity.text;
-                    boolean match;
-                    Boolean pMatch = processed.get(name.text);
-                    if (pMatch == null) {
-                        match = (isAcronym && !name.text.equals(tText) && Util.getAcronym(name.text).equals(tText)) ||
-                                (name.text.contains(" " + tText + " ") || name.text.startsWith(tText + " ") || name.text.endsWith(" " + tText));
-                        processed.put(name.text, match);
-                    } else
-                        match = pMatch;
-                    if (match) {
-                        if (!considered.contains(name.text)) {
-                            considered.add(name.text);
-                            matches.add(new Pair<>(new EmailMention(name, ed, hierarchy), level));
-                            if(matches.size()>=maxMatches)
-                                return matches;
-                        }
-                    }
-                }
-                addingTime += (System.currentTimeMillis() - st1);
-                if(docsProcessed++>MAX_DOCS)
-                    break outer;
-            }
-        }
-        System.out.println("Ldoc get time"+ldocTime+" -- Parsing time: "+pst+" -- Adding time: "+addingTime);
+        long st = System.currentTimeMillis();
+        List<Pair<EmailMention, Integer>> matches = archive.getMentionIndex().nearestMatches(mention, maxMatches, WINDOW, MAX_DOCS);
+        if (log.isDebugEnabled())
+            log.debug("Found " + matches.size() + " nearest matches for " + mention + " in " + (System.currentTimeMillis() - st) + "ms");
         return matches;
     }
 
@@ -0,0 +1,53 @@
+package edu.stanford.muse.ie.test;
+
+import com.google.common.collect.Multimap;
+import edu.stanford.muse.ie.FASTParallelLoader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * A writer that fails partway through the entities should fail the load, not leave the merge blocked on a full queue
+ */
+public class FASTParallelLoaderTest {
+
+    @Test(timeout = 60000)
+    public void testWriterFailureStopsMerge() throws IOException {
+        File dir = Files.createTempDirectory("fast-loader-test").toFile();
+        File nt = new File(dir, "fast.nt");
+        try (PrintWriter pw = new PrintWriter(nt, "UTF-8")) {
+            for (int i = 1; i <= 1000; i++)
+                pw.println("<http://id.worldcat.org/fast/" + i + "> <http://www.w3.org/2004/02/skos/core#prefLabel> \"Name " + i + "\" .");
+        }
+
+        AtomicInteger nDocs = new AtomicInteger();
+        //one writer and a small queue, so that nothing drains the queue after the writer fails, long before the merge runs out of subjects
+        FASTParallelLoader loader = new FASTParallelLoader(1, 1024 * 1024, 4) {
+            @Override
+            protected Document toDocument(long fastId, Multimap<String, String> predToObject) {
+                if (nDocs.incrementAndGet() == 20)
+                    throw new IllegalStateException("failing on fast id " + fastId);
+                Document doc = new Document();
+                doc.add(new StringField("fastId", Long.toString(fastId), Field.Store.YES));
+                return doc;
+            }
+        };
+
+        try {
+            loader.index(Collections.singletonList(nt.getPath()), new File(dir, "index").getPath());
+            fail("The failure of a writer should fail the load");
+        } catch (IOException e) {
+            assertTrue("Expected the writer's failure, got: " + e, e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
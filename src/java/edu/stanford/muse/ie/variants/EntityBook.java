@@ -88,32 +88,58 @@ public class EntityBook implements Serializable {
     }
 
     public void fillSummaryFields(Map<MappedEntity, Pair<Double,Set<Document>>> docsetmap,Archive archive){
-        JSONArray resultArray = new JSONArray();
-        final Integer[] count = {0};//trick to use count (modifiable variable) inside for each.
         summary_L1_entityCountMap.clear();
         docsetmap.entrySet().forEach(entry->{
-            count[0]=count[0]+1;
-                    Summary_L1 summary = new Summary_L1();
-                    summary.score=entry.getValue().first;
-                    summary.messages=entry.getValue().second;
-                    //get date range
-                    Collection<EmailDocument> emaildocs = summary.messages.stream().map(s->(EmailDocument)s).collect(Collectors.toList());
-                    Pair<Date,Date> daterange = EmailUtils.getFirstLast(emaildocs,true);
-            if(daterange==null) {
-                daterange = new Pair<>(archive.collectionMetadata.firstDate,archive.collectionMetadata.lastDate);
-            }
-            if(daterange.first==null)
-                daterange.first = archive.collectionMetadata.firstDate;
-            if(daterange.second==null)
-                daterange.second = archive.collectionMetadata.lastDate;
+            summary_L1_entityCountMap.put(entry.getKey(),computeSummary(entry.getValue(),archive));
+        });
+        fillSummaryJSON();
+    }
+
+    /**
+     * Updates the summaries of only the given entities, leaving the others as they are. This is what makes edits of the entitybook cheap,
+     * the cost is proportional to the number of docs of the changed entities rather than of the archive.
+     * @param changed entities whose docs changed. an entity mapped to null has no docs (anymore).
+     * @param carriedOver entities that have not changed (but may be new objects after re-reading the entitybook), with their summaries from the old entitybook.
+     */
+    void updateSummaryFields(Map<MappedEntity, Pair<Double,Set<Document>>> changed, Map<MappedEntity,Summary_L1> carriedOver, Archive archive){
+        summary_L1_entityCountMap.clear();
+        summary_L1_entityCountMap.putAll(carriedOver);
+        changed.forEach((entity, scoreAndDocs)->{
+            if(scoreAndDocs!=null)
+                summary_L1_entityCountMap.put(entity,computeSummary(scoreAndDocs,archive));
+        });
+        fillSummaryJSON();
+    }
+
+    private static Summary_L1 computeSummary(Pair<Double,Set<Document>> scoreAndDocs, Archive archive){
+        Summary_L1 summary = new Summary_L1();
+        summary.score=scoreAndDocs.first;
+        summary.messages=scoreAndDocs.second;
+        //get date range
+        Collection<EmailDocument> emaildocs = summary.messages.stream().map(s->(EmailDocument)s).collect(Collectors.toList());
+        Pair<Date,Date> daterange = EmailUtils.getFirstLast(emaildocs,true);
+        if(daterange==null) {
+            daterange = new Pair<>(archive.collectionMetadata.firstDate,archive.collectionMetadata.lastDate);
+        }
+        if(daterange.first==null)
+            daterange.first = archive.collectionMetadata.firstDate;
+        if(daterange.second==null)
+            daterange.second = archive.collectionMetadata.lastDate;
+
+        summary.startDate=daterange.first;
+        summary.endDate=daterange.second;
+        return summary;
+    }
 
-            summary.startDate=daterange.first;
-                    summary.endDate=daterange.second;
-                    summary_L1_entityCountMap.put(entry.getKey(),summary);
+    private void fillSummaryJSON(){
+        JSONArray resultArray = new JSONArray();
+        final Integer[] count = {0};//trick to use count (modifiable variable) inside for each.
+        summary_L1_entityCountMap.entrySet().forEach(entry->{
+            count[0]=count[0]+1;
+            Summary_L1 summary = entry.getValue();
 
             String entity = entry.getKey().getDisplayName();
             JSONArray j = new JSONArray();
-            Short etype = entityType;
             Set<String> altNamesSet = entry.getKey().getAltNames();
             String altNames = (altNamesSet == null) ? "" : "Alternate names: " + Util.join (altNamesSet, ";");
             j.put (0, Util.escapeHTML(entity));
@@ -136,6 +162,13 @@ public class EntityBook implements Serializable {
         summary_JSON = resultArray;
     }
 
+    /** @return the canonicalized names that map to each entity in this book */
+    Map<MappedEntity,Set<String>> getEntityToCanonicalNames(){
+        Map<MappedEntity,Set<String>> result = new LinkedHashMap<>();
+        nameToMappedEntity.forEach((cname, me)->result.computeIfAbsent(me, k->new LinkedHashSet<>()).add(cname));
+        return result;
+    }
+
 
 
 /*
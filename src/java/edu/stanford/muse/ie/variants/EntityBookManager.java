@@ -7,7 +7,6 @@ import edu.stanford.muse.ner.model.NEType;
 import edu.stanford.muse.util.Pair;
 import edu.stanford.muse.util.Span;
 import edu.stanford.muse.util.Util;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 //import org.apache.commons.logging.Log;
@@ -27,6 +26,14 @@ public class EntityBookManager {
     private static final Logger log =  LogManager.getLogger(EntityBookManager.class);
 
     private Archive mArchive = null;
+    //canonicalized name -> docs postings of the archive, from which the summaries of the entitybooks are computed. see EntityPostings.
+    private EntityPostings mPostings = null;
+    //doc ordinal -> entities recognized in it, memory mapped from the entitybooks dir. see EntityStore.
+    private EntityStore mStore = null;
+    //index generation/number of docs for which the entity store could not be built, null if none
+    private String mStoreFailedFor = null;
+    //dir from which the entitybooks were read, the postings are saved here as well. null if not read from files.
+    private String mEntityBooksDirPath = null;
 
     public EntityBookManager(Archive archive){
         this.mArchive=archive;
@@ -54,85 +61,139 @@ public class EntityBookManager {
 
 
     /*
-This method recalculates cache for entitybook of given type. If type is given as Max, it does it for all at once. This method was carved out mainly to reduce the recalculation of
-individual type entitybook (which involves expensive operation of lucene search for each doc).
- */
-    private void recalculateCache(Short giventype){
-
-        log.info("Computing EntityBook Cache");
-        long start = System.currentTimeMillis();
-        //a subtle issue: If type is Short.MAX_VALUE then we need to have docsetmap one for each type.
-        //so create a map of this map.
-        Map<Short, Map<MappedEntity,Pair<Double,Set<Document>>>> alldocsetmap = new LinkedHashMap<>();
-        // now fill this map.
-        if(giventype==Short.MAX_VALUE){
-            for(NEType.Type t: NEType.Type.values()) {
-                Map<MappedEntity,Pair<Double,Set<Document>>> docsetmap = new LinkedHashMap<>();
-                alldocsetmap.put(t.getCode(),docsetmap);
+    Returns the entity postings, reading them from the entitybooks dir if they were saved there, else building them from lucene (and saving them).
+     */
+    private synchronized EntityPostings getPostings(){
+        if(mPostings==null){
+            if(mEntityBooksDirPath!=null)
+                mPostings = EntityPostings.read(mArchive,mEntityBooksDirPath);
+            if(mPostings==null){
+                mPostings = EntityPostings.build(mArchive, getEntityStore());
+                if(mEntityBooksDirPath!=null)
+                    mPostings.save(mEntityBooksDirPath);
             }
-        }else{
-            Map<MappedEntity,Pair<Double,Set<Document>>> docsetmap = new LinkedHashMap<>();
-            alldocsetmap.put(giventype,docsetmap);
         }
-        //iterate over
-        //iterate over lucene doc to recalculate the count and other summaries of the modified
-        //fill cache summary for ebook in other fields of ebook.
-        double theta = 0.001;
+        return mPostings;
+    }
 
-        long luceneduration1=0;
-        long luceneduration2=0;
-        long additionduration=0;
-        Map<String, Span[]> docEntitiesMap = mArchive.getAllEntities(mArchive.getAllDocs().size());
+    /*
+    The names of the docs in the index have changed (e.g. NER has been run again), so the postings are stale. They will be rebuilt from lucene
+    on the next recalculation of the cache.
+     */
+    public synchronized void clearPostings(){
+        mPostings = null;
+        String dir = getEntityBooksDir();
+        if(dir!=null)
+            EntityPostings.delete(dir);
+    }
 
+    /*
+    The dir the entitybooks are (or will be) saved in, null if the archive has no base dir.
+     */
+    private String getEntityBooksDir(){
+        String dir = mEntityBooksDirPath;
+        if(dir==null && mArchive.baseDir!=null)
+            dir = mArchive.baseDir + File.separatorChar + Archive.BAG_DATA_FOLDER + File.separatorChar + Archive.SESSIONS_SUBDIR + File.separatorChar + Archive.ENTITYBOOKMANAGER_SUFFIX;
+        return dir;
+    }
 
-        for (String docid:docEntitiesMap.keySet())
-        {
+    /*
+    Returns the entity store of the archive, reading it from the entitybooks dir if it is up to date with the index, else building it from the names
+    stored in lucene (and saving it). null if it can be neither read nor built.
+     */
+    public synchronized EntityStore getEntityStore(){
+        if(mStore!=null && mStore.isCurrent(mArchive))
+            return mStore;
+        //building the store is a pass over all the stored fields, don't try again for every doc if it failed for this generation of the index
+        String key = mArchive.getIndexGeneration() + "/" + mArchive.getAllDocs().size();
+        if(key.equals(mStoreFailedFor))
+            return null;
+        String dir = getEntityBooksDir();
+        mStore = EntityStore.open(mArchive, dir);
+        if(mStore==null){
+            try {
+                mStore = EntityStore.save(mArchive, EntityStore.buildFromIndex(mArchive), dir);
+            } catch (IOException e) {
+                Util.print_exception("Unable to build the entity store from the index", e, log);
+            }
+        }
+        mStoreFailedFor = mStore==null ? key : null;
+        return mStore;
+    }
 
-                Span[] allspans = docEntitiesMap.get(docid);
-                EmailDocument edoc = mArchive.indexer.docForId(docid);
-                for (Span span : allspans) {
-                    // bail out if not of entity type that we're looking for, or not enough confidence, but don't bail out if we have to do it for all types, i.e. type is Short.MAX_TYPE
-                    if (giventype!=Short.MAX_VALUE && (span.type != giventype || span.typeScore < theta))
-                        continue;
-                    Short type = span.type;//if type is Short.Max_Type then set the type as the current type, if not this is like a NOP.
-                    Double score = new Double(span.typeScore);
-                    String name = span.getText();
-                    String canonicalizedname = EntityBook.canonicalize(name);
-
-                    //  map the name to its display name. if no mapping, we should get the same name back as its displayName
-                    MappedEntity mappedEntity = (mTypeToEntityBook.get(type).nameToMappedEntity.get(canonicalizedname));
-                    if(mappedEntity==null){
-                        continue; //It implies that we have erased some names from the entitybook so no need to consider them.
-                    }
-                    //add this doc in the docsetmap for the mappedEntity.
-                    Double oldscore= Double.valueOf(0);
-                    if(alldocsetmap.get(type).get(mappedEntity)!=null)
-                        oldscore = alldocsetmap.get(type).get(mappedEntity).first;
-                    Double finalscore = Double.max(oldscore,score);
-                    Set<Document> docset  = new LinkedHashSet<>();
-                    if(alldocsetmap.get(type).get(mappedEntity)!=null)
-                        docset=alldocsetmap.get(type).get(mappedEntity).second;
-                    docset.add(edoc);
-                    //docset.add(doc);
-                    alldocsetmap.get(type).put(mappedEntity,new Pair(finalscore,docset));
+    /*
+    Saves the entity store written by NER as it recognized the docs, so that it needn't be rebuilt from lucene. To be called after the index
+    with the new names has been committed and reopened, the store is keyed by its generation.
+     */
+    public synchronized void saveEntityStore(EntityStore.Writer writer){
+        mStore = EntityStore.save(mArchive, writer, getEntityBooksDir());
+        mStoreFailedFor = null;
+    }
 
-                }
-        }
-        //fill cache summary for ebook in other fields of ebook.
-        //Beware!! what happens if type is MAX (means we need to do this for all types).
-        long end = System.currentTimeMillis();
-        log.info("Finished computing entitybook cache in "+ (end-start)+" milliseconds");
-        if(giventype== Short.MAX_VALUE) {
-            for(NEType.Type t: NEType.Type.values()) {
-                mTypeToEntityBook.get(t.getCode()).fillSummaryFields(alldocsetmap.get(t.getCode()),mArchive);
-            }
+    /*
+This method recalculates cache for entitybook of given type. If type is given as Max, it does it for all at once.
+The docs of each mapped entity are the union of the postings of its names, so this does not involve any lucene search once the postings are available.
+ */
+    private void recalculateCache(Short giventype){
+
+        log.info("Computing EntityBook Cache");
+        long start = System.currentTimeMillis();
+        EntityPostings postings = getPostings();
+        List<Short> types = new ArrayList<>();
+        if(giventype==Short.MAX_VALUE){
+            for(NEType.Type t: NEType.Type.values())
+                types.add(t.getCode());
         }else
-            mTypeToEntityBook.get(giventype).fillSummaryFields(alldocsetmap.get(giventype),mArchive);
+            types.add(giventype);
+
+        for(Short type: types) {
+            EntityBook ebook = mTypeToEntityBook.get(type);
+            //docset map maps a mappedentity to it's score and the set of documents.
+            Map<MappedEntity, Pair<Double, Set<Document>>> docsetmap = new LinkedHashMap<>();
+            ebook.getEntityToCanonicalNames().forEach((mappedEntity, cnames) -> {
+                Pair<Double, Set<Document>> scoreAndDocs = postings.getScoreAndDocs(type, cnames);
+                if (scoreAndDocs != null)
+                    docsetmap.put(mappedEntity, scoreAndDocs);
+            });
+            //fill cache summary for ebook in other fields of ebook.
+            ebook.fillSummaryFields(docsetmap, mArchive);
+        }
 
-//        log.info("Luceneduration 1 = "+luceneduration1+" milliseconds, Luceneduration 2 = "+luceneduration2 + " milliseconds, addition duration = "+additionduration+ " milliseconds");
-//        log.info("Finished filling summary of entitybook cache in "+ (System.currentTimeMillis()-end)+" milliseconds");
+        log.info("EntityBook Cache computed successfully in "+ (System.currentTimeMillis()-start)+" milliseconds");
+    }
 
-        log.info("EntityBook Cache computed successfully");
+    /*
+    Incremental version of recalculateCache, for when oldBook has been replaced by newBook (e.g. after a curator edited the entity merges).
+    Entities with the same set of names in both books keep their old summaries, only the merged/split/new entities are recomputed from the postings
+    of their names. A split is recomputed as the union of the names that remain, rather than as a difference, since names can co-occur in a doc.
+     */
+    private void updateCache(EntityBook oldBook, EntityBook newBook, Short type){
+        long start = System.currentTimeMillis();
+        Map<Set<String>, Summary_L1> namesToOldSummary = new HashMap<>();
+        oldBook.getEntityToCanonicalNames().forEach((me, cnames) -> {
+            Summary_L1 summary = oldBook.summary_L1_entityCountMap.get(me);
+            if(summary!=null)
+                namesToOldSummary.put(cnames, summary);
+        });
+        Set<Set<String>> oldNames = new HashSet<>(oldBook.getEntityToCanonicalNames().values());
+
+        Map<MappedEntity, Summary_L1> carriedOver = new LinkedHashMap<>();
+        Map<MappedEntity, Pair<Double, Set<Document>>> changed = new LinkedHashMap<>();
+        EntityPostings postings = null;
+        for(Map.Entry<MappedEntity, Set<String>> e: newBook.getEntityToCanonicalNames().entrySet()){
+            if(oldNames.contains(e.getValue())) {
+                //unchanged entity, carry over the summary if it had one. (an entity with no docs had no summary)
+                Summary_L1 summary = namesToOldSummary.get(e.getValue());
+                if(summary!=null)
+                    carriedOver.put(e.getKey(), summary);
+                continue;
+            }
+            if(postings==null)
+                postings = getPostings();
+            changed.put(e.getKey(), postings.getScoreAndDocs(type, e.getValue()));
+        }
+        newBook.updateSummaryFields(changed, carriedOver, mArchive);
+        log.info("Updated EntityBook cache for " + changed.size() + " changed entities (" + carriedOver.size() + " unchanged) in " + (System.currentTimeMillis()-start) + " milliseconds");
     }
 
 
@@ -148,6 +209,7 @@ individual type entitybook (which involves expensive operation of lucene search
         EntityBookManager entityBookManager = new EntityBookManager(archive);
         if(!new File(entitybooksdirpath).exists())//if no directory exists then create it.
             new File(entitybooksdirpath).mkdir();
+        entityBookManager.mEntityBooksDirPath = entitybooksdirpath;
 
         //for each entity type get corresponding subidrectory inside dirpath. Open a file named entitybook in that subdirectory, read it, initialize entitybook and put it in the map.
         for(NEType.Type t: NEType.Type.values()) {
@@ -331,8 +393,14 @@ individual type entitybook (which involves expensive operation of lucene search
         return docset;
     }
 
-    /* body = true => in message body, false => in subject */
+    /* body = true => in message body, false => in subject. read from the entity store, if the doc is not in it, from the stored fields in lucene */
     private Span[] getEntitiesInDocFromLucene(Document d, boolean body){
+        EntityStore store = getEntityStore();
+        if(store!=null){
+            int ordinal = mArchive.getDocIndex().ordinalOf(d.getUniqueId());
+            if(ordinal>=0 && ordinal<store.nDocs())
+                return store.getNames(ordinal, body);
+        }
         try {
             return edu.stanford.muse.ner.NER.getNames(d, body, mArchive);
         }catch(Exception e) {
@@ -344,6 +412,8 @@ individual type entitybook (which involves expensive operation of lucene search
     /*
     This is a slow path but the assumption is that it must be used only once when porting the old archives (where entitybooks are not factored out as files). After that only the other
     path 'fillEntityBookFromText' will be used repetitively (when loading the archive)
+    The entities are read from the entity store, a linear scan over its columns, in the order they were read from the stored fields of each lucene doc earlier:
+    title entities followed by body entities, doc by doc. Only the names of the entities that are added are decoded.
      */
     private void fillEntityBookFromLucene(Short type){
         EntityBook ebook = new EntityBook(type);
@@ -352,13 +422,26 @@ individual type entitybook (which involves expensive operation of lucene search
         double theta = 0.001;
         //docset map maps a mappedentity to it's score and the set of documents.
         Map<MappedEntity, Pair<Double,Set<Document>>> docsetmap = new LinkedHashMap<>();
-        for (Document doc : mArchive.getAllDocs())
+        EntityStore store = getEntityStore();
+        List<Document> docs = mArchive.getAllDocs();
+        for (int ordinal = 0; ordinal < docs.size(); ordinal++)
 
         {
-            Span[] spansbody = getEntitiesInDocFromLucene(doc, true);
-            Span[] spans = getEntitiesInDocFromLucene(doc, false);
-            Span[] allspans = ArrayUtils.addAll(spans,spansbody);
-            Set<String> seenInThisDoc = new LinkedHashSet<>();
+            Document doc = docs.get(ordinal);
+            List<Span> allspans = new ArrayList<>();
+            if (store == null || ordinal >= store.nDocs()) {
+                allspans.addAll(Arrays.asList(getEntitiesInDocFromLucene(doc, false)));
+                allspans.addAll(Arrays.asList(getEntitiesInDocFromLucene(doc, true)));
+            } else {
+                //title mentions first, then the body, as earlier
+                int titleStart = store.firstTitleMention(ordinal), end = store.endMention(ordinal);
+                for (int m = titleStart; m < end; m++)
+                    if (store.type(m) == type && store.score(m) >= theta && !store.isKillPhrase(store.nameId(m)))
+                        allspans.add(store.span(m));
+                for (int m = store.firstMention(ordinal); m < titleStart; m++)
+                    if (store.type(m) == type && store.score(m) >= theta && !store.isKillPhrase(store.nameId(m)))
+                        allspans.add(store.span(m));
+            }
 
             for (Span span : allspans) {
                 // bail out if not of entity type that we're looking for, or not enough confidence
@@ -402,9 +485,14 @@ individual type entitybook (which involves expensive operation of lucene search
 
         try {
             EntityBook entityBook = EntityBook.readObjectFromStream(br,type);
-            mTypeToEntityBook.put(type,entityBook);
-            if(recalculateCache)
-                recalculateCache(type);
+            EntityBook oldBook = mTypeToEntityBook.put(type,entityBook);
+            if(recalculateCache) {
+                //only the summaries of edited entities need to be recomputed if there was a book (with its summaries) earlier
+                if (oldBook != null)
+                    updateCache(oldBook, entityBook, type);
+                else
+                    recalculateCache(type);
+            }
 
 
         } catch (IOException e) {
@@ -0,0 +1,301 @@
+package edu.stanford.muse.ie.variants;
+
+import edu.stanford.muse.index.Archive;
+import edu.stanford.muse.index.DocIndex;
+import edu.stanford.muse.index.Document;
+import edu.stanford.muse.util.Pair;
+import edu.stanford.muse.util.Span;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.RoaringDocIdSet;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Postings of entity name -> docs, for all the entity types of an archive.
+ * Names are canonicalized (EntityBook.canonicalize), so the postings do not change when a curator merges or splits entities in an entity book,
+ * the docs of a MappedEntity are just the union of the postings of its names. This makes edits to the entity books cheap to apply,
+ * only the summaries of the entities whose names changed have to be recomputed, from the postings of their names, without going to lucene.
+ *
+ * Docs are referred to by their ordinal in archive.getAllDocs() (see DocIndex) and the postings are compressed bitsets (lucene's RoaringDocIdSet).
+ * The postings are saved alongside the entity books, with the doc ids, so that they can be remapped when docs are dropped (e.g. on export).
+ * Saved postings that do not cover all the docs of the archive (e.g. after docs are added by an import) are stale and rebuilt.
+ */
+public class EntityPostings {
+    private static final Logger log = LogManager.getLogger(EntityPostings.class);
+
+    public static final String POSTINGS_FILE = "entity-postings.gz";
+    private static final int MAGIC = 0x45504f53; // EPOS
+    private static final int VERSION = 1;
+
+    static class Posting {
+        double score; // max. score of the name over all its mentions
+        RoaringDocIdSet docs;
+    }
+
+    private final List<Document> docs; // ordinal -> doc
+    private final Map<Short, Map<String, Posting>> typeToPostings = new LinkedHashMap<>();
+
+    private EntityPostings(List<Document> docs) {
+        this.docs = docs;
+    }
+
+    /**
+     * builds the postings from the names of all docs, in a single pass over the entity store in ordinal order (as RoaringDocIdSet needs).
+     * if there is no store, the names are read from the stored fields of the lucene docs
+     */
+    static EntityPostings build(Archive archive, EntityStore store) {
+        long start = System.currentTimeMillis();
+        List<Document> docs = new ArrayList<>(archive.getAllDocs());
+        EntityPostings postings = new EntityPostings(docs);
+        Map<Short, Map<String, PostingBuilder>> builders = new LinkedHashMap<>();
+
+        if (store != null && store.nDocs() == docs.size()) {
+            // the names are canonicalized once, not once per mention
+            String[] cnames = new String[store.nNames()];
+            for (int ordinal = 0; ordinal < docs.size(); ordinal++) {
+                for (int m = store.firstMention(ordinal), end = store.endMention(ordinal); m < end; m++) {
+                    int nameId = store.nameId(m);
+                    if (cnames[nameId] == null)
+                        cnames[nameId] = EntityBook.canonicalize(store.name(nameId));
+                    PostingBuilder b = builders.computeIfAbsent(store.type(m), t -> new LinkedHashMap<>()).computeIfAbsent(cnames[nameId], n -> new PostingBuilder(docs.size()));
+                    b.add(ordinal, store.score(m));
+                }
+            }
+        } else {
+            DocIndex docIndex = archive.getDocIndex();
+            Map<String, Span[]> docEntitiesMap = archive.getAllEntities(docs.size());
+
+            // ordinal -> spans, so that the postings can be built in increasing ordinal order, as RoaringDocIdSet needs
+            Span[][] ordinalToSpans = new Span[docs.size()][];
+            for (Map.Entry<String, Span[]> e : docEntitiesMap.entrySet()) {
+                int ordinal = docIndex.ordinalOf(e.getKey());
+                if (ordinal >= 0)
+                    ordinalToSpans[ordinal] = e.getValue();
+            }
+
+            for (int ordinal = 0; ordinal < ordinalToSpans.length; ordinal++) {
+                if (ordinalToSpans[ordinal] == null)
+                    continue;
+                for (Span span : ordinalToSpans[ordinal]) {
+                    String cname = EntityBook.canonicalize(span.getText());
+                    PostingBuilder b = builders.computeIfAbsent(span.type, t -> new LinkedHashMap<>()).computeIfAbsent(cname, n -> new PostingBuilder(docs.size()));
+                    b.add(ordinal, span.typeScore);
+                }
+            }
+        }
+        builders.forEach((type, map) -> {
+            Map<String, Posting> typePostings = new LinkedHashMap<>();
+            map.forEach((name, b) -> typePostings.put(name, b.build()));
+            postings.typeToPostings.put(type, typePostings);
+        });
+        log.info("Built entity postings for " + docs.size() + " docs in " + (System.currentTimeMillis() - start) + "ms");
+        return postings;
+    }
+
+    private static class PostingBuilder {
+        final RoaringDocIdSet.Builder builder;
+        double score = 0;
+        int last = -1;
+
+        PostingBuilder(int maxDoc) {
+            builder = new RoaringDocIdSet.Builder(maxDoc);
+        }
+
+        void add(int ordinal, double score) {
+            this.score = Math.max(this.score, score);
+            // the same name can occur more than once in a doc
+            if (ordinal != last)
+                builder.add(ordinal);
+            last = ordinal;
+        }
+
+        Posting build() {
+            Posting p = new Posting();
+            p.score = score;
+            p.docs = builder.build();
+            return p;
+        }
+    }
+
+    /**
+     * @return the max score and docs of an entity with the given (canonicalized) names, the union of the postings of the names.
+     * null if none of the names occurs in any doc
+     */
+    Pair<Double, Set<Document>> getScoreAndDocs(short type, Collection<String> cnames) {
+        Map<String, Posting> typePostings = typeToPostings.get(type);
+        if (typePostings == null)
+            return null;
+
+        double score = 0;
+        int n = 0;
+        int[] ordinals = new int[16];
+        for (String cname : cnames) {
+            Posting p = typePostings.get(cname);
+            if (p == null)
+                continue;
+            score = Math.max(score, p.score);
+            try {
+                DocIdSetIterator it = p.docs.iterator();
+                if (it == null)
+                    continue;
+                for (int d = it.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = it.nextDoc()) {
+                    if (n == ordinals.length)
+                        ordinals = Arrays.copyOf(ordinals, n * 2);
+                    ordinals[n++] = d;
+                }
+            } catch (IOException e) {
+                // iterating an in-memory set does not do any I/O
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (n == 0)
+            return null;
+
+        // a single name is already in order, multiple names have to be merged (and deduped, as names can co-occur in a doc)
+        if (cnames.size() > 1)
+            Arrays.sort(ordinals, 0, n);
+        Set<Document> result = new LinkedHashSet<>();
+        for (int i = 0; i < n; i++)
+            result.add(docs.get(ordinals[i]));
+        return new Pair<>(score, result);
+    }
+
+    /** saves the postings in the given entity books dir */
+    void save(String entitybooksdirpath) {
+        File f = new File(entitybooksdirpath + File.separator + POSTINGS_FILE);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(docs.size());
+            for (Document d : docs)
+                out.writeUTF(d.getUniqueId());
+            out.writeInt(typeToPostings.size());
+            for (Map.Entry<Short, Map<String, Posting>> e : typeToPostings.entrySet()) {
+                out.writeShort(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (Map.Entry<String, Posting> pe : e.getValue().entrySet()) {
+                    Posting p = pe.getValue();
+                    out.writeUTF(pe.getKey());
+                    out.writeDouble(p.score);
+                    out.writeInt(p.docs.cardinality());
+                    // ordinals are increasing, write the gaps as variable length ints
+                    DocIdSetIterator it = p.docs.iterator();
+                    int last = 0;
+                    if (it != null)
+                        for (int d = it.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = it.nextDoc()) {
+                            writeVInt(out, d - last);
+                            last = d;
+                        }
+                }
+            }
+        } catch (IOException e) {
+            Util.print_exception("Unable to save entity postings to " + f, e, log);
+        }
+    }
+
+    /**
+     * reads the postings saved in the given entity books dir, remapping the docs to their current ordinals in the archive.
+     * @return null if there are no saved postings or they cannot be read
+     */
+    static EntityPostings read(Archive archive, String entitybooksdirpath) {
+        File f = new File(entitybooksdirpath + File.separator + POSTINGS_FILE);
+        if (!f.exists())
+            return null;
+        long start = System.currentTimeMillis();
+        DocIndex docIndex = archive.getDocIndex();
+        List<Document> docs = new ArrayList<>(archive.getAllDocs());
+        EntityPostings postings = new EntityPostings(docs);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring entity postings in unknown format: " + f);
+                return null;
+            }
+            int nSavedDocs = in.readInt();
+            int[] savedToCurrent = new int[nSavedDocs];
+            boolean identity = nSavedDocs == docs.size();
+            int nMapped = 0;
+            for (int i = 0; i < nSavedDocs; i++) {
+                savedToCurrent[i] = docIndex.ordinalOf(in.readUTF());
+                identity &= savedToCurrent[i] == i;
+                if (savedToCurrent[i] >= 0)
+                    nMapped++;
+            }
+            // docs dropped from the archive can be remapped away, but docs added to it since (e.g. by an import) have no postings here
+            if (nMapped != docs.size()) {
+                log.info("Ignoring stale entity postings in " + f + ": they cover " + nMapped + " of the " + docs.size() + " docs in the archive");
+                return null;
+            }
+
+            int nTypes = in.readInt();
+            int[] ordinals = new int[16];
+            for (int t = 0; t < nTypes; t++) {
+                short type = in.readShort();
+                int nNames = in.readInt();
+                Map<String, Posting> typePostings = new LinkedHashMap<>();
+                for (int i = 0; i < nNames; i++) {
+                    String name = in.readUTF();
+                    double score = in.readDouble();
+                    int n = in.readInt();
+                    if (ordinals.length < n)
+                        ordinals = new int[n];
+                    int saved = 0, m = 0;
+                    for (int j = 0; j < n; j++) {
+                        saved += readVInt(in);
+                        int current = savedToCurrent[saved];
+                        if (current >= 0)
+                            ordinals[m++] = current;
+                    }
+                    if (m == 0)
+                        continue;
+                    if (!identity)
+                        Arrays.sort(ordinals, 0, m);
+                    RoaringDocIdSet.Builder b = new RoaringDocIdSet.Builder(docs.size());
+                    for (int j = 0; j < m; j++)
+                        b.add(ordinals[j]);
+                    Posting p = new Posting();
+                    p.score = score;
+                    p.docs = b.build();
+                    typePostings.put(name, p);
+                }
+                postings.typeToPostings.put(type, typePostings);
+            }
+        } catch (Exception e) {
+            Util.print_exception("Unable to read entity postings from " + f + ", they will be rebuilt", e, log);
+            return null;
+        }
+        log.info("Read entity postings for " + docs.size() + " docs from " + f + " in " + (System.currentTimeMillis() - start) + "ms");
+        return postings;
+    }
+
+    /** deletes the saved postings, to be called when the names in the index change, e.g. after NER */
+    static void delete(String entitybooksdirpath) {
+        File f = new File(entitybooksdirpath + File.separator + POSTINGS_FILE);
+        if (f.exists() && !f.delete())
+            log.warn("Unable to delete stale entity postings: " + f);
+    }
+
+    private static void writeVInt(DataOutput out, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            out.writeByte((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    private static int readVInt(DataInput in) throws IOException {
+        int i = 0, shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            i |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return i;
+    }
+}
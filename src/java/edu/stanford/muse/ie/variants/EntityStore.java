@@ -0,0 +1,460 @@
+package edu.stanford.muse.ie.variants;
+
+import edu.stanford.muse.ie.KillPhrases;
+import edu.stanford.muse.index.Archive;
+import edu.stanford.muse.index.DocIndex;
+import edu.stanford.muse.index.Document;
+import edu.stanford.muse.index.Indexer;
+import edu.stanford.muse.util.Span;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Columnar side store of the entities recognized in the docs of an archive, keyed by doc ordinal (position in archive.getAllDocs(), see DocIndex).
+ * The names found by NER are otherwise only kept in stored fields of the lucene docs, as text that has to be loaded and parsed for every doc
+ * (NER.getNames), so building entity books, postings or the mention index meant millions of stored-document decodes.
+ *
+ * Mentions are stored doc by doc, the body mentions of a doc followed by its title mentions, in the order they are in the stored fields,
+ * one column per attribute: name id (into a dictionary of the distinct names), type code, score, start and end offsets.
+ * The file is memory mapped, so reading all the entities is a linear read of a few arrays, and can be split into chunks of docs over threads (scan).
+ *
+ * The store is written by NER along with the stored fields, or built from the stored fields once for archives recognized earlier.
+ * It is keyed by the generation of the lucene index and a hash of the doc ids in ordinal order, so a store is never used with an index
+ * or a list of docs it wasn't built from; EntityBookManager.getEntityStore() rebuilds it when that happens.
+ * Reads are safe from several threads at once.
+ */
+public class EntityStore {
+    private static final Logger log = LogManager.getLogger(EntityStore.class);
+
+    //the store of a generation of the index is in entity-store-<generation>-<hash of doc ids>.dat
+    private static final String STORE_FILE_PREFIX = "entity-store", STORE_FILE_SUFFIX = ".dat";
+    private static final int MAGIC = 0x454e5453; // ENTS
+    private static final int VERSION = 1;
+    private static final int CHUNK_DOCS = 1024; // docs per unit of work of a parallel scan
+
+    private final String indexGeneration;
+    private final long docsHash;
+    private final int nDocs, nNames, nMentions;
+    private final IntBuffer nameOffsets; // nNames+1 offsets into nameBytes
+    private final ByteBuffer nameBytes; // utf-8
+    private final IntBuffer docMentions; // nDocs+1, mentions of doc d are [docMentions[d], docMentions[d+1])
+    private final IntBuffer titleMentions; // nDocs, the title mentions of doc d start at titleMentions[d]
+    private final IntBuffer nameIds, starts, ends;
+    private final ShortBuffer types;
+    private final FloatBuffer scores;
+
+    //decoded names and whether they are kill phrases, filled as they are asked for. the races on these are benign
+    private final String[] names;
+    private final byte[] killed; // 0 = not known yet, 1 = no, 2 = yes
+
+    private EntityStore(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, 12);
+            if (fixed.getInt(0) != MAGIC || fixed.getInt(4) != VERSION)
+                throw new IOException("Not an entity store, or of an unknown version: " + f);
+            int headerLength = fixed.getInt(8);
+            DataInputStream header = new DataInputStream(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 12, headerLength - 12)));
+            indexGeneration = header.readUTF();
+            docsHash = header.readLong();
+            nDocs = header.readInt();
+            nNames = header.readInt();
+            nMentions = header.readInt();
+            long nNameBytes = header.readLong();
+
+            //the columns are mapped separately, a single mapping can't be more than 2GB
+            long pos = headerLength;
+            nameOffsets = map(channel, pos, 4L * (nNames + 1)).asIntBuffer();
+            pos += 4L * (nNames + 1);
+            nameBytes = map(channel, pos, nNameBytes);
+            pos += nNameBytes;
+            docMentions = map(channel, pos, 4L * (nDocs + 1)).asIntBuffer();
+            pos += 4L * (nDocs + 1);
+            titleMentions = map(channel, pos, 4L * nDocs).asIntBuffer();
+            pos += 4L * nDocs;
+            nameIds = map(channel, pos, 4L * nMentions).asIntBuffer();
+            pos += 4L * nMentions;
+            types = map(channel, pos, 2L * nMentions).asShortBuffer();
+            pos += 2L * nMentions;
+            scores = map(channel, pos, 4L * nMentions).asFloatBuffer();
+            pos += 4L * nMentions;
+            starts = map(channel, pos, 4L * nMentions).asIntBuffer();
+            pos += 4L * nMentions;
+            ends = map(channel, pos, 4L * nMentions).asIntBuffer();
+            pos += 4L * nMentions;
+            if (pos != channel.size())
+                throw new IOException("Truncated entity store: " + f);
+        }
+        names = new String[nNames];
+        killed = new byte[nNames];
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+    }
+
+    /** reads the header, which is a small region of the mapped file */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+    }
+
+    /** @return a hash of the unique ids of the docs in order, which identifies the ordinals a store is keyed by */
+    private static long docsHash(List<Document> docs) {
+        long h = docs.size();
+        for (Document d : docs) {
+            String id = d.getUniqueId();
+            h = h * 1000003 + (id == null ? 0 : id.hashCode());
+        }
+        return h;
+    }
+
+    /**
+     * Accumulates the mentions of the docs of an archive, doc by doc in ordinal order, and writes them out as a store.
+     * Not thread-safe.
+     */
+    public static class Writer {
+        private final Map<String, Integer> nameToId = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private int nDocs = 0, nMentions = 0;
+        private int[] docMentions = new int[1025], titleMentions = new int[1024];
+        private int[] nameIds = new int[4096], starts = new int[4096], ends = new int[4096];
+        private short[] types = new short[4096];
+        private float[] scores = new float[4096];
+
+        /** adds the next doc, with the names recognized in its body and title */
+        public void add(Span[] body, Span[] title) {
+            if (nDocs == titleMentions.length) {
+                titleMentions = Arrays.copyOf(titleMentions, nDocs * 2);
+                docMentions = Arrays.copyOf(docMentions, nDocs * 2 + 1);
+            }
+            docMentions[nDocs] = nMentions;
+            add(body);
+            titleMentions[nDocs] = nMentions;
+            add(title);
+            nDocs++;
+            docMentions[nDocs] = nMentions;
+        }
+
+        private void add(Span[] spans) {
+            if (spans == null)
+                return;
+            for (Span span : spans) {
+                if (span == null || span.text == null)
+                    continue;
+                if (nMentions == nameIds.length) {
+                    int n = nMentions * 2;
+                    nameIds = Arrays.copyOf(nameIds, n);
+                    starts = Arrays.copyOf(starts, n);
+                    ends = Arrays.copyOf(ends, n);
+                    types = Arrays.copyOf(types, n);
+                    scores = Arrays.copyOf(scores, n);
+                }
+                Integer id = nameToId.get(span.text);
+                if (id == null) {
+                    id = names.size();
+                    nameToId.put(span.text, id);
+                    names.add(span.text);
+                }
+                nameIds[nMentions] = id;
+                starts[nMentions] = span.start;
+                ends[nMentions] = span.end;
+                types[nMentions] = span.type;
+                scores[nMentions] = span.typeScore;
+                nMentions++;
+            }
+        }
+
+        public int size() {
+            return nDocs;
+        }
+
+        private void write(File f, String indexGeneration, long docsHash) throws IOException {
+            byte[][] nameUtf8 = new byte[names.size()][];
+            long nNameBytes = 0;
+            for (int i = 0; i < nameUtf8.length; i++) {
+                nameUtf8[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+                nNameBytes += nameUtf8[i].length;
+            }
+            if (nNameBytes > Integer.MAX_VALUE)
+                throw new IOException("Too many names for an entity store: " + names.size());
+
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeUTF(indexGeneration);
+            header.writeLong(docsHash);
+            header.writeInt(nDocs);
+            header.writeInt(names.size());
+            header.writeInt(nMentions);
+            header.writeLong(nNameBytes);
+            header.flush();
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(12 + headerBytes.size());
+                headerBytes.writeTo(out);
+
+                int offset = 0;
+                out.writeInt(offset);
+                for (byte[] b : nameUtf8)
+                    out.writeInt(offset += b.length);
+                for (byte[] b : nameUtf8)
+                    out.write(b);
+                for (int i = 0; i <= nDocs; i++)
+                    out.writeInt(docMentions[i]);
+                for (int i = 0; i < nDocs; i++)
+                    out.writeInt(titleMentions[i]);
+                for (int i = 0; i < nMentions; i++)
+                    out.writeInt(nameIds[i]);
+                for (int i = 0; i < nMentions; i++)
+                    out.writeShort(types[i]);
+                for (int i = 0; i < nMentions; i++)
+                    out.writeFloat(scores[i]);
+                for (int i = 0; i < nMentions; i++)
+                    out.writeInt(starts[i]);
+                for (int i = 0; i < nMentions; i++)
+                    out.writeInt(ends[i]);
+            }
+        }
+    }
+
+    /** @return the name of the file of the store for the given generation of the index and hash of the doc ids */
+    private static String fileName(String indexGeneration, long docsHash) {
+        return STORE_FILE_PREFIX + indexGeneration + "-" + Long.toHexString(docsHash) + STORE_FILE_SUFFIX;
+    }
+
+    /**
+     * writes the store accumulated by writer for the docs of the archive (in ordinal order) to the given dir, keyed by the current generation of
+     * the archive's index, and opens it. The file is named by the generation and the doc ids, so a store already open (and mapped) is never
+     * replaced; the stores of earlier generations are deleted once they can be.
+     * If the store can't be written to the dir (or dir is null) it is written to a temp file instead.
+     * @return null if it can't be written at all
+     */
+    static EntityStore save(Archive archive, Writer writer, String dir) {
+        List<Document> docs = archive.getAllDocs();
+        if (writer.size() != docs.size()) {
+            log.warn("Entity store has " + writer.size() + " docs, but the archive has " + docs.size() + ", not saving it");
+            return null;
+        }
+        String indexGeneration = archive.getIndexGeneration();
+        long docsHash = docsHash(docs);
+        if (dir != null) {
+            File f = new File(dir + File.separator + fileName(indexGeneration, docsHash));
+            File tmp = new File(f.getPath() + ".tmp");
+            try {
+                new File(dir).mkdirs();
+                writer.write(tmp, indexGeneration, docsHash);
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                EntityStore store = new EntityStore(f);
+                log.info("Saved entity store of " + store.nDocs + " docs, " + store.nNames + " names and " + store.nMentions + " mentions to " + f);
+                deleteOthers(dir, f.getName());
+                return store;
+            } catch (IOException e) {
+                tmp.delete();
+                Util.print_exception("Unable to save entity store to " + f + ", keeping it in a temp file", e, log);
+            }
+        }
+        File f = null;
+        try {
+            f = File.createTempFile("entity-store", STORE_FILE_SUFFIX);
+            f.deleteOnExit();
+            writer.write(f, indexGeneration, docsHash);
+            return new EntityStore(f);
+        } catch (IOException e) {
+            Util.print_exception("Unable to save entity store to " + f, e, log);
+            return null;
+        }
+    }
+
+    /** deletes the stores in dir other than the given one, as far as possible: a store that is still mapped can't be deleted on windows, it is deleted after a later save */
+    private static void deleteOthers(String dir, String keep) {
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith(STORE_FILE_PREFIX) && !name.equals(keep));
+        if (files == null)
+            return;
+        for (File f : files)
+            if (!f.delete())
+                log.info("Unable to delete old entity store " + f + ", it may still be in use");
+    }
+
+    /**
+     * @return the store saved in the given dir, null if there is none, it can't be read, or it was built from another generation of the
+     * archive's index or another list of docs
+     */
+    static EntityStore open(Archive archive, String dir) {
+        if (dir == null)
+            return null;
+        List<Document> docs = archive.getAllDocs();
+        File f = new File(dir + File.separator + fileName(archive.getIndexGeneration(), docsHash(docs)));
+        if (!f.exists())
+            return null;
+        try {
+            EntityStore store = new EntityStore(f);
+            if (!store.isCurrent(archive) || store.docsHash != docsHash(docs)) {
+                log.info("Entity store in " + f + " is stale, it will be rebuilt");
+                return null;
+            }
+            return store;
+        } catch (Exception e) {
+            Util.print_exception("Unable to read entity store from " + f + ", it will be rebuilt", e, log);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this store was built from the current generation of the archive's index, for as many docs as the archive has.
+     * cheap enough to check before every use, unlike the hash of the doc ids which is checked when the store is opened
+     */
+    boolean isCurrent(Archive archive) {
+        return nDocs == archive.getAllDocs().size() && indexGeneration.equals(archive.getIndexGeneration());
+    }
+
+    /** @return the mentions in the value of a names field of a lucene doc, as NER stores them */
+    private static Span[] parseNames(String val) {
+        if (val == null)
+            return new Span[0];
+        return Arrays.stream(val.split(Indexer.NAMES_FIELD_DELIMITER)).map(Span::parse).filter(Objects::nonNull).toArray(Span[]::new);
+    }
+
+    /** builds the writer for the archive from the names in the stored fields of its lucene docs, in a single pass over the index */
+    static Writer buildFromIndex(Archive archive) throws IOException {
+        long start = System.currentTimeMillis();
+        DocIndex docIndex = archive.getDocIndex();
+        int n = archive.getAllDocs().size();
+        String[] bodyNames = new String[n], titleNames = new String[n];
+        archive.indexer.forEachStoredNames(t -> {
+            int ordinal = docIndex.ordinalOf(t.first);
+            if (ordinal >= 0 && ordinal < n) {
+                bodyNames[ordinal] = t.second;
+                titleNames[ordinal] = t.third;
+            }
+        });
+        Writer writer = new Writer();
+        for (int ordinal = 0; ordinal < n; ordinal++) {
+            writer.add(parseNames(bodyNames[ordinal]), parseNames(titleNames[ordinal]));
+            //let the strings go as we go
+            bodyNames[ordinal] = titleNames[ordinal] = null;
+        }
+        log.info("Read the stored names of " + n + " docs for the entity store in " + (System.currentTimeMillis() - start) + "ms");
+        return writer;
+    }
+
+    public int nDocs() {
+        return nDocs;
+    }
+
+    public int nNames() {
+        return nNames;
+    }
+
+    public int nMentions() {
+        return nMentions;
+    }
+
+    /** first mention of the doc */
+    public int firstMention(int ordinal) {
+        return docMentions.get(ordinal);
+    }
+
+    /** first title mention of the doc, the mentions before it are in the body */
+    public int firstTitleMention(int ordinal) {
+        return titleMentions.get(ordinal);
+    }
+
+    /** end (exclusive) of the mentions of the doc */
+    public int endMention(int ordinal) {
+        return docMentions.get(ordinal + 1);
+    }
+
+    public int nameId(int mention) {
+        return nameIds.get(mention);
+    }
+
+    public short type(int mention) {
+        return types.get(mention);
+    }
+
+    public float score(int mention) {
+        return scores.get(mention);
+    }
+
+    public String name(int nameId) {
+        String name = names[nameId];
+        if (name == null) {
+            int from = nameOffsets.get(nameId), to = nameOffsets.get(nameId + 1);
+            byte[] b = new byte[to - from];
+            for (int i = 0; i < b.length; i++)
+                b[i] = nameBytes.get(from + i);
+            names[nameId] = name = new String(b, StandardCharsets.UTF_8);
+        }
+        return name;
+    }
+
+    /** same as KillPhrases.isKillPhrase(name(nameId)), but checked once per name */
+    public boolean isKillPhrase(int nameId) {
+        if (killed[nameId] == 0)
+            killed[nameId] = (byte) (KillPhrases.isKillPhrase(name(nameId)) ? 2 : 1);
+        return killed[nameId] == 2;
+    }
+
+    public Span span(int mention) {
+        Span span = new Span(name(nameId(mention)), starts.get(mention), ends.get(mention));
+        span.setType(type(mention), score(mention));
+        return span;
+    }
+
+    /** @return the names of the doc in its body or title without the kill phrases, same as NER.getNames on its lucene doc */
+    public Span[] getNames(int ordinal, boolean body) {
+        int from = body ? firstMention(ordinal) : firstTitleMention(ordinal);
+        int to = body ? firstTitleMention(ordinal) : endMention(ordinal);
+        List<Span> spans = new ArrayList<>(to - from);
+        for (int m = from; m < to; m++)
+            if (!isKillPhrase(nameId(m)))
+                spans.add(span(m));
+        return spans.toArray(new Span[0]);
+    }
+
+    /** @return all the names of the doc, body followed by title, kill phrases included */
+    public Span[] getAllNames(int ordinal) {
+        int from = firstMention(ordinal), to = endMention(ordinal);
+        Span[] spans = new Span[to - from];
+        for (int m = from; m < to; m++)
+            spans[m - from] = span(m);
+        return spans;
+    }
+
+    /**
+     * calls visitor with the ordinal of every doc, the docs split into chunks that are scanned in parallel
+     * (on the common fork-join pool), so visitor must be thread-safe. Each chunk is a linear read of the columns
+     */
+    public void scan(IntConsumer visitor) {
+        int nChunks = (nDocs + CHUNK_DOCS - 1) / CHUNK_DOCS;
+        IntStream.range(0, nChunks).parallel().forEach(c -> {
+            int to = Math.min(nDocs, (c + 1) * CHUNK_DOCS);
+            for (int ordinal = c * CHUNK_DOCS; ordinal < to; ordinal++)
+                visitor.accept(ordinal);
+        });
+    }
+}
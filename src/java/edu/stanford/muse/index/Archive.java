@@ -29,8 +29,10 @@ import edu.stanford.muse.AnnotationManager.AnnotationManager;
 import edu.stanford.muse.AddressBookManager.CorrespondentAuthorityMapper;
 import edu.stanford.muse.LabelManager.Label;
 import edu.stanford.muse.LabelManager.LabelManager;
+import edu.stanford.muse.ie.MentionIndex;
 import edu.stanford.muse.ie.NameInfo;
 import edu.stanford.muse.ie.variants.EntityBookManager;
+import edu.stanford.muse.ie.variants.EntityStore;
 import edu.stanford.muse.ner.NER;
 import edu.stanford.muse.ner.model.NEType;
 import edu.stanford.muse.util.*;
@@ -76,6 +78,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -119,7 +122,15 @@ public class Archive implements Serializable {
         return dupMessageInfo;
     }
 
+    /** @return doc id -> all the names (body and title) recognized in the doc, read from the entity store rather than the stored fields of each lucene doc */
     public Map<String,Span[]> getAllEntities(int maxdocs) {
+        EntityStore store = getEntityBookManager().getEntityStore();
+        if (store != null) {
+            Map<String, Span[]> docs = new ConcurrentHashMap<>();
+            List<Document> allDocs = getAllDocs();
+            store.scan(ordinal -> docs.put(allDocs.get(ordinal).getUniqueId(), store.getAllNames(ordinal)));
+            return docs;
+        }
         Map<String,Span[]> docs = null;
         try {
              docs = indexer.getAllEntitiesInDocs(maxdocs);
@@ -129,6 +140,11 @@ public class Archive implements Serializable {
         return docs;
     }
 
+    /** @return the generation of the lucene indexes, which changes whenever they do */
+    public String getIndexGeneration() {
+        return indexer == null ? null : indexer.getIndexGeneration();
+    }
+
 
     public enum Export_Mode {EXPORT_APPRAISAL_TO_PROCESSING,EXPORT_PROCESSING_TO_DELIVERY,EXPORT_PROCESSING_TO_DISCOVERY}
     public static String[] LEXICONS =  new String[]{
@@ -158,7 +174,8 @@ public class Archive implements Serializable {
     transient private Map<String, Lexicon> lexiconMap = new HashMap<String, Lexicon>();
     private List<Document> allDocs;                                                    // this is the equivalent of fullEmailDocs earlier
     transient private Set<Document> allDocsAsSet = null;
-    transient private Map<Document,Document> allUniqueDocsMap=null;
+    transient private DocIndex docIndex = null;
+    transient private int allDocsModCount = 0; // bumped on every change to allDocs, in place or by replacing it, so that docIndex can tell if it is current
     private final transient Multimap<Document, Tuple2<String,String>> dupMessageInfo = LinkedListMultimap.create();//added to support more informative messages when finding duplicate mails..
     private transient Map<Long,List<Document>> threadIDToDocs = new LinkedHashMap<>();
 
@@ -167,10 +184,15 @@ public class Archive implements Serializable {
     public final Set<String> ownerNames = new LinkedHashSet<>();
     public final Set<String> ownerEmailAddrs = new LinkedHashSet<>();
     private transient EntityBookManager entityBookManager;//transient because it is saved explicitly
+    private transient MentionIndex mentionIndex;//transient because it is recomputed from the names in the index
     public transient CorrespondentAuthorityMapper correspondentAuthorityMapper; /* transient because this is saved and loaded separately */
     private Map<String, NameInfo> nameMap;
 
     private transient LabelManager labelManager; //transient because it will be saved and loaded separately
+    //label manager's ordinals of the docs, by DocIndex ordinal, for the bulk label operations. with the label manager and allDocsModCount they are current for
+    private transient int[] labelOrdinals;
+    private transient LabelManager labelOrdinalsManager;
+    private transient int labelOrdinalsModCount;
 
     private transient AnnotationManager annotationManager;//transient because it will be saved and loaded separately
     public transient CollectionMetadata collectionMetadata = new CollectionMetadata();//setting it as transient since v5 as it will be stored/read separately
@@ -248,36 +270,37 @@ public class Archive implements Serializable {
     }
 */
 
-    public Pair<Integer, String> setLabels(Collection<Document> docs, Set<String> labelIDs){
-Set<String> timeRestrictedLabels = labelManager.getRelativeTimedRestrictionLabels();
-         int countfail = 0;
-int errortype=0;
-        String message="";
+    /* The docs among the given ones on which labelIDs can be set, along with their existing labels if !replace, or in place of them if replace.
+    Other docs are counted as failed and errortype (of the last failure, as before) is returned in the first element of the pair.
+    The checks are on the labels the doc would end up with:
+    1. a cleared for release label can not be applied to a message unless its timed restrictions are expired.
+    2. a relative timed restriction label can not be applied to a document with hackydate.
+    Only bit lookups in the label manager per doc, the labels are then set on all the allowed docs at once.
+     */
+    private Pair<Integer, List<String>> getDocIDsAllowingLabels(Collection<Document> docs, Set<String> labelIDs, boolean replace){
+        Set<String> timeRestrictedLabels = labelManager.getRelativeTimedRestrictionLabels();
+        Set<String> timeRestrictions = labelManager.getTimedRestrictions();
+        int errortype=0;
+        List<String> allowed = new ArrayList<>(docs.size());
         for(Document doc: docs){
-            Set<String> existinglabs = getLabelIDs((EmailDocument)doc);
-            labelManager.setLabels(doc.getUniqueId(), labelIDs);
+            String docid = doc.getUniqueId();
             boolean isHacky = ((EmailDocument) doc).hackyDate ;//EmailFetcherThread.INVALID_DATE.equals(((EmailDocument)doc).getDate());
-            Set<String> allLabels = Util.setUnion(existinglabs,labelIDs);
-                //check if existingIds U labelIDs contain cleared for release and is not candidateForRelease..
-            if(allLabels.contains(LabelManager.LABELID_CFR) && !isCandidateForReleaseLabel(doc)){
-                //don't set the label, log the error message and the count of messages which got this error.
-                countfail=countfail+1;
+            Set<String> allLabels = replace ? labelIDs : Util.setUnion(getLabelIDs((EmailDocument) doc),labelIDs);
+            //check if the resulting labels contain cleared for release along with a timed restriction that is not expired..
+            if(allLabels.contains(LabelManager.LABELID_CFR) && !isTimeRestrictionExpired((EmailDocument)doc,allLabels,timeRestrictions))
                 errortype=1;
-                //set the labels to the old labels..
-                labelManager.putOnlyTheseLabels(doc.getUniqueId(),existinglabs);
-            }else if(Util.setIntersection(allLabels,timeRestrictedLabels).size()!=0 && isHacky){
-                //related timed restriction can not be applied on hacky dates.
-                countfail = countfail+1;
+            else if(isHacky && Util.setIntersection(allLabels,timeRestrictedLabels).size()!=0)
                 errortype=2;
-                //set the labels to the old labels..
-                labelManager.putOnlyTheseLabels(doc.getUniqueId(),existinglabs);
-            }else{
-                //not needed explicitly labelManager.setLabels(doc.getUniqueId(),labelIDs);
-            }
+            else
+                allowed.add(docid);
         }
+        return new Pair<>(errortype,allowed);
+    }
 
+    private static String labelErrorMessage(int ndocs, int countfail, int errortype){
+        String message="";
         if(countfail>0 && errortype==1){
-            if(docs.size()==1)
+            if(ndocs==1)
                 message="'Cleared for release' label can not coexist with a label that is not expired. Either remove the 'cleared for release' label or remove the time restriction label that has not expired.";
             else
                 message = "This label could not be set for "+countfail +" message(s) because 'Cleared for release' label can not coexist with a label that is not expired. Either remove the 'cleared for release' label or remove the time restriction label that has not expired for these messages";
@@ -285,68 +308,114 @@ int errortype=0;
         }
 
         if(countfail>0 && errortype==2){
-            if(docs.size()==1)
+            if(ndocs==1)
                 message="A relative timed restriction can not be applied on this message as it's date got corrupted during import";
             else
                 message = "This label could not be set for "+countfail +" message(s) because the date/time of these messages got corrupted during import";
 
         }
+        return message;
+    }
 
-
-        return new Pair(countfail,message);
+    public Pair<Integer, String> setLabels(Collection<Document> docs, Set<String> labelIDs){
+        Pair<Integer, List<String>> allowed = getDocIDsAllowingLabels(docs, labelIDs, false);
+        labelManager.setLabels(allowed.second, labelIDs);
+        int countfail = docs.size() - allowed.second.size();
+        return new Pair(countfail,labelErrorMessage(docs.size(),countfail,allowed.first));
     }
 
     public void unsetLabels(Collection<Document> docs, Set<String> labelIDs) {
-        docs.forEach(doc -> labelManager.unsetLabels(doc.getUniqueId(), labelIDs));
+        labelManager.unsetLabels(docs.stream().map(Document::getUniqueId).collect(Collectors.toList()), labelIDs);
     }
 
     public Pair<Integer,String> putOnlyTheseLabels(Collection<Document> docs, Set<String> labelIDs){
-        Set<String> timeRestrictedLabels = labelManager.getRelativeTimedRestrictionLabels();
-        int countfail = 0;
-        int errortype=0;
-        String message="";
-
-        for(Document doc: docs){
-            Set<String> existinglabs = getLabelIDs((EmailDocument)doc);
-            labelManager.putOnlyTheseLabels(doc.getUniqueId(), labelIDs);
-            boolean isHacky = ((EmailDocument)doc).hackyDate;// EmailFetcherThread.INVALID_DATE.equals(((EmailDocument)doc).getDate());
-            Set<String> allLabels = Util.setUnion(existinglabs,labelIDs);
-            //check if existingIds U labelIDs contain cleared for release and is not candidateForRelease..
-            if(Util.setUnion(existinglabs,labelIDs).contains(LabelManager.LABELID_CFR) && !isCandidateForReleaseLabel(doc)){
-                //don't set the label, log the error message and the count of messages which got this error.
-                countfail=countfail+1;
-                //set the labels to the old labels..
-                errortype=1;
-                labelManager.putOnlyTheseLabels(doc.getUniqueId(),existinglabs);
-            }else if(Util.setIntersection(allLabels,timeRestrictedLabels).size()!=0 && isHacky){
-                //related timed restriction can not be applied on hacky dates.
-                countfail = countfail+1;
-                errortype=2;
-                //set the labels to the old labels..
-                labelManager.putOnlyTheseLabels(doc.getUniqueId(),existinglabs);
-            }else{
-                labelManager.putOnlyTheseLabels(doc.getUniqueId(),labelIDs);
-            }
-        }
-
+        Pair<Integer, List<String>> allowed = getDocIDsAllowingLabels(docs, labelIDs, true);
+        labelManager.putOnlyTheseLabels(allowed.second, labelIDs);
+        int countfail = docs.size() - allowed.second.size();
+        return new Pair(countfail,labelErrorMessage(docs.size(),countfail,allowed.first));
+    }
 
-        if(countfail>0 && errortype==1){
-            if(docs.size()==1)
-                message="'Cleared for release' label can not coexist with a label that is not expired. Either remove the 'cleared for release' label or remove the time restriction label that has not expired.";
-            else
-                message = "This label could not be set for "+countfail +" message(s) because 'Cleared for release' label can not coexist with a label that is not expired. Either remove the 'cleared for release' label or remove the time restriction label that has not expired for these messages";
+    /* bulk versions of the label operations, over ordinals of docs in the archive (see getDocIndex()), e.g. a range of ordinals or a bitset from a search result.
+    The checks and the label updates are bitset operations on the label manager's bitsets (see LabelManager), the docs are not listed.
+    Only the docs that would end up cleared for release along with a timed restriction, or with a relative timed restriction, are looked at one by one. */
+    public Pair<Integer, String> setLabels(BitSet ordinals, Set<String> labelIDs){
+        return setLabels(ordinals, labelIDs, false);
+    }
 
-        }
+    public void unsetLabels(BitSet ordinals, Set<String> labelIDs){
+        getLabelManager().unsetLabels(ordinals, getLabelOrdinals(), labelIDs);
+    }
 
-        if(countfail>0 && errortype==2){
-            if(docs.size()==1)
-                message="A relative timed restriction can not be applied on this message as it's date got corrupted during import";
-            else
-                message = "This label could not be set for "+countfail +" message(s) because the date/time of these messages got corrupted during import";
+    public Pair<Integer,String> putOnlyTheseLabels(BitSet ordinals, Set<String> labelIDs){
+        return setLabels(ordinals, labelIDs, true);
+    }
 
-        }
-        return new Pair(countfail,message);
+    private Pair<Integer, String> setLabels(BitSet ordinals, Set<String> labelIDs, boolean replace){
+        int[] mapping = getLabelOrdinals();
+        BitSet allowed = (BitSet) ordinals.clone();
+        if(allowed.length()>mapping.length)
+            allowed.clear(mapping.length, allowed.length());
+        int ndocs = allowed.cardinality();
+        int errortype = removeOrdinalsNotAllowingLabels(allowed, mapping, labelIDs, replace);
+        if(replace)
+            labelManager.putOnlyTheseLabels(allowed, mapping, labelIDs);
+        else
+            labelManager.setLabels(allowed, mapping, labelIDs);
+        int countfail = ndocs - allowed.cardinality();
+        return new Pair(countfail,labelErrorMessage(ndocs,countfail,errortype));
+    }
+
+    /* same checks as getDocIDsAllowingLabels, over ordinals: clears the ordinals of the docs on which the labels can't be set, and returns the errortype of
+    the last (highest ordinal) failure, as getDocIDsAllowingLabels does for docs in ordinal order. */
+    private int removeOrdinalsNotAllowingLabels(BitSet ordinals, int[] mapping, Set<String> labelIDs, boolean replace){
+        LabelManager lm = getLabelManager();
+        Set<String> timeRestrictedLabels = lm.getRelativeTimedRestrictionLabels();
+        Set<String> timeRestrictions = lm.getTimedRestrictions();
+        DocIndex docIndex = getDocIndex();
+
+        //1. docs that would end up cleared for release along with a timed restriction: check if the restriction has expired
+        BitSet cfr = labelIDs.contains(LabelManager.LABELID_CFR) ? (BitSet) ordinals.clone()
+                : replace ? new BitSet() : lm.docsWithAnyLabel(ordinals, mapping, Collections.singleton(LabelManager.LABELID_CFR));
+        BitSet restricted = Util.setIntersection(labelIDs, timeRestrictions).size()!=0 ? cfr
+                : replace ? new BitSet() : lm.docsWithAnyLabel(cfr, mapping, timeRestrictions);
+        BitSet failedCFR = new BitSet();
+        for(int i = restricted.nextSetBit(0); i>=0; i = restricted.nextSetBit(i+1)){
+            EmailDocument ed = (EmailDocument) docIndex.get(i);
+            Set<String> allLabels = replace ? labelIDs : Util.setUnion(getLabelIDs(ed),labelIDs);
+            if(!isTimeRestrictionExpired(ed,allLabels,timeRestrictions))
+                failedCFR.set(i);
+        }
+        ordinals.andNot(failedCFR);
+
+        //2. docs with a hacky date that would end up with a relative timed restriction
+        BitSet relative = Util.setIntersection(labelIDs, timeRestrictedLabels).size()!=0 ? ordinals
+                : replace ? new BitSet() : lm.docsWithAnyLabel(ordinals, mapping, timeRestrictedLabels);
+        BitSet failedHacky = new BitSet();
+        for(int i = relative.nextSetBit(0); i>=0; i = relative.nextSetBit(i+1))
+            if(((EmailDocument) docIndex.get(i)).hackyDate)
+                failedHacky.set(i);
+        ordinals.andNot(failedHacky);
+
+        if(failedCFR.isEmpty() && failedHacky.isEmpty())
+            return 0;
+        return failedCFR.length() > failedHacky.length() ? 1 : 2;
+    }
+
+    /** @return the label manager's ordinal of each doc of the archive, by ordinal of the doc in getDocIndex(). Rebuilt when the docs or the label manager change */
+    private synchronized int[] getLabelOrdinals(){
+        DocIndex docIndex = getDocIndex();
+        LabelManager lm = getLabelManager();
+        if(labelOrdinals == null || labelOrdinalsManager != lm || labelOrdinalsModCount != allDocsModCount){
+            List<String> docids = new ArrayList<>(docIndex.size());
+            for(int i=0; i<docIndex.size(); i++)
+                docids.add(docIndex.get(i).getUniqueId());
+            labelOrdinals = lm.ordinalsOf(docids);
+            labelOrdinalsManager = lm;
+            labelOrdinalsModCount = allDocsModCount;
+        }
+        return labelOrdinals;
     }
+
     //get all labels for an email document and a given type
     public Set<String> getLabelIDs(EmailDocument edoc){
         return labelManager.getLabelIDs(edoc.getUniqueId());
@@ -362,6 +431,18 @@ int errortype=0;
         entityBookManager = eb;
     }
 
+    /** index of entity mentions used for linking proper nouns, built lazily since it needs the names recognised by NER */
+    public synchronized MentionIndex getMentionIndex() {
+        if (mentionIndex == null)
+            mentionIndex = MentionIndex.build(this);
+        return mentionIndex;
+    }
+
+    /** should be called whenever the names in the archive change, the mention index is rebuilt on the next lookup */
+    public synchronized void clearMentionIndex() {
+        mentionIndex = null;
+    }
+
     /*
      * baseDir is used loosely... it may not be fully reliable, e.g. when the
      * archive moves.
@@ -440,7 +521,13 @@ int errortype=0;
         return indexer.getContentsOfAttachment(fileName);
     }
 
-    public EmailDocument docForId(String id){ return indexer.docForId(id);}
+    /** O(1) lookup of a doc by its unique id, e.g. for doc ids that come from the browser. */
+    public EmailDocument docForId(String id){
+        Document d = getDocIndex().get(id);
+        if (d instanceof EmailDocument)
+            return (EmailDocument) d;
+        return indexer.docForId(id);
+    }
 
 
     public String getTitle(org.apache.lucene.document.Document doc){
@@ -637,6 +724,7 @@ int errortype=0;
             indexer.clear();
         if (allDocs != null)
             allDocs.clear();
+        allDocsModCount++;
         if (allDocsAsSet != null)
             allDocsAsSet.clear();
         ownerEmailAddrs.clear();
@@ -651,6 +739,7 @@ int errortype=0;
     public void setAllDocs(List<Document> docs) {
         log.info("Updating archive's alldocs to new list of " + docs.size() + " docs");
         allDocs = docs;
+        allDocsModCount++;
         allDocsAsSet = null;
 
         // reset all these fields, they will be computed afresh
@@ -757,20 +846,22 @@ int errortype=0;
         return allDocsAsSet;
     }
 
-    public Map<Document,Document> getAllUniqueDocsMap(){
-        // allUniqueDocsMap is lazily computed
-        if (allUniqueDocsMap == null) {
-            synchronized (this) {
-                if (allUniqueDocsMap == null) {
-                    allUniqueDocsMap = new LinkedHashMap<>();
-                    for(Document doc: allDocsAsSet)
-                        allUniqueDocsMap.put(doc,doc);
-                    Util.softAssert(allUniqueDocsMap.size() == allDocsAsSet.size(),log);
-                }
-            }
+    /**
+     * @return the docId -> ordinal -> doc index over getAllDocs(). it is rebuilt if allDocs has been replaced or modified behind its back,
+     * so callers should not hold on to it across changes to the archive.
+     */
+    public DocIndex getDocIndex(){
+        List<Document> docs = getAllDocs();
+        synchronized (this) {
+            if (docIndex == null || !docIndex.isCurrent(docs, allDocsModCount))
+                docIndex = new DocIndex(docs, allDocsModCount);
+            return docIndex;
         }
-        return allUniqueDocsMap;
+    }
 
+    /** @return the doc in the archive that is equal to (i.e. is a duplicate of) the given doc, null if none */
+    public Document getEqualDoc(Document doc){
+        return getDocIndex().getEqual(doc);
     }
 
 
@@ -799,7 +890,7 @@ int errortype=0;
             log.warn ("Warning: lexicon is null!");
             return new LinkedHashMap<>();
         }
-        return lex.getEmotions(indexer, getAllDocsAsSet(), false /* doNota */, originalContentOnly, captions);
+        return lex.getEmotions(this, getAllDocsAsSet(), false /* doNota */, originalContentOnly, captions);
     }
 
     /**
@@ -870,7 +961,9 @@ int errortype=0;
 
         getAllDocsAsSet().add(doc);
         getAllDocs().add(doc);
-        getAllUniqueDocsMap().put(doc,doc);
+        allDocsModCount++;
+        if (docIndex != null)
+            docIndex.added(doc, allDocsModCount);
 
 
         String subject = "", contents = "";
@@ -905,7 +998,9 @@ int errortype=0;
 
         getAllDocsAsSet().add(doc);
         getAllDocs().add(doc);
-        getAllUniqueDocsMap().put(doc,doc);
+        allDocsModCount++;
+        if (docIndex != null)
+            docIndex.added(doc, allDocsModCount);
 
 
         String subject = doc.getSubjectWithoutTitle();
@@ -1150,12 +1245,17 @@ int errortype=0;
     Checks if the timerestrictionlabel applied to a given document has expired or not.
      */
     private boolean isTimeRestrictionExpired(EmailDocument ed, Set<String> timedRestriction){
+        return isTimeRestrictionExpired(ed, getLabelIDs(ed), timedRestriction);
+    }
+
+    /* same as above, with labelIDs as the labels of the doc */
+    private boolean isTimeRestrictionExpired(EmailDocument ed, Set<String> labelIDs, Set<String> timedRestriction){
         //1.means at least one timed restriction label on this doc. Check for the timed data
         //if it is past current date/time then export else dont'
         //2.get those timed restrictions
         boolean isTimedRestrictionExpired=true;
         Date dt = ed.getDate();
-        Set<String> timedrestrictionsInDoc = Util.setIntersection(getLabelIDs(ed),timedRestriction);
+        Set<String> timedrestrictionsInDoc = Util.setIntersection(labelIDs,timedRestriction);
         //if any of the timedrestriction is not satisfied then don't export it.
         for(String labid: timedrestrictionsInDoc){
             Label l = getLabelManager().getLabel(labid);
@@ -1231,6 +1331,7 @@ int errortype=0;
         }else{
             allDocs = new ArrayList<>(retainedDocs);
         }
+        allDocsModCount++;
         Set<String> retainedDocIDs = retainedDocs.stream().map(Document::getUniqueId).collect(Collectors.toSet());
         LabelManager newLabelManager = getLabelManager().getLabelManagerForExport(retainedDocIDs,export_mode);
         setStatusProvider.accept( new StaticStatusProvider(statusmsg+":"+"Exporting LabelManager.."));
@@ -1357,6 +1458,7 @@ after maskEmailDomain.
         // restore states
         setBaseDir(oldBaseDir);
         allDocs = savedAllDocs;
+        allDocsModCount++;
         setLabelManager(oldLabelManager);
         return out_dir;
     }
@@ -1757,11 +1859,13 @@ after maskEmailDomain.
         result.nAttachmentsInCollection = blobStore.uniqueBlobs.size();
         result.accessionDir = other.baseDir;
         for(Document doc: other.getAllDocs()) {
-            if (!getAllDocs().contains(doc)) {
+            if (!containsDoc(doc)) {
                 EmailDocument edoc = (EmailDocument) doc;
                 try {
+                    DocIndex index = getDocIndex();
                     getAllDocs().add(doc);
                     getAllDocsAsSet().add(doc);
+                    index.added(doc, ++allDocsModCount);
                     //add a field called accession id to these documents.
                     getDocIDToAccessionID().put(edoc.getUniqueId(),accessionID);
                     indexer.moveDocAndAttachmentsToThisIndex(other.indexer, edoc,other.getBlobStore(),blobStore);
@@ -1785,6 +1889,7 @@ after maskEmailDomain.
         } catch (IOException e) {
             log.warn("Unable to pack blobstore: Serious error");
         }*/
+        clearMentionIndex();
         result.nFinalMessages = getAllDocs().size();
         result.nFinalAttachments = blobStore.uniqueBlobs.size();
         ///////////////////////Address book merging////////////////////////////////////////////////
@@ -1929,13 +2034,9 @@ after maskEmailDomain.
             labelIdToCount.put (label.getLabelID(), 0);
         }
 
-        for (Document d: docs) {
-            Set<String> labelIds = labelManager.getLabelIDs(d.getUniqueId());
-            for (String labelId: labelIds) {
-                Integer I = labelIdToCount.getOrDefault (labelId, 0);
-                labelIdToCount.put (labelId, I+1);
-            }
-        }
+        // counts are cardinalities of the label bitsets restricted to the docs
+        Set<String> docIds = docs.stream().map(Document::getUniqueId).collect(Collectors.toSet());
+        getLabelManager().getLabelCounts(docIds).forEach((labelId, count) -> labelIdToCount.put(labelId, count));
 
         // sort by count
         List<Pair<String, Integer>> pairs = Util.sortMapByValue(labelIdToCount);
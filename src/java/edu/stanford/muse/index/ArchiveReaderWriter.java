@@ -57,14 +57,16 @@ public class ArchiveReaderWriter{
         //SESSIONS_DIR   = getVarOrDefault("muse.dir.sessions", CACHE_DIR + File.separator + Archive.SESSIONS_SUBDIR); // warning/todo: this "-D" not universally honored yet, e.g., it is hard-coded again in saveSession() (maybe saveSession should actually use getSessinoDir() rather than basing it on cacheDir)
     }
 
-    //#############################################Start: Weak reference cache for the archive object and archive ID################################
+    //#############################################Start: Cache for the archive object and archive ID################################
     // an archive in a given dir should be loaded only once into memory.
-    // this map stores the directory -> archive mapping.
-    private static final LinkedHashMap<String, WeakReference<Archive>> globaldirToArchiveMap = new LinkedHashMap<>();
-    private static final LinkedHashMap<String,Archive> globalArchiveIDToArchiveMap = new LinkedHashMap<>();
-    private static final LinkedHashMap<Archive,String> globalArchiveToArchiveIDMap = new LinkedHashMap<>();
+    // the residency manager stores the directory -> archive and archive ID -> archive mappings, and unloads least recently used
+    // read-only archives when they go over the heap budget. See ArchiveResidencyManager.
+    private static final ArchiveResidencyManager residency = new ArchiveResidencyManager();
+    // locking the global dir might be inefficient if many people are loading different archives at the same time.
+    // not a concern right now. it it does become one, locking a small per-dir object like archiveFile.intern(), along with a ConcurrenctHashMap might handle it.
+    private static final Object loadLock = new Object();
 
-    //#############################################End: Weak reference cache for the archive object and archive#####################################
+    //#############################################End: Cache for the archive object and archive#####################################
 
     //#############################################Start: Reading/loading an archive bag###########################################################
          /**
@@ -614,12 +616,22 @@ public class ArchiveReaderWriter{
         log.info("Saving label mapper to directory " + labMapDir);
         //TEMP: create a map of signature to docid and pass it to Labelmanager.write method.. This is done to expand the csv file's signature to include
         //the signature of the document as well (for readability and debuggability)
-        Map<String,String> docidToSignature = new LinkedHashMap<>();
-        for(Document d: archive.getAllDocsAsSet()){
-            EmailDocument ed = (EmailDocument)d;
-            docidToSignature.put(ed.getUniqueId(),ed.getSignature());
+        //The csv is only an export view of the labels (they are read from a binary file), so it is written only when the archive is created/exported.
+        Map<String,String> docidToSignature = null;
+        if(mode== Archive.Save_Archive_Mode.FRESH_CREATION) {
+            docidToSignature = new LinkedHashMap<>();
+            for (Document d : archive.getAllDocsAsSet()) {
+                EmailDocument ed = (EmailDocument) d;
+                docidToSignature.put(ed.getUniqueId(), ed.getSignature());
+            }
+        }
+        try {
+            archive.getLabelManager().writeObjectToStream(labMapDir, docidToSignature);
+        } catch (IOException e) {
+            //the label files in the dir are left as they were
+            Util.print_exception("Unable to save the label manager to " + labMapDir, e, log);
+            return;
         }
-        archive.getLabelManager().writeObjectToStream(labMapDir,docidToSignature);
 
         //if this was an incremental update in label manager, we need to update the bag's metadata as well..
         if(mode== Archive.Save_Archive_Mode.INCREMENTAL_UPDATE)
@@ -637,11 +649,13 @@ public class ArchiveReaderWriter{
             EmailDocument ed = (EmailDocument)d;
             docidToSignature.put(ed.getUniqueId(),ed.getSignature());
         }
-        archive.getAnnotationManager().writeObjectToStream(annotationcsv,docidToSignature);
+        String annotationdat = archive.getAnnotationManager().writeObjectToStream(annotationcsv,docidToSignature);
 
         //if this was an incremental update in annotation, we need to update the bag's metadata as well..
-        if(mode== Archive.Save_Archive_Mode.INCREMENTAL_UPDATE)
-            archive.updateFileInBag(annotationcsv,baseDir);
+        if(mode== Archive.Save_Archive_Mode.INCREMENTAL_UPDATE) {
+            archive.updateFileInBag(annotationcsv, baseDir);
+            archive.updateFileInBag(annotationdat, baseDir);
+        }
 
 
     }
@@ -752,18 +766,11 @@ public static void saveCollectionMetadata(Archive archive, Archive.Save_Archive_
         }*/
 
         try {
-            // locking the global dir might be inefficient if many people are loading different archives at the same time.
-            // not a concern right now. it it does become one, locking a small per-dir object like archiveFile.intern(), along with a ConcurrenctHashMap might handle it.
-            synchronized (globaldirToArchiveMap) {
-                // the archive is wrapped inside a weak ref to allow the archive object to be collected if there are no references to it (usually the references
-                // are in the user sessions).
-                WeakReference<Archive> wra = getArchiveFromGlobalArchiveMap(baseDir);
-                if (wra != null) {
-                    Archive a = wra.get();
-                    if (a != null) {
-                        log.info("Great, could re-use loaded archive for dir: " + archiveFile + "; archive = " + a);
-                        return a;
-                    }
+            synchronized (loadLock) {
+                Archive resident = residency.get(removeTrailingSlashFromDirName(baseDir));
+                if (resident != null) {
+                    log.info("Great, could re-use loaded archive for dir: " + archiveFile + "; archive = " + resident);
+                    return resident;
                 }
 
                 log.info("Archive not already loaded, reading from dir: " + archiveFile);
@@ -780,7 +787,7 @@ public static void saveCollectionMetadata(Archive archive, Archive.Save_Archive_
 
 
 // no need to read archive authorized authorities, they will be loaded on demand from the legacy authorities.ser file
-                addToGlobalArchiveMap(baseDir,a);
+                addToGlobalArchiveMap(baseDir,a,mode);
                 //check if the loaded archive satisfy the verification condtiions. Call verify method on archive.
                /* JSPHelper.log.info("After reading the archive checking if it is in good shape");
                 a.Verify();*/
@@ -797,6 +804,7 @@ public static void saveCollectionMetadata(Archive archive, Archive.Save_Archive_
                     JSPHelper.log.info("Lexicons summary computed successfully in "+ (System.currentTimeMillis()-startTime) + " milliseconds");
 
                 }
+                residency.enforceBudget();
                 return a;
 
             }
@@ -810,53 +818,84 @@ public static void saveCollectionMetadata(Archive archive, Archive.Save_Archive_
         return new File(dir).getAbsolutePath();
     }
 
-    private static void addToGlobalArchiveMap(String archiveDir, Archive archive){
+    private static void addToGlobalArchiveMap(String archiveDir, Archive archive, ModeConfig.Mode mode){
 
         String s = removeTrailingSlashFromDirName(archiveDir);
-        //add to globalDirmap
-        globaldirToArchiveMap.put(s, new WeakReference<>(archive));
-        //construct archive ID from the tail of the archiveFile (by sha1)
-        String archiveID = Util.hash(s);
-        globalArchiveIDToArchiveMap.put(archiveID,archive);
-        //for reverse mapping
-        globalArchiveToArchiveIDMap.put(archive,archiveID);
-
+        residency.add(s, getArchiveIDForDir(s), archive, mode);
     }
 
     public static void removeFromGlobalArchiveMap(String archiveDir, Archive archive){
         String s = removeTrailingSlashFromDirName(archiveDir);
-        globaldirToArchiveMap.remove(s);
-        //remove from reverse mapping but first get the archive ID.
-        String archiveID = globalArchiveToArchiveIDMap.get(archive);
-        globalArchiveToArchiveIDMap.remove(archive);
-        //remove from archiveID to archive mapping.
-        if(!Util.nullOrEmpty(archiveID))
-            globalArchiveIDToArchiveMap.remove(archiveID);
+        residency.remove(s);
     }
 
+    /** returns a reference to the archive loaded from the given dir, null if it is not in memory (never loaded or evicted) */
     public static WeakReference<Archive> getArchiveFromGlobalArchiveMap(String archiveFile){
         String s = removeTrailingSlashFromDirName(archiveFile);
-        return globaldirToArchiveMap.getOrDefault(s,null);
+        Archive a = residency.get(s);
+        return a == null ? null : new WeakReference<>(a);
     }
 
     //If there is only one archive present in the global map then this funciton returns that
     //else it return null.
     public static Archive getDefaultArchiveFromGlobalArchiveMap(){
-        if(globaldirToArchiveMap.size()==1)
-            return globaldirToArchiveMap.values().iterator().next().get();
+        Collection<String> archiveIDs = residency.getAllArchiveIDs();
+        if(archiveIDs.size()==1)
+            return getArchiveForArchiveID(archiveIDs.iterator().next());
         else
             return null;
     }
 
     //This function returns the archiveID for the given archive
     public static String getArchiveIDForArchive(Archive archive){
+        String archiveID = residency.getArchiveID(archive);
+        //the archive may have been evicted while the caller was holding on to it, the ID is derived from the dir anyway
+        if (archiveID == null && archive != null && !Util.nullOrEmpty(archive.baseDir))
+            archiveID = getArchiveIDForDir(archive.baseDir);
+        return archiveID;
+    }
+
+    //This function returns the archiveID of the archive in the given dir, whether or not it has been loaded
+    public static String getArchiveIDForDir(String archiveDir){
+        //construct archive ID from the tail of the archiveFile (by sha1)
+        return Util.hash(removeTrailingSlashFromDirName(archiveDir));
+    }
 
-        return globalArchiveToArchiveIDMap.getOrDefault(archive,null);
+    /** @return the ID of the archive that prepareAndLoadArchive imports into, null in processing mode where every import creates a new archive */
+    public static String getImportArchiveID(){
+        return ModeConfig.isProcessingMode() ? null : getArchiveIDForDir(CACHE_BASE_DIR + File.separator + "user");
     }
 
-    //This function returns the archive for the given archiveID
+    //This function returns the archive for the given archiveID, reloading it if it was evicted from memory
     public static Archive getArchiveForArchiveID(String archiveID){
-        return globalArchiveIDToArchiveMap.getOrDefault(archiveID,null);
+        Archive a = residency.getByArchiveID(archiveID);
+        if (a != null)
+            return a;
+        String dir = residency.getDir(archiveID);
+        ModeConfig.Mode mode = dir == null ? null : residency.getEvictedMode(dir);
+        if (mode == null)
+            return null;
+        log.info("Archive " + archiveID + " was evicted from memory, reloading from " + dir);
+        return readArchiveIfPresent(dir, mode);
+    }
+
+    /**
+     * marks the archive with the given ID as in use, so that it is not evicted from memory (and its lucene readers closed) under the caller.
+     * must be paired with releaseArchive in a finally block.
+     */
+    public static void acquireArchive(String archiveID){
+        if (archiveID != null)
+            residency.acquire(archiveID);
+    }
+
+    public static void releaseArchive(String archiveID){
+        if (archiveID != null)
+            residency.release(archiveID);
+    }
+
+    /** hit/miss/eviction statistics of the archives in memory */
+    public static Map<String, Object> getResidencyStats(){
+        return residency.getStats();
     }
 
     /**
@@ -920,7 +959,7 @@ public static void saveCollectionMetadata(Archive archive, Archive.Save_Archive_
             archive = JSPHelper.preparedArchive(paramsMap, archiveDir, new ArrayList<>());
             //by this time the archive is created
             // add this to global maps archiveID->archive, archive->archiveID
-            addToGlobalArchiveMap(archiveDir,archive);
+            addToGlobalArchiveMap(archiveDir,archive,ModeConfig.mode);
 
         }
 
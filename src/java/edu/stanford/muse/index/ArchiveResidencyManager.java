@@ -0,0 +1,261 @@
+package edu.stanford.muse.index;
+
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Util;
+import edu.stanford.muse.webapp.ModeConfig;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps track of the archives loaded into memory by ArchiveReaderWriter, and keeps the heap used by them within Config.ARCHIVE_HEAP_BUDGET_MB.
+ * Earlier, loaded archives were held in a dir -> WeakReference map along with strong archiveID -> archive maps, so archives were never unloaded
+ * and piled up in discovery/delivery mode with many collections.
+ *
+ * - residents are kept in LRU order, every lookup of an archive (by dir or by archive ID) counts as a use.
+ * - the footprint of an archive is estimated (see estimateBytes) on a background thread after it is loaded, which also warms up
+ *   the lazily computed caches of the archive, so the first few pages on a newly loaded archive don't pay for them.
+ * - when the estimated footprint of all residents exceeds the budget, least recently used archives that were loaded read-only (i.e. in discovery
+ *   or delivery mode) and have been idle for at least Config.ARCHIVE_MIN_IDLE_SECS are evicted and their lucene readers closed.
+ *   Archives in appraisal/processing mode may have unsaved changes, so they are never evicted.
+ * - archives in use by a request or a job, or held by an http session, are pinned (see acquire/release) and are not evicted until they are released.
+ *   Result sets in ResultSetStore refer to their archive by ID, the data sets they keep around for reuse are dropped when the archive is evicted,
+ *   so that they are recreated on the reloaded archive rather than used with closed lucene readers.
+ * - the dir of an evicted archive is remembered against its archive ID, so that ArchiveReaderWriter can transparently reload it when it is asked for again.
+ *
+ * All methods are thread safe.
+ */
+public class ArchiveResidencyManager {
+    private static final Logger log = LogManager.getLogger(ArchiveResidencyManager.class);
+
+    // rough expansion of the (gzipped, java serialized) session files when deserialized into the heap
+    private static final int SERIALIZED_EXPANSION_FACTOR = 5;
+    // per doc overhead of the caches computed lazily on an archive, like allDocsAsSet, folders etc.
+    private static final int BYTES_PER_DOC = 512;
+
+    private static class Resident {
+        final String dir, archiveID;
+        final Archive archive;
+        final boolean readOnly;
+        final ModeConfig.Mode mode;
+        long estimatedBytes; // 0 until estimated
+        long lastAccessMillis;
+
+        Resident(String dir, String archiveID, Archive archive, ModeConfig.Mode mode) {
+            this.dir = dir;
+            this.archiveID = archiveID;
+            this.archive = archive;
+            this.mode = mode;
+            this.readOnly = mode == ModeConfig.Mode.DISCOVERY || mode == ModeConfig.Mode.DELIVERY;
+            this.lastAccessMillis = System.currentTimeMillis();
+        }
+    }
+
+    // access ordered, so iteration is from the least to the most recently used
+    private final LinkedHashMap<String, Resident> dirToResident = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Resident> archiveIDToResident = new LinkedHashMap<>();
+    private final Map<Archive, Resident> archiveToResident = new IdentityHashMap<>();
+    // all archives ever added (and not explicitly removed), including evicted ones, so that they can be reloaded
+    private final Map<String, String> archiveIDToDir = new LinkedHashMap<>();
+    private final Map<String, ModeConfig.Mode> evictedDirToMode = new LinkedHashMap<>();
+    // archive ID -> number of requests/jobs currently using the archive
+    private final Map<String, Integer> archiveIDToPins = new HashMap<>();
+
+    private long residentBytes;
+    private long hits, misses, reloads, evictions;
+
+    private final ExecutorService warmer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "archive-warmer");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static long budgetBytes() {
+        return Config.ARCHIVE_HEAP_BUDGET_MB * 1024L * 1024L;
+    }
+
+    /** @return the archive loaded from dir, null if it is not resident. counts as a use of the archive */
+    synchronized Archive get(String dir) {
+        Resident r = dirToResident.get(dir);
+        return touch(r);
+    }
+
+    /** @return the archive with the given ID, null if it is not resident. counts as a use of the archive */
+    synchronized Archive getByArchiveID(String archiveID) {
+        Resident r = archiveIDToResident.get(archiveID);
+        if (r != null)
+            dirToResident.get(r.dir); // to update the access order
+        return touch(r);
+    }
+
+    private Archive touch(Resident r) {
+        if (r == null)
+            return null;
+        hits++;
+        r.lastAccessMillis = System.currentTimeMillis();
+        return r.archive;
+    }
+
+    /** @return the dir of an archive that has been seen by this manager, whether or not it is resident now */
+    synchronized String getDir(String archiveID) {
+        return archiveIDToDir.get(archiveID);
+    }
+
+    /** @return the mode in which the archive in dir was loaded before it got evicted, null if it has not been evicted */
+    synchronized ModeConfig.Mode getEvictedMode(String dir) {
+        return evictedDirToMode.get(dir);
+    }
+
+    synchronized String getArchiveID(Archive archive) {
+        Resident r = archiveToResident.get(archive);
+        return r == null ? null : r.archiveID;
+    }
+
+    synchronized int nResident() {
+        return dirToResident.size();
+    }
+
+    synchronized Collection<String> getAllArchiveIDs() {
+        return new ArrayList<>(archiveIDToDir.keySet());
+    }
+
+    /** pins the archive with the given ID (whether or not it is resident yet) so that it is not evicted while in use. every acquire must be followed by a release */
+    synchronized void acquire(String archiveID) {
+        archiveIDToPins.merge(archiveID, 1, Integer::sum);
+    }
+
+    /** unpins the archive, it can be evicted once it has been idle long enough after its last release */
+    synchronized void release(String archiveID) {
+        archiveIDToPins.computeIfPresent(archiveID, (k, n) -> n > 1 ? n - 1 : null);
+        Resident r = archiveIDToResident.get(archiveID);
+        if (r != null)
+            r.lastAccessMillis = System.currentTimeMillis();
+    }
+
+    /** registers an archive just loaded (or created) in dir, and schedules its warm up */
+    void add(String dir, String archiveID, Archive archive, ModeConfig.Mode mode) {
+        Resident r = new Resident(dir, archiveID, archive, mode);
+        synchronized (this) {
+            misses++;
+            if (evictedDirToMode.remove(dir) != null)
+                reloads++;
+            Resident old = dirToResident.put(dir, r);
+            if (old != null)
+                forget(old);
+            archiveIDToResident.put(archiveID, r);
+            archiveToResident.put(archive, r);
+            archiveIDToDir.put(archiveID, dir);
+        }
+        warmer.submit(() -> warmUp(r));
+    }
+
+    /** removes the archive in dir, without closing it, e.g. when it is deleted or moved by the caller */
+    synchronized void remove(String dir) {
+        Resident r = dirToResident.remove(dir);
+        evictedDirToMode.remove(dir);
+        if (r == null)
+            return;
+        forget(r);
+        archiveIDToDir.remove(r.archiveID);
+    }
+
+    private void forget(Resident r) {
+        if (archiveIDToResident.get(r.archiveID) == r)
+            archiveIDToResident.remove(r.archiveID);
+        archiveToResident.remove(r.archive);
+        residentBytes -= r.estimatedBytes;
+    }
+
+    /** estimates the footprint and computes the lazy caches of the archive, then enforces the budget */
+    private void warmUp(Resident r) {
+        long startMillis = System.currentTimeMillis();
+        long bytes = estimateBytes(r);
+        try {
+            r.archive.getAllDocsAsSet();
+            r.archive.getAllFolders();
+            r.archive.getAllEmailSources();
+        } catch (Exception e) {
+            Util.print_exception("Error warming up archive in " + r.dir, e, log);
+        }
+
+        synchronized (this) {
+            // the archive may have been removed in the meanwhile
+            if (dirToResident.get(r.dir) != r)
+                return;
+            residentBytes += bytes - r.estimatedBytes;
+            r.estimatedBytes = bytes;
+        }
+        log.info("Warmed up archive in " + r.dir + " in " + (System.currentTimeMillis() - startMillis) + "ms, estimated footprint: " + (bytes / (1024 * 1024)) + "MB");
+        enforceBudget();
+    }
+
+    private static long estimateBytes(Resident r) {
+        long sessionBytes = 0;
+        File sessionsDir = new File(r.dir + File.separator + Archive.BAG_DATA_FOLDER + File.separator + Archive.SESSIONS_SUBDIR);
+        try {
+            if (sessionsDir.exists())
+                sessionBytes = FileUtils.sizeOfDirectory(sessionsDir);
+        } catch (Exception e) {
+            Util.print_exception("Unable to size " + sessionsDir, e, log);
+        }
+        return sessionBytes * SERIALIZED_EXPANSION_FACTOR + (long) r.archive.getAllDocs().size() * BYTES_PER_DOC;
+    }
+
+    /** evicts least recently used, idle, unpinned, read-only archives until the estimated footprint of the residents is within budget */
+    void enforceBudget() {
+        long budget = budgetBytes();
+        if (budget <= 0)
+            return;
+
+        List<Resident> victims = new ArrayList<>();
+        synchronized (this) {
+            long minIdleMillis = Config.ARCHIVE_MIN_IDLE_SECS * 1000;
+            long now = System.currentTimeMillis();
+            Iterator<Resident> it = dirToResident.values().iterator();
+            while (residentBytes > budget && it.hasNext()) {
+                Resident r = it.next();
+                if (!r.readOnly || r.estimatedBytes == 0 || now - r.lastAccessMillis < minIdleMillis || archiveIDToPins.containsKey(r.archiveID))
+                    continue;
+                it.remove();
+                forget(r);
+                evictedDirToMode.put(r.dir, r.mode);
+                evictions++;
+                victims.add(r);
+            }
+            if (residentBytes > budget)
+                log.warn("Archives in memory are estimated at " + (residentBytes / (1024 * 1024)) + "MB, over the budget of " + Config.ARCHIVE_HEAP_BUDGET_MB + "MB, but none of them can be evicted right now");
+        }
+
+        // close outside the lock, closing the lucene readers can take a while
+        for (Resident r : victims) {
+            log.info("Evicting archive in " + r.dir + " with estimated footprint " + (r.estimatedBytes / (1024 * 1024)) + "MB, idle for " + (System.currentTimeMillis() - r.lastAccessMillis) / 1000 + "s");
+            ResultSetStore.getInstance().archiveEvicted(r.archiveID);
+            try {
+                r.archive.close();
+            } catch (Exception e) {
+                Util.print_exception("Error closing evicted archive in " + r.dir, e, log);
+            }
+        }
+        if (!victims.isEmpty())
+            log.info(getStats());
+    }
+
+    /** @return hit/miss/eviction statistics, for logging and the debug page */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("resident", dirToResident.size());
+        stats.put("residentMB", residentBytes / (1024 * 1024));
+        stats.put("budgetMB", Config.ARCHIVE_HEAP_BUDGET_MB);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("reloads", reloads);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+}
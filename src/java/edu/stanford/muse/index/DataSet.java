@@ -26,7 +26,8 @@ import java.util.*;
 /**
  * a collection of documents, typically the result of a search.
  * each doc has an html representation that is computed lazily and cached.
- * This object will be given an id like "docset-NNNNN" and stored in the session.
+ * This object will be given an id like "docset-NNNNN" and stored in the ResultSetStore, which keeps only the doc ordinals and query params
+ * and recreates the DataSet when needed.
  * Need to release memory when the dataset is not being used, which is done by ajax/releaseDataset.jsp
  */
 public class DataSet {
@@ -56,6 +57,14 @@ public class DataSet {
     public Multimap<String,String> getQueryParams(){
         return queryParams;
     }
+
+    public String getTitle() {
+        return datasetTitle;
+    }
+
+    public SearchResult getSearchResult() {
+        return searchResult;
+    }
     public int size() {
         return docs.size();
     }
@@ -0,0 +1,121 @@
+package edu.stanford.muse.index;
+
+import java.util.*;
+
+/**
+ * The single docId -> ordinal -> Document index of an archive. The ordinal of a doc is its position in archive.getAllDocs().
+ * Use Archive.getDocIndex() to get the index; it is built lazily and rebuilt automatically if allDocs is replaced (e.g. on export) or changed,
+ * as told by the archive's modification count of allDocs. It is kept up to date as docs are added by Archive.addDoc and Archive.merge.
+ *
+ * Besides resolving doc ids coming from the browser in O(1), this lets bulk operations work on sets of ordinals (java.util.BitSet) or
+ * ranges of ordinals instead of materialized collections of docs.
+ * Not serialized; it is cheap to rebuild from allDocs at load.
+ */
+public class DocIndex {
+    private final List<Document> docs; // the archive's allDocs list itself, not a copy
+    private final Map<String, Integer> idToOrdinal;
+    private final Map<Document, Integer> docToOrdinal; // by Document.equals, i.e. to find the copy of a doc already in the archive
+    private int modCount; // the archive's modification count of allDocs that this index is up to date with
+
+    DocIndex(List<Document> docs, int modCount) {
+        this.docs = docs;
+        this.modCount = modCount;
+        idToOrdinal = new HashMap<>(docs.size() * 2);
+        docToOrdinal = new HashMap<>(docs.size() * 2);
+        for (int i = 0; i < docs.size(); i++)
+            index(docs.get(i), i);
+    }
+
+    private void index(Document doc, int ordinal) {
+        idToOrdinal.put(doc.getUniqueId(), ordinal);
+        docToOrdinal.putIfAbsent(doc, ordinal);
+    }
+
+    /** true if this index was built over the given list and is up to date with the given modification count of it */
+    synchronized boolean isCurrent(List<Document> allDocs, int modCount) {
+        return docs == allDocs && this.modCount == modCount;
+    }
+
+    /**
+     * to be called after doc has been appended to the archive's allDocs list, which brought its modification count to modCount.
+     * if the list has been changed otherwise since this index was last current, the index stays stale and will be rebuilt.
+     */
+    synchronized void added(Document doc, int modCount) {
+        if (this.modCount != modCount - 1)
+            return;
+        index(doc, docs.size() - 1);
+        this.modCount = modCount;
+    }
+
+    public synchronized int size() {
+        return docs.size();
+    }
+
+    /** @return the ordinal of the doc with the given unique id, -1 if there is no such doc */
+    public synchronized int ordinalOf(String docId) {
+        Integer ordinal = docId == null ? null : idToOrdinal.get(docId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /** @return the ordinal of the doc equal to the given doc, -1 if there is no such doc */
+    public synchronized int ordinalOf(Document doc) {
+        Integer ordinal = docToOrdinal.get(doc);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public synchronized Document get(int ordinal) {
+        return docs.get(ordinal);
+    }
+
+    /** @return the doc with the given unique id, null if there is no such doc */
+    public synchronized Document get(String docId) {
+        int ordinal = ordinalOf(docId);
+        return ordinal < 0 ? null : docs.get(ordinal);
+    }
+
+    /** @return the copy of the given doc that is in the archive (same message, possibly a different object), null if there is none */
+    public synchronized Document getEqual(Document doc) {
+        int ordinal = ordinalOf(doc);
+        return ordinal < 0 ? null : docs.get(ordinal);
+    }
+
+    /** @return the ordinals of the given docs, docs not in the archive are ignored */
+    public synchronized BitSet toOrdinals(Collection<? extends Document> docs) {
+        BitSet result = new BitSet(this.docs.size());
+        for (Document d : docs) {
+            Integer ordinal = docToOrdinal.get(d);
+            if (ordinal != null)
+                result.set(ordinal);
+        }
+        return result;
+    }
+
+    /** @return the ordinals of the docs with the given unique ids, unknown ids are ignored */
+    public synchronized BitSet toOrdinalsFromIds(Collection<String> docIds) {
+        BitSet result = new BitSet(docs.size());
+        for (String id : docIds) {
+            Integer ordinal = idToOrdinal.get(id);
+            if (ordinal != null)
+                result.set(ordinal);
+        }
+        return result;
+    }
+
+    /** @return the docs with the given ordinals, in ordinal order */
+    public synchronized List<Document> toDocs(BitSet ordinals) {
+        List<Document> result = new ArrayList<>(ordinals.cardinality());
+        for (int i = ordinals.nextSetBit(0); i >= 0 && i < docs.size(); i = ordinals.nextSetBit(i + 1))
+            result.add(docs.get(i));
+        return result;
+    }
+
+    /** @return the ordinals from (inclusive) to (exclusive), clipped to the number of docs */
+    public synchronized BitSet range(int from, int to) {
+        BitSet result = new BitSet(docs.size());
+        from = Math.max(0, from);
+        to = Math.min(to, docs.size());
+        if (from < to)
+            result.set(from, to);
+        return result;
+    }
+}
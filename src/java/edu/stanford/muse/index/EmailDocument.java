@@ -21,6 +21,7 @@ import com.google.common.collect.LinkedHashMultimap;
 import edu.stanford.muse.AddressBookManager.MailingList;
 import edu.stanford.muse.datacache.Blob;
 import edu.stanford.muse.AddressBookManager.AddressBook;
+import edu.stanford.muse.AddressBookManager.AddressBookBuilder;
 import edu.stanford.muse.email.CalendarUtil;
 import edu.stanford.muse.AddressBookManager.Contact;
 import edu.stanford.muse.email.EmailFetcherThread;
@@ -797,24 +798,9 @@ public class EmailDocument extends DatedDocument implements Serializable
 
 	private static void fillAddressBookFromTrustedAddresses(Collection<EmailDocument> docs, Set<String> trustedAddrs, AddressBook addressBook) {
 
-		// 2 passes here: first pass just to unify and find all own email addrs
-		for (EmailDocument ed: docs)
-			addressBook.processContactsFromMessage (ed, trustedAddrs);
-		addressBook.organizeContacts();
-		//		ownAddrs = addressBook.computeAllAddrsFor(ownAddrs);
-
-		//		log.info ("All my email addrs: ");
-		//		for (String s: ownAddrs)
-		//			log.info (s);
-
-		// now look for the real contacts, creating a new contacts set object
-		// reporcess all messages because we may have misclassified messages wrt sent/received in the first round
-		EmailFetcherThread.log.debug ("Second pass processing contacts for " + docs.size() + " messages");
-		//		AddressBook newCS = addressBook.deepClone();
-		addressBook.resetCounts();
-		for (EmailDocument ed: docs)
-			addressBook.processContactsFromMessage(ed, trustedAddrs);
-		addressBook.organizeContacts();
+		// 2 passes here: first pass just to unify and find all own email addrs, the second to reprocess all messages because we may have misclassified messages wrt sent/received in the first round
+		// the builder normalizes the addresses of the messages on several threads and reuses them for both passes
+		new AddressBookBuilder(addressBook).build(docs, trustedAddrs);
 		//now fill summary object inside that addressbook.
 		Collection<Document> alldocs = new ArrayList<>(docs);
 		JSPHelper.log.info("Computing summary of the addressbook");
@@ -46,6 +46,7 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.Version;
 import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
 
 import javax.mail.Address;
 import java.io.*;
@@ -53,6 +54,8 @@ import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /*
  * this class is pretty closely tied with the summarizer (which generates cards  - Muse only.).
@@ -107,6 +110,7 @@ public class Indexer implements StatusProvider, java.io.Serializable {
 	transient private Analyzer analyzer;
 	transient private IndexSearcher isearcher;
 	transient private IndexSearcher	isearcher_blob;
+	transient private TrigramIndex trigramIndex;																// for regex search, see getTrigramIndex
 	transient private QueryParser parser, parserEntityFields, parserOriginal, parserSubject, parserCorrespondents, parserRegex, parserMeta;		// parserOriginal searches the original content (non quoted parts) of a message
 	transient private IndexWriter iwriter;
 	transient private IndexWriter iwriter_blob;
@@ -899,6 +903,7 @@ is what we want.
 			Util.print_exception(e, log);
 		}
 		isearcher_blob = null;
+		trigramIndex = null;
 		try {
 			if (iwriter != null)
 				iwriter.close();
@@ -1275,6 +1280,26 @@ is what we want.
 	}
 
 
+    /**
+     * Calls consumer with (doc id, body names, title names) of every live doc of the emails index, as stored by NER, in index order.
+     * Loads only those fields, in a single sequential pass over the stored fields. The names are null if the doc doesn't have them.
+     */
+    public void forEachStoredNames(Consumer<Triple<String, String, String>> consumer) throws IOException {
+        if (isearcher == null)
+            return;
+        IndexReader r = isearcher.getIndexReader();
+        Bits liveDocs = MultiFields.getLiveDocs(r);
+        Set<String> fieldsToLoad = new HashSet<>(Arrays.asList("docId", NER.NAMES, NER.NAMES_TITLE));
+        for (int i = 0; i < r.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i))
+                continue;
+            org.apache.lucene.document.Document ldoc = r.document(i, fieldsToLoad);
+            if (ldoc == null || ldoc.get("docId") == null)
+                continue;
+            consumer.accept(new Triple<>(ldoc.get("docId"), ldoc.get(NER.NAMES), ldoc.get(NER.NAMES_TITLE)));
+        }
+    }
+
 	public EmailDocument docForId(String id) {
 		return docIdToEmailDoc.get(id);
 	}
@@ -1368,6 +1393,136 @@ is what we want.
 		return result;
 	}
 
+	/**
+	 * Evaluates many queries together, for when the docs of all of them are needed at once, e.g. for all the categories of a lexicon.
+	 * Instead of a search per query, the scorers of all the queries are advanced together in a single pass over each segment of the index
+	 * (segments in parallel), and the docId of a lucene doc is read just once however many of the queries it matches.
+	 * Unlike docsForQuery, the hits are not capped at Config.MAX_DOCS_PER_QUERY. Regexes are looked up one by one with the trigram index.
+	 * @param attachments if true, the queries are run on the attachments index and a hit counts for every doc with that attachment
+	 * @return key -> ordinals (in docIndex) of the docs matching the query of that key. keys whose query is empty or can't be parsed get an empty set
+	 */
+	Map<String, BitSet> ordinalsForQueries(Map<String, String> keyToQuery, QueryType qt, boolean attachments, DocIndex docIndex) throws IOException {
+		Map<String, BitSet> result = new LinkedHashMap<>();
+		for (String key: keyToQuery.keySet())
+			result.put(key, new BitSet(docIndex.size()));
+		IndexSearcher searcher = attachments ? isearcher_blob : isearcher;
+		if (searcher == null)
+			return result;
+
+		if (qt == QueryType.REGEX && !attachments) {
+			// regexes don't go through lucene, see regexLookupAsDocIds
+			for (Map.Entry<String, String> e: keyToQuery.entrySet())
+				result.put(e.getKey(), docIndex.toOrdinalsFromIds(regexLookupAsDocIds(e.getValue())));
+			return result;
+		}
+
+		long st = System.currentTimeMillis();
+		List<String> keys = new ArrayList<>();
+		List<Weight> weights = new ArrayList<>();
+		for (Map.Entry<String, String> e: keyToQuery.entrySet()) {
+			if (Util.nullOrEmpty(e.getValue()))
+				continue;
+			try {
+				weights.add(searcher.createNormalizedWeight(parseQuery(e.getValue(), qt), false /* needsScores */));
+				keys.add(e.getKey());
+			} catch (ParseException pe) {
+				Util.print_exception("Unable to parse the query for " + e.getKey() + ": " + e.getValue(), pe, log);
+			}
+		}
+
+		// attachment -> ordinals of the docs it is attached to
+		Map<Blob, int[]> blobToOrdinals = new HashMap<>();
+		if (attachments) {
+			for (int i = 0; i < docIndex.size(); i++) {
+				Document d = docIndex.get(i);
+				if (!(d instanceof EmailDocument) || ((EmailDocument) d).attachments == null)
+					continue;
+				for (Blob b: ((EmailDocument) d).attachments) {
+					int[] ordinals = blobToOrdinals.get(b);
+					blobToOrdinals.put(b, ordinals == null ? new int[]{i} : ArrayUtils.add(ordinals, i));
+				}
+			}
+		}
+
+		List<BitSet[]> segmentHits;
+		try {
+			segmentHits = searcher.getIndexReader().leaves().parallelStream().map(leaf -> {
+				try {
+					return ordinalsForQueriesInSegment(leaf, weights, attachments, docIndex, blobToOrdinals);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		for (BitSet[] hits: segmentHits)
+			for (int i = 0; i < keys.size(); i++)
+				result.get(keys.get(i)).or(hits[i]);
+		log.info("Took: " + (System.currentTimeMillis() - st) + "ms for " + keys.size() + " queries over " + segmentHits.size() + " segments of the " + (attachments ? INDEX_NAME_ATTACHMENTS : INDEX_NAME_EMAILS) + " index");
+		return result;
+	}
+
+	/** a single pass over the segment, merging the hits of all the weights in doc order */
+	private BitSet[] ordinalsForQueriesInSegment(LeafReaderContext leaf, List<Weight> weights, boolean attachments, DocIndex docIndex, Map<Blob, int[]> blobToOrdinals) throws IOException {
+		int n = weights.size();
+		BitSet[] hits = new BitSet[n];
+		DocIdSetIterator[] its = new DocIdSetIterator[n];
+		for (int i = 0; i < n; i++) {
+			hits[i] = new BitSet();
+			Scorer scorer = weights.get(i).scorer(leaf);
+			if (scorer != null) {
+				its[i] = scorer.iterator();
+				its[i].nextDoc();
+			}
+		}
+
+		LeafReader reader = leaf.reader();
+		Bits liveDocs = reader.getLiveDocs(); // scorers don't skip deleted docs
+		Set<String> fieldsToLoad = Collections.singleton("docId");
+		while (true) {
+			int doc = DocIdSetIterator.NO_MORE_DOCS;
+			for (DocIdSetIterator it: its)
+				if (it != null)
+					doc = Math.min(doc, it.docID());
+			if (doc == DocIdSetIterator.NO_MORE_DOCS)
+				break;
+
+			int[] ordinals = null;
+			if (liveDocs == null || liveDocs.get(doc)) {
+				String docId = reader.document(doc, fieldsToLoad).get("docId");
+				if (attachments) {
+					Blob b = attachmentDocIdToBlob.get(docId);
+					ordinals = b == null ? null : blobToOrdinals.get(b);
+				} else {
+					int ordinal = docIndex.ordinalOf(docId);
+					ordinals = ordinal < 0 ? null : new int[]{ordinal};
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				if (its[i] == null || its[i].docID() != doc)
+					continue;
+				if (ordinals != null)
+					for (int ordinal: ordinals)
+						hits[i].set(ordinal);
+				its[i].nextDoc();
+			}
+		}
+		return hits;
+	}
+
+	/** @return an id for the current state of the indexes, which changes whenever docs are added to or removed from them */
+	String getIndexGeneration() {
+		return readerVersion(isearcher) + "." + readerVersion(isearcher_blob);
+	}
+
+	private static long readerVersion(IndexSearcher searcher) {
+		if (searcher == null)
+			return -1;
+		IndexReader reader = searcher.getIndexReader();
+		return reader instanceof DirectoryReader ? ((DirectoryReader) reader).getVersion() : -1;
+	}
+
     int countHitsForQuery(String q, QueryType qt) {
     	/*
 		if (Util.nullOrEmpty(q)) {
@@ -1509,16 +1664,8 @@ is what we want.
 	}
 
 
-	/**
-	 * returns collection of docIds of the Lucene docs that hit, at least
-	 * threshold times.
-	 * warning! only looks up body field, no others
-     * Caution: This code is not to be touched, unless something is being optimised
-     * Introducing something here can seriously affect the search times.
-	 */
-	private Pair<Collection<String>,Integer> luceneLookupAsDocIdsWithTotalHits(String q, int threshold, IndexSearcher searcher, QueryType qt, int lt) throws IOException, ParseException {
-		Collection<String> result = new ArrayList<>();
-
+	/** @return the lucene query for q, as looked up by the given query type */
+	private Query parseQuery(String q, QueryType qt) throws ParseException {
 		//	String escaped_q = escapeRegex(q); // to mimic built-in regex support
 		//TODO: There should also be a general query type that takes any query with field param, i.e. without parser
 		Query query;
@@ -1560,15 +1707,38 @@ is what we want.
 		} else
 			query = parser.parse(q);
 
+		return query;
+	}
+
+	/**
+	 * returns collection of docIds of the Lucene docs that hit, at least
+	 * threshold times.
+	 * warning! only looks up body field, no others
+     * Caution: This code is not to be touched, unless something is being optimised
+     * Introducing something here can seriously affect the search times.
+	 */
+	private Pair<Collection<String>,Integer> luceneLookupAsDocIdsWithTotalHits(String q, int threshold, IndexSearcher searcher, QueryType qt, int lt) throws IOException, ParseException {
+		Collection<String> result = new ArrayList<>();
+
+		Query query = parseQuery(q, qt);
+
 		//		query = convertRegex(query);
         long st = System.currentTimeMillis();
 		int totalHits = 0;
 		ScoreDoc[] hits = null;
 		if(query!=null) {
-			TopDocs tds = searcher.search(query,  lt, Sort.RELEVANCE);
+			if (threshold <= 1) {
+				TopDocs tds = searcher.search(query, lt, Sort.RELEVANCE);
+				hits = tds.scoreDocs;
+				totalHits = (int) tds.totalHits;
+			} else {
+				// the terms of the query should occur at least threshold times, counted from the postings while collecting (no relevance order)
+				TermFrequencyCollector collector = new TermFrequencyCollector(searcher.rewrite(query), threshold, lt);
+				searcher.search(query, collector);
+				hits = collector.getDocs().stream().map(d -> new ScoreDoc(d, Float.NaN)).toArray(ScoreDoc[]::new);
+				totalHits = collector.getTotalHits();
+			}
 			log.info("Took: " + (System.currentTimeMillis() - st) + "ms for query:" + query);
-			hits = tds.scoreDocs;
-			totalHits = (int)tds.totalHits;
 		}else{
 			log.error("Query is null!!");
 		}
@@ -1607,62 +1777,10 @@ is what we want.
 				continue;
 			}*/
 
-			if (threshold <= 1) {
-				// common case: threshold is 1.
-				result.add(docId);
-				n_added++;
-			} else {
-				// more expensive, do it only if threshold is > 1
-				Explanation expl = searcher.explain(query, hit.doc);
-				Explanation[] details = expl.getDetails();
-				// NB: a catch here is that details.length doesn't reflect the actual # of hits for the query.
-				// sometimes, for a single hit, there are 2 entries, a ComplexExplanation and an Explanation.
-				// not sure why, but is somewhat corroborated by the code:
-				// http://massapi.com/class/ex/Explanation.html
-				// showing a single hit creating both a C.E and an E.
-				// a more robust approach might be to look for the summary to end with product of: , sum of: etc.
-				// e.g. http://www.gossamer-threads.com/lists/lucene/java-dev/49706
-				// but for now, we'll count only the number of ComplexExplanation and check if its above threshold
-				//				log.info("doc id " + hits[i].toString() + " #details = " + details.length);
-
-				// HORRIBLE HACK! - because we don't know a better way to find the threshold
-				outer:
-				for (Explanation detail : details) {
-					// log.info(detail.getClass().getName());
-
-//					if (detail instanceof ComplexExplanation) {
-//						ComplexExplanation ce = (ComplexExplanation) detail;
-						String s = detail.toString();
-						int total_tf = 0;
-						while (true) {
-							int idx = s.indexOf("tf(termFreq(");
-							if (idx < 0)
-								break outer;
-							s = s.substring(idx);
-							idx = s.indexOf("=");
-							if (idx < 0)
-								break outer;
-							s = s.substring(idx + 1);
-							int idx1 = s.indexOf(")");
-							if (idx < 0)
-								break outer;
-							String num_str = s.substring(0, idx1);
-							int num = 0;
-							try {
-								num = Integer.parseInt(num_str);
-							} catch (Exception e) {
-								log.warn("ERROR parsing complex expl: " + num_str);
-							}
-							total_tf += num;
-							if (total_tf >= threshold) {
-								result.add(docId);
-								n_added++;
-								break outer;
-							}
-						}
-					}
-				}
-			}
+			// hits are already limited to the docs meeting the threshold, see TermFrequencyCollector
+			result.add(docId);
+			n_added++;
+		}
 		//}
         log.info(n_added + " docs added to docIdMap cache");
 		return new Pair<>(result, totalHits);
@@ -1670,10 +1788,58 @@ is what we want.
 
 	/** returns collection of docId's that hit, at least threshold times */
 	private Collection<String> lookupAsDocIds(String q, int threshold, IndexSearcher searcher, QueryType qt) throws IOException, ParseException {
+		// regexes are run on the text with the help of the trigram index, so they can span tokens
+		if (qt == QueryType.REGEX && searcher == isearcher)
+			return regexLookupAsDocIds(q);
 		// get as documents, then convert to ids
 		return luceneLookupAsDocIds(q, threshold, searcher, qt);
 	}
 
+	/** @return ids of the docs whose subject, body or attachments match the regex (lucene RegExp syntax) anywhere in the lowercased text */
+	private Collection<String> regexLookupAsDocIds(String q) throws IOException {
+		if (Util.nullOrEmpty(q))
+			return new ArrayList<>();
+		TrigramIndex index = getTrigramIndex();
+		if (index == null)
+			return new ArrayList<>();
+		try {
+			return index.search(q, isearcher.getIndexReader(), isearcher_blob == null ? null : isearcher_blob.getIndexReader());
+		} catch (IllegalArgumentException e) {
+			Util.print_exception("Invalid regex: " + q, e, log);
+			return new ArrayList<>();
+		} catch (TooComplexToDeterminizeException e) {
+			log.warn("Regex is too complex to search: " + q + " (" + e.getMessage() + ")");
+			return new ArrayList<>();
+		}
+	}
+
+	/** @return the trigram index for regex search, read from the indexes dir or built if there is none for the current index. null if there is no index */
+	private synchronized TrigramIndex getTrigramIndex() throws IOException {
+		if (isearcher == null)
+			return null;
+		String generation = getIndexGeneration();
+		if (trigramIndex != null && trigramIndex.getGeneration().equals(generation))
+			return trigramIndex;
+
+		File f = new File(baseDir + File.separator + INDEX_BASE_DIR_NAME + File.separator + TrigramIndex.FILE_NAME);
+		trigramIndex = TrigramIndex.read(f, generation);
+		if (trigramIndex == null) {
+			// an attachment is indexed once, but can be attached to many messages
+			Map<Blob, List<String>> blobToDocIds = new HashMap<>();
+			for (EmailDocument ed: docIdToEmailDoc.values())
+				if (ed.attachments != null)
+					for (Blob b: ed.attachments)
+						blobToDocIds.computeIfAbsent(b, k -> new ArrayList<>()).add(ed.getUniqueId());
+			trigramIndex = TrigramIndex.build(generation, isearcher.getIndexReader(), isearcher_blob == null ? null : isearcher_blob.getIndexReader(), blobDocId -> {
+				Blob b = attachmentDocIdToBlob.get(blobDocId);
+				List<String> docIds = b == null ? null : blobToDocIds.get(b);
+				return docIds == null ? null : docIds.toArray(new String[0]);
+			});
+			trigramIndex.save(f);
+		}
+		return trigramIndex;
+	}
+
 	/** returns collection of EmailDocs that hit */
 	protected Set<EmailDocument> lookupDocs(String q, QueryType qt) throws IOException, ParseException {
 		Collection<String> docIds = luceneLookupAsDocIds(q, 1, isearcher, qt);
@@ -16,8 +16,6 @@
 package edu.stanford.muse.index;
 
 import com.google.common.collect.LinkedHashMultimap;
-import com.google.common.collect.LinkedListMultimap;
-import com.google.common.collect.Multimap;
 import edu.stanford.muse.AddressBookManager.Contact;
 import edu.stanford.muse.Config;
 import edu.stanford.muse.util.EmailUtils;
@@ -65,6 +63,8 @@ public class Lexicon implements Serializable {
 
 	//field to store the summary object for this lexicon.
 	private final transient         Map<String, Integer> L1_Summary_category_count = new LinkedHashMap<>();
+	// docs matching the categories of this lexicon in the body and in the original content only, see getMatches
+	private transient LexiconMatches bodyMatches, originalBodyMatches;
 
 	public Lexicon1Lang getLexiconForLanguage(String language){
 		return languageToLexicon.get(language);
@@ -386,132 +386,82 @@ public class Lexicon implements Serializable {
 
 	}
 
-	/**
-	 * This method reads the lexicon summary data from the disc and fills the structure.
-	 * @param archive
-	 * @return -1 if summary file doesn't exist or the summary is empty, otherwise returns 1.
-	 * @throws IOException
-	 */
-	private int readLexiconSummaryFromFile(Archive archive, String lexiconName) throws IOException {
-		String lexiconsubdir = archive.baseDir+File.separatorChar+Archive.BAG_DATA_FOLDER + File.separatorChar + Archive.LEXICONS_SUBDIR;
-		String lexicon_summary_file = lexiconsubdir + File.separator+ lexiconName+lexiconsummarysuffix;
-			File f =  new File(lexicon_summary_file);
-			if(f.exists()){
-				//read from this file and fill the L1_Summary_category object.
-				StringBuilder sb = new StringBuilder();
-				LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new FileInputStream(f)));
-				while (true)
-				{
-					String line = lnr.readLine();
-					if (line == null)
-						break;
-					line = line.trim();
-					//split the line on separator ## the format of  the line is
-					//lexicon name##count
-					String[] words = line.split("##");
-					//assert that the length of words should be 2.
-					if(words.length!=2) {
-						log.warn("Some problem with the data in the lexicon summary file - " + line);
-						continue;
-					}
-					//convert word[1] to integer
-					int count = Integer.parseInt(words[1]);
-					L1_Summary_category_count.put(words[0],count);
-				}
-				if(L1_Summary_category_count.size()>0)
-					return 1;
-				else
-					return -1;
-			}else{
-				return -1;
-			}
+	private static File lexiconsDir(Archive archive) {
+		return new File(archive.baseDir + File.separatorChar + Archive.BAG_DATA_FOLDER + File.separatorChar + Archive.LEXICONS_SUBDIR);
+	}
 
+	private File matchesFile(Archive archive, boolean originalContentOnly) {
+		return new File(lexiconsDir(archive), name + (originalContentOnly ? "_original" : "") + LexiconMatches.MATCHES_SUFFIX);
 	}
 
 	/**
-	 * This function reads the content of the lexicon summary structure and stores it in the disc in the form of
-	 * lexiconname##count
+	 * returns the docs matching each category of this lexicon, in the body (or only the original content) and, except for the regex lexicon,
+	 * in the attachments of the docs. The matches of all the categories are computed together in a single pass over the index, and
+	 * saved in the lexicons dir so that they are read back from there as long as neither this lexicon nor the index changes.
 	 */
-	private void writeLexiconSummaryToFile(Archive archive, String lexiconName) throws IOException {
-		String lexiconsubdir = archive.baseDir + File.separatorChar + Archive.BAG_DATA_FOLDER + File.separatorChar + Archive.LEXICONS_SUBDIR;
-		String lexicon_summary_file = lexiconsubdir + File.separator+ lexiconName+lexiconsummarysuffix;
-
-		try (BufferedWriter br = new BufferedWriter(new FileWriter(lexicon_summary_file))) {
-
-			//Iterate over L1_Summary_category_count and put the lexicon name and count in the format
-			//name##count
-			for (String lexicon : L1_Summary_category_count.keySet()) {
-				int cnt = L1_Summary_category_count.get(lexicon);
-				String data = lexicon + "##" + Integer.toString(cnt);
-				br.append(data);
-				br.append("\n");
+	public synchronized LexiconMatches getMatches(Archive archive, boolean originalContentOnly) {
+		boolean regex = REGEX_LEXICON_NAME.equals(name);
+		Indexer.QueryType qt = regex ? Indexer.QueryType.REGEX : (originalContentOnly ? Indexer.QueryType.ORIGINAL : Indexer.QueryType.FULL);
+		//regex search doesn't look at the attachments, see SearchResult.filterForLexicons
+		boolean attachments = !regex;
+		Map<String, String> captionToQuery = mergeCaptionToQueryMaps(languageToLexicon.values());
+		String key = LexiconMatches.key(captionToQuery, qt, attachments);
+
+		LexiconMatches matches = originalContentOnly ? originalBodyMatches : bodyMatches;
+		File f = matchesFile(archive, originalContentOnly);
+		if (matches == null || !matches.isCurrent(key, archive)) {
+			matches = LexiconMatches.read(f);
+			if (matches != null && !matches.isCurrent(key, archive))
+				matches = null;
+		}
+		if (matches == null) {
+			try {
+				matches = LexiconMatches.compute(archive, captionToQuery, qt, attachments);
+				matches.save(f);
+			} catch (IOException e) {
+				Util.print_exception("Error computing the matches of lexicon " + name, e, log);
+				return null;
 			}
-
 		}
+		if (originalContentOnly)
+			originalBodyMatches = matches;
+		else
+			bodyMatches = matches;
+		return matches;
 	}
 
 	public void invalidateLexiconSummary(Archive archive,String lexiconName){
-		//delete the lexicon summary persistence file if it exists so that fillL1_Summary method, when executed, will refill the summary object
-		//by querying the index again.
-		String lexiconsubdir = archive.baseDir+File.separatorChar+Archive.BAG_DATA_FOLDER + File.separatorChar + Archive.LEXICONS_SUBDIR;
-		String lexicon_summary_file = lexiconsubdir + File.separator+ lexiconName+lexiconsummarysuffix;
-		File f =  new File(lexicon_summary_file);
-		if(f.exists()){
-			f.delete();
+		//delete the lexicon matches (and the summary file of older versions) if present so that fillL1_Summary method, when executed, will refill the summary object
+		//by querying the index again. this is just to free up the space, the saved matches are not used anyway once the lexicon has changed
+		synchronized (this) {
+			bodyMatches = originalBodyMatches = null;
+		}
+		File dir = lexiconsDir(archive);
+		for (File f: new File[]{new File(dir, lexiconName + lexiconsummarysuffix), matchesFile(archive, false), matchesFile(archive, true)}) {
+			if (f.exists() && !f.delete())
+				log.warn("Unable to delete stale lexicon summary: " + f);
 		}
-
 	}
+
 	/*
 	This method fills the summary object for a particular lexicon
 	 */
 	public void fillL1_Summary(String lexiconName, Archive archive, boolean originalContentOnly){
 		//clear summary objects
 		L1_Summary_category_count.clear();
-		//If the file Lexicon_summary.data is present then read that file and fill in the map L1_Summary_category_count
-		//else fill in by reading index and at the end save this file in the disk with name Lexicon_summary.data
-		try {
-			int res = readLexiconSummaryFromFile(archive, lexiconName);
-			if(res!=-1)
-				return; //means the file was read successfully and the structure was filled.
-		} catch (IOException e) {
-			log.info("Lexicon summary disc file is not readable or present. Please check. Now going to build the summary by querying the index");
-		}
-
-		//If control reaches here then construct the L1_Summary_category_count object by querying the index.
-		//call searchresult from here...
-		List<Document> docs = archive.indexer.docs;
+		//the counts come from the matches of all categories, which are read from the disc if they are current, else computed with a single pass over the index
+		LexiconMatches matches = getMatches(archive, originalContentOnly);
+		if (matches == null)
+			return;
 
 		//Collection<Lexicon1Lang> lexicons  = getRelevantLexicon1Langs(docs); INSTEAD of getting only relevant lexicons get all because for now we are not using the language layer.
 		Collection<Lexicon1Lang> lexicons = languageToLexicon.values();
-
-		// aggregate results for each lang into result
-
 		for (Lexicon1Lang lex: lexicons)
 		{
-			Set<String> categories = ((LinkedHashMap) lex.captionToRawQuery).keySet();
-			for(String category: categories){
-				Multimap<String,String> queryparams = LinkedListMultimap.create();
-				queryparams.put("lexiconName",lexiconName);
-				queryparams.put("lexiconCategory",category);
-				if(originalContentOnly)
-					queryparams.put("termOriginalBody","on");
-				else
-					queryparams.put("termBody","on");
-				queryparams.put("termSubject","on");
-				queryparams.put("termAttachments","on");
-				SearchResult input = new SearchResult(archive,queryparams);
-				SearchResult output = SearchResult.filterForLexicons(input);
-				L1_Summary_category_count.put(category,output.getDocumentSet().size());
-			}
-		}
-		//Once done, save this structure in the disc.
-		try {
-			writeLexiconSummaryToFile(archive,lexiconName);
-		} catch (IOException e) {
-			log.warn("Unable to store lexicon summary object in the disc. Please check as it will impact the loading time of this archive by constructing the summary using index query");
-			e.printStackTrace();
+			//captions that are used only in other captions don't have a query of their own and get a count of 0
+			for(String category: lex.captionToRawQuery.keySet())
+				L1_Summary_category_count.put(category, matches.count(category));
 		}
-
 	}
 	/*
 	This method constructs the JSON object from the summary data and return it.
@@ -563,6 +513,78 @@ public class Lexicon implements Serializable {
 		return result;
 	}
 
+	/** like getEmotions above, but from the matches of the lexicon (see getMatches), without searching the index again for each caption */
+	public Map<String, Collection<Document>> getEmotions (Archive archive, Collection<Document> docs, boolean doNota, boolean originalContentOnly, String... captions)
+	{
+		Map<String, Collection<Document>> result = new LinkedHashMap<>();
+		LexiconMatches matches = getMatches(archive, originalContentOnly);
+		if (matches == null)
+			return result;
+
+		DocIndex docIndex = archive.getDocIndex();
+		BitSet restrictTo = Util.nullOrEmpty(docs) ? null : docIndex.toOrdinals(docs);
+		BitSet withAny = new BitSet(docIndex.size());
+		Collection<String> selectedCaptions = captions.length > 0 ? Arrays.asList(captions) : matches.getCaptions();
+		for (String caption: selectedCaptions)
+		{
+			BitSet ordinals = matches.getBodyOrdinals(caption);
+			if (ordinals == null) {
+				log.warn("Skipping unknown caption '" + caption + "'");
+				continue;
+			}
+			ordinals = (BitSet) ordinals.clone();
+			if (restrictTo != null)
+				ordinals.and(restrictTo);
+			withAny.or(ordinals);
+			// put it in the result only if at least 1 doc matches
+			if (!ordinals.isEmpty())
+				result.put(caption, docIndex.toDocs(ordinals));
+		}
+
+		if (doNota) {
+			BitSet none = restrictTo != null ? (BitSet) restrictTo.clone() : docIndex.range(0, docIndex.size());
+			none.andNot(withAny);
+			result.put("None", docIndex.toDocs(none));
+		}
+		return result;
+	}
+
+	/** like getDocsWithSentiments above, but from the matches of the lexicon (see getMatches) */
+	public Collection<Document> getDocsWithSentiments (String sentiments[], Archive archive, Collection<Document> docs, boolean originalContentOnly, String... captions)
+	{
+		// note: multiple sentiments are possible, they are ANDED
+		if (sentiments == null || sentiments.length == 0)
+			return null;
+		LexiconMatches matches = getMatches(archive, originalContentOnly);
+		if (matches == null)
+			return new LinkedHashSet<>();
+
+		DocIndex docIndex = archive.getDocIndex();
+		BitSet withAny = new BitSet(docIndex.size());
+		for (String caption: (captions.length > 0 ? Arrays.asList(captions) : matches.getCaptions())) {
+			BitSet ordinals = matches.getBodyOrdinals(caption);
+			if (ordinals != null)
+				withAny.or(ordinals);
+		}
+
+		BitSet result = Util.nullOrEmpty(docs) ? docIndex.range(0, docIndex.size()) : docIndex.toOrdinals(docs);
+		if (sentiments.length == 1 && "all".equalsIgnoreCase(sentiments[0]))
+			result.and(withAny);
+		else {
+			for (String sentiment : sentiments) {
+				if ("None".equalsIgnoreCase(sentiment)) {
+					result.andNot(withAny);
+					continue;
+				}
+				BitSet ordinals = matches.getBodyOrdinals(sentiment);
+				if (ordinals == null) // no matches
+					return new LinkedHashSet<>();
+				result.and(ordinals);
+			}
+		}
+		return new LinkedHashSet<>(docIndex.toDocs(result));
+	}
+
 	private Set<Document> getDocsWithAnyEmotions(Indexer indexer, Collection<Document> docs, boolean originalContentOnly)
 	{
 		Set<Document> result = new LinkedHashSet<>();
@@ -629,6 +651,12 @@ public class Lexicon implements Serializable {
 				log.warn ("Warning: no support for " + lang + " in lexicon " + name);
 		}
 
+		return mergeCaptionToQueryMaps(lexicons);
+	}
+
+	/** merges the expanded queries of the given lexicons, the queries for the same caption in different langs are OR'ed */
+	private static Map<String, String> mergeCaptionToQueryMaps(Collection<Lexicon1Lang> lexicons)
+	{
 		Map<String, String> result = new LinkedHashMap<>();
 		// aggregate results for each lang into result
 		for (Lexicon1Lang lex: lexicons)
@@ -0,0 +1,144 @@
+package edu.stanford.muse.index;
+
+import edu.stanford.muse.util.DocIdOrdinals;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The docs matching each category of a lexicon, as bitsets over the ordinals of the docs in the archive (see DocIndex).
+ * All the categories are evaluated together with a single pass over the index (Indexer.ordinalsForQueries) instead of a search per category.
+ *
+ * Matches in the body and in the attachments of a doc are kept apart, since the lexicon summary counts a doc if a category matches either,
+ * while getEmotions and friends look only at the body.
+ * The matches are saved in the lexicons dir of the archive, keyed by a hash of the queries of the lexicon and by the generation of the lucene indexes,
+ * so they are read back as long as neither the lexicon nor the docs in the archive change, and are recomputed on first use after that.
+ */
+public class LexiconMatches {
+    private static final Logger log = LogManager.getLogger(LexiconMatches.class);
+
+    static final String MATCHES_SUFFIX = "_lexicon_matches.dat";
+    private static final int MAGIC = 0x4c584d54; // LXMT
+    private static final int VERSION = 1;
+
+    private final String key;
+    private final String indexGeneration;
+    private final int nDocs;
+    private final Map<String, BitSet> captionToBodyOrdinals = new LinkedHashMap<>();
+    private final Map<String, BitSet> captionToAttachmentOrdinals = new LinkedHashMap<>();
+
+    private LexiconMatches(String key, String indexGeneration, int nDocs) {
+        this.key = key;
+        this.indexGeneration = indexGeneration;
+        this.nDocs = nDocs;
+    }
+
+    /** @return the key of the matches of the given queries, it changes if any caption or query changes */
+    static String key(Map<String, String> captionToQuery, Indexer.QueryType qt, boolean attachments) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(qt).append('\n').append(attachments).append('\n');
+        captionToQuery.forEach((caption, query) -> sb.append(caption).append(':').append(query).append('\n'));
+        return Util.hash(sb.toString());
+    }
+
+    /** true if these matches were computed for the given key on the current index of the archive */
+    boolean isCurrent(String key, Archive archive) {
+        return this.key.equals(key) && indexGeneration.equals(archive.indexer.getIndexGeneration()) && nDocs == archive.getAllDocs().size();
+    }
+
+    /** evaluates all the queries on the index of the archive, the attachments are searched only if attachments is true */
+    static LexiconMatches compute(Archive archive, Map<String, String> captionToQuery, Indexer.QueryType qt, boolean attachments) throws IOException {
+        long start = System.currentTimeMillis();
+        DocIndex docIndex = archive.getDocIndex();
+        // read the generation before searching, so that a concurrent update of the index leaves these matches stale rather than wrongly current
+        LexiconMatches matches = new LexiconMatches(key(captionToQuery, qt, attachments), archive.indexer.getIndexGeneration(), docIndex.size());
+        matches.captionToBodyOrdinals.putAll(archive.indexer.ordinalsForQueries(captionToQuery, qt, false, docIndex));
+        if (attachments)
+            matches.captionToAttachmentOrdinals.putAll(archive.indexer.ordinalsForQueries(captionToQuery, Indexer.QueryType.FULL, true, docIndex));
+        log.info("Computed lexicon matches for " + captionToQuery.size() + " categories in " + (System.currentTimeMillis() - start) + "ms");
+        return matches;
+    }
+
+    /** @return the number of docs matching the caption in their body or attachments, 0 for unknown captions */
+    public int count(String caption) {
+        BitSet body = captionToBodyOrdinals.get(caption), attachments = captionToAttachmentOrdinals.get(caption);
+        if (attachments == null)
+            return body == null ? 0 : body.cardinality();
+        if (body == null)
+            return attachments.cardinality();
+        BitSet union = (BitSet) body.clone();
+        union.or(attachments);
+        return union.cardinality();
+    }
+
+    /** @return the ordinals of the docs whose body matches the caption, null for unknown captions. not to be modified */
+    public BitSet getBodyOrdinals(String caption) {
+        return captionToBodyOrdinals.get(caption);
+    }
+
+    public Set<String> getCaptions() {
+        return Collections.unmodifiableSet(captionToBodyOrdinals.keySet());
+    }
+
+    void save(File f) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeUTF(indexGeneration);
+            out.writeInt(nDocs);
+            writeMap(out, captionToBodyOrdinals);
+            writeMap(out, captionToAttachmentOrdinals);
+        } catch (IOException e) {
+            Util.print_exception("Unable to save lexicon matches to " + f, e, log);
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, BitSet> map) throws IOException {
+        // ordinals are saved as they are, the matches are used only as long as the index (and therefore the docs) stays the same.
+        // same format as DocIdOrdinals.writeBitSet, the cardinality followed by the gaps
+        out.writeInt(map.size());
+        for (Map.Entry<String, BitSet> e : map.entrySet()) {
+            BitSet bits = e.getValue();
+            out.writeUTF(e.getKey());
+            out.writeInt(bits.cardinality());
+            int last = 0;
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                DocIdOrdinals.writeVInt(out, i - last);
+                last = i;
+            }
+        }
+    }
+
+    /** @return the matches saved in f, null if there are none or they cannot be read. the caller should check if they are current */
+    static LexiconMatches read(File f) {
+        if (!f.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring lexicon matches in unknown format: " + f);
+                return null;
+            }
+            LexiconMatches matches = new LexiconMatches(in.readUTF(), in.readUTF(), in.readInt());
+            readMap(in, matches.captionToBodyOrdinals);
+            readMap(in, matches.captionToAttachmentOrdinals);
+            return matches;
+        } catch (Exception e) {
+            Util.print_exception("Unable to read lexicon matches from " + f + ", they will be recomputed", e, log);
+            return null;
+        }
+    }
+
+    private static void readMap(DataInputStream in, Map<String, BitSet> map) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String caption = in.readUTF();
+            map.put(caption, DocIdOrdinals.readBitSet(in));
+        }
+    }
+}
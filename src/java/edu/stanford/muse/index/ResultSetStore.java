@@ -0,0 +1,334 @@
+package edu.stanford.muse.index;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Pair;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/**
+ * Server side store of the result sets (DataSets) of the browse pages, keyed by their docsetID.
+ * Earlier, the DataSet itself, with its list of docs and the SearchResult with highlighting info for every doc, was kept as an HttpSession attribute,
+ * so a curator's session held every result set browsed until the session expired.
+ *
+ * For each result set, only the ordinals of its docs (see DocIndex), in result order, and the query params are kept, i.e. about 4 bytes per hit.
+ * - the DataSet last put or recreated is held through a SoftReference, so it is reused while memory permits. When it is gone, the docs are looked
+ *   up by ordinal and the highlighting info is regenerated by running the query again.
+ * - when the ordinals of all result sets exceed Config.RESULT_SET_STORE_MB, the least recently used ones are spilled to a file in the settings dir
+ *   and read back on the next use.
+ * - result sets not used for Config.RESULT_SET_MAX_AGE_HOURS are dropped, they are not tied to the http session any more.
+ * - if the docs of the archive have changed since (e.g. an export), the result set is dropped rather than showing the wrong docs.
+ *
+ * All methods are thread safe.
+ */
+public class ResultSetStore {
+    private static final Logger log = LogManager.getLogger(ResultSetStore.class);
+    private static final ResultSetStore instance = new ResultSetStore();
+
+    private static final String SPILL_SUBDIR = "resultsets";
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private static class Entry {
+        final String id, archiveID, title;
+        final Multimap<String, String> queryParams;
+        final int size;
+        // ids of the first and last docs, to check that the ordinals still refer to the same docs
+        final String firstDocId, lastDocId;
+        final long paramBytes;
+        int[] ordinals; // null when spilled
+        File spillFile;
+        long lastAccessMillis;
+        SoftReference<DataSet> live;
+
+        Entry(String id, String archiveID, String title, Multimap<String, String> queryParams, int[] ordinals, String firstDocId, String lastDocId) {
+            this.id = id;
+            this.archiveID = archiveID;
+            this.title = title;
+            this.queryParams = queryParams;
+            this.ordinals = ordinals;
+            this.size = ordinals.length;
+            this.firstDocId = firstDocId;
+            this.lastDocId = lastDocId;
+            long bytes = 0;
+            if (queryParams != null)
+                for (Map.Entry<String, String> e : queryParams.entries())
+                    bytes += 2L * (e.getKey().length() + (e.getValue() == null ? 0 : e.getValue().length()));
+            this.paramBytes = bytes;
+            this.lastAccessMillis = System.currentTimeMillis();
+        }
+
+        long residentBytes() {
+            return ENTRY_OVERHEAD_BYTES + paramBytes + (ordinals == null ? 0 : 4L * ordinals.length);
+        }
+    }
+
+    // access ordered, so iteration is from the least to the most recently used
+    private final LinkedHashMap<String, Entry> idToEntry = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes;
+    private long puts, hits, rebuilds, spills, unspills, expired, stale;
+
+    public static ResultSetStore getInstance() {
+        return instance;
+    }
+
+    private static long budgetBytes() {
+        return Config.RESULT_SET_STORE_MB * 1024L * 1024L;
+    }
+
+    private static File spillDir() {
+        return new File(Config.SETTINGS_DIR + File.separator + SPILL_SUBDIR);
+    }
+
+    /** stores the given data set under the given id, replacing any earlier one with that id */
+    public void put(String id, DataSet dataset) {
+        Archive archive = dataset.getSearchResult().getArchive();
+        DocIndex docIndex = archive.getDocIndex();
+        List<Document> docs = dataset.getDocs();
+        int[] ordinals = new int[docs.size()];
+        int n = 0;
+        for (Document d : docs) {
+            int ordinal = docIndex.ordinalOf(d.getUniqueId());
+            if (ordinal >= 0)
+                ordinals[n++] = ordinal;
+        }
+        if (n < ordinals.length) {
+            log.warn(ordinals.length - n + " docs of result set " + id + " are not in the archive, dropping them");
+            ordinals = Arrays.copyOf(ordinals, n);
+        }
+        String firstDocId = n == 0 ? null : docIndex.get(ordinals[0]).getUniqueId();
+        String lastDocId = n == 0 ? null : docIndex.get(ordinals[n - 1]).getUniqueId();
+        Multimap<String, String> params = dataset.getQueryParams() == null ? null : LinkedHashMultimap.create(dataset.getQueryParams());
+
+        Entry e = new Entry(id, ArchiveReaderWriter.getArchiveIDForArchive(archive), dataset.getTitle(), params, ordinals, firstDocId, lastDocId);
+        e.live = new SoftReference<>(dataset);
+        synchronized (this) {
+            puts++;
+            Entry old = idToEntry.put(id, e);
+            if (old != null)
+                forget(old);
+            residentBytes += e.residentBytes();
+            expire();
+            spillOverBudget();
+        }
+    }
+
+    /**
+     * @return the data set with the given id, recreating it if needed. this may run the query again to regenerate the highlighting info.
+     * null if there is no such data set or its docs have changed
+     */
+    public DataSet get(String id) {
+        Entry e;
+        synchronized (this) {
+            e = idToEntry.get(id);
+            if (e == null)
+                return null;
+            e.lastAccessMillis = System.currentTimeMillis();
+            DataSet live = e.live == null ? null : e.live.get();
+            if (live != null) {
+                hits++;
+                return live;
+            }
+        }
+
+        // recreate outside the lock, running the query can take a while
+        Pair<Archive, List<Document>> archiveAndDocs = resolve(e);
+        if (archiveAndDocs == null)
+            return null;
+        long startMillis = System.currentTimeMillis();
+        SearchResult result = SearchResult.selectDocsAndBlobs(new SearchResult(archiveAndDocs.first, e.queryParams)).second;
+        DataSet dataset = new DataSet(archiveAndDocs.second, result, e.title, e.queryParams);
+        log.info("Recreated result set " + id + " with " + e.size + " docs in " + (System.currentTimeMillis() - startMillis) + "ms");
+        synchronized (this) {
+            rebuilds++;
+            if (idToEntry.get(id) == e)
+                e.live = new SoftReference<>(dataset);
+        }
+        return dataset;
+    }
+
+    /**
+     * @return the docs of the data set with the given id, in result order. Cheaper than get() when the highlighting info is not needed,
+     * e.g. to label or export the docs. null if there is no such data set or its docs have changed
+     */
+    public List<Document> getDocs(String id) {
+        Entry e;
+        synchronized (this) {
+            e = idToEntry.get(id);
+            if (e == null)
+                return null;
+            e.lastAccessMillis = System.currentTimeMillis();
+            DataSet live = e.live == null ? null : e.live.get();
+            if (live != null) {
+                hits++;
+                return live.getDocs();
+            }
+        }
+        Pair<Archive, List<Document>> archiveAndDocs = resolve(e);
+        return archiveAndDocs == null ? null : archiveAndDocs.second;
+    }
+
+    /** @return the archive and the docs for the ordinals of the entry, null (and the entry is dropped) if they cannot be resolved */
+    private Pair<Archive, List<Document>> resolve(Entry e) {
+        int[] ordinals = ordinals(e);
+        Archive archive = ordinals == null ? null : ArchiveReaderWriter.getArchiveForArchiveID(e.archiveID);
+        if (archive == null) {
+            log.warn("Unable to recreate result set " + e.id + ", dropping it");
+            release(e.id);
+            return null;
+        }
+
+        DocIndex docIndex = archive.getDocIndex();
+        boolean valid = true;
+        for (int i = 0; valid && i < ordinals.length; i++)
+            valid = ordinals[i] < docIndex.size();
+        if (valid && ordinals.length > 0)
+            valid = e.firstDocId.equals(docIndex.get(ordinals[0]).getUniqueId()) && e.lastDocId.equals(docIndex.get(ordinals[ordinals.length - 1]).getUniqueId());
+        if (!valid) {
+            log.warn("Docs of the archive have changed since result set " + e.id + " was created, dropping it");
+            synchronized (this) {
+                stale++;
+            }
+            release(e.id);
+            return null;
+        }
+
+        List<Document> docs = new ArrayList<>(ordinals.length);
+        for (int ordinal : ordinals)
+            docs.add(docIndex.get(ordinal));
+        return new Pair<>(archive, docs);
+    }
+
+    /** @return the ordinals of the entry, reading them back if spilled. null if they cannot be read */
+    private int[] ordinals(Entry e) {
+        File f;
+        synchronized (this) {
+            if (e.ordinals != null)
+                return e.ordinals;
+            f = e.spillFile;
+        }
+        int[] ordinals = new int[e.size];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+            for (int i = 0; i < ordinals.length; i++)
+                ordinals[i] = in.readInt();
+        } catch (IOException ioe) {
+            Util.print_exception("Unable to read spilled result set " + e.id + " from " + f, ioe, log);
+            return null;
+        }
+        synchronized (this) {
+            // keep it resident again, unless it was dropped or read back by another thread in the meanwhile
+            if (idToEntry.get(e.id) == e && e.ordinals == null) {
+                e.ordinals = ordinals;
+                e.spillFile = null;
+                residentBytes += 4L * ordinals.length;
+                unspills++;
+                f.delete();
+                spillOverBudget();
+            }
+        }
+        return ordinals;
+    }
+
+    /**
+     * drops the data sets kept for reuse on the archive with the given ID, which has been evicted from memory and is about to be closed.
+     * the result sets themselves are kept, their data sets are recreated on the reloaded archive at the next use
+     */
+    synchronized void archiveEvicted(String archiveID) {
+        for (Entry e : idToEntry.values())
+            if (archiveID.equals(e.archiveID))
+                e.live = null;
+    }
+
+    /** drops the data set with the given id. @return false if there was no such data set */
+    public synchronized boolean release(String id) {
+        Entry e = idToEntry.remove(id);
+        if (e == null)
+            return false;
+        forget(e);
+        return true;
+    }
+
+    private void forget(Entry e) {
+        residentBytes -= e.residentBytes();
+        DataSet live = e.live == null ? null : e.live.get();
+        if (live != null)
+            live.clear();
+        e.live = null;
+        if (e.spillFile != null && !e.spillFile.delete())
+            log.warn("Unable to delete spilled result set " + e.spillFile);
+    }
+
+    /** drops the result sets not used for Config.RESULT_SET_MAX_AGE_HOURS */
+    private void expire() {
+        long maxAgeMillis = Config.RESULT_SET_MAX_AGE_HOURS * 3600L * 1000L;
+        if (maxAgeMillis <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = idToEntry.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            // access ordered, so the rest have been used more recently
+            if (now - e.lastAccessMillis < maxAgeMillis)
+                break;
+            it.remove();
+            forget(e);
+            expired++;
+        }
+    }
+
+    /** spills the ordinals of the least recently used result sets until the resident ones are within budget. the most recent one is never spilled */
+    private void spillOverBudget() {
+        long budget = budgetBytes();
+        if (budget <= 0 || residentBytes <= budget)
+            return;
+        File dir = spillDir();
+        dir.mkdirs();
+        int i = 0, last = idToEntry.size() - 1;
+        for (Entry e : idToEntry.values()) {
+            if (residentBytes <= budget || i++ == last)
+                break;
+            if (e.ordinals == null || e.ordinals.length == 0)
+                continue;
+            File f = new File(dir, e.id + ".ords");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+                for (int ordinal : e.ordinals)
+                    out.writeInt(ordinal);
+            } catch (IOException ioe) {
+                Util.print_exception("Unable to spill result set " + e.id + " to " + f, ioe, log);
+                continue;
+            }
+            residentBytes -= 4L * e.ordinals.length;
+            e.ordinals = null;
+            e.spillFile = f;
+            // the DataSet is the bulk of the memory, let it go too
+            e.live = null;
+            spills++;
+        }
+    }
+
+    /** @return statistics, for logging and the debug page */
+    public synchronized Map<String, Object> getStats() {
+        int nSpilled = 0;
+        for (Entry e : idToEntry.values())
+            if (e.spillFile != null)
+                nSpilled++;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("resultSets", idToEntry.size());
+        stats.put("spilled", nSpilled);
+        stats.put("residentKB", residentBytes / 1024);
+        stats.put("budgetMB", Config.RESULT_SET_STORE_MB);
+        stats.put("puts", puts);
+        stats.put("hits", hits);
+        stats.put("rebuilds", rebuilds);
+        stats.put("spills", spills);
+        stats.put("unspills", unspills);
+        stats.put("expired", expired);
+        stats.put("stale", stale);
+        return stats;
+    }
+}
@@ -495,7 +495,7 @@ public class SearchResult {
         for (String docId: docIds) {
             EmailDocument ed = inputSet.archive.docForId (docId);
             if (ed != null)
-                resultDocs.add(inputSet.archive.docForId(docId));
+                resultDocs.add(ed);
         }
 
 
@@ -554,14 +554,15 @@ public class SearchResult {
 
         Set<String> messageIds = Util.splitFieldForOr(val);
 
-        inputSet.matchedDocs = inputSet.matchedDocs.entrySet().stream().filter(k->{
-            EmailDocument ed = (EmailDocument)k.getKey();
-            String messageSig = ed.getUniqueId(); // should be made more efficient by storing the hash inside the ed
-            if (!Util.nullOrEmpty (messageSig))
-                if (messageIds.contains(messageSig))
-                    return true;//resultDocs.add(ed);
-            return false;
-        }).collect(Collectors.toMap(Map.Entry::getKey,Map.Entry::getValue));
+        //resolve the ids through the archive's doc index instead of scanning all the matched docs
+        DocIndex docIndex = inputSet.archive.getDocIndex();
+        Map<Document, Pair<BodyHLInfo,AttachmentHLInfo>> result = new HashMap<>();
+        for (String messageId: messageIds) {
+            Document d = docIndex.get(messageId);
+            if (d != null && inputSet.matchedDocs.containsKey(d))
+                result.put(d, inputSet.matchedDocs.get(d));
+        }
+        inputSet.matchedDocs = result;
 
         //return modified inputSet
         return(inputSet);
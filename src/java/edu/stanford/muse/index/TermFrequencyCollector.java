@@ -0,0 +1,156 @@
+package edu.stanford.muse.index;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the docs matching a query in which the terms of the query occur at least minCount times in all, i.e. the sum of the frequencies
+ * of all its terms and phrases (in all the fields they are looked up in) is at least minCount. With a query like a|b|c this is a min-count
+ * constraint on the OR group, with a single term or phrase it is a constraint on just that.
+ *
+ * Frequencies are read straight from the postings of each segment as the docs are collected: term frequencies from the postings,
+ * exact phrase frequencies by intersecting the positions of the phrase terms. Earlier this was done by calling searcher.explain() on every hit
+ * and parsing the tf values out of the explanation text, which is orders of magnitude slower than the search itself.
+ * Sloppy phrases count once per doc they match, and leaves that have no terms of their own (e.g. wildcard queries) don't count at all, as before.
+ */
+class TermFrequencyCollector extends SimpleCollector {
+    /** a term or phrase of the query whose occurrences are counted */
+    private static class Source {
+        final Term[] terms;
+        final int[] positions; // relative positions of the terms in the phrase
+        final boolean sloppy;
+        PostingsEnum[] postings; // for the current segment, an element is null if the term doesn't occur in the segment
+
+        Source(Term[] terms, int[] positions, boolean sloppy) {
+            this.terms = terms;
+            this.positions = positions;
+            this.sloppy = sloppy;
+        }
+
+        boolean isPhrase() {
+            return terms.length > 1;
+        }
+
+        void setReader(LeafReader reader) throws IOException {
+            postings = new PostingsEnum[terms.length];
+            for (int i = 0; i < terms.length; i++)
+                postings[i] = reader.postings(terms[i], isPhrase() && !sloppy ? PostingsEnum.POSITIONS : PostingsEnum.FREQS);
+        }
+
+        /** @return the number of occurrences in doc, docs must be asked for in increasing order */
+        int freq(int doc) throws IOException {
+            for (PostingsEnum p : postings) {
+                if (p == null)
+                    return 0;
+                if (p.docID() < doc)
+                    p.advance(doc);
+                if (p.docID() != doc)
+                    return 0;
+            }
+            if (!isPhrase())
+                return postings[0].freq();
+            if (sloppy)
+                return 1;
+
+            // positions of the first term at which all the others follow at their relative positions
+            int[][] termPositions = new int[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                PostingsEnum p = postings[i];
+                termPositions[i] = new int[p.freq()];
+                for (int j = 0; j < termPositions[i].length; j++)
+                    termPositions[i][j] = p.nextPosition();
+            }
+            int freq = 0;
+            outer:
+            for (int start : termPositions[0]) {
+                for (int i = 1; i < terms.length; i++)
+                    if (Arrays.binarySearch(termPositions[i], start - positions[0] + positions[i]) < 0)
+                        continue outer;
+                freq++;
+            }
+            return freq;
+        }
+    }
+
+    private final List<Source> sources = new ArrayList<>();
+    private final int minCount, maxDocs;
+    private final List<Integer> docs = new ArrayList<>();
+    private int docBase, totalHits;
+
+    /**
+     * @param query the query as searched, rewritten by the searcher
+     * @param maxDocs stop collecting after these many docs have been accepted
+     */
+    TermFrequencyCollector(Query query, int minCount, int maxDocs) {
+        this.minCount = minCount;
+        this.maxDocs = maxDocs;
+        extractSources(query);
+    }
+
+    private void extractSources(Query query) {
+        if (query instanceof TermQuery)
+            sources.add(new Source(new Term[]{((TermQuery) query).getTerm()}, new int[]{0}, false));
+        else if (query instanceof PhraseQuery) {
+            PhraseQuery pq = (PhraseQuery) query;
+            if (pq.getTerms().length > 0)
+                sources.add(new Source(pq.getTerms(), pq.getPositions(), pq.getSlop() > 0));
+        } else if (query instanceof SynonymQuery) {
+            for (Term t : ((SynonymQuery) query).getTerms())
+                sources.add(new Source(new Term[]{t}, new int[]{0}, false));
+        } else if (query instanceof BoostQuery)
+            extractSources(((BoostQuery) query).getQuery());
+        else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses())
+                if (!clause.isProhibited())
+                    extractSources(clause.getQuery());
+        } else if (query instanceof DisjunctionMaxQuery) {
+            for (Query q : ((DisjunctionMaxQuery) query).getDisjuncts())
+                extractSources(q);
+        }
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        docBase = context.docBase;
+        for (Source s : sources)
+            s.setReader(context.reader());
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        totalHits++;
+        if (docs.size() >= maxDocs)
+            return;
+        int count = 0;
+        for (Source s : sources) {
+            count += s.freq(doc);
+            if (count >= minCount) {
+                docs.add(docBase + doc);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    /** @return the (top level) lucene doc ids of the accepted docs */
+    List<Integer> getDocs() {
+        return docs;
+    }
+
+    /** @return the number of docs matching the query, whether accepted or not */
+    int getTotalHits() {
+        return totalHits;
+    }
+}
@@ -0,0 +1,321 @@
+package edu.stanford.muse.index;
+
+import edu.stanford.muse.util.DocIdOrdinals;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.automaton.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A trigram index over the text of the lucene docs of an archive (subject and body of messages, and the extracted text of attachments),
+ * for regex search. RegexpQuery only matches single (analyzed) tokens, so regexes spanning tokens, like the ones for SSNs, account and
+ * phone numbers, could only be run by reading and scanning the text of every doc.
+ *
+ * A regex search now derives the trigrams any match must contain from the regex (TrigramPlan), intersects/unions their postings to get
+ * candidate docs, and runs the regex only on the text of the candidates, with a DFA (lucene's automaton), i.e. in time linear in the text.
+ * Regexes are in lucene's RegExp syntax as before and are matched anywhere in the lowercased text (find, not whole-token, semantics).
+ *
+ * Units of the index are the lucene docs of the emails index (in lucene doc id order) followed by those of the attachments index.
+ * Postings are kept as gap-encoded bytes. The index is saved in the indexes dir keyed by the generation of the lucene indexes (Indexer.getIndexGeneration),
+ * so it is built once, on the first regex search, and again only after the lucene indexes change.
+ */
+class TrigramIndex {
+    private static final Logger log = LogManager.getLogger(TrigramIndex.class);
+
+    static final String FILE_NAME = "trigrams.gz";
+    private static final int MAGIC = 0x54524947; // TRIG
+    private static final int VERSION = 1;
+
+    private final String generation;
+    private final int nContentUnits; // units [0, nContentUnits) are lucene docs of the emails index, the rest are of the attachments index
+    private final String[][] unitToDocIds; // the email doc ids of each unit, an attachment can be in several messages
+    private final Map<String, byte[]> postings = new HashMap<>();
+
+    private TrigramIndex(String generation, int nContentUnits, String[][] unitToDocIds) {
+        this.generation = generation;
+        this.nContentUnits = nContentUnits;
+        this.unitToDocIds = unitToDocIds;
+    }
+
+    String getGeneration() {
+        return generation;
+    }
+
+    /** the text of a unit, as searched by regexes */
+    private static String text(IndexReader reader, int ldocId, boolean attachment) throws IOException {
+        org.apache.lucene.document.Document ldoc = reader.document(ldocId, attachment ? ATTACHMENT_FIELDS : CONTENT_FIELDS);
+        String body = ldoc.get("body");
+        if (attachment)
+            return body == null ? "" : body;
+        String title = ldoc.get("title");
+        return (title == null ? "" : title) + "\n" + (body == null ? "" : body);
+    }
+
+    private static final Set<String> CONTENT_FIELDS = new HashSet<>(Arrays.asList("docId", "title", "body"));
+    private static final Set<String> ATTACHMENT_FIELDS = new HashSet<>(Arrays.asList("docId", "body"));
+
+    /** growable gap-encoded posting, in the format of DocIdOrdinals.writeVInt */
+    private static class PostingBuilder extends ByteArrayOutputStream {
+        int last;
+
+        PostingBuilder() {
+            super(8);
+        }
+
+        void add(int unit) {
+            int gap = unit - last;
+            while ((gap & ~0x7F) != 0) {
+                write((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            write(gap);
+            last = unit;
+        }
+    }
+
+    /**
+     * builds the index with a single pass over the stored text of both lucene indexes.
+     * @param blobDocIdToDocIds maps the docId of an attachment in the attachments index to the ids of the messages it is attached to
+     */
+    static TrigramIndex build(String generation, IndexReader content, IndexReader blobs, Function<String, String[]> blobDocIdToDocIds) throws IOException {
+        long start = System.currentTimeMillis();
+        int nContentUnits = content == null ? 0 : content.maxDoc();
+        int nUnits = nContentUnits + (blobs == null ? 0 : blobs.maxDoc());
+        String[][] unitToDocIds = new String[nUnits][];
+        Map<String, PostingBuilder> builders = new HashMap<>();
+        long nChars = 0;
+        Bits contentLiveDocs = content == null ? null : MultiFields.getLiveDocs(content);
+        Bits blobLiveDocs = blobs == null ? null : MultiFields.getLiveDocs(blobs);
+        for (int unit = 0; unit < nUnits; unit++) {
+            boolean attachment = unit >= nContentUnits;
+            IndexReader reader = attachment ? blobs : content;
+            int ldocId = attachment ? unit - nContentUnits : unit;
+            Bits liveDocs = attachment ? blobLiveDocs : contentLiveDocs;
+            if (liveDocs != null && !liveDocs.get(ldocId))
+                continue;
+            String docId = reader.document(ldocId, Collections.singleton("docId")).get("docId");
+            if (docId == null)
+                continue;
+            unitToDocIds[unit] = attachment ? blobDocIdToDocIds.apply(docId) : new String[]{docId};
+            if (unitToDocIds[unit] == null || unitToDocIds[unit].length == 0)
+                continue;
+
+            String text = TrigramPlan.fold(text(reader, ldocId, attachment));
+            nChars += text.length();
+            Set<String> trigrams = new HashSet<>();
+            for (int i = 0; i + 3 <= text.length(); i++)
+                trigrams.add(text.substring(i, i + 3));
+            for (String t : trigrams)
+                builders.computeIfAbsent(t, k -> new PostingBuilder()).add(unit);
+        }
+
+        TrigramIndex index = new TrigramIndex(generation, nContentUnits, unitToDocIds);
+        builders.forEach((t, b) -> index.postings.put(t, b.toByteArray()));
+        log.info("Built trigram index of " + index.postings.size() + " trigrams over " + nUnits + " lucene docs (" + (nChars / 1024) + "K chars) in " + (System.currentTimeMillis() - start) + "ms");
+        return index;
+    }
+
+    private BitSet postingOf(String trigram) {
+        BitSet result = new BitSet(unitToDocIds.length);
+        byte[] bytes = postings.get(trigram);
+        if (bytes == null)
+            return result;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int unit = 0;
+            while (in.available() > 0) {
+                unit += DocIdOrdinals.readVInt(in);
+                result.set(unit);
+            }
+        } catch (IOException e) {
+            // reading from memory does not do any I/O
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    /** @return the units that satisfy the plan. decoded holds the postings decoded so far, as the same trigram often occurs in several branches of a plan */
+    private BitSet candidates(TrigramPlan plan, Map<String, BitSet> decoded) {
+        switch (plan.op) {
+            case TRIGRAM:
+                // a copy, since the result may get modified
+                return (BitSet) decoded.computeIfAbsent(plan.trigram, this::postingOf).clone();
+            case AND: {
+                BitSet result = null;
+                for (TrigramPlan sub : plan.subs) {
+                    BitSet b = candidates(sub, decoded);
+                    if (result == null)
+                        result = b;
+                    else
+                        result.and(b);
+                    if (result.isEmpty())
+                        break;
+                }
+                return result;
+            }
+            case OR: {
+                BitSet result = new BitSet(unitToDocIds.length);
+                for (TrigramPlan sub : plan.subs)
+                    result.or(candidates(sub, decoded));
+                return result;
+            }
+            case NONE:
+                return new BitSet(unitToDocIds.length);
+            default: {
+                // no usable trigrams, every unit is a candidate
+                BitSet result = new BitSet(unitToDocIds.length);
+                for (int unit = 0; unit < unitToDocIds.length; unit++)
+                    if (unitToDocIds[unit] != null)
+                        result.set(unit);
+                return result;
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the email docs whose subject, body or attachments match the regex (lucene RegExp syntax) anywhere.
+     * throws IllegalArgumentException if the regex is invalid, TooComplexToDeterminizeException if it is too complex to match at all.
+     */
+    Set<String> search(String regex, IndexReader content, IndexReader blobs) {
+        long start = System.currentTimeMillis();
+        TrigramPlan plan = TrigramPlan.forRegex(regex);
+        BitSet candidates = candidates(plan, new HashMap<>());
+        long planMillis = System.currentTimeMillis() - start;
+
+        Matcher matcher = new Matcher(regex);
+        int[] verified = candidates.stream().parallel().filter(unit -> {
+            boolean attachment = unit >= nContentUnits;
+            try {
+                return matcher.find(text(attachment ? blobs : content, attachment ? unit - nContentUnits : unit, attachment).toLowerCase());
+            } catch (IOException e) {
+                Util.print_exception("Unable to read the text of lucene doc " + unit + " to match regex " + regex, e, log);
+                return false;
+            }
+        }).toArray();
+
+        Set<String> result = new LinkedHashSet<>();
+        for (int unit : verified)
+            result.addAll(Arrays.asList(unitToDocIds[unit]));
+        log.info("Regex " + regex + ": " + candidates.cardinality() + " candidates of " + unitToDocIds.length + " from plan " + plan + " in " + planMillis + "ms, "
+                + verified.length + " verified, " + result.size() + " docs in " + (System.currentTimeMillis() - start) + "ms");
+        return result;
+    }
+
+    /** finds a match of a regex anywhere in a string with a single left to right pass */
+    private static class Matcher {
+        final CharacterRunAutomaton anywhere; // .*regex, null if it is too complex to determinize
+        final CharacterRunAutomaton exact;
+
+        /** throws TooComplexToDeterminizeException if even the regex itself can't be determinized */
+        Matcher(String regex) {
+            Automaton a = new RegExp(regex, RegExp.ALL).toAutomaton();
+            exact = new CharacterRunAutomaton(a);
+            CharacterRunAutomaton r;
+            try {
+                r = new CharacterRunAutomaton(Operations.concatenate(Automata.makeAnyString(), a));
+            } catch (TooComplexToDeterminizeException e) {
+                log.warn("Regex " + regex + " is too complex for a single pass, matching at each offset instead");
+                r = null;
+            }
+            anywhere = r;
+        }
+
+        boolean find(String s) {
+            if (anywhere != null)
+                return acceptsPrefix(anywhere, s, 0);
+            for (int i = 0; i < s.length(); i = s.offsetByCodePoints(i, 1))
+                if (acceptsPrefix(exact, s, i))
+                    return true;
+            return exact.isAccept(0); // the regex matches the empty string
+        }
+
+        /** @return true if the automaton accepts some prefix of s starting at offset */
+        private static boolean acceptsPrefix(CharacterRunAutomaton a, String s, int offset) {
+            int state = 0;
+            if (a.isAccept(state))
+                return true;
+            for (int i = offset; i < s.length(); ) {
+                int c = s.codePointAt(i);
+                state = a.step(state, c);
+                if (state == -1)
+                    return false;
+                if (a.isAccept(state))
+                    return true;
+                i += Character.charCount(c);
+            }
+            return false;
+        }
+    }
+
+    void save(File f) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(generation);
+            out.writeInt(nContentUnits);
+            out.writeInt(unitToDocIds.length);
+            for (String[] docIds : unitToDocIds) {
+                out.writeInt(docIds == null ? -1 : docIds.length);
+                if (docIds != null)
+                    for (String docId : docIds)
+                        out.writeUTF(docId);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, byte[]> e : postings.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+        } catch (IOException e) {
+            Util.print_exception("Unable to save trigram index to " + f, e, log);
+        }
+    }
+
+    /** @return the index saved in f if it is of the given generation, null otherwise or if it can't be read */
+    static TrigramIndex read(File f, String generation) {
+        if (!f.exists())
+            return null;
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring trigram index in unknown format: " + f);
+                return null;
+            }
+            if (!generation.equals(in.readUTF())) {
+                log.info("Ignoring stale trigram index: " + f);
+                return null;
+            }
+            int nContentUnits = in.readInt();
+            String[][] unitToDocIds = new String[in.readInt()][];
+            for (int unit = 0; unit < unitToDocIds.length; unit++) {
+                int n = in.readInt();
+                if (n < 0)
+                    continue;
+                unitToDocIds[unit] = new String[n];
+                for (int i = 0; i < n; i++)
+                    unitToDocIds[unit][i] = in.readUTF();
+            }
+            TrigramIndex index = new TrigramIndex(generation, nContentUnits, unitToDocIds);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String trigram = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                index.postings.put(trigram, bytes);
+            }
+            log.info("Read trigram index of " + n + " trigrams from " + f + " in " + (System.currentTimeMillis() - start) + "ms");
+            return index;
+        } catch (Exception e) {
+            Util.print_exception("Unable to read trigram index from " + f + ", it will be rebuilt", e, log);
+            return null;
+        }
+    }
+}
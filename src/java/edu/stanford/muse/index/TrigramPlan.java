@@ -0,0 +1,460 @@
+package edu.stanford.muse.index;
+
+import java.util.*;
+
+/**
+ * The trigrams a text must contain to possibly match a regex, as an AND/OR tree of trigrams, derived from the syntax of the regex
+ * (in lucene's RegExp syntax with all the optional features on, as used by RegexpQuery elsewhere).
+ * Used with the TrigramIndex to pick the few candidate docs that are worth running the regex on.
+ *
+ * The plan is computed bottom-up over the regex (after the approach of Russ Cox's Google code search): for each sub expression we track
+ * whether it can match the empty string, its exact set of matching strings if small, else sets of possible prefixes and suffixes,
+ * and the trigram query that any match must satisfy. Whatever the planner can't reason about is treated as "any string", so the plan
+ * is always a necessary condition, never a sufficient one.
+ *
+ * Text is folded (see fold) before trigrams are taken, both here and when indexing: lowercased, since regex search
+ * has always been over lowercased text, and with all digits folded into '0', so that patterns like [0-9]{3}-[0-9]{4} have trigrams too.
+ */
+class TrigramPlan {
+    enum Op {ALL, NONE, AND, OR, TRIGRAM}
+
+    // beyond these sizes, sets of strings are given up or trimmed, trading selectivity for a smaller plan
+    private static final int MAX_EXACT = 16;
+    private static final int MAX_SET = 32;
+    private static final int MAX_CLASS = 16;
+    private static final int MAX_REPEAT = 4;
+
+    static final TrigramPlan ALL = new TrigramPlan(Op.ALL, null, Collections.emptyList());
+    static final TrigramPlan NONE = new TrigramPlan(Op.NONE, null, Collections.emptyList());
+
+    final Op op;
+    final String trigram; // for Op.TRIGRAM
+    final List<TrigramPlan> subs; // for Op.AND and Op.OR
+
+    private TrigramPlan(Op op, String trigram, List<TrigramPlan> subs) {
+        this.op = op;
+        this.trigram = trigram;
+        this.subs = subs;
+    }
+
+    static char fold(char c) {
+        c = Character.toLowerCase(c);
+        return Character.isDigit(c) ? '0' : c;
+    }
+
+    static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = fold(chars[i]);
+        return new String(chars);
+    }
+
+    /** @return the plan for the regex, ALL if it has no usable trigrams. throws IllegalArgumentException if the regex can't be parsed */
+    static TrigramPlan forRegex(String regex) {
+        Parser parser = new Parser(regex);
+        Info info = parser.parseUnion();
+        if (parser.pos < regex.length())
+            throw new IllegalArgumentException("Unexpected '" + regex.charAt(parser.pos) + "' at position " + parser.pos + " of regex " + regex);
+        // the regex may match anywhere in the text
+        if (info.exact != null)
+            return and(info.match, trigramsOf(info.exact));
+        return and(info.match, and(trigramsOf(info.prefix), trigramsOf(info.suffix)));
+    }
+
+    private static TrigramPlan and(TrigramPlan a, TrigramPlan b) {
+        if (a.op == Op.NONE || b.op == Op.NONE)
+            return NONE;
+        if (a.op == Op.ALL)
+            return b;
+        if (b.op == Op.ALL)
+            return a;
+        return combine(Op.AND, a, b);
+    }
+
+    private static TrigramPlan or(TrigramPlan a, TrigramPlan b) {
+        if (a.op == Op.ALL || b.op == Op.ALL)
+            return ALL;
+        if (a.op == Op.NONE)
+            return b;
+        if (b.op == Op.NONE)
+            return a;
+        return combine(Op.OR, a, b);
+    }
+
+    private static TrigramPlan combine(Op op, TrigramPlan a, TrigramPlan b) {
+        // flatten nested ops of the same kind, and drop duplicates
+        Set<TrigramPlan> subs = new LinkedHashSet<>();
+        for (TrigramPlan p : new TrigramPlan[]{a, b}) {
+            if (p.op == op)
+                subs.addAll(p.subs);
+            else
+                subs.add(p);
+        }
+        if (subs.size() == 1)
+            return subs.iterator().next();
+        return new TrigramPlan(op, null, new ArrayList<>(subs));
+    }
+
+    /** @return the AND of all the trigrams of s, ALL if s is shorter than a trigram */
+    private static TrigramPlan trigramsOf(String s) {
+        TrigramPlan result = ALL;
+        for (int i = 0; i + 3 <= s.length(); i++)
+            result = and(result, new TrigramPlan(Op.TRIGRAM, s.substring(i, i + 3), Collections.emptyList()));
+        return result;
+    }
+
+    /** @return the OR over the strings of the trigrams of each string, NONE for the empty set */
+    private static TrigramPlan trigramsOf(Set<String> set) {
+        TrigramPlan result = NONE;
+        for (String s : set)
+            result = or(result, trigramsOf(s));
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TrigramPlan))
+            return false;
+        TrigramPlan other = (TrigramPlan) o;
+        return op == other.op && Objects.equals(trigram, other.trigram) && subs.equals(other.subs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(op, trigram, subs);
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case TRIGRAM:
+                return '"' + trigram + '"';
+            case AND:
+            case OR:
+                StringJoiner sj = new StringJoiner(" " + op + " ", "(", ")");
+                subs.forEach(s -> sj.add(s.toString()));
+                return sj.toString();
+            default:
+                return op.toString();
+        }
+    }
+
+    /** what is known about the strings matched by a sub expression of the regex */
+    private static class Info {
+        boolean emptyable; // whether it can match the empty string
+        Set<String> exact; // all the strings it matches, null if unknown or too many
+        Set<String> prefix, suffix; // when exact is null: every match starts with one of the prefixes and ends with one of the suffixes
+        TrigramPlan match = ALL; // the trigrams every match must have (besides those in exact, prefix and suffix)
+
+        static Info anyChar() {
+            Info info = new Info();
+            info.prefix = Collections.singleton("");
+            info.suffix = Collections.singleton("");
+            return info;
+        }
+
+        static Info anyString() {
+            Info info = anyChar();
+            info.emptyable = true;
+            return info;
+        }
+
+        static Info exact(Set<String> strings) {
+            Info info = new Info();
+            info.exact = strings;
+            info.emptyable = strings.contains("");
+            return info;
+        }
+
+        Set<String> prefixOrExact() {
+            return exact != null ? exact : prefix;
+        }
+
+        Set<String> suffixOrExact() {
+            return exact != null ? exact : suffix;
+        }
+
+        /** @return the match, including what the exact set says */
+        TrigramPlan fullMatch() {
+            return exact != null ? and(match, trigramsOf(exact)) : match;
+        }
+
+        /** gives up the exact set, moving its trigrams into match */
+        Info withoutExact() {
+            if (exact == null)
+                return this;
+            Info info = new Info();
+            info.emptyable = emptyable;
+            info.match = fullMatch();
+            info.prefix = exact;
+            info.suffix = exact;
+            return info.simplify();
+        }
+
+        /** keeps the sets small: moves the trigrams of the prefixes and suffixes into match and trims them to 2 chars, or fewer if they are still too many */
+        Info simplify() {
+            if (exact != null && exact.size() > MAX_EXACT)
+                return withoutExact();
+            if (exact != null)
+                return this;
+            if (needsTrim(prefix)) {
+                match = and(match, trigramsOf(prefix));
+                prefix = trim(prefix, true);
+            }
+            if (needsTrim(suffix)) {
+                match = and(match, trigramsOf(suffix));
+                suffix = trim(suffix, false);
+            }
+            return this;
+        }
+
+        private static boolean needsTrim(Set<String> set) {
+            if (set.size() > MAX_SET)
+                return true;
+            for (String s : set)
+                if (s.length() > 2)
+                    return true;
+            return false;
+        }
+
+        private static Set<String> trim(Set<String> set, boolean keepStart) {
+            for (int len = 2; ; len--) {
+                Set<String> result = new LinkedHashSet<>();
+                for (String s : set)
+                    result.add(s.length() <= len ? s : (keepStart ? s.substring(0, len) : s.substring(s.length() - len)));
+                if (result.size() <= MAX_SET || len == 0)
+                    return result;
+            }
+        }
+    }
+
+    private static Set<String> cross(Set<String> a, Set<String> b) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String x : a)
+            for (String y : b)
+                result.add(x + y);
+        return result;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> result = new LinkedHashSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    private static Info concat(Info x, Info y) {
+        if (x.exact != null && y.exact != null && x.exact.size() * y.exact.size() <= MAX_EXACT) {
+            Info info = Info.exact(cross(x.exact, y.exact));
+            info.match = and(x.match, y.match);
+            return info;
+        }
+        Info info = new Info();
+        info.emptyable = x.emptyable && y.emptyable;
+        info.match = and(x.fullMatch(), y.fullMatch());
+        // trigrams across the boundary of x and y
+        Set<String> xs = x.suffixOrExact(), yp = y.prefixOrExact();
+        if (xs.size() * yp.size() <= MAX_SET)
+            info.match = and(info.match, trigramsOf(cross(xs, yp)));
+        if (x.exact != null)
+            info.prefix = cross(x.exact, yp);
+        else
+            info.prefix = x.emptyable ? union(x.prefix, yp) : x.prefix;
+        if (y.exact != null)
+            info.suffix = cross(xs, y.exact);
+        else
+            info.suffix = y.emptyable ? union(y.suffix, xs) : y.suffix;
+        return info.simplify();
+    }
+
+    private static Info alt(Info x, Info y) {
+        if (x.exact != null && y.exact != null && x.exact.size() + y.exact.size() <= MAX_EXACT) {
+            Info info = Info.exact(union(x.exact, y.exact));
+            info.match = or(x.match, y.match);
+            return info;
+        }
+        x = x.withoutExact();
+        y = y.withoutExact();
+        Info info = new Info();
+        info.emptyable = x.emptyable || y.emptyable;
+        info.match = or(x.match, y.match);
+        info.prefix = union(x.prefix, y.prefix);
+        info.suffix = union(x.suffix, y.suffix);
+        return info.simplify();
+    }
+
+    private static Info repeat(Info x, int min, int max) {
+        if (min == 0)
+            return max == 1 ? alt(x, Info.exact(Collections.singleton(""))) : Info.anyString();
+        int n = Math.min(min, MAX_REPEAT);
+        Info info = x;
+        for (int i = 1; i < n; i++)
+            info = concat(info, x);
+        // x{min,max} matches only strings that x{n} followed by anything matches, and that end like x does
+        if (max != min || n < min) {
+            info = concat(info, Info.anyString());
+            if (info.exact == null) {
+                info.suffix = x.suffixOrExact();
+                info = info.simplify();
+            }
+        }
+        return info;
+    }
+
+    /** recursive descent parser for lucene's RegExp syntax (with RegExp.ALL), computing the Info of each expression */
+    private static class Parser {
+        final String s;
+        int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        boolean more() {
+            return pos < s.length();
+        }
+
+        boolean peek(String chars) {
+            return more() && chars.indexOf(s.charAt(pos)) >= 0;
+        }
+
+        boolean match(char c) {
+            if (more() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " of regex " + s);
+        }
+
+        Info parseUnion() {
+            Info info = parseIntersection();
+            while (match('|'))
+                info = alt(info, parseIntersection());
+            return info;
+        }
+
+        Info parseIntersection() {
+            Info info = parseConcat();
+            while (match('&')) {
+                Info other = parseConcat();
+                // matches of both, all we can use is that both matches hold
+                Info both = Info.anyString();
+                both.emptyable = info.emptyable && other.emptyable;
+                both.match = and(info.fullMatch(), other.fullMatch());
+                info = both;
+            }
+            return info;
+        }
+
+        Info parseConcat() {
+            Info info = Info.exact(Collections.singleton(""));
+            while (more() && !peek(")|&"))
+                info = concat(info, parseRepeat());
+            return info;
+        }
+
+        Info parseRepeat() {
+            Info info = parseComplement();
+            while (peek("?*+{")) {
+                if (match('?'))
+                    info = repeat(info, 0, 1);
+                else if (match('*'))
+                    info = Info.anyString();
+                else if (match('+'))
+                    info = repeat(info, 1, -1);
+                else {
+                    match('{');
+                    int min = parseInt(), max = min;
+                    if (match(','))
+                        max = peek("}") ? -1 : parseInt();
+                    if (!match('}'))
+                        throw error("Expected }");
+                    info = repeat(info, min, max);
+                }
+            }
+            return info;
+        }
+
+        int parseInt() {
+            int start = pos;
+            while (more() && Character.isDigit(s.charAt(pos)))
+                pos++;
+            if (start == pos)
+                throw error("Expected a number");
+            return Integer.parseInt(s.substring(start, pos));
+        }
+
+        Info parseComplement() {
+            if (match('~')) {
+                parseComplement();
+                return Info.anyString();
+            }
+            return parseCharClass();
+        }
+
+        Info parseCharClass() {
+            if (!match('['))
+                return parseSimple();
+            boolean negated = match('^');
+            Set<String> chars = new LinkedHashSet<>();
+            boolean tooMany = false;
+            do {
+                char from = parseChar();
+                char to = from;
+                if (match('-'))
+                    to = parseChar();
+                for (int c = from; c <= to && !tooMany; c++) {
+                    chars.add(String.valueOf(fold((char) c)));
+                    tooMany = chars.size() > MAX_CLASS;
+                }
+            } while (more() && !peek("]"));
+            if (!match(']'))
+                throw error("Expected ]");
+            return negated || tooMany ? Info.anyChar() : Info.exact(chars);
+        }
+
+        char parseChar() {
+            match('\\');
+            if (!more())
+                throw error("Unexpected end");
+            return s.charAt(pos++);
+        }
+
+        Info parseSimple() {
+            if (match('.'))
+                return Info.anyChar();
+            if (match('#'))
+                return Info.exact(Collections.emptySet()); // the empty language
+            if (match('@'))
+                return Info.anyString();
+            if (match('"')) {
+                int end = s.indexOf('"', pos);
+                if (end < 0)
+                    throw error("Expected \"");
+                String literal = s.substring(pos, end);
+                pos = end + 1;
+                return Info.exact(Collections.singleton(fold(literal)));
+            }
+            if (match('(')) {
+                if (match(')'))
+                    return Info.exact(Collections.singleton(""));
+                Info info = parseUnion();
+                if (!match(')'))
+                    throw error("Expected )");
+                return info;
+            }
+            if (match('<')) {
+                // named automaton or numeric interval, neither tells us anything useful
+                int end = s.indexOf('>', pos);
+                if (end < 0)
+                    throw error("Expected >");
+                pos = end + 1;
+                return Info.anyString();
+            }
+            return Info.exact(Collections.singleton(String.valueOf(fold(parseChar()))));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package edu.stanford.muse.ner;
 import edu.stanford.muse.email.StatusProvider;
 import edu.stanford.muse.exceptions.CancelledException;
 import edu.stanford.muse.ie.KillPhrases;
+import edu.stanford.muse.ie.variants.EntityStore;
 import edu.stanford.muse.index.Archive;
 import edu.stanford.muse.index.Document;
 import edu.stanford.muse.index.Indexer;
@@ -207,6 +208,8 @@ public class NER implements StatusProvider {
         int ps = 0, ls = 0, os = 0;
 
         long totalTime = 0, updateTime = 0, recTime = 0, duTime = 0, snoTime = 0;
+        //the names are also written to the entity store, doc by doc in ordinal order, so that they needn't be read back from the stored fields
+        EntityStore.Writer storeWriter = new EntityStore.Writer();
         for (Document doc : docs) {
             long st1 = System.currentTimeMillis();
             long st = System.currentTimeMillis();
@@ -258,10 +261,13 @@ public class NER implements StatusProvider {
             }
             //ldoc.removeField(NAMES);ldoc.removeField(NAMES_TITLE);//may be NAMES_ORIGINAL was left to be deleted hence delete docs were added.
 
-            ldoc.add(new StoredField(NAMES,
-                    Util.join(Arrays.stream(names).map(Span::parsablePrint).collect(Collectors.toSet()), Indexer.NAMES_FIELD_DELIMITER)));
-            ldoc.add(new StoredField(NAMES_TITLE,
-                    Util.join(Arrays.stream(namesT).map(Span::parsablePrint).collect(Collectors.toSet()), Indexer.NAMES_FIELD_DELIMITER)));
+            Set<String> namesPrinted = Arrays.stream(names).map(Span::parsablePrint).collect(Collectors.toSet());
+            Set<String> namesTPrinted = Arrays.stream(namesT).map(Span::parsablePrint).collect(Collectors.toSet());
+            ldoc.add(new StoredField(NAMES, Util.join(namesPrinted, Indexer.NAMES_FIELD_DELIMITER)));
+            ldoc.add(new StoredField(NAMES_TITLE, Util.join(namesTPrinted, Indexer.NAMES_FIELD_DELIMITER)));
+            //the store gets the names exactly as they will be parsed back from the fields
+            storeWriter.add(namesPrinted.stream().map(Span::parse).filter(Objects::nonNull).toArray(Span[]::new),
+                    namesTPrinted.stream().map(Span::parse).filter(Objects::nonNull).toArray(Span[]::new));
 
             int ocs = originalContent.length();
             List<String> namesOriginal = Arrays.stream(names).filter(sp->sp.end<ocs).map(Span::parsablePrint).collect(Collectors.toList());
@@ -293,9 +299,14 @@ public class NER implements StatusProvider {
         }
 
         log.info("Trained and recognised entities in " + di + " docs in " + totalTime + "ms" + "\nPerson: " + ps + "\nOrgs:" + os + "\nLocs:" + ls);
+        nerModel.flush();
         archive.close();
         //prepare to read again.
         archive.openForRead();
+        //the names have changed, so the mention index and the entity postings have to be rebuilt
+        archive.clearMentionIndex();
+        archive.getEntityBookManager().clearPostings();
+        archive.getEntityBookManager().saveEntityStore(storeWriter);
     }
 
 
@@ -39,6 +39,7 @@ public class EnglishDictionary {
     private static Set<String> commonNames;
     private static Multimap<String,String> abbDict;
     private static Multimap<String,Pair<String,Integer>> tagDict;
+    private static volatile TagFractions tagFractions;
     //word -> <#capitalised,#total>
     private static Map<String,Pair<Integer,Integer>> dictStats;
     public static final List<String> stopWords = Arrays.asList("but", "be", "with", "such", "then", "for", "no", "will", "not", "are", "and", "their", "if", "this", "on", "into", "a", "there", "in", "that", "they", "was", "it", "an", "the", "as", "at", "these", "to", "of" );
@@ -299,7 +300,12 @@ public class EnglishDictionary {
     public static Multimap<String, Pair<String,Integer>> getTagDictionary(){
         if(tagDict!=null)
             return tagDict;
-        tagDict = LinkedHashMultimap.create();
+        tagDict = readTagDictionary();
+        return tagDict;
+    }
+
+    private static Multimap<String, Pair<String,Integer>> readTagDictionary(){
+        Multimap<String, Pair<String,Integer>> dict = LinkedHashMultimap.create();
         Set<String> lines = readFile(tagDictFile);
         for(String line: lines) {
             String[] fields = line.split("\\t");
@@ -307,10 +313,85 @@ public class EnglishDictionary {
                 log.warn("Line: "+line+" not parsed correct!!");
                 continue;
             }
-            try {tagDict.put(fields[0], new Pair<>(fields[2], Integer.parseInt(fields[3])));}
+            try {dict.put(fields[0], new Pair<>(fields[2], Integer.parseInt(fields[3])));}
             catch(NumberFormatException nfe){ log.warn("Cannot parse number from line: "+line);}
         }
-        return tagDict;
+        return dict;
+    }
+
+    /**
+     * The fractions of the tagged occurrences of each token of the tag dictionary that are nouns (or adjectives), precomputed once.
+     * The NER models ask for these for every token of every phrase they label, which used to sum up the tag counts of the token from the
+     * multimap each time; here it is a single lookup in an open addressing table over primitive arrays, and the multimap need not be kept around.
+     */
+    private static class TagFractions {
+        private final String[] tokens;
+        private final float[] nounOrAdj, noun;
+        private final int mask, size;
+
+        TagFractions(Multimap<String, Pair<String,Integer>> dict) {
+            int capacity = Integer.highestOneBit(Math.max(16, dict.keySet().size() * 2 - 1)) << 1;
+            tokens = new String[capacity];
+            nounOrAdj = new float[capacity];
+            noun = new float[capacity];
+            mask = capacity - 1;
+            size = dict.keySet().size();
+            for (String token : dict.keySet()) {
+                int freq = 0, nounOrAdjCount = 0, nounCount = 0;
+                for (Pair<String, Integer> p : dict.get(token)) {
+                    String tag = p.getFirst();
+                    freq += p.getSecond();
+                    if (tag.startsWith("NN") || tag.startsWith("JJ"))
+                        nounOrAdjCount += p.getSecond();
+                    if ("NN".equals(tag) || "NNS".equals(tag) || "NNP".equals(tag) || "NNPS".equals(tag))
+                        nounCount += p.getSecond();
+                }
+                int slot = slot(token);
+                tokens[slot] = token;
+                nounOrAdj[slot] = (float) ((double) nounOrAdjCount / freq);
+                noun[slot] = (float) nounCount / freq;
+            }
+        }
+
+        /** @return the slot of the token, or the empty slot where it would go */
+        private int slot(String token) {
+            int i = token.hashCode() * 0x9E3779B9 & mask;
+            while (tokens[i] != null && !tokens[i].equals(token))
+                i = (i + 1) & mask;
+            return i;
+        }
+
+        float get(float[] fractions, String token) {
+            int i = slot(token);
+            return tokens[i] == null ? Float.NaN : fractions[i];
+        }
+    }
+
+    private static synchronized TagFractions getTagFractions() {
+        if (tagFractions == null) {
+            long start = System.currentTimeMillis();
+            tagFractions = new TagFractions(tagDict != null ? tagDict : readTagDictionary());
+            log.info("Computed noun likelihoods of " + tagFractions.size + " tokens in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return tagFractions;
+    }
+
+    /**
+     * @param token lower cased token
+     * @return fraction of the occurrences of the token tagged as a noun or adjective (NN*, JJ*) in the tag dictionary, NaN if the token is not in it
+     */
+    public static float getNounOrAdjFraction(String token) {
+        TagFractions tf = tagFractions != null ? tagFractions : getTagFractions();
+        return tf.get(tf.nounOrAdj, token);
+    }
+
+    /**
+     * @param token lower cased token
+     * @return fraction of the occurrences of the token tagged as a noun (NN, NNS, NNP, NNPS) in the tag dictionary, NaN if the token is not in it
+     */
+    public static float getNounFraction(String token) {
+        TagFractions tf = tagFractions != null ? tagFractions : getTagFractions();
+        return tf.get(tf.noun, token);
     }
 
     static void testPlurals(){
@@ -0,0 +1,241 @@
+package edu.stanford.muse.ner.model;
+
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.*;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The gazette of an NER model: entity title (lower cased) -> its DBpedia type string, e.g. "barack obama" -> "Person|Agent".
+ *
+ * Earlier the models kept the gazette as a HashMap of millions of strings, deserialized from gazettes.ser.gz every time a model was loaded,
+ * which takes several seconds and hundreds of MB of heap. Here it is compiled into a Lucene FST over the sorted titles (shared prefixes and suffixes
+ * are stored once) whose outputs are ordinals into the few distinct type strings. The compiled form is a flat byte array that is read back
+ * from disk as is, saved under <settings>/ner-cache keyed by a checksum of where the gazette came from, so the map is deserialized only once.
+ *
+ * Lookups are safe from several threads at once.
+ */
+class Gazette {
+    private static final Logger log = LogManager.getLogger(Gazette.class);
+
+    private static final int MAGIC = 0x47415a46; // GAZF
+    private static final int VERSION = 1;
+
+    private final FST<Long> fst; // null if the gazette is empty
+    private final String[] types;
+    private final int size;
+    // checksum of what the gazette was compiled from, the key it is cached under. null if it was compiled from a map directly
+    private String checksum;
+
+    private Gazette(FST<Long> fst, String[] types, int size) {
+        this.fst = fst;
+        this.types = types;
+        this.size = size;
+    }
+
+    /** compiles the given title -> type map */
+    static Gazette compile(Map<String, String> entries) {
+        long start = System.currentTimeMillis();
+        // the fst takes its inputs in sorted order of their utf-8 bytes, which is not quite the order of String.compareTo
+        List<Map.Entry<BytesRef, String>> sorted = new ArrayList<>(entries.size());
+        for (Map.Entry<String, String> e : entries.entrySet())
+            if (e.getKey() != null && e.getValue() != null)
+                sorted.add(new AbstractMap.SimpleEntry<>(new BytesRef(e.getKey()), e.getValue()));
+        sorted.sort(Map.Entry.comparingByKey());
+
+        Map<String, Long> typeOrdinals = new LinkedHashMap<>();
+        PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton();
+        Builder<Long> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, outputs);
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        FST<Long> fst;
+        int n = 0;
+        try {
+            BytesRef prev = null;
+            for (Map.Entry<BytesRef, String> e : sorted) {
+                // titles with malformed surrogates can come out as the same bytes, the first one wins
+                if (e.getKey().equals(prev))
+                    continue;
+                prev = e.getKey();
+                Long ordinal = typeOrdinals.computeIfAbsent(e.getValue(), t -> (long) typeOrdinals.size());
+                builder.add(org.apache.lucene.util.fst.Util.toIntsRef(e.getKey(), scratch), ordinal + 1); // 0 is the fst's "no output"
+                n++;
+            }
+            fst = builder.finish();
+        } catch (IOException e) {
+            // can't happen, the fst is built in memory
+            throw new UncheckedIOException(e);
+        }
+
+        Gazette gazette = new Gazette(fst, typeOrdinals.keySet().toArray(new String[0]), n);
+        log.info("Compiled gazette of " + n + " entries and " + typeOrdinals.size() + " types into " + gazette.ramBytesUsed() / 1024 + "KB in " + (System.currentTimeMillis() - start) + "ms");
+        return gazette;
+    }
+
+    /** @return the type of the title, null if it is not in the gazette */
+    String get(String title) {
+        if (fst == null || title == null)
+            return null;
+        try {
+            Long ordinal = org.apache.lucene.util.fst.Util.get(fst, new BytesRef(title));
+            return ordinal == null || ordinal == 0 ? null : types[(int) (ordinal - 1)];
+        } catch (IOException e) {
+            Util.print_exception("Gazette lookup failed for: " + title, e, log);
+            return null;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return the checksum of what the gazette was compiled from (see cached), null if not known */
+    String getChecksum() {
+        return checksum;
+    }
+
+    long ramBytesUsed() {
+        return fst == null ? 0 : fst.ramBytesUsed();
+    }
+
+    /** @return the entries of the gazette as a map, in sorted order of the titles */
+    Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (fst == null)
+            return map;
+        try {
+            BytesRefFSTEnum<Long> e = new BytesRefFSTEnum<>(fst);
+            BytesRefFSTEnum.InputOutput<Long> io;
+            while ((io = e.next()) != null)
+                map.put(io.input.utf8ToString(), types[(int) (io.output - 1)]);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return map;
+    }
+
+    void save(File f) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+            write(new OutputStreamDataOutput(os));
+        }
+    }
+
+    static Gazette read(File f) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(f), 1 << 16)) {
+            return read(new InputStreamDataInput(is));
+        }
+    }
+
+    /** writes the compiled gazette, to be read back with read(DataInput). also used to embed the gazette in a binary SequenceModel */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeVInt(size);
+        out.writeVInt(types.length);
+        for (String type : types)
+            out.writeString(type);
+        out.writeByte((byte) (fst == null ? 0 : 1));
+        if (fst != null)
+            fst.save(out);
+    }
+
+    static Gazette read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not a compiled gazette, or of an unknown version");
+        int size = in.readVInt();
+        String[] types = new String[in.readVInt()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = in.readString();
+        FST<Long> fst = in.readByte() == 0 ? null : new FST<>(in, PositiveIntOutputs.getSingleton());
+        return new Gazette(fst, types, size);
+    }
+
+    /** @return the file the compiled gazette with the given key is cached in */
+    private static File cacheFile(String key) {
+        return new File(Config.SETTINGS_DIR + File.separator + "ner-cache" + File.separator + key + ".gazette");
+    }
+
+    /**
+     * @return the compiled gazette cached under key, or else the gazette compiled from what source returns, which is then cached under key.
+     * null if the source fails
+     */
+    static Gazette cached(String key, Callable<Map<String, String>> source) {
+        File f = cacheFile(key);
+        if (f.exists()) {
+            long start = System.currentTimeMillis();
+            try {
+                Gazette gazette = read(f);
+                gazette.checksum = key;
+                log.info("Read compiled gazette of " + gazette.size() + " entries from " + f + " in " + (System.currentTimeMillis() - start) + "ms");
+                return gazette;
+            } catch (Exception e) {
+                Util.print_exception("Unable to read compiled gazette from " + f + ", compiling it again", e, log);
+            }
+        }
+
+        Map<String, String> entries;
+        try {
+            entries = source.call();
+        } catch (Exception e) {
+            Util.print_exception("Unable to read the gazette to compile it", e, log);
+            return null;
+        }
+        if (entries == null)
+            return null;
+        Gazette gazette = compile(entries);
+        gazette.checksum = key;
+        try {
+            f.getParentFile().mkdirs();
+            gazette.save(f);
+        } catch (IOException e) {
+            Util.print_exception("Unable to save compiled gazette to " + f + ", it will be compiled again next time", e, log);
+        }
+        return gazette;
+    }
+
+    /**
+     * @return the gazette in the serialized map resource modelDirName/fileName, compiled (or read from the cache if compiled earlier).
+     * null if it can't be read
+     */
+    static Gazette load(String modelDirName, String fileName) {
+        String path = modelDirName + File.separator + fileName;
+        // the cache is keyed by the checksum of the resource, reading the bytes to checksum them is cheap compared to deserializing them
+        String key;
+        try (InputStream is = Config.getResourceAsStream(path)) {
+            if (is == null)
+                return null;
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (DigestInputStream dis = new DigestInputStream(new BufferedInputStream(is, 1 << 16), digest)) {
+                byte[] buf = new byte[1 << 16];
+                while (dis.read(buf) >= 0)
+                    ;
+            }
+            key = Util.byteArrayToHexString(digest.digest());
+        } catch (Exception e) {
+            Util.print_exception("Exception while trying to load gazette from: " + modelDirName, e, log);
+            return null;
+        }
+
+        return cached(key, () -> {
+            long start = System.currentTimeMillis();
+            try (ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(Config.getResourceAsStream(path), 1 << 16)))) {
+                Map<String, String> map = (Map<String, String>) ois.readObject();
+                log.info("Deserialized gazette of " + map.size() + " entries from " + path + " in " + (System.currentTimeMillis() - start) + "ms");
+                return map;
+            }
+        });
+    }
+}
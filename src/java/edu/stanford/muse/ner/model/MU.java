@@ -8,6 +8,8 @@ import edu.stanford.muse.util.Util;
 //import org.apache.commons.logging.LogFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -44,10 +46,17 @@ public class MU implements Serializable {
     //static int NUM_WORDLENGTH_LABELS = 10;
     //feature and the value, for example: <"LEFT: and",200>
     //indicates if the values are final or if they have to be learned
-    private Map<String,Float> muVectorPositive;
+    //null in a mixture read from a binary model until it is first looked at, see vector()
+    private volatile Map<String,Float> muVectorPositive;
     public float numMixture;
     //total number of times, this mixture is considered
     public float numSeen;
+    //the features of a mixture read from a binary model: ids into the model's feature table and their values, in arrays shared by all the mixtures of the model
+    //[featureStart, featureEnd) is the slice of this mixture. Most mixtures are never looked at in a run, so their maps are made only when they are
+    private transient String[] featureTable;
+    private transient int[] featureIds;
+    private transient float[] featureValues;
+    private transient int featureStart, featureEnd;
 
     private MU(String id){
         initialize(id, null);
@@ -56,6 +65,49 @@ public class MU implements Serializable {
     public MU(String id, Map<String, Float> initialParams) {
         initialize(id, initialParams);
     }
+
+    /** a mixture whose features are the slice [start, end) of the ids and values given, which are not copied. see SequenceModel.loadBinaryModel */
+    MU(String id, float numMixture, float numSeen, String[] featureTable, int[] featureIds, float[] featureValues, int start, int end) {
+        this.id = id;
+        this.numMixture = numMixture;
+        this.numSeen = numSeen;
+        this.featureTable = featureTable;
+        this.featureIds = featureIds;
+        this.featureValues = featureValues;
+        this.featureStart = start;
+        this.featureEnd = end;
+    }
+
+    /** @return feature -> value of this mixture, made from the compact form the first time if the mixture was read from a binary model */
+    private Map<String,Float> vector() {
+        Map<String,Float> v = muVectorPositive;
+        if (v == null) {
+            synchronized (this) {
+                if (muVectorPositive == null) {
+                    Map<String,Float> m = new LinkedHashMap<>();
+                    for (int i = featureStart; i < featureEnd; i++)
+                        m.put(featureTable[featureIds[i]], featureValues[i]);
+                    muVectorPositive = m;
+                    featureTable = null;
+                    featureIds = null;
+                    featureValues = null;
+                }
+                v = muVectorPositive;
+            }
+        }
+        return v;
+    }
+
+    /** @return feature -> value of this mixture, not to be modified */
+    Map<String,Float> getFeatures() {
+        return vector();
+    }
+
+    //a mixture read from a binary model is serialized like any other
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        vector();
+        out.defaultWriteObject();
+    }
     //Smooth param alpha is chosen based on alpha*35(ie. number of types) = an evidence number you can trust.
     //with 0.2 it is 0.2*35=7; If the token has appeared at least seven times, I can start believing
     private static final float SMOOTH_PARAM = 0.2f;
@@ -86,8 +138,8 @@ public class MU implements Serializable {
         for(String tl: TYPE_LABELS) {
             if(("T:"+tl).equals(typeLabel)) {
 
-                if(muVectorPositive.containsKey(typeLabel)) {
-                    p1 = muVectorPositive.get(typeLabel);
+                if(vector().containsKey(typeLabel)) {
+                    p1 = vector().get(typeLabel);
                     p2 = numMixture;
                     return (p1 + SMOOTH_PARAM) / (p2 + NEType.getAllTypes().length*SMOOTH_PARAM);
                 }
@@ -142,11 +194,11 @@ public class MU implements Serializable {
         for (String f : features) {
             int v = getNumberOfSymbols(f);
             double val;
-            Float freq = muVectorPositive.get(f);
+            Float freq = vector().get(f);
             val = ((freq==null?0:freq) + SMOOTH_PARAM) / (numMixture + v*SMOOTH_PARAM);
 
             if (Double.isNaN(val)) {
-                log.warn("Found a NaN here: " + f + " " + muVectorPositive.get(f) + ", " + numMixture + ", " + val);
+                log.warn("Found a NaN here: " + f + " " + vector().get(f) + ", " + numMixture + ", " + val);
                 log.warn(toString());
             }
 
@@ -207,8 +259,8 @@ public class MU implements Serializable {
             float fraction = 1;
             if(f.startsWith("L:")) fraction = 1.0f/numLeft;
             if(f.startsWith("R:")) fraction = 1.0f/numRight;
-            if (!muVectorPositive.containsKey(f)) {
-                muVectorPositive.put(f, 0.0f);
+            if (!vector().containsKey(f)) {
+                vector().put(f, 0.0f);
             }
             String dim = f.substring(0,f.indexOf(':'));
             float alpha_k = alpha.getOrDefault(f,0f);
@@ -216,32 +268,41 @@ public class MU implements Serializable {
             assert alpha_k0>=alpha_k;
             //for left and right semantic type: we are supposed to add to numMixture numLeft or numRight times.
             // Instead we correct for that by multiplying the numerator with 1/numLeft or 1/numRight
-            muVectorPositive.put(f, muVectorPositive.get(f) + (fraction*(1+alpha_k)/(1+alpha_k0))*resp);
+            vector().put(f, vector().get(f) + (fraction*(1+alpha_k)/(1+alpha_k0))*resp);
         }
     }
 
+    /** adds the evidence accumulated in other (by add) to this mixture, for EM over several threads. see SequenceModel.Trainer.EM */
+    void addAll(MU other) {
+        numMixture += other.numMixture;
+        numSeen += other.numSeen;
+        Map<String,Float> v = vector();
+        for (Map.Entry<String,Float> e : other.vector().entrySet())
+            v.merge(e.getKey(), e.getValue(), Float::sum);
+    }
+
     public double difference(MU mu){
-        if(this.muVectorPositive == null)
+        if(vector().isEmpty())
             return 0.0;
         double d = 0;
-        for(String str: muVectorPositive.keySet()){
+        for(String str: vector().keySet()){
             double v1 = 0, v2 = 0;
             if(numMixture>0)
-                v1 = muVectorPositive.get(str)/numMixture;
-            if(mu.muVectorPositive.containsKey(str) && mu.numMixture>0)
-                v2 = mu.muVectorPositive.get(str)/mu.numMixture;
+                v1 = vector().get(str)/numMixture;
+            if(mu.vector().containsKey(str) && mu.numMixture>0)
+                v2 = mu.vector().get(str)/mu.numMixture;
             d += Math.pow(v1-v2,2);
         }
         double res = Math.sqrt(d);
         if(Double.isNaN(res)) {
             System.err.println("============================");
-            for(String str: muVectorPositive.keySet()){
-                if(mu.muVectorPositive.get(str)==null){
+            for(String str: vector().keySet()){
+                if(mu.vector().get(str)==null){
                     //that is strange, should not happen through the way this method is being used
                     continue;
                 }
-                System.err.println((muVectorPositive.get(str)/numMixture));
-                System.err.println((mu.muVectorPositive.get(str)/mu.numMixture));
+                System.err.println((vector().get(str)/numMixture));
+                System.err.println((mu.vector().get(str)/mu.numMixture));
             }
             System.err.println(numMixture + "  " + mu.numMixture);
         }
@@ -260,7 +321,7 @@ public class MU implements Serializable {
                 String d = p[i] + labels[i][l];
                 String dim = p[i].substring(0,p[i].length()-1);
 
-                Float v = muVectorPositive.get(d);
+                Float v = vector().get(d);
                 some.put(d, (((v==null)?0:v)) / (numMixture));
             }
             List<Pair<String,Float>> smap;
@@ -292,8 +353,8 @@ public class MU implements Serializable {
                 else
                     d = p[i].replaceAll(":","") + "[" + labels[i][l] + "]";
 
-                if(muVectorPositive.get(k) != null) {
-                    some.put(d, (muVectorPositive.get(k)) / (numMixture));
+                if(vector().get(k) != null) {
+                    some.put(d, (vector().get(k)) / (numMixture));
                 }
                 else
                     some.put(d, 0.0f);
@@ -1,7 +1,6 @@
 package edu.stanford.muse.ner.model;
 
 import au.com.bytecode.opencsv.CSVWriter;
-import com.google.common.collect.Multimap;
 import edu.stanford.muse.Config;
 import edu.stanford.muse.ner.dictionary.EnglishDictionary;
 import edu.stanford.muse.ner.featuregen.FeatureUtils;
@@ -11,6 +10,8 @@ import edu.stanford.muse.ner.tokenize.Tokenizer;
 import edu.stanford.muse.util.*;
 import edu.stanford.muse.util.Util;
 import edu.stanford.muse.webapp.JSPHelper;
+import edu.stanford.muse.wpmine.ResourceTables;
+import edu.stanford.muse.wpmine.SortedStringTable;
 import opennlp.tools.util.featuregen.FeatureGeneratorUtil;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
@@ -22,7 +23,6 @@ import java.io.*;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 //import org.apache.commons.logging.Log;
@@ -73,9 +73,9 @@ public class NBModel implements NERModel, Serializable {
     //mixtures of the BMM model
     private Map<String, MU> mixtures = new LinkedHashMap<>();
     //Keep the ref. to the gazette lists it is trained on so that we can lookup these when extracting entities.
-    private final Map<String,String> gazettes;
+    private final transient Gazette gazettes;
 
-    private NBModel(Map<String, MU> mixtures, Map<String, String> gazettes) {
+    private NBModel(Map<String, MU> mixtures, Gazette gazettes) {
         this.mixtures = mixtures;
         this.gazettes = gazettes;
         {
@@ -179,35 +179,8 @@ public class NBModel implements NERModel, Serializable {
                     p *= 1.0 / Double.MAX_VALUE;
                 continue;
             }
-            //Map<String,Pair<Integer,Integer>> map = EnglishDictionary.getDictStats();
-            //Pair<Integer,Integer> pair = map.get(token);
-            Multimap<String, Pair<String, Integer>> map = EnglishDictionary.getTagDictionary();//getDictStats();
-            Collection<Pair<String, Integer>> pairs = map.get(token);
-
-            if (pairs == null) {
-                //log.warn("Dictionary does not contain: " + token);
-                if (orig.length() == 0) {
-                    if (nonNoun)
-                        p *= 1;
-                    else
-                        p *= 1.0 / Double.MAX_VALUE;
-                }
-                if (orig.charAt(0) == token.charAt(0)) {
-                    if (nonNoun)
-                        p *= 1;
-                    else
-                        p *= 1.0 / Double.MAX_VALUE;
-                } else {
-                    if (nonNoun)
-                        p *= 1.0 / Double.MAX_VALUE;
-                    else
-                        p *= 1.0;
-                }
-                continue;
-            }
-            //double v = (double) pair.getFirst() / (double) pair.getSecond();
-            double v = pairs.stream().filter(pair->pair.first.startsWith("NN")||pair.first.startsWith("JJ")).mapToDouble(pair->pair.second).sum();
-            v /= pairs.stream().mapToDouble(pair->pair.second).sum();
+            //the fraction of occurrences of the token as a noun or adjective, NaN if the token is not in the dictionary
+            double v = EnglishDictionary.getNounOrAdjFraction(token);
             //if (v > 0.25) {
             if(v > 0.25) {
                 if (nonNoun)
@@ -390,21 +363,8 @@ public class NBModel implements NERModel, Serializable {
     }
 
 
-    private static synchronized Map<String,String>  loadGazette(String modelDirName){
-        ObjectInputStream ois;
-        try {
-            ois = new ObjectInputStream(new GZIPInputStream(Config.getResourceAsStream(modelDirName + File.separator + GAZETTE_FILE)));
-            Map<String,String> model = (Map<String, String>) ois.readObject();
-            ois.close();
-            return model;
-        } catch (Exception e) {
-            Util.print_exception("Exception while trying to load gazette from: " + modelDirName, e, log);
-            return null;
-        }
-    }
-
     public static synchronized NBModel loadModelFromRules(String rulesFileName) {
-        Map<String, String> gazette = loadGazette(NBModel.RULES_DIRNAME);
+        Gazette gazette = Gazette.load(NBModel.RULES_DIRNAME, GAZETTE_FILE);
 
         NBModel nbModel = new NBModel(null,gazette);
         String rulesFile = Config.DEFAULT_SETTINGS_DIR+File.separator+rulesFileName;
@@ -478,32 +438,17 @@ public class NBModel implements NERModel, Serializable {
     }
 
 
-    //returns token -> {redirect (can be the same as token), page length of the page it redirects to}
+    //returns token -> {redirect (can be the same as token), page length of the page it redirects to}, from the memory mapped token types table
     private static Map<String,Map<String,Integer>> getTokenTypePriors(){
         Map<String,Map<String,Integer>> pageLengths = new LinkedHashMap<>();
         log.info("Parsing token types...");
-        try{
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(Config.getResourceAsStream("TokenTypes.txt")));
-            String line;
-            while((line=lnr.readLine())!=null){
-                String[] fields = line.split("\\t");
-                if(fields.length!=4){
-                    log.warn("Line --"+line+"-- has an unexpected pattern!");
-                    continue;
-                }
-                int pageLen = Integer.parseInt(fields[3]);
-                String redirect = fields[2];
-                //if the page is not a redirect, then itself is the title
-                if(fields[2] == null || fields[2].equals("null"))
-                    redirect = fields[1];
-                String lc = fields[0].toLowerCase();
-                if(!pageLengths.containsKey(lc))
-                    pageLengths.put(lc, new LinkedHashMap<>());
-                pageLengths.get(lc).put(redirect, pageLen);
-            }
-        }catch(IOException e){
-            e.printStackTrace();
-        }
+        SortedStringTable tokenTypes = ResourceTables.tokenTypes();
+        if (tokenTypes == null)
+            return pageLengths;
+        tokenTypes.forEach((tok, pageAndLen) -> {
+            int idx = pageAndLen.lastIndexOf('\t');
+            pageLengths.computeIfAbsent(tok, k -> new LinkedHashMap<>()).put(pageAndLen.substring(0, idx), Integer.parseInt(pageAndLen.substring(idx + 1)));
+        });
         return pageLengths;
     }
 
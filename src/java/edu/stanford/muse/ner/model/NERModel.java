@@ -11,4 +11,7 @@ public interface NERModel {
     Span[] find (String content);
 
     void setTokenizer(Tokenizer tokenizer);
+
+    /** called when done finding entities in a batch of content, e.g. an archive, so that the model can save whatever it has cached. nothing to do by default */
+    default void flush() {}
 }
@@ -0,0 +1,139 @@
+package edu.stanford.muse.ner.model;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Pair;
+import edu.stanford.muse.util.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Memo of phrase -> labeled segments (the result of SequenceModel.seqLabel) for a model.
+ * The same CIC phrases come up again and again across an archive -- signatures, disclaimers, recurring names and organisations --
+ * and labeling one costs gazette lookups and a dynamic program over the mixtures, so they are labeled only once.
+ *
+ * The memo is bounded (least recently used phrases are dropped beyond MAX_PHRASES) and safe to share between threads.
+ * It can be saved and read back across runs, keyed by the checksum of the model, so that a memo is never used with a model it wasn't built with.
+ */
+class PhraseLabelCache {
+    private static final Logger log = LogManager.getLogger(PhraseLabelCache.class);
+
+    private static final int MAGIC = 0x50484c43; // PHLC
+    private static final int VERSION = 1;
+    private static final int MAX_PHRASES = 500000;
+    private static final int MAX_PHRASE_LENGTH = 1000; // longer phrases are labeled every time, they are unlikely to repeat and writeUTF can't take very long strings
+
+    private final String modelChecksum;
+    private final Cache<String, Map<String, Pair<Short, Double>>> cache = CacheBuilder.newBuilder().maximumSize(MAX_PHRASES).build();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), labelNanos = new LongAdder();
+
+    /** @param modelChecksum checksum of the model, null if it has none, in which case the memo can't be saved */
+    PhraseLabelCache(String modelChecksum) {
+        this.modelChecksum = modelChecksum;
+    }
+
+    /**
+     * @return the labeled segments of the phrase, from the memo, or else labeled with labeler and remembered.
+     * the result is shared and must not be modified
+     */
+    Map<String, Pair<Short, Double>> get(String phrase, Function<String, Map<String, Pair<Short, Double>>> labeler) {
+        Map<String, Pair<Short, Double>> segments = cache.getIfPresent(phrase);
+        if (segments != null) {
+            hits.increment();
+            return segments;
+        }
+
+        // two threads may label the same phrase at the same time, which is harmless and cheaper than making one wait for the other
+        long start = System.nanoTime();
+        segments = Collections.unmodifiableMap(labeler.apply(phrase));
+        labelNanos.add(System.nanoTime() - start);
+        misses.increment();
+        if (phrase.length() <= MAX_PHRASE_LENGTH)
+            cache.put(phrase, segments);
+        return segments;
+    }
+
+    /** @return the file the memo of the model with the given checksum is saved in */
+    private static File file(String modelChecksum) {
+        return new File(Config.SETTINGS_DIR + File.separator + "ner-cache" + File.separator + modelChecksum + ".phrases.gz");
+    }
+
+    /** @return the memo saved for the model with the given checksum, or an empty one if there is none or it can't be read */
+    static PhraseLabelCache read(String modelChecksum) {
+        PhraseLabelCache memo = new PhraseLabelCache(modelChecksum);
+        if (modelChecksum == null)
+            return memo;
+        File f = file(modelChecksum);
+        if (!f.exists())
+            return memo;
+
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f)), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !modelChecksum.equals(in.readUTF())) {
+                log.warn("Ignoring phrase labels in unknown format or of another model: " + f);
+                return memo;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String phrase = in.readUTF();
+                int nSegments = in.readInt();
+                Map<String, Pair<Short, Double>> segments = new LinkedHashMap<>();
+                for (int j = 0; j < nSegments; j++) {
+                    String segment = in.readUTF();
+                    segments.put(segment, new Pair<>(in.readShort(), in.readDouble()));
+                }
+                memo.cache.put(phrase, Collections.unmodifiableMap(segments));
+            }
+            log.info("Read " + n + " phrase labels from " + f + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            Util.print_exception("Unable to read phrase labels from " + f + ", phrases will be labeled afresh", e, log);
+            memo.cache.invalidateAll();
+        }
+        return memo;
+    }
+
+    /** saves the memo, to be read back with read() for the same model. does nothing if the model has no checksum */
+    void save() {
+        if (modelChecksum == null)
+            return;
+        File f = file(modelChecksum);
+        f.getParentFile().mkdirs();
+        Map<String, Map<String, Pair<Short, Double>>> snapshot = new LinkedHashMap<>(cache.asMap());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(f)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(modelChecksum);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Map<String, Pair<Short, Double>>> e : snapshot.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (Map.Entry<String, Pair<Short, Double>> segment : e.getValue().entrySet()) {
+                    out.writeUTF(segment.getKey());
+                    out.writeShort(segment.getValue().getFirst());
+                    out.writeDouble(segment.getValue().getSecond());
+                }
+            }
+            log.info("Saved " + snapshot.size() + " phrase labels to " + f);
+        } catch (IOException e) {
+            Util.print_exception("Unable to save phrase labels to " + f, e, log);
+        }
+    }
+
+    /** @return hit rate and the time saved by the memo, estimated from the average time taken to label a phrase */
+    String getStats() {
+        long h = hits.sum(), m = misses.sum();
+        double avgMillis = m == 0 ? 0 : labelNanos.sum() / 1e6 / m;
+        return cache.size() + " phrases, " + h + " hits, " + m + " misses (" + (h + m == 0 ? 0 : (h * 100 / (h + m))) + "% hit rate), "
+                + String.format("%.3f", avgMillis) + "ms per label, ~" + Util.commatize((long) (h * avgMillis)) + "ms saved";
+    }
+}
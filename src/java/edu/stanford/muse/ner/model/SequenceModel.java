@@ -1,7 +1,6 @@
 package edu.stanford.muse.ner.model;
 
 import au.com.bytecode.opencsv.CSVWriter;
-import com.google.common.collect.Multimap;
 import edu.stanford.muse.Config;
 import edu.stanford.muse.ner.dictionary.EnglishDictionary;
 import edu.stanford.muse.ner.featuregen.FeatureUtils;
@@ -10,14 +9,31 @@ import edu.stanford.muse.ner.tokenize.CICTokenizer;
 import edu.stanford.muse.ner.tokenize.Tokenizer;
 import edu.stanford.muse.util.*;
 import edu.stanford.muse.webapp.JSPHelper;
+import edu.stanford.muse.wpmine.ResourceTables;
+import edu.stanford.muse.wpmine.SortedStringTable;
 import opennlp.tools.util.featuregen.FeatureGeneratorUtil;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 //import org.apache.commons.logging.Log;
 //import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.store.OutputStreamDataOutput;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
@@ -35,6 +51,9 @@ import java.util.zip.GZIPOutputStream;
  */
 public class SequenceModel implements NERModel, Serializable {
     public static String MODEL_FILENAME = "SeqModel.ser.gz";
+    public static final String BINARY_MODEL_FILENAME = "SeqModel.bin";
+    private static final int BINARY_MAGIC = 0x53514d42; // SQMB
+    private static final int BINARY_VERSION = 1;
     private static final String GAZETTE_FILE = "gazettes.ser.gz";
     public static final String RULES_DIRNAME = "rules";
     private static final long serialVersionUID = 1L;
@@ -46,18 +65,59 @@ public class SequenceModel implements NERModel, Serializable {
     private static final boolean DEBUG = false;
     static final short UNKNOWN_TYPE = -10;
 
-    private static final Random rand = new Random(1);
+    //per thread so that EM over several threads is deterministic, see Trainer.forEachShard
+    private static final ThreadLocal<Random> rand = ThreadLocal.withInitial(() -> new Random(1));
 
     //mixtures of the BMM model
     private Map<String, MU> mixtures = new LinkedHashMap<>();
     //Keep the ref. to the gazette lists it is trained on so that we can lookup these when extracting entities.
-    private final Map<String,String> gazettes;
+    //only used to (de)serialize the model as it always was, it is compiled into gazette (and dropped) before the first lookup
+    private Map<String,String> gazettes;
+    //the gazette as looked up, see Gazette
+    private transient volatile Gazette gazette;
+    //checksum of the files the model was loaded from, null if it was not loaded from files. keys the saved phrase labels of the model
+    private transient String checksum;
+    //phrases labeled by this model, see PhraseLabelCache
+    private transient PhraseLabelCache labelCache;
 
     private SequenceModel(Map<String, MU> mixtures, Map<String, String> gazettes) {
         this.mixtures = mixtures;
         this.gazettes = gazettes;
     }
 
+    private SequenceModel(Map<String, MU> mixtures, Gazette gazette) {
+        this.mixtures = mixtures;
+        this.gazette = gazette;
+    }
+
+    /** @return the compiled gazette, compiling it from the map (and dropping the map) the first time */
+    private Gazette gazette() {
+        Gazette g = gazette;
+        if (g == null) {
+            synchronized (this) {
+                if (gazette == null) {
+                    gazette = Gazette.compile(gazettes != null ? gazettes : Collections.emptyMap());
+                    gazettes = null;
+                }
+                g = gazette;
+            }
+        }
+        return g;
+    }
+
+    //the gazette is written as the map it always was, so that models written now can be read by earlier versions and vice versa
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        boolean restored = gazettes == null && gazette != null;
+        if (restored)
+            gazettes = gazette.toMap();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            if (restored)
+                gazettes = null;
+        }
+    }
+
     @Override
     public void setTokenizer(Tokenizer tokenizer){
         SequenceModel.tokenizer = tokenizer;
@@ -77,7 +137,7 @@ public class SequenceModel implements NERModel, Serializable {
                     return;
                 }
             }
-            writeObjectAsSerGZ(model.gazettes, rulesDir+File.separator+SequenceModel.GAZETTE_FILE);
+            writeObjectAsSerGZ(model.gazettes != null ? model.gazettes : model.gazette().toMap(), rulesDir+File.separator+SequenceModel.GAZETTE_FILE);
             Map<String, MU> features = model.mixtures;
             for (NEType.Type et: ats) {
                 short type = et.getCode();
@@ -129,6 +189,10 @@ public class SequenceModel implements NERModel, Serializable {
         Map<String, MU> mixtures;
         Map<String,Map<String,Float>> muPriors;
         Map<String,String> gazettes;
+        //# of threads (and shards) over which EM runs, and the seed of its randoms
+        final int nThreads;
+        final long seed;
+        Gazette compiledGazette;
 
         static  List<String> ignoreDBpediaTypes = new ArrayList<>();
         static{
@@ -169,6 +233,12 @@ public class SequenceModel implements NERModel, Serializable {
         }
 
         Trainer(Map<String, String> gazettes, Map<String, Map<String, Float>> tokenPriors, int iter) {
+            this(gazettes, tokenPriors, iter, Runtime.getRuntime().availableProcessors(), 1);
+        }
+
+        Trainer(Map<String, String> gazettes, Map<String, Map<String, Float>> tokenPriors, int iter, int nThreads, long seed) {
+            this.nThreads = Math.max(1, nThreads);
+            this.seed = seed;
             this.mixtures = new LinkedHashMap<>();
             this.muPriors = new LinkedHashMap<>();
             log.info("Initializing the model with gazettes");
@@ -390,134 +460,215 @@ public class SequenceModel implements NERModel, Serializable {
             return typeFeatures(features, mixtures);
         }
 
-        //an approximate measure for sigma(P(x;theta)) over all the observations
-        double getIncompleteDataLogLikelihood(){
-            return gazettes.entrySet().stream()
-                    //.parallel()
-                    .filter(e->rand.nextInt(10)==1)
-                    .mapToDouble(e->{
-                        String phrase = e.getKey();
-                        short type = NEType.parseDBpediaType(e.getValue()).getCode();
-                        Map<String,List<String>> midFeatures = genFeatures(phrase,type);
-                        double llv = midFeatures.entrySet().stream().mapToDouble(mf->{
-                            MU mu = mixtures.get(mf.getKey());
-                            if(mu!=null){
-                                return mu.getLikelihood(mf.getValue())*SequenceModel.getPrior(mu, mixtures);
-                            }
-                            return 0;
-                        }).sum();
-                        if(llv<=0)
-                            return 0;
-                        else
-                            return Math.log(llv);
-                    }).average().orElse(0);
+        //runs task(shard, from, to) for each of nThreads contiguous shards of [0, n) on the executor, and returns the results in the order of the shards.
+        //the random of the thread running a shard (see getType) is seeded by the seed, the round and the shard, so that the results depend only on those
+        private <T> List<T> forEachShard(ExecutorService executor, int n, long round, ShardTask<T> task) {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int s = 0; s < nThreads; s++) {
+                final int shard = s, from = (int) ((long) n * s / nThreads), to = (int) ((long) n * (s + 1) / nThreads);
+                futures.add(executor.submit(() -> {
+                    rand.set(new Random(seed + round * 1000003L + shard));
+                    return task.run(shard, from, to);
+                }));
+            }
+            List<T> results = new ArrayList<>();
+            try {
+                for (Future<T> future : futures)
+                    results.add(future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                futures.forEach(f -> f.cancel(true));
+                throw new RuntimeException("EM shard failed", e);
+            }
+            return results;
         }
 
-        //the argument alpha fraction is required only for naming of the dumped model size
-        void EM(Map<String, String> gazettes, int iter) {
-            log.info("Performing EM on: #" + mixtures.size() + " words");
-            double ll = getIncompleteDataLogLikelihood();
-            log.info("Start Data Log Likelihood: " + ll);
-            System.out.println("Start Data Log Likelihood: " + ll);
-            Map<String, MU> revisedMixtures = new LinkedHashMap<>();
-            int N = gazettes.size();
-            int wi;
-            for (int i = 0; i < iter; i++) {
-                log.info(Util.getMemoryStats());
-                wi = 0;
-                for (Map.Entry e : gazettes.entrySet()) {
-                    String phrase = (String) e.getKey();
-                    String dbpediaType = (String) e.getValue();
-                    phrase = filterTitle(phrase, dbpediaType);
-                    if (phrase == null)
+        interface ShardTask<T> {
+            T run(int shard, int from, int to) throws Exception;
+        }
+
+        //an approximate measure for sigma(P(x;theta)) over all the observations, on a sample of a tenth of the entries
+        double getIncompleteDataLogLikelihood(ExecutorService executor, List<Map.Entry<String, String>> entries, long round){
+            Random sampler = new Random(seed + round);
+            List<Map.Entry<String, String>> sample = entries.stream().filter(e->sampler.nextInt(10)==1).collect(Collectors.toList());
+            List<double[]> sums = forEachShard(executor, sample.size(), round, (shard, from, to) -> {
+                double sum = 0;
+                for (Map.Entry<String, String> e : sample.subList(from, to)) {
+                    String phrase = e.getKey();
+                    short type = NEType.parseDBpediaType(e.getValue()).getCode();
+                    Map<String,List<String>> midFeatures = genFeatures(phrase,type);
+                    double llv = midFeatures.entrySet().stream().mapToDouble(mf->{
+                        MU mu = mixtures.get(mf.getKey());
+                        if(mu!=null){
+                            return mu.getLikelihood(mf.getValue())*SequenceModel.getPrior(mu, mixtures);
+                        }
+                        return 0;
+                    }).sum();
+                    if(llv>0)
+                        sum += Math.log(llv);
+                }
+                return new double[]{sum};
+            });
+            double sum = 0;
+            for (double[] s : sums)
+                sum += s[0];
+            return sample.isEmpty() ? 0 : sum / sample.size();
+        }
+
+        /**
+         * E-step for one training entry: the responsibilities of the mixtures of the phrase with the current mixtures,
+         * added to the partial expectations in partial (mixture -> MU accumulating just the expected counts of this shard)
+         * @return false if the entry is not used for training
+         */
+        private boolean expect(String phrase, String dbpediaType, Map<String, MU> partial) {
+            phrase = filterTitle(phrase, dbpediaType);
+            if (phrase == null)
+                return false;
+
+            NEType.Type type = NEType.parseDBpediaType(dbpediaType);
+            float z = 0;
+            //responsibilities
+            Map<String, Float> gamma = new LinkedHashMap<>();
+            //Word (sort of mixture identity) -> Features
+            Map<String, List<String>> wfeatures = genFeatures(phrase, type.getCode());
+
+            if (type != NEType.Type.OTHER) {
+                for (String mi : wfeatures.keySet()) {
+                    if (wfeatures.get(mi) == null) {
                         continue;
+                    }
+                    MU mu = mixtures.get(mi);
+                    if (mu == null) {
+                        //log.warn("!!FATAL!! MU null for: " + mi + ", " + mixtures.size());
+                        continue;
+                    }
+                    double d = mu.getLikelihood(wfeatures.get(mi)) * SequenceModel.getPrior(mu, mixtures);
+                    if (Double.isNaN(d))
+                        log.warn("score for: " + mi + " " + wfeatures.get(mi) + " is NaN");
+                    gamma.put(mi, (float) d);
+                    z += d;
+                }
+                if (z == 0) {
+                    if (DEBUG)
+                        log.info("!!!FATAL!!! Skipping: " + phrase + " as none took responsibility");
+                    return true;
+                }
 
-                    if (wi++ % 1000 == 0)
-                        log.info("EM iteration: " + i + ", " + wi + "/" + N);
+                for (String g : gamma.keySet()) {
+                    gamma.put(g, gamma.get(g) / z);
+                }
+            } else {
+                for (String mi : wfeatures.keySet())
+                    gamma.put(mi, 1.0f / wfeatures.size());
+            }
 
-                    NEType.Type type = NEType.parseDBpediaType(dbpediaType);
-                    float z = 0;
-                    //responsibilities
-                    Map<String, Float> gamma = new LinkedHashMap<>();
-                    //Word (sort of mixture identity) -> Features
-                    Map<String, List<String>> wfeatures = genFeatures(phrase, type.getCode());
+            if (DEBUG) {
+                for (String mi : wfeatures.keySet()) {
+                    log.info("MI:" + mi + ", " + gamma.get(mi) + ", " + wfeatures.get(mi));
+                    log.info(mixtures.get(mi).toString());
+                }
+                log.info(phrase + ", " + type + ", ct: " + type);
+                log.info("-----");
+            }
 
-                    if (type != NEType.Type.OTHER) {
-                        for (String mi : wfeatures.keySet()) {
-                            if (wfeatures.get(mi) == null) {
-                                continue;
-                            }
-                            MU mu = mixtures.get(mi);
-                            if (mu == null) {
-                                //log.warn("!!FATAL!! MU null for: " + mi + ", " + mixtures.size());
-                                continue;
-                            }
-                            double d = mu.getLikelihood(wfeatures.get(mi)) * SequenceModel.getPrior(mu, mixtures);
-                            if (Double.isNaN(d))
-                                log.warn("score for: " + mi + " " + wfeatures.get(mi) + " is NaN");
-                            gamma.put(mi, (float) d);
-                            z += d;
-                        }
-                        if (z == 0) {
-                            if (DEBUG)
-                                log.info("!!!FATAL!!! Skipping: " + phrase + " as none took responsibility");
-                            continue;
-                        }
+            for (String g : gamma.keySet()) {
+                MU mu = mixtures.get(g);
+                //ignore this mixture if the effective number of times it is seen is less than 1 even with good evidence
+                if (mu == null)//|| (mu.numSeen > 0 && (mu.numMixture + mu.alpha_pi) < 1))
+                    continue;
 
-                        for (String g : gamma.keySet()) {
-                            gamma.put(g, gamma.get(g) / z);
-                        }
-                    } else {
-                        for (String mi : wfeatures.keySet())
-                            gamma.put(mi, 1.0f / wfeatures.size());
-                    }
+                if (Double.isNaN(gamma.get(g)))
+                    log.error("Gamma NaN for MID: " + g);
+                if (DEBUG)
+                    if (gamma.get(g) == 0)
+                        log.warn("!! Resp: " + 0 + " for " + g + " in " + phrase + ", " + type);
+                //the mixture is revised even if it gets no update here
+                if (!partial.containsKey(g))
+                    partial.put(g, new MU(g, null));
+                //don't even update if the value is so low, that just adds meek affiliation with unrelated mixtures
+                if (gamma.get(g) > 1E-7)
+                    partial.get(g).add(gamma.get(g), wfeatures.get(g), muPriors.get(g));
+            }
+            return true;
+        }
 
-                    if (DEBUG) {
-                        for (String mi : wfeatures.keySet()) {
-                            log.info("MI:" + mi + ", " + gamma.get(mi) + ", " + wfeatures.get(mi));
-                            log.info(mixtures.get(mi).toString());
+        /**
+         * EM over the gazette entries. The E-step of an iteration is split over nThreads shards of the entries, each of which collects
+         * the expected counts of its entries against the (read only) current mixtures; the partial counts are then added up, shard by shard,
+         * into the revised mixtures (M-step). Since the shards and the order of the additions depend only on the number of threads,
+         * and the randoms on the seed, training is deterministic for a given seed and number of threads.
+         * The mixtures are checkpointed after every iteration, see checkpoint()
+         */
+        void EM(Map<String, String> gazettes, int iter) {
+            log.info("Performing EM on: #" + mixtures.size() + " words with " + nThreads + " threads");
+            List<Map.Entry<String, String>> entries = new ArrayList<>(gazettes.entrySet());
+            ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+                Thread t = new Thread(r, "SequenceModel-EM");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                double ll = getIncompleteDataLogLikelihood(executor, entries, 0);
+                log.info("Start Data Log Likelihood: " + ll);
+                System.out.println("Start Data Log Likelihood: " + ll);
+                int N = entries.size();
+                for (int i = 0; i < iter; i++) {
+                    log.info(Util.getMemoryStats());
+                    long start = System.currentTimeMillis();
+                    final int round = i + 1;
+                    List<Map<String, MU>> partials = forEachShard(executor, N, round, (shard, from, to) -> {
+                        Map<String, MU> partial = new LinkedHashMap<>();
+                        int wi = 0;
+                        for (Map.Entry<String, String> e : entries.subList(from, to))
+                            if (expect(e.getKey(), e.getValue(), partial) && wi++ % 10000 == 0)
+                                log.info("EM iteration: " + round + ", shard " + shard + ": " + wi + "/" + (to - from));
+                        return partial;
+                    });
+                    long eMillis = System.currentTimeMillis() - start;
+
+                    Map<String, MU> revisedMixtures = new LinkedHashMap<>();
+                    for (Map<String, MU> partial : partials)
+                        for (Map.Entry<String, MU> e : partial.entrySet()) {
+                            String g = e.getKey();
+                            if (!revisedMixtures.containsKey(g))
+                                revisedMixtures.put(g, new MU(g, muPriors.get(g)));
+                            revisedMixtures.get(g).addAll(e.getValue());
                         }
-                        log.info("EM iter: " + i + ", " + phrase + ", " + type + ", ct: " + type);
-                        log.info("-----");
-                    }
-
-                    for (String g : gamma.keySet()) {
-                        MU mu = mixtures.get(g);
-                        //ignore this mixture if the effective number of times it is seen is less than 1 even with good evidence
-                        if (mu == null)//|| (mu.numSeen > 0 && (mu.numMixture + mu.alpha_pi) < 1))
-                            continue;
-                        if (!revisedMixtures.containsKey(g))
-                            revisedMixtures.put(g, new MU(g, muPriors.get(g)));
-
-                        if (Double.isNaN(gamma.get(g)))
-                            log.error("Gamma NaN for MID: " + g);
-                        if (DEBUG)
-                            if (gamma.get(g) == 0)
-                                log.warn("!! Resp: " + 0 + " for " + g + " in " + phrase + ", " + type);
-                        //don't even update if the value is so low, that just adds meek affiliation with unrelated mixtures
-                        if (gamma.get(g) > 1E-7)
-                            revisedMixtures.get(g).add(gamma.get(g), wfeatures.get(g), muPriors.get(g));
 
-                    }
+                    double change = 0;
+                    for (String mi : mixtures.keySet())
+                        if (revisedMixtures.containsKey(mi))
+                            change += revisedMixtures.get(mi).difference(mixtures.get(mi));
+                    change /= revisedMixtures.size();
+                    log.info("Iter: " + i + ", change: " + change);
+                    System.out.println("EM Iteration: " + i + ", change: " + change);
+                    //incomplete data log likelihood is better measure than just the change in parameters
+                    //i.e. P(X/\theta) = \sum\limits_{z}P(X,Z/\theta)
+                    mixtures = revisedMixtures;
+                    ll = getIncompleteDataLogLikelihood(executor, entries, round);
+                    long millis = System.currentTimeMillis() - start;
+                    log.info("Iter: " + i + ", Data Log Likelihood: " + ll + ", took " + millis + "ms (E-step " + eMillis + "ms over " + nThreads + " threads)");
+                    System.out.println("EM Iteration: " + i + ", Data Log Likelihood: " + ll + ", took " + millis + "ms");
+
+                    checkpoint(i);
+                    if(i==iter-1)
+                        writeModelAsRules(getModel());
                 }
-                double change = 0;
-                for (String mi : mixtures.keySet())
-                    if (revisedMixtures.containsKey(mi))
-                        change += revisedMixtures.get(mi).difference(mixtures.get(mi));
-                change /= revisedMixtures.size();
-                log.info("Iter: " + i + ", change: " + change);
-                System.out.println("EM Iteration: " + i + ", change: " + change);
-                //incomplete data log likelihood is better measure than just the change in parameters
-                //i.e. P(X/\theta) = \sum\limits_{z}P(X,Z/\theta)
-                mixtures = revisedMixtures;
-                ll = getIncompleteDataLogLikelihood();
-                log.info("Iter: " + i + ", Data Log Likelihood: " + ll);
-                System.out.println("EM Iteration: " + i + ", Data Log Likelihood: " + ll);
-
-                revisedMixtures = new LinkedHashMap<>();
-
-                if(i==iter-1)
-                    writeModelAsRules(getModel());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        //writes the mixtures of the iteration as a binary model to <settings>/ner-checkpoints, the gazette is compiled only the first time
+        private void checkpoint(int i) {
+            String dir = Config.SETTINGS_DIR + File.separator + "ner-checkpoints";
+            new File(dir).mkdirs();
+            String fileName = dir + File.separator + "SeqModel.iter" + i + ".bin";
+            try {
+                if (compiledGazette == null)
+                    compiledGazette = Gazette.compile(gazettes);
+                new SequenceModel(mixtures, compiledGazette).writeBinaryModel(fileName);
+            } catch (IOException e) {
+                Util.print_exception("Unable to checkpoint EM iteration " + i + " to " + fileName, e, log);
             }
         }
     }
@@ -530,7 +681,7 @@ public class SequenceModel implements NERModel, Serializable {
             return UNKNOWN_TYPE;
         }
         Short[] allTypes = NEType.getAllTypeCodes();
-        Short bestType = allTypes[rand.nextInt(allTypes.length)];
+        Short bestType = allTypes[rand.get().nextInt(allTypes.length)];
         double bv = 0;
 
         //We don't consider OTHER as even a type
@@ -604,35 +755,8 @@ public class SequenceModel implements NERModel, Serializable {
                     p *= 1.0 / Double.MAX_VALUE;
                 continue;
             }
-            //Map<String,Pair<Integer,Integer>> map = EnglishDictionary.getDictStats();
-            //Pair<Integer,Integer> pair = map.get(token);
-            Multimap<String, Pair<String, Integer>> map = EnglishDictionary.getTagDictionary();//getDictStats();
-            Collection<Pair<String, Integer>> pairs = map.get(token);
-
-            if (pairs == null) {
-                //log.warn("Dictionary does not contain: " + token);
-                if (orig.length() == 0) {
-                    if (nonNoun)
-                        p *= 1;
-                    else
-                        p *= 1.0 / Double.MAX_VALUE;
-                }
-                if (orig.charAt(0) == token.charAt(0)) {
-                    if (nonNoun)
-                        p *= 1;
-                    else
-                        p *= 1.0 / Double.MAX_VALUE;
-                } else {
-                    if (nonNoun)
-                        p *= 1.0 / Double.MAX_VALUE;
-                    else
-                        p *= 1.0;
-                }
-                continue;
-            }
-            //double v = (double) pair.getFirst() / (double) pair.getSecond();
-            double v = pairs.stream().filter(pair->pair.first.startsWith("NN")||pair.first.startsWith("JJ")).mapToDouble(pair->pair.second).sum();
-            v /= pairs.stream().mapToDouble(pair->pair.second).sum();
+            //the fraction of occurrences of the token as a noun or adjective, NaN if the token is not in the dictionary
+            double v = EnglishDictionary.getNounOrAdjFraction(token);
             //if (v > 0.25) {
             if(v > 0.25) {
                 if (nonNoun)
@@ -663,8 +787,9 @@ public class SequenceModel implements NERModel, Serializable {
         vars.add(phrase);
         vars.add("The "+phrase);
         String type;
+        Gazette gazette = gazette();
         for(String var: vars) {
-            type = gazettes.get(var.toLowerCase());
+            type = gazette.get(var.toLowerCase());
             if(type!=null) {
                 log.debug("Found a match for: "+phrase+" -- "+type);
                 return type;
@@ -878,8 +1003,23 @@ public class SequenceModel implements NERModel, Serializable {
         return sorg;
     }
 
+    private synchronized PhraseLabelCache labelCache() {
+        if (labelCache == null)
+            labelCache = PhraseLabelCache.read(checksum);
+        return labelCache;
+    }
+
+    /** logs the stats of the phrase labels and saves them for the next run with this model */
+    @Override
+    public void flush() {
+        PhraseLabelCache cache = labelCache();
+        log.info("Phrase labels: " + cache.getStats());
+        cache.save();
+    }
+
     public Span[] find (String content){
         List<Span> spans = new ArrayList<>();
+        PhraseLabelCache labelCache = labelCache();
 
         opennlp.tools.util.Span[] sentSpans = NLPUtils.tokenizeSentenceAsSpan(content);
         assert sentSpans!=null;
@@ -893,7 +1033,7 @@ public class SequenceModel implements NERModel, Serializable {
                 if(t==null || t.first == null)
                     continue;
 
-                Map<String,Pair<Short,Double>> entities = seqLabel(t.getFirst());
+                Map<String,Pair<Short,Double>> entities = labelCache.get(t.getFirst(), this::seqLabel);
                 for(String e: entities.keySet()){
                     Pair<Short,Double> p = entities.get(e);
                     //A new type is assigned to some words, which is of value -2
@@ -940,12 +1080,15 @@ public class SequenceModel implements NERModel, Serializable {
                     "Perhaps a version mismatch or the folder is corrupt!\n" +
                     "Be warned, I will see what I can do.");
         }
-        Map<String, String> gazette = loadGazette(rulesDirName);
+        Gazette gazette = Gazette.load(rulesDirName, GAZETTE_FILE);
         Map<String, MU> mixtures = new LinkedHashMap<>();
+        //checksums of the rules files, by file name
+        Map<String, String> checksums = new TreeMap<>();
         List<String> classes = Stream.of(NEType.Type.values()).map(NEType.Type::toString).collect(Collectors.toList());
         files.stream().filter(f->f.endsWith(".txt") && classes.contains(f.substring(0, f.length()-4))).forEach(f -> {
             try {
-                LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new FileInputStream(rulesDir + File.separator + f)));
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new DigestInputStream(new FileInputStream(rulesDir + File.separator + f), digest)));
                 String line;
                 List<String> lines_MU = new ArrayList<>();
                 while ((line = lnr.readLine()) != null) {
@@ -958,67 +1101,300 @@ public class SequenceModel implements NERModel, Serializable {
                     } else
                         lines_MU.add(line);
                 }
-            } catch (IOException ie) {
-                log.warn("Could not read file: " + f + " from " + rulesDirName, ie);
+                checksums.put(f, Util.byteArrayToHexString(digest.digest()));
+            } catch (IOException | NoSuchAlgorithmException e) {
+                log.warn("Could not read file: " + f + " from " + rulesDirName, e);
             }
         });
-        return new SequenceModel(mixtures, gazette);
+        //the phrase labels depend on the gazette as much as on the rules, so it is part of the checksum too
+        if (gazette != null && gazette.getChecksum() != null)
+            checksums.put(GAZETTE_FILE, gazette.getChecksum());
+        SequenceModel model = new SequenceModel(mixtures, gazette);
+        model.checksum = Util.hash(checksums.toString());
+        return model;
     }
 
-    private static synchronized Map<String,String>  loadGazette(String modelDirName){
+    /** @param modelPath a serialized model (.ser.gz), or a binary model (.bin) written by writeBinaryModel */
+    public static synchronized SequenceModel loadModel(String modelPath) {
+        if (modelPath.endsWith(".bin"))
+            return loadBinaryModel(modelPath);
         ObjectInputStream ois;
         try {
-            ois = new ObjectInputStream(new GZIPInputStream(Config.getResourceAsStream(modelDirName + File.separator + GAZETTE_FILE)));
-            Map<String,String> model = (Map<String, String>) ois.readObject();
+            //the buffer size can be much higher than default 512 for GZIPInputStream
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ois = new ObjectInputStream(new GZIPInputStream(new DigestInputStream(Config.getResourceAsStream(modelPath), digest)));
+            SequenceModel model = (SequenceModel) ois.readObject();
             ois.close();
+            model.checksum = Util.byteArrayToHexString(digest.digest());
+            //the gazette comes deserialized as a map along with the model, compile it now (or read it compiled earlier for this model) so the map can go
+            Map<String, String> map = model.gazettes;
+            Gazette gazette = Gazette.cached(model.checksum, () -> map);
+            if (gazette != null) {
+                model.gazette = gazette;
+                model.gazettes = null;
+            }
             return model;
         } catch (Exception e) {
-            Util.print_exception("Exception while trying to load gazette from: " + modelDirName, e, log);
+            Util.print_exception("Exception while trying to load model from: " + modelPath, e, log);
             return null;
         }
     }
 
-    public static synchronized SequenceModel loadModel(String modelPath) {
-        ObjectInputStream ois;
+    /*
+     * The binary model format, read by loadBinaryModel. All numbers are big endian, a string block is:
+     *   int #strings, int #bytes, int[#strings] utf-8 length of each string, the utf-8 bytes of all the strings
+     *
+     * int BINARY_MAGIC, int BINARY_VERSION
+     * string block: checksum of the model
+     * string block: feature table, the distinct features of all the mixtures
+     * string block: the tokens the mixtures are keyed by
+     * byte 1 if the ids of the mixtures are their tokens, else 0 followed by a string block of the ids
+     * float[#mixtures] numMixture, float[#mixtures] numSeen
+     * int[#mixtures+1] offsets: the features of mixture i are [offsets[i], offsets[i+1]) of the next two
+     * int[#features] feature ids (into the feature table), float[#features] feature values
+     * the compiled gazette (see Gazette.write)
+     *
+     * Unlike the .ser.gz model, nothing here needs object deserialization: the arrays are read in bulk off a memory map, and the
+     * mixtures' feature maps are made only for the mixtures that are looked at (see MU).
+     */
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        List<byte[]> bytes = new ArrayList<>(strings.size());
+        int nBytes = 0;
+        for (String str : strings) {
+            byte[] b = str.getBytes(StandardCharsets.UTF_8);
+            bytes.add(b);
+            nBytes += b.length;
+        }
+        out.writeInt(strings.size());
+        out.writeInt(nBytes);
+        for (byte[] b : bytes)
+            out.writeInt(b.length);
+        for (byte[] b : bytes)
+            out.write(b);
+    }
+
+    private static String[] readStrings(ByteBuffer buf) {
+        int n = buf.getInt();
+        byte[] bytes = new byte[buf.getInt()];
+        int[] lengths = new int[n];
+        buf.asIntBuffer().get(lengths);
+        buf.position(buf.position() + 4 * n);
+        buf.get(bytes);
+        String[] strings = new String[n];
+        for (int i = 0, off = 0; i < n; off += lengths[i], i++)
+            strings[i] = new String(bytes, off, lengths[i], StandardCharsets.UTF_8);
+        return strings;
+    }
+
+    /** writes the model in the binary format, see above. it is read back with loadBinaryModel (or loadModel) */
+    public synchronized void writeBinaryModel(String fileName) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Integer> featureIds = new LinkedHashMap<>();
+        List<String> tokens = new ArrayList<>(mixtures.keySet());
+        List<String> ids = new ArrayList<>(tokens.size());
+        boolean idsAreTokens = true;
+        int nFeatures = 0;
+        for (String token : tokens) {
+            MU mu = mixtures.get(token);
+            ids.add(mu.id);
+            idsAreTokens &= token.equals(mu.id);
+            for (String f : mu.getFeatures().keySet())
+                featureIds.putIfAbsent(f, featureIds.size());
+            nFeatures += mu.getFeatures().size();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            //a model that was not loaded from files (i.e. just trained) gets a checksum of its own now, so its phrase labels can be saved too
+            if (checksum == null)
+                checksum = Util.hash(UUID.randomUUID().toString());
+            writeStrings(out, Collections.singletonList(checksum));
+            writeStrings(out, new ArrayList<>(featureIds.keySet()));
+            writeStrings(out, tokens);
+            out.writeByte(idsAreTokens ? 1 : 0);
+            if (!idsAreTokens)
+                writeStrings(out, ids);
+            for (String token : tokens)
+                out.writeFloat(mixtures.get(token).numMixture);
+            for (String token : tokens)
+                out.writeFloat(mixtures.get(token).numSeen);
+            int offset = 0;
+            out.writeInt(offset);
+            for (String token : tokens) {
+                offset += mixtures.get(token).getFeatures().size();
+                out.writeInt(offset);
+            }
+            for (String token : tokens)
+                for (String f : mixtures.get(token).getFeatures().keySet())
+                    out.writeInt(featureIds.get(f));
+            for (String token : tokens)
+                for (Float v : mixtures.get(token).getFeatures().values())
+                    out.writeFloat(v);
+            gazette().write(new OutputStreamDataOutput(out));
+        }
+        log.info("Wrote binary model of " + tokens.size() + " mixtures, " + featureIds.size() + " distinct features and " + nFeatures + " feature values to " + fileName + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** reads a lucene DataInput (as the gazette is written) off a byte buffer */
+    private static class ByteBufferDataInput extends org.apache.lucene.store.DataInput {
+        private final ByteBuffer buf;
+
+        ByteBufferDataInput(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public byte readByte() {
+            return buf.get();
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) {
+            buf.get(b, offset, len);
+        }
+    }
+
+    /**
+     * reads a model written by writeBinaryModel. the file is memory mapped if it is a file in the settings dir (or an absolute path),
+     * otherwise it is read from the resources into memory.
+     * @return the model, null if it can't be read
+     */
+    public static synchronized SequenceModel loadBinaryModel(String modelPath) {
+        long start = System.currentTimeMillis();
         try {
-            //the buffer size can be much higher than default 512 for GZIPInputStream
-            ois = new ObjectInputStream(new GZIPInputStream(Config.getResourceAsStream(modelPath)));
-            SequenceModel model = (SequenceModel) ois.readObject();
-            ois.close();
+            ByteBuffer buf;
+            File f = new File(modelPath);
+            if (!f.isAbsolute())
+                f = new File(Config.SETTINGS_DIR + File.separator + modelPath);
+            if (f.exists()) {
+                try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                    //the mapping stays valid after the channel is closed
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } else {
+                InputStream is = Config.getResourceAsStream(modelPath);
+                if (is == null)
+                    return null;
+                buf = ByteBuffer.wrap(Util.getBytesFromStream(is));
+            }
+
+            if (buf.getInt() != BINARY_MAGIC || buf.getInt() != BINARY_VERSION) {
+                log.warn("Not a binary SequenceModel, or of an unknown version: " + modelPath);
+                return null;
+            }
+            String checksum = readStrings(buf)[0];
+            String[] featureTable = readStrings(buf);
+            String[] tokens = readStrings(buf);
+            String[] ids = buf.get() == 1 ? tokens : readStrings(buf);
+            int n = tokens.length;
+            float[] numMixture = new float[n], numSeen = new float[n];
+            buf.asFloatBuffer().get(numMixture);
+            buf.position(buf.position() + 4 * n);
+            buf.asFloatBuffer().get(numSeen);
+            buf.position(buf.position() + 4 * n);
+            int[] offsets = new int[n + 1];
+            buf.asIntBuffer().get(offsets);
+            buf.position(buf.position() + 4 * (n + 1));
+            int nFeatures = offsets[n];
+            int[] featureIds = new int[nFeatures];
+            float[] featureValues = new float[nFeatures];
+            buf.asIntBuffer().get(featureIds);
+            buf.position(buf.position() + 4 * nFeatures);
+            buf.asFloatBuffer().get(featureValues);
+            buf.position(buf.position() + 4 * nFeatures);
+
+            Map<String, MU> mixtures = new LinkedHashMap<>(n * 4 / 3 + 1);
+            for (int i = 0; i < n; i++)
+                mixtures.put(tokens[i], new MU(ids[i], numMixture[i], numSeen[i], featureTable, featureIds, featureValues, offsets[i], offsets[i + 1]));
+            Gazette gazette = Gazette.read(new ByteBufferDataInput(buf));
+
+            SequenceModel model = new SequenceModel(mixtures, gazette);
+            model.checksum = checksum;
+            log.info("Loaded binary model of " + n + " mixtures and " + gazette.size() + " gazette entries from " + modelPath + " in " + (System.currentTimeMillis() - start) + "ms");
             return model;
         } catch (Exception e) {
-            Util.print_exception("Exception while trying to load model from: " + modelPath, e, log);
+            Util.print_exception("Exception while trying to load binary model from: " + modelPath, e, log);
             return null;
         }
     }
 
-    //returns token -> {redirect (can be the same as token), page length of the page it redirects to}
-    private static Map<String,Map<String,Integer>> getTokenTypePriors(){
-        Map<String,Map<String,Integer>> pageLengths = new LinkedHashMap<>();
-        log.info("Parsing token types...");
-        try{
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(Config.getResourceAsStream("TokenTypes.txt")));
-            String line;
-            while((line=lnr.readLine())!=null){
-                String[] fields = line.split("\\t");
-                if(fields.length!=4){
-                    log.warn("Line --"+line+"-- has an unexpected pattern!");
-                    continue;
-                }
-                int pageLen = Integer.parseInt(fields[3]);
-                String redirect = fields[2];
-                //if the page is not a redirect, then itself is the title
-                if(fields[2] == null || fields[2].equals("null"))
-                    redirect = fields[1];
-                String lc = fields[0].toLowerCase();
-                if(!pageLengths.containsKey(lc))
-                    pageLengths.put(lc, new LinkedHashMap<>());
-                pageLengths.get(lc).put(redirect, pageLen);
-            }
-        }catch(IOException e){
-            e.printStackTrace();
+    /**
+     * loads the default model: the binary model (BINARY_MODEL_FILENAME) in the settings dir if it was converted from the serialized model (MODEL_FILENAME)
+     * that Config would load now, from the settings dir or else the classpath, as told by the checksum of the source model kept in the binary model.
+     * Else the serialized model is loaded and converted to a binary model in the settings dir, so that later loads can map it instead of deserializing it.
+     * @return the model, null if neither can be read
+     */
+    public static synchronized SequenceModel loadDefaultModel() {
+        File binary = new File(Config.SETTINGS_DIR + File.separator + BINARY_MODEL_FILENAME);
+        if (binary.exists()) {
+            //reading the bytes to checksum them is cheap compared to deserializing them
+            String sourceChecksum = Config.getResourceChecksum(MODEL_FILENAME);
+            SequenceModel model = loadBinaryModel(binary.getPath());
+            if (model != null && (sourceChecksum == null || sourceChecksum.equals(model.checksum)))
+                return model;
+            if (model == null)
+                log.warn("Unable to read the binary model in " + binary + ", falling back to " + MODEL_FILENAME);
+            else
+                log.info("The binary model in " + binary + " was converted from a different " + MODEL_FILENAME + ", converting it again");
+        }
+
+        SequenceModel model = loadModel(MODEL_FILENAME);
+        if (model == null)
+            return null;
+        //written to a temp file first, so that a partly written model is never picked up
+        File tmp = new File(binary.getPath() + ".tmp");
+        try {
+            model.writeBinaryModel(tmp.getPath());
+            Files.move(tmp.toPath(), binary.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Converted " + MODEL_FILENAME + " to the binary model " + binary);
+        } catch (IOException e) {
+            tmp.delete();
+            Util.print_exception("Unable to write binary model to: " + binary, e, log);
+        }
+        return model;
+    }
+
+    /**
+     * converts a model to the binary format.
+     * @param source a serialized model (a path ending in .ser.gz, as read by loadModel), or else the name of a rules dir (as read by loadModelFromRules)
+     * @param fileName where to write the binary model
+     * @return true if converted
+     */
+    public static boolean convertToBinary(String source, String fileName) {
+        SequenceModel model = source.endsWith(".ser.gz") ? loadModel(source) : loadModelFromRules(source);
+        if (model == null) {
+            log.warn("Unable to load the model to convert from: " + source);
+            return false;
+        }
+        try {
+            model.writeBinaryModel(fileName);
+            return true;
+        } catch (IOException e) {
+            Util.print_exception("Unable to write binary model to: " + fileName, e, log);
+            return false;
         }
-        return pageLengths;
+    }
+
+    /**
+     * returns token -> {type of a page the token occurs in -> prior from the length of the page}, where a page is the title or the page it redirects to.
+     * streamed from the memory mapped token types table, see ResourceTables.tokenTypes
+     */
+    private static Map<String,Map<String,Float>> getTokenPriors(Map<String,String> tdata, float alpha){
+        Map<String,Map<String,Float>> tokenPriors = new LinkedHashMap<>();
+        log.info("Parsing token types...");
+        SortedStringTable tokenTypes = ResourceTables.tokenTypes();
+        if (tokenTypes == null)
+            return tokenPriors;
+        tokenTypes.forEach((tok, pageAndLen) -> {
+            int idx = pageAndLen.lastIndexOf('\t');
+            String page = pageAndLen.substring(0, idx);
+            int pageLen = Integer.parseInt(pageAndLen.substring(idx + 1));
+            String type = tdata.get(page.toLowerCase());
+            tokenPriors.computeIfAbsent(tok, k -> new LinkedHashMap<>()).put(type, pageLen*alpha/1000f);
+        });
+        return tokenPriors;
     }
 
     private Span[] findEntitiesFromCICFile(String filename){
@@ -1130,10 +1506,10 @@ public class SequenceModel implements NERModel, Serializable {
      * With tokenPriors it is possible to set initial beliefs, for example "Nokia" is a popular company; the first key in the map should be a single word token, the second map is the types and its affiliation for various types (DBpedia ontology again)
      * iter param is the number of EM iterations, any value >5 is observed to have no effect on performance with DBpedia as training data
      *  */
-    private static SequenceModel train(Map<String,String> trainData, Map<String,Map<String,Float>> tokenPriors, int iter){
+    private static SequenceModel train(Map<String,String> trainData, Map<String,Map<String,Float>> tokenPriors, int iter, int nThreads, long seed){
         log.info("Initializing trainer");
         log.info(Util.getMemoryStats());
-        Trainer trainer = new Trainer(trainData, tokenPriors, iter);
+        Trainer trainer = new Trainer(trainData, tokenPriors, iter, nThreads, seed);
         return trainer.getModel();
     }
 
@@ -1142,26 +1518,24 @@ public class SequenceModel implements NERModel, Serializable {
 
         float alpha = 0.2f;
         //page lengths from wikipedia
-        Map<String,Map<String,Integer>> pageLens = getTokenTypePriors();
-        //getTokenPriors returns Map<String, Map<String,Integer>> where the first key is the single word DBpedia title and second keys are the titles it redirects to and its page length
-        Map<String,Map<String,Float>> tokenPriors = new LinkedHashMap<>();
         //The Dir. prior related param alpha is empirically found to be performing at the value of 0.2f
-        for(String tok: pageLens.keySet()) {
-            Map<String,Float> tmp =  new LinkedHashMap<>();
-            Map<String,Integer> tpls = pageLens.get(tok);
-            for(String page: tpls.keySet()) {
-                String type = tdata.get(page.toLowerCase());
-                tmp.put(type, tpls.get(page)*alpha/1000f);
-            }
-            tokenPriors.put(tok, tmp);
-        }
+        Map<String,Map<String,Float>> tokenPriors = getTokenPriors(tdata, alpha);
         log.info("Initialized "+tokenPriors.size()+" token priors.");
         Trainer trainer = new Trainer(tdata, tokenPriors, 5);
         return trainer.getModel();
     }
 
     public static SequenceModel train(float alpha, int emIter){
-        Map<String,String> tdata = EmailUtils.readDBpedia();
+        return train(alpha, emIter, Runtime.getRuntime().availableProcessors(), 1);
+    }
+
+    /**
+     * @param nThreads # of threads EM runs over
+     * @param seed seed of the randoms of EM, the model trained is the same for the same seed and nThreads
+     */
+    public static SequenceModel train(float alpha, int emIter, int nThreads, long seed){
+        //a copy, the DBpedia map is read-only and shared
+        Map<String,String> tdata = new org.apache.commons.collections4.map.CaseInsensitiveMap<>(EmailUtils.readDBpedia());
         //also include CONLL lists
         String resources[] = Config.NER_RESOURCE_FILES;
         for(String rsrc: resources) {
@@ -1172,21 +1546,10 @@ public class SequenceModel implements NERModel, Serializable {
         }
 
         //page lengths from wikipedia
-        Map<String,Map<String,Integer>> pageLens = getTokenTypePriors();
-        //getTokenPriors returns Map<String, Map<String,Integer>> where the first key is the single word DBpedia title and second keys are the titles it redirects to and its page length
-        Map<String,Map<String,Float>> tokenPriors = new LinkedHashMap<>();
         //The Dir. prior related param alpha is empirically found to be performing at the value of 0.2f
-        for(String tok: pageLens.keySet()) {
-            Map<String,Float> tmp =  new LinkedHashMap<>();
-            Map<String,Integer> tpls = pageLens.get(tok);
-            for(String page: tpls.keySet()) {
-                String type = tdata.get(page.toLowerCase());
-                tmp.put(type, tpls.get(page)*alpha/1000f);
-            }
-            tokenPriors.put(tok, tmp);
-        }
+        Map<String,Map<String,Float>> tokenPriors = getTokenPriors(tdata, alpha);
 	    log.info("Initialized "+tokenPriors.size()+" token priors.");
-        return train(tdata, tokenPriors, emIter);
+        return train(tdata, tokenPriors, emIter, nThreads, seed);
     }
 
     /**
@@ -1239,6 +1602,10 @@ public class SequenceModel implements NERModel, Serializable {
         output.setRequired(false);
         options.addOption(output);
 
+        Option binary = new Option("b", "binary", true, "convert the given model (a .ser.gz file, or the name of a rules dir) to the binary format, written to the output path (default: " + BINARY_MODEL_FILENAME + " in the settings dir)");
+        binary.setRequired(false);
+        options.addOption(binary);
+
 //        Option test = new Option("t", "test", false, "run test");
 //        test.setRequired(false);
 //        options.addOption(test);
@@ -1255,6 +1622,11 @@ public class SequenceModel implements NERModel, Serializable {
             System.exit(1);
         }
 
+        if (cmd.hasOption("binary")) {
+            String outputFilePath = cmd.getOptionValue("output", Config.SETTINGS_DIR + File.separator + BINARY_MODEL_FILENAME);
+            System.exit(convertToBinary(cmd.getOptionValue("binary"), outputFilePath) ? 0 : 1);
+        }
+
         String inputFilePath = cmd.getOptionValue("input");
         boolean isTest = Boolean.parseBoolean(cmd.getOptionValue("test"));
         if(isTest)
@@ -0,0 +1,227 @@
+package edu.stanford.muse.ner.tokenize;
+
+import edu.stanford.muse.util.Util;
+import opennlp.tools.util.Span;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the CIC (capitalised word) chunks in a sentence, in a single pass.
+ * A chunk is a capitalised word, optionally followed by any number of capitalised words or stop words and ending in a capitalised word,
+ * the words separated by 1 to 3 of whitespace, & and '. That is, exactly the matches of the regex:
+ * <pre>
+ *     N([\s&']{1,3}(N[\s&']{1,3}|SW[\s&']{1,3})*N)?   with N = [A-Z][A-Za-z0-9'\-.]* and SW = (stop word|stop word|...)
+ * </pre>
+ * which CICTokenizer used to run over every sentence. Because N can also contain ' and the repetitions are nested, java.util.regex backtracks
+ * heavily on long runs of capitalised words (all caps lines, lists of names, signatures), and the regex was one of the top CPU consumers of NER.
+ *
+ * The scanner gets the same matches as the backtracking matcher (see regex() and the differential test) by working out, once per word start,
+ * where the rest of a chunk starting there would end, right to left over the sentence, so every position is looked at a bounded number of times.
+ * Stop words are taken literally and are case-sensitive, as in the regex.
+ *
+ * An instance is immutable and can be shared between threads.
+ */
+public class CICScanner {
+    private static final int FAIL = -1;
+
+    private final String[] stopWords;
+    //first chars of the stop words, to skip the ones that can't start at a word quickly
+    private final BitSet stopWordStarts = new BitSet();
+
+    public CICScanner(List<String> stopWords) {
+        for (String sw : stopWords)
+            if (sw == null || sw.isEmpty() || isSeparator(sw.charAt(0)))
+                throw new IllegalArgumentException("Stop word can neither be empty nor start with a separator: '" + sw + "'");
+        this.stopWords = stopWords.toArray(new String[0]);
+        for (String sw : this.stopWords)
+            stopWordStarts.set(sw.charAt(0));
+    }
+
+    /** chars allowed between the words of a chunk, same as [\s&'] */
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r' || c == '&' || c == '\'';
+    }
+
+    private static boolean isNameStart(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '\'' || c == '-' || c == '.';
+    }
+
+    /** @return end of the (longest) name word starting at the capital letter at s */
+    private static int nameEnd(CharSequence text, int s) {
+        int i = s + 1;
+        while (i < text.length() && isNameChar(text.charAt(i)))
+            i++;
+        return i;
+    }
+
+    /** @return the start of the next word if the separator run at p is 1 to 3 chars long, else FAIL */
+    private static int skipSeparators(CharSequence text, int p) {
+        int i = p;
+        while (i < text.length() && isSeparator(text.charAt(i)))
+            i++;
+        int run = i - p;
+        return (run >= 1 && run <= 3 && i < text.length()) ? i : FAIL;
+    }
+
+    private static boolean startsWith(CharSequence text, int p, String word) {
+        if (p + word.length() > text.length())
+            return false;
+        for (int i = 0; i < word.length(); i++)
+            if (text.charAt(p + i) != word.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return rest[q] = end of the match of (N A|SW A)* N at q, where A is the separator run, or FAIL.
+     * computed only at the starts of words (after a separator), which is the only place a chunk is continued from.
+     * The alternatives are tried in the order the backtracking matcher would try them, taking the first one for which the rest matches:
+     * a capitalised word of every length that can be followed by separators (longest first, shorter ones end before an inner '),
+     * then the stop words in order, and last the capitalised word as the final word of the chunk
+     */
+    private int[] rest(CharSequence text) {
+        int n = text.length();
+        int[] rest = new int[n + 1];
+        Arrays.fill(rest, FAIL);
+        for (int q = n - 1; q > 0; q--) {
+            if (!isSeparator(text.charAt(q - 1)))
+                continue;
+            char c = text.charAt(q);
+            int end = FAIL;
+            int nameEnd = isNameStart(c) ? nameEnd(text, q) : FAIL;
+            if (nameEnd != FAIL) {
+                for (int e = nameEnd; e > q && end == FAIL; e--) {
+                    if (e < nameEnd && text.charAt(e) != '\'')
+                        continue;
+                    int next = skipSeparators(text, e);
+                    if (next != FAIL)
+                        end = rest[next];
+                }
+            }
+            for (int i = 0; i < stopWords.length && end == FAIL && stopWordStarts.get(c); i++) {
+                if (!startsWith(text, q, stopWords[i]))
+                    continue;
+                int next = skipSeparators(text, q + stopWords[i].length());
+                if (next != FAIL)
+                    end = rest[next];
+            }
+            if (end == FAIL)
+                end = nameEnd;
+            rest[q] = end;
+        }
+        return rest;
+    }
+
+    /** @return the spans of the CIC chunks in text, in order. same as the matches of regex() found one after another */
+    public List<Span> scan(CharSequence text) {
+        List<Span> spans = new ArrayList<>();
+        int n = text.length();
+        int[] rest = null;
+        int p = 0;
+        while (p < n) {
+            if (!isNameStart(text.charAt(p))) {
+                p++;
+                continue;
+            }
+            //the first word of a chunk is always the longest one, the matcher never gets to back off into it
+            int end = nameEnd(text, p);
+            int next = skipSeparators(text, end);
+            if (next != FAIL) {
+                if (rest == null)
+                    rest = rest(text);
+                if (rest[next] != FAIL)
+                    end = rest[next];
+            }
+            spans.add(new Span(p, end));
+            p = end;
+        }
+        return spans;
+    }
+
+    /** @return the regex for the chunks that the scanner is equivalent to, for testing and benchmarking */
+    public Pattern regex() {
+        //This def. of a word that can appear in person or non-person names
+        String nameP = "[A-Z][A-Za-z0-9'\\-.]*";
+        //these are the chars that are allowed to appear between words in the chunk
+        String allowedCharsOther = "\\s&'";
+        String stopWordsPattern = "(" + String.join("|", stopWords) + ")";
+        //defines the number of occurrences of allowed chars between words
+        String recur = "{1,3}";
+        String nps = "(" + nameP + "([" + allowedCharsOther + "]" + recur + "(" + nameP + "[" + allowedCharsOther + "]" + recur + "|(" + stopWordsPattern + "[" + allowedCharsOther + "]" + recur + "))*" + nameP + ")?)";
+        return Pattern.compile(nps);
+    }
+
+    /** @return the spans of the matches of regex() in text, what scan() returns */
+    public static List<Span> scan(Pattern regex, CharSequence text) {
+        List<Span> spans = new ArrayList<>();
+        Matcher m = regex.matcher(text);
+        while (m.find())
+            spans.add(new Span(m.start(1), m.end(1)));
+        return spans;
+    }
+
+    /**
+     * Throughput benchmark of the scanner against the regex, over the lines of the given text files (or of the files in the given directories)
+     * and over a few made up lines that make the regex backtrack. Also reports the lines on which they differ, if any.
+     * usage: CICScanner <file or dir>...
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String arg : args) {
+            File f = new File(arg);
+            File[] files = f.isDirectory() ? f.listFiles() : new File[]{f};
+            if (files == null)
+                continue;
+            for (File file : files)
+                if (file.isFile())
+                    lines.addAll(Arrays.asList(Util.readFile(file.getAbsolutePath()).split("\\n")));
+        }
+        //long all caps lines and lists of names, the regex backs off into every word with a ' in it
+        StringBuilder caps = new StringBuilder(), names = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            caps.append("O'NEIL AND D'SOUZA'S & CO'S OFFICE ");
+            names.append("Mary O'Brien & Tom D'Arcy of the Bank of St. John's,  ");
+        }
+        lines.add(caps.toString());
+        lines.add(names.toString());
+
+        CICScanner scanner = new CICScanner(CICTokenizer.getStopWords());
+        Pattern regex = scanner.regex();
+        long nChars = 0;
+        int nDiff = 0;
+        for (String line : lines) {
+            nChars += line.length();
+            if (!scan(regex, line).equals(scanner.scan(line))) {
+                if (nDiff++ < 10)
+                    System.out.println("Differs on: " + line);
+            }
+        }
+        System.out.println(lines.size() + " lines, " + Util.commatize(nChars / 1024) + "KB, " + nDiff + " lines differ");
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int n = 0;
+            for (String line : lines)
+                n += scan(regex, line).size();
+            long regexNanos = Math.max(1, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            int m = 0;
+            for (String line : lines)
+                m += scanner.scan(line).size();
+            long scannerNanos = Math.max(1, System.nanoTime() - start);
+
+            System.out.println("round " + round + ": regex " + Util.commatize(regexNanos / 1000000) + "ms (" + n + " chunks, " + Util.commatize(nChars * 1000000000L / 1024 / regexNanos) + " KB/sec), "
+                    + "scanner " + Util.commatize(scannerNanos / 1000000) + "ms (" + m + " chunks, " + Util.commatize(nChars * 1000000000L / 1024 / scannerNanos) + " KB/sec), "
+                    + "speedup " + String.format("%.1f", (double) regexNanos / scannerNanos));
+        }
+    }
+}
@@ -27,7 +27,8 @@ import java.util.regex.Pattern;
 public class CICTokenizer implements Tokenizer, Serializable {
     private static final Logger log						= LogManager.getLogger(CICTokenizer.class);
 
-    private static Pattern	entityPattern;
+    //finds the chunks of capitalised words, see CICScanner
+    private static CICScanner scanner;
     private static Pattern multipleStopWordPattern;
     //NOTE: All the string lists below namely commonStartWords, commonEndWords, badSubstrings are case-insensitive
     //strips these words from the emitted token if they are seen in the start
@@ -70,8 +71,6 @@ public class CICTokenizer implements Tokenizer, Serializable {
     }
 
     private static void initPattern() {
-        //This def. of a word that can appear in person or non-person names
-        String nameP = "[A-Z][A-Za-z0-9'\\-.]*";
         //these are the chars that are allowed to appear between words in the chunk
         //comma is a terrible character to allow, it sometimes crawls in the full list an entity is part of.
         String allowedCharsOther = "\\s&'";
@@ -92,14 +91,13 @@ public class CICTokenizer implements Tokenizer, Serializable {
         //Hence we do another level of tokenisation with the pattern below
         multipleStopWordPattern = Pattern.compile("(\\s|^)("+stopWordsPattern+"["+allowedCharsOther+"]"+recur+"){2,}|(['-.]{2,})|'s(\\s|$)");
 
-        //[\"'_:\\s]*
-        //number of times special chars between words can recur
-        String nps = "(" + nameP + "([" + allowedCharsOther + "]" + recur + "(" + nameP + "[" + allowedCharsOther + "]" + recur + "|(" + stopWordsPattern + "[" + allowedCharsOther + "]" + recur + "))*" + nameP + ")?)";
-        entityPattern = Pattern.compile(nps);
-        log.info("EP: " + nps);
-        //allow comma only once after the first word
-        //nps = "(" + nameP + "([" + allowedCharsPerson + ",]" + recur + "(" + nameP + "[" + allowedCharsPerson + "]" + recur + ")*" + nameP + ")?)";
-        //personNamePattern = Pattern.compile(nps);
+        //the entity pattern used to be a regex over the sentence, which backtracks badly on long runs of capitalised words; the scanner gets the same chunks in a single pass
+        scanner = new CICScanner(stopWords);
+        log.info("EP: " + scanner.regex());
+    }
+
+    public static List<String> getStopWords() {
+        return stopWords;
     }
 
     public static void setStopWords(List<String> stopWords){
@@ -116,10 +114,10 @@ public class CICTokenizer implements Tokenizer, Serializable {
         if (content == null)
             return matches;
 
-        if (entityPattern == null) {
+        if (scanner == null) {
             initPattern();
         }
-        Pattern namePattern = entityPattern;
+        CICScanner chunkScanner = scanner;
 
         //we need a proper sentence splitter, as some of the names can contain period.
         String[] lines = content.split("\\n");
@@ -146,45 +144,42 @@ public class CICTokenizer implements Tokenizer, Serializable {
             if (sent.length() >= 2000)
                 continue;
 
-            Matcher m = namePattern.matcher(sent);
-            while (m.find()) {
-                if (m.groupCount() > 0) {
-                    String name = m.group(1);
-                    int start = m.start(1) + sentenceStartOffset, end = m.end(1) + sentenceStartOffset;
-                    //if the length is less than 3, accept only if it is all capitals.
-                    if (name.length() < 3) {
-                        String tt = FeatureGeneratorUtil.tokenFeature(name);
-                        if (tt.equals("ac")) {
-                            //this list contains many single-word bad names like Jan, Feb, Mon, Tue, etc.
-                            if (DictUtils.tabooNames.contains(name.toLowerCase())) {
-                                continue;
-                            }
-                            matches.add(new Triple<>(name, start, end));
+            for (Span chunk : chunkScanner.scan(sent)) {
+                String name = chunk.getCoveredText(sent).toString();
+                int start = chunk.getStart() + sentenceStartOffset, end = chunk.getEnd() + sentenceStartOffset;
+                //if the length is less than 3, accept only if it is all capitals.
+                if (name.length() < 3) {
+                    String tt = FeatureGeneratorUtil.tokenFeature(name);
+                    if (tt.equals("ac")) {
+                        //this list contains many single-word bad names like Jan, Feb, Mon, Tue, etc.
+                        if (DictUtils.tabooNames.contains(name.toLowerCase())) {
+                            continue;
                         }
-                    } else {
-                        //further cleaning to remove "'s" pattern
-                        //@TODO: Can these "'s" be put to a good use? Right now, we are just tokenizing on them
-                        String[] tokens = clean(name);
-                        outer:
-                        for (String token : tokens) {
-                            int s = name.indexOf(token);
-                            if (s < 0) {
-                                log.error("Did not find " + token + " extracted and cleaned from " + name);
-                                continue;
-                            }
-                            String lc = token.toLowerCase();
-                            for (String bs : badSubstrings) {
-                                String lbs = bs.toLowerCase();
-                                if (lc.equals(lbs) || lc.contains(" " + lbs + " ") || lc.startsWith(lbs + " ") || lc.endsWith(" " + lbs))
-                                    continue outer;
-                            }
-                            //this list contains many single word bad names like Jan, Feb, Mon, Tue, etc.
-                            if (DictUtils.tabooNames.contains(token.toLowerCase())) {
-                                continue;
-                            }
-                            String ct = canonicalize(token);
-                            matches.add(new Triple<>(ct, start + name.indexOf(token), start + name.indexOf(token) + token.length()));
+                        matches.add(new Triple<>(name, start, end));
+                    }
+                } else {
+                    //further cleaning to remove "'s" pattern
+                    //@TODO: Can these "'s" be put to a good use? Right now, we are just tokenizing on them
+                    String[] tokens = clean(name);
+                    outer:
+                    for (String token : tokens) {
+                        int s = name.indexOf(token);
+                        if (s < 0) {
+                            log.error("Did not find " + token + " extracted and cleaned from " + name);
+                            continue;
                         }
+                        String lc = token.toLowerCase();
+                        for (String bs : badSubstrings) {
+                            String lbs = bs.toLowerCase();
+                            if (lc.equals(lbs) || lc.contains(" " + lbs + " ") || lc.startsWith(lbs + " ") || lc.endsWith(" " + lbs))
+                                continue outer;
+                        }
+                        //this list contains many single word bad names like Jan, Feb, Mon, Tue, etc.
+                        if (DictUtils.tabooNames.contains(token.toLowerCase())) {
+                            continue;
+                        }
+                        String ct = canonicalize(token);
+                        matches.add(new Triple<>(ct, start + name.indexOf(token), start + name.indexOf(token) + token.length()));
                     }
                 }
             }
@@ -307,22 +302,14 @@ public class CICTokenizer implements Tokenizer, Serializable {
 
                 String lc = word.toLowerCase();
                 if (!stopWords.contains(lc)) {
-                    Multimap<String, Pair<String, Integer>> tdict = EnglishDictionary.getTagDictionary();
-
-                    int freq = 0, nounCount = 0;
-                    if (tdict != null)
-                        for (Pair<String, Integer> p : tdict.get(lc)) {
-                            freq += p.getSecond();
-                            String tag = p.getFirst();
-                            if ("NN".equals(tag) || "NNS".equals(tag) || "NNP".equals(tag) || "NNPS".equals(tag))
-                                nounCount += p.getSecond();
-                        }
+                    //NaN if the word is not in the dictionary, in which case it doesn't split the segment
+                    float nounFraction = EnglishDictionary.getNounFraction(lc);
 
                     //We miss on probable tokens (ADJ) like Iraqi, Turkish because they was mostly JJ.
                     // which I think is OK, else no complaints over CONLL testa
                     //Royal Meteorological Institute is tokenized on the middle word
                     //Also tokenizes on Limited
-                    if (tdict != null && (((float) nounCount / freq) < 0.01)) {
+                    if (nounFraction < 0.01) {
                         if (segment.length() > 0)
                             nts.add(segment);
                         segment = "";
@@ -1,5 +1,6 @@
 package edu.stanford.muse.ner.tokenize;
 
+import edu.stanford.muse.util.NLPPipeline;
 import edu.stanford.muse.util.NLPUtils;
 import edu.stanford.muse.util.Pair;
 import edu.stanford.muse.util.Triple;
@@ -19,13 +20,17 @@ public class POSTokenizer implements Tokenizer{
      * */
     @Override
     public List<Triple<String, Integer, Integer>> tokenize(String content){
-        Span[] sents = NLPUtils.sentenceDetector.sentPosDetect(content);
+        return NLPPipeline.apply(w -> tokenize(w, content));
+    }
+
+    private List<Triple<String, Integer, Integer>> tokenize(NLPPipeline.Worker w, String content){
+        Span[] sents = w.sentPosDetect(content);
         List<Triple<String, Integer, Integer>> ret = new ArrayList<>();
         for(Span span: sents) {
             String sent = span.getCoveredText(content).toString();
             if(sent==null || sent.length()>MAX_SENT_LENGTH)
                 continue;
-            List<Pair<String,Triple<String,Integer,Integer>>> posTags = NLPUtils.posTagWithOffsets(sent);
+            List<Pair<String,Triple<String,Integer,Integer>>> posTags = NLPUtils.posTagWithOffsets(w, sent);
             List<String> allowedPOSTags = Arrays.asList("NNP", "NNS", "NN", "JJ", "IN", "POS");
 
             int startOffset = 0;
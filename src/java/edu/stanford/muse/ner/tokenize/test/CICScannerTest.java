@@ -0,0 +1,86 @@
+package edu.stanford.muse.ner.tokenize.test;
+
+import edu.stanford.muse.ner.tokenize.CICScanner;
+import edu.stanford.muse.ner.tokenize.CICTokenizer;
+import opennlp.tools.util.Span;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Differential test of CICScanner against the entity regex it replaces: both should find exactly the same chunks
+ */
+public class CICScannerTest {
+
+    private static void assertSameChunks(CICScanner scanner, Pattern regex, String text) {
+        List<Span> expected = CICScanner.scan(regex, text);
+        List<Span> found = scanner.scan(text);
+        assertEquals("Chunks differ on: '" + text + "'\nExpected: " + expected + "\nFound: " + found, expected, found);
+    }
+
+    @Test
+    public void testSameAsRegex() {
+        CICScanner scanner = new CICScanner(CICTokenizer.getStopWords());
+        Pattern regex = scanner.regex();
+        String[] contents = new String[]{
+                "A book named Information Retrieval by Christopher Manning",
+                "I have visited Museum of Modern Arts aka. MoMA, MMA, MoMa",
+                "Performance by Chaurasia, Hariprasad was great!",
+                "Dummy of the and Something",
+                "We are meeting at Barnie's and then go to Terry's",
+                "The popular Ellen de Generes show made a Vincent van Gogh themed episode",
+                "Barack-O Obama is the President of USA",
+                "I met Frank'O Connor in the CCD",
+                "Annapoorna Residence,%House No: 1975,%Alma Street,%Palo Alto,%California",
+                "This is great! I am meeting with Barney   Stinson or Barney    Stinson",
+                "Judith C Stern MA PT\nAmSAT Certified Teacher of the Alexander Technique\n31 Purchase Street\nRye NY 10580",
+                "Hello this is McGill & Wexley Co.",
+                "Spanish Farm Minister Loyola de Palacio had earlier accused Fischler at an EU farm ministers ' meeting",
+                "P.V. Krishnamoorthi",
+                "I will never say a thing SAID REBECCA HALL",
+                "O'NEIL AND D'SOUZA'S & CO'S OFFICE, Mary O'Brien & Tom D'Arcy of the Bank of St. John's",
+                "John den Braber and Ibn Battuta met Abu bin Laden's del Toro dos Santos in the Bank of the Philippine Islands",
+                "A' B '' C&&&D ''' E'' 'F G' of' H of '' I de  de J",
+                "",
+                "lower case only, nothing to find here"
+        };
+        for (String content : contents)
+            assertSameChunks(scanner, regex, content);
+
+        //random strings made of the pieces the grammar cares about: capitalised words with inner quotes, stop words, runs of separators
+        String[] pieces = new String[]{"A", "B", "O", "x", "a", "d", "e", "l", "o", "s", "'", " ", "  ", "&", "-", ".", "\n", "\t", "1", ",",
+                "and", "de", "del", "dos", "of", "the", "Van", "I'm", " '", "' ", "do", "McGill", "D'Arcy"};
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = random.nextInt(30);
+            for (int j = 0; j < n; j++)
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            assertSameChunks(scanner, regex, sb.toString());
+        }
+    }
+
+    @Test
+    public void testOtherStopWords() {
+        List<String> stopWords = new ArrayList<>();
+        stopWords.add("of");
+        stopWords.add("o");
+        stopWords.add("Of");
+        CICScanner scanner = new CICScanner(stopWords);
+        Pattern regex = scanner.regex();
+        String[] pieces = new String[]{"A", "O", "o", "f", "Of", "of", "'", " ", "&", "x"};
+        Random random = new Random(2);
+        for (int i = 0; i < 50000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = random.nextInt(20);
+            for (int j = 0; j < n; j++)
+                sb.append(pieces[random.nextInt(pieces.length)]);
+            assertSameChunks(scanner, regex, sb.toString());
+        }
+    }
+}
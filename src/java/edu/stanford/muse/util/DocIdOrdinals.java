@@ -0,0 +1,136 @@
+package edu.stanford.muse.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * An append-only dictionary of doc ids -> dense int ordinals, so that per-doc state like labels and annotations can be kept in bitsets
+ * and arrays indexed by ordinal instead of in maps keyed by doc id strings.
+ * These ordinals are private to the owner of the dictionary and are not the ordinals of the archive's DocIndex, since the label and annotation
+ * managers are read independently of the docs of the archive and also hold docs that are not (or not yet) in it.
+ *
+ * Also has the helpers to save a dictionary and bitsets over it compactly (ids once, bitsets as variable length gaps).
+ */
+public class DocIdOrdinals implements Serializable {
+    private final static long serialVersionUID = 1L;
+
+    private final List<String> ids;
+    private final Map<String, Integer> idToOrdinal;
+
+    public DocIdOrdinals() {
+        ids = new ArrayList<>();
+        idToOrdinal = new HashMap<>();
+    }
+
+    public DocIdOrdinals(DocIdOrdinals other) {
+        ids = new ArrayList<>(other.ids);
+        idToOrdinal = new HashMap<>(other.idToOrdinal);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /** @return the ordinal of the id, -1 if it is not in the dictionary */
+    public int ordinalOf(String id) {
+        Integer ordinal = idToOrdinal.get(id);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /** @return the ordinal of the id, adding it to the dictionary if needed */
+    public int getOrAdd(String id) {
+        Integer ordinal = idToOrdinal.get(id);
+        if (ordinal == null) {
+            ordinal = ids.size();
+            ids.add(id);
+            idToOrdinal.put(id, ordinal);
+        }
+        return ordinal;
+    }
+
+    public String id(int ordinal) {
+        return ids.get(ordinal);
+    }
+
+    /** @param add if true, ids not in the dictionary are added, otherwise they are ignored */
+    public BitSet toOrdinals(Collection<String> ids, boolean add) {
+        BitSet result = new BitSet(this.ids.size());
+        for (String id : ids) {
+            int ordinal = add ? getOrAdd(id) : ordinalOf(id);
+            if (ordinal >= 0)
+                result.set(ordinal);
+        }
+        return result;
+    }
+
+    /**
+     * writes the ids of the given ordinals (only), so that unused ids are not carried over from save to save.
+     * the i'th id written gets ordinal i when read back, use rank() to map the ordinals of bitsets being saved along.
+     */
+    public void write(DataOutput out, BitSet ordinals) throws IOException {
+        out.writeInt(ordinals.cardinality());
+        for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1))
+            out.writeUTF(ids.get(i));
+    }
+
+    public static DocIdOrdinals read(DataInput in) throws IOException {
+        DocIdOrdinals result = new DocIdOrdinals();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            result.getOrAdd(in.readUTF());
+        return result;
+    }
+
+    /** @return ordinal -> its position among the given ordinals (i.e. its ordinal after write() and read()), -1 for ordinals not in the set */
+    public int[] rank(BitSet ordinals) {
+        int[] result = new int[ids.size()];
+        Arrays.fill(result, -1);
+        int r = 0;
+        for (int i = ordinals.nextSetBit(0); i >= 0 && i < result.length; i = ordinals.nextSetBit(i + 1))
+            result[i] = r++;
+        return result;
+    }
+
+    /** writes the bits mapped through rank (which preserves order) as variable length gaps */
+    public static void writeBitSet(DataOutput out, BitSet bits, int[] rank) throws IOException {
+        out.writeInt(bits.cardinality());
+        int last = 0;
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            writeVInt(out, rank[i] - last);
+            last = rank[i];
+        }
+    }
+
+    public static BitSet readBitSet(DataInput in) throws IOException {
+        BitSet result = new BitSet();
+        int n = in.readInt();
+        int ordinal = 0;
+        for (int i = 0; i < n; i++) {
+            ordinal += readVInt(in);
+            result.set(ordinal);
+        }
+        return result;
+    }
+
+    public static void writeVInt(DataOutput out, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            out.writeByte((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    public static int readVInt(DataInput in) throws IOException {
+        int i = 0, shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            i |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return i;
+    }
+}
@@ -29,9 +29,10 @@ import edu.stanford.muse.ie.variants.Variants;
 
 import edu.stanford.muse.webapp.EmailRenderer;
 import edu.stanford.muse.webapp.JSPHelper;
+import edu.stanford.muse.wpmine.ResourceTables;
+import edu.stanford.muse.wpmine.SortedStringTable;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.net.QuotedPrintableCodec;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 //import org.apache.commons.logging.Log;
 //import org.apache.commons.logging.LogFactory;
 import org.apache.logging.log4j.LogManager;
@@ -53,7 +54,7 @@ import static edu.stanford.muse.email.EmailFetcherThread.INVALID_DATE;
 
 public class EmailUtils {
 	public static final Logger				log				= LogManager.getLogger(EmailUtils.class);
-	private static org.apache.commons.collections4.map.CaseInsensitiveMap<String, String> dbpedia			= null;
+	private static Map<String, String> dbpedia			= null;
 
     /** Returns the part before @ in an email address, e.g. hangal@gmail.com => hangal.
 	 * Returns the full string if the input does not have @, or null if the input is null. */
@@ -1365,95 +1366,74 @@ public class EmailUtils {
         return ct;
     }
 
+	/**
+	 * @return DBpedia title -> type (type path up to the root, without Agent), for a random fraction p of the titles.
+	 * the titles are looked up case-insensitively (and iterated lower cased) from a memory mapped table built from the types file, see ResourceTables.
+	 * the map returned for p=1 is read-only.
+	 */
 	private static Map<String, String> readDBpedia(double p, String typesFile) {
-        if (dbpedia != null) {
-            if(p==1)
-                return dbpedia;
-            else
-                return new org.apache.commons.collections4.map.CaseInsensitiveMap<>(sample(dbpedia, p));
-        }
-        if(typesFile == null)
-            typesFile = Config.DBPEDIA_INSTANCE_FILE;
-        //dbpedia = new LinkedHashMap<>();
-		//we want to be able to access elements in the map in a case-sensitive manner, this is a way to do that.
-		dbpedia = new org.apache.commons.collections4.map.CaseInsensitiveMap<>();
-        int d = 0, numPersons = 0, lines = 0;
-        try {
-			InputStream is = Config.getResourceAsStream(typesFile);
-			if (is == null) {
-				log.warn ("DBpedia file resource could not be read!!");
-				return dbpedia;
-			}
-
-            //true argument for BZip2CompressorInputStream so as to load the whole file content into memory
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new BZip2CompressorInputStream(is, true), StandardCharsets.UTF_8));
-            while (true) {
-                String line = lnr.readLine();
-                if (line == null)
-                    break;
-                if (lines++ % 1000000 == 0)
-                    log.info("Processed " + lines + " lines of approx. 3.02M in " + typesFile);
-
-                if (line.contains("GivenName"))
-                    continue;
-
-                String[] words = line.split("\\s+");
-                String r = words[0];
-
-                /*
-                 * The types file contains lines like this:
-                 * National_Bureau_of_Asian_Research Organisation|Agent
-                 * National_Bureau_of_Asian_Research__1 PersonFunction
-                 * National_Bureau_of_Asian_Research__2 PersonFunction
-                 * Which leads to classifying "National_Bureau_of_Asian_Research" as PersonFunction and not Org.
-                 */
-//                if (r.contains("__")) {
-//                    d++;
-//                    continue;
-//                }
-                //if it still contains this, is a bad title.
-                if (r.equals("") || r.contains("__")) {
-                    d++;
-                    continue;
-                }
-                String type = words[1];
-                //Royalty names, though tagged person are very weird, contains roman characters and suffixes like of_Poland e.t.c.
-                if(type.equals("PersonFunction") || type.equals("Royalty|Person|Agent"))
-                    continue;
-                //in places there are things like: Shaikh_Ibrahim,_Iraq
-                if (type.endsWith("Settlement|PopulatedPlace|Place"))
-                    r = r.replaceAll(",_.*","");
-
-                //its very dangerous to remove things inside brackets as that may lead to terms like
-                //University_(Metrorail_Station) MetroStation|Place e.t.c.
-                //so keep them, or just skip this entry all together
-                //We are not considering single word tokens any way, so its OK to remove things inside the brackets
-                //removing stuff in brackets may cause trouble when blind matching entities
-                //r = r.replaceAll("_\\(.*?\\)", "");
-                String title = r.replaceAll("_"," ");
-
-                String badSuffix = "|Agent";
-                if (type.endsWith(badSuffix) && type.length() > badSuffix.length())
-                    type = type.substring(0, type.length() - badSuffix.length());
-                if (type.endsWith("|Person"))
-                    numPersons++;
-                type = type.intern(); // type strings are repeated very often, so intern
-
-				if(type.equals("Road|RouteOfTransportation|Infrastructure|ArchitecturalStructure|Place")) {
-					//System.err.print("Cleaned: "+title);
-					title = cleanDBPediaRoad(title);
-					//System.err.println(" to "+title);
-				}
-                dbpedia.put(title, type);
+        if (dbpedia == null) {
+            if (typesFile == null)
+                typesFile = Config.DBPEDIA_INSTANCE_FILE;
+            //the same title can occur with different cases, the first one is kept
+            SortedStringTable table = ResourceTables.get(typesFile, true, EmailUtils::addDBpediaEntry);
+            if (table == null) {
+                log.warn ("DBpedia file resource could not be read!!");
+                return new LinkedHashMap<>();
             }
-			lnr.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		log.info("Read " + dbpedia.size() + " names from DBpedia, " + numPersons + " people name. dropped: " + d);
+            //we want to be able to access elements in the map in a case-insensitive manner, this is a way to do that.
+            dbpedia = table.asMap(true);
+            log.info("Read " + dbpedia.size() + " names from DBpedia");
+        }
+        if(p==1)
+            return dbpedia;
+        else
+            return new org.apache.commons.collections4.map.CaseInsensitiveMap<>(sample(dbpedia, p));
+	}
 
-		return new org.apache.commons.collections4.map.CaseInsensitiveMap<>(sample(dbpedia,p));
+	/** adds the title and type on a line of the DBpedia types file to the table, if it is a usable title */
+	private static void addDBpediaEntry(String line, SortedStringTable.Builder builder) throws IOException {
+        if (line.contains("GivenName"))
+            return;
+
+        String[] words = line.split("\\s+");
+        if (words.length < 2)
+            return;
+        String r = words[0];
+
+        /*
+         * The types file contains lines like this:
+         * National_Bureau_of_Asian_Research Organisation|Agent
+         * National_Bureau_of_Asian_Research__1 PersonFunction
+         * National_Bureau_of_Asian_Research__2 PersonFunction
+         * Which leads to classifying "National_Bureau_of_Asian_Research" as PersonFunction and not Org.
+         */
+        //if it still contains this, is a bad title.
+        if (r.equals("") || r.contains("__"))
+            return;
+        String type = words[1];
+        //Royalty names, though tagged person are very weird, contains roman characters and suffixes like of_Poland e.t.c.
+        if(type.equals("PersonFunction") || type.equals("Royalty|Person|Agent"))
+            return;
+        //in places there are things like: Shaikh_Ibrahim,_Iraq
+        if (type.endsWith("Settlement|PopulatedPlace|Place"))
+            r = r.replaceAll(",_.*","");
+
+        //its very dangerous to remove things inside brackets as that may lead to terms like
+        //University_(Metrorail_Station) MetroStation|Place e.t.c.
+        //so keep them, or just skip this entry all together
+        //We are not considering single word tokens any way, so its OK to remove things inside the brackets
+        //removing stuff in brackets may cause trouble when blind matching entities
+        //r = r.replaceAll("_\\(.*?\\)", "");
+        String title = r.replaceAll("_"," ");
+
+        String badSuffix = "|Agent";
+        if (type.endsWith(badSuffix) && type.length() > badSuffix.length())
+            type = type.substring(0, type.length() - badSuffix.length());
+
+        if(type.equals("Road|RouteOfTransportation|Infrastructure|ArchitecturalStructure|Place"))
+            title = cleanDBPediaRoad(title);
+        builder.add(title.toLowerCase(), type);
 	}
 
 	public static Map<String,String> readDBpedia(){
@@ -0,0 +1,252 @@
+package edu.stanford.muse.util;
+
+import edu.stanford.muse.Config;
+import opennlp.tools.chunker.ChunkerME;
+import opennlp.tools.chunker.ChunkerModel;
+import opennlp.tools.postag.POSModel;
+import opennlp.tools.postag.POSTaggerME;
+import opennlp.tools.sentdetect.SentenceDetectorFactory;
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.sentdetect.SentenceModel;
+import opennlp.tools.tokenize.TokenizerME;
+import opennlp.tools.tokenize.TokenizerModel;
+import opennlp.tools.util.Span;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Sentence splitting, tokenizing, POS tagging and chunking with the OpenNLP models, usable from any number of threads.
+ *
+ * The OpenNLP models (SentenceModel, POSModel, ...) are immutable and are loaded once and shared, but the ME classes that apply them
+ * (SentenceDetectorME, POSTaggerME, ...) keep per-call state and are not thread-safe. Earlier NLPUtils had a single static instance of each,
+ * so NER over several threads would either race on them or have to take turns.
+ * Here each thread borrows a Worker -- its own set of ME instances over the shared models -- from a pool and gives it back when done;
+ * workers are created on demand, so there are only as many as the most threads that ever used the pipeline at once.
+ *
+ * The batch methods process many documents over a number of threads and return the results in the order of the documents.
+ * main() benchmarks the throughput of the pipeline by thread count.
+ */
+public class NLPPipeline {
+    private static final Logger log = LogManager.getLogger(NLPPipeline.class);
+
+    private static final SentenceModel sentenceModel;
+    private static final POSModel posModel;
+    private static final TokenizerModel tokenizerModel;
+    private static final ChunkerModel chunkerModel;
+
+    private static final ConcurrentLinkedQueue<Worker> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger nWorkers = new AtomicInteger();
+
+    static {
+        SentenceModel sm = null;
+        POSModel pm = null;
+        TokenizerModel tm = null;
+        ChunkerModel cm = null;
+        long start = System.currentTimeMillis();
+        try (InputStream sentStream = Config.getResourceAsStream("models/en-sent.bin");
+             InputStream posStream = Config.getResourceAsStream("models/en-pos-maxent.bin");
+             InputStream tokenStream = Config.getResourceAsStream("models/en-token.bin");
+             InputStream chunkerStream = Config.getResourceAsStream("models/en-chunker.bin")) {
+            //keeping the dictionary null for now, adding a list of abbreviations could improve the performance or at least makes sure that it does not fail in obvious cases
+            //When the sentence delimiter list contains '\n', some weird bug in SentenceDetector is causing an exception, don't want to get into that.
+            SentenceDetectorFactory cf = new SentenceDetectorFactory("en", true, null, new char[]{'.', '?', '!'});
+            SentenceModel dummyModel = new SentenceModel(sentStream);
+            //this way of getting maxent model from the initialised sentence model may look improper
+            //proper way to initialize the maxent model is: AbstractModel model = new GenericModelReader(new File(modelName)).getModel()
+            //but it was throwing java.io.UTFDataFormatException: malformed input around byte 48
+            sm = new SentenceModel("en", dummyModel.getMaxentModel(), null, cf);
+            pm = new POSModel(posStream);
+            tm = new TokenizerModel(tokenStream);
+            cm = new ChunkerModel(chunkerStream);
+            log.info("Loaded the OpenNLP sentence, POS, tokenizer and chunker models in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            Util.print_exception("Exception in init'ing the OpenNLP models", e, log);
+        }
+        sentenceModel = sm;
+        posModel = pm;
+        tokenizerModel = tm;
+        chunkerModel = cm;
+    }
+
+    /** a sentence detector, tokenizer, POS tagger and chunker for the use of one thread at a time */
+    public static class Worker {
+        private final SentenceDetectorME sentenceDetector = new SentenceDetectorME(sentenceModel);
+        private final TokenizerME tokenizer = new TokenizerME(tokenizerModel);
+        private final POSTaggerME posTagger = new POSTaggerME(posModel);
+        private final ChunkerME chunker = new ChunkerME(chunkerModel);
+
+        private Worker() {}
+
+        public String[] sentDetect(String text) {
+            if (text == null)
+                return new String[]{};
+            return sentenceDetector.sentDetect(text);
+        }
+
+        public Span[] sentPosDetect(String text) {
+            return sentenceDetector.sentPosDetect(text);
+        }
+
+        public String[] tokenize(String sentence) {
+            return tokenizer.tokenize(sentence);
+        }
+
+        public Span[] tokenizePos(String sentence) {
+            return tokenizer.tokenizePos(sentence);
+        }
+
+        public String[] posTag(String[] tokens) {
+            return posTagger.tag(tokens);
+        }
+
+        public Span[] chunkAsSpans(String[] tokens, String[] tags) {
+            return chunker.chunkAsSpans(tokens, tags);
+        }
+    }
+
+    /** @return a worker for the exclusive use of the caller, which must give it back with release() when done */
+    public static Worker acquire() {
+        Worker w = pool.poll();
+        if (w == null) {
+            w = new Worker();
+            int n = nWorkers.incrementAndGet();
+            log.info("Created NLP worker #" + n + " for thread " + Thread.currentThread().getName());
+        }
+        return w;
+    }
+
+    public static void release(Worker w) {
+        if (w != null)
+            pool.offer(w);
+    }
+
+    /** @return the result of f, applied with a worker borrowed for the call */
+    public static <R> R apply(Function<Worker, R> f) {
+        Worker w = acquire();
+        try {
+            return f.apply(w);
+        } finally {
+            release(w);
+        }
+    }
+
+    /**
+     * applies f to each of docs over nThreads threads, each thread with a worker of its own.
+     * @return the results, in the order of docs. the result of a doc on which f threw is null
+     */
+    public static <R> List<R> batch(List<String> docs, int nThreads, BiFunction<Worker, String, R> f) {
+        List<R> results = new ArrayList<>(Collections.nCopies(docs.size(), null));
+        if (docs.isEmpty())
+            return results;
+        nThreads = Math.max(1, Math.min(nThreads, docs.size()));
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "NLPPipeline");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < nThreads; i++)
+                futures.add(executor.submit(() -> {
+                    Worker w = acquire();
+                    try {
+                        // docs are claimed one at a time so that a few long docs don't hold up a thread's share of the rest
+                        for (int d; (d = next.getAndIncrement()) < docs.size(); ) {
+                            try {
+                                results.set(d, f.apply(w, docs.get(d)));
+                            } catch (Exception e) {
+                                Util.print_exception("NLP pipeline failed on doc #" + d, e, log);
+                            }
+                        }
+                    } finally {
+                        release(w);
+                    }
+                }));
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            Util.print_exception(ee, log);
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /** @return sentence spans of each of docs, as NLPUtils.tokenizeSentenceAsSpan */
+    public static List<Span[]> sentPosDetect(List<String> docs, int nThreads) {
+        return batch(docs, nThreads, Worker::sentPosDetect);
+    }
+
+    /** @return proper nouns of each of docs, as NLPUtils.getAllProperNouns */
+    public static List<List<String>> getAllProperNouns(List<String> docs, int nThreads) {
+        return batch(docs, nThreads, NLPUtils::getAllProperNouns);
+    }
+
+    /** @return POS tagged tokens with their offsets of each of docs, one list per sentence, as NLPUtils.posTagWithOffsets */
+    public static List<List<List<Pair<String, Triple<String, Integer, Integer>>>>> posTagWithOffsets(List<String> docs, int nThreads) {
+        return batch(docs, nThreads, (w, doc) -> {
+            List<List<Pair<String, Triple<String, Integer, Integer>>>> sents = new ArrayList<>();
+            for (Span span : w.sentPosDetect(doc))
+                sents.add(NLPUtils.posTagWithOffsets(w, span.getCoveredText(doc).toString()));
+            return sents;
+        });
+    }
+
+    /**
+     * Throughput benchmark: finds the proper nouns of the given text files (or of the files in the given directories) over 1, 2, 4, ... threads,
+     * up to the # of processors, and prints docs/sec and KB/sec for each.
+     * usage: NLPPipeline <file or dir>...
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> docs = new ArrayList<>();
+        for (String arg : args) {
+            File f = new File(arg);
+            File[] files = f.isDirectory() ? f.listFiles() : new File[]{f};
+            if (files == null)
+                continue;
+            for (File file : files)
+                if (file.isFile())
+                    docs.add(Util.readFile(file.getAbsolutePath()));
+        }
+        if (docs.isEmpty()) {
+            System.err.println("usage: NLPPipeline <file or dir>...");
+            return;
+        }
+        long nChars = 0;
+        for (String doc : docs)
+            nChars += doc.length();
+
+        // warm up, so that the first run doesn't pay for class loading and the jit
+        getAllProperNouns(docs.subList(0, Math.min(docs.size(), 100)), 1);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        System.out.println(docs.size() + " docs, " + Util.commatize(nChars / 1024) + "KB, up to " + maxThreads + " threads");
+        long base = 0;
+        for (int nThreads = 1; ; nThreads = Math.min(maxThreads, nThreads * 2)) {
+            long start = System.currentTimeMillis();
+            getAllProperNouns(docs, nThreads);
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            if (nThreads == 1)
+                base = elapsed;
+            System.out.println(nThreads + " threads: " + Util.commatize(elapsed) + "ms, " + Util.commatize(docs.size() * 1000L / elapsed) + " docs/sec, "
+                    + Util.commatize(nChars / 1024 * 1000 / elapsed) + " KB/sec, speedup " + String.format("%.2f", (double) base / elapsed));
+            if (nThreads == maxThreads)
+                break;
+        }
+        System.out.println(nWorkers.get() + " workers created");
+    }
+}
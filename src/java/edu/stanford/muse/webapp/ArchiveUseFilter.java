@@ -0,0 +1,39 @@
+package edu.stanford.muse.webapp;
+
+import edu.stanford.muse.index.ArchiveReaderWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+
+/**
+ * Pins the archive named by the archiveID parameter of a request for as long as the request is being served,
+ * so that it is not evicted from memory (and its lucene readers closed) while a page is still using it.
+ */
+public class ArchiveUseFilter implements Filter {
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		String archiveID = request.getParameter("archiveID");
+		ArchiveReaderWriter.acquireArchive(archiveID);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			ArchiveReaderWriter.releaseArchive(archiveID);
+		}
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) {
+		JSPHelper.log.info("Filter ArchiveUseFilter initialized");
+	}
+
+	@Override
+	public void destroy() {
+		JSPHelper.log.info("Filter ArchiveUseFilter destroyed");
+	}
+}
@@ -17,6 +17,7 @@ package edu.stanford.muse.webapp;
 
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
+import edu.stanford.epadd.util.JobScheduler;
 import edu.stanford.epadd.util.OperationInfo;
 import edu.stanford.muse.LabelManager.Label;
 import edu.stanford.muse.datacache.BlobStore;
@@ -561,9 +562,11 @@ public class JSPHelper {
 
 	public static OperationInfo getOperationInfo(HttpSession session, String opID){
 		Map<String,OperationInfo> operationInfoMap = (Map<String,OperationInfo>) session.getAttribute("operationInfoMap");
-		if(operationInfoMap==null)
-			return null;
-		return operationInfoMap.get(opID);
+		OperationInfo operationInfo = operationInfoMap == null ? null : operationInfoMap.get(opID);
+		//not in this session (e.g. the page was reloaded in a new session), the scheduler still has it till its result is collected
+		if (operationInfo == null)
+			operationInfo = JobScheduler.getInstance().get(opID);
+		return operationInfo;
 	}
 
 
@@ -1058,6 +1061,7 @@ public class JSPHelper {
 	}
 
 	public static void removeOperationInfo(HttpSession session, String opID) {
+		JobScheduler.getInstance().remove(opID);
 		Map<String,OperationInfo> operationInfoMap = (Map<String,OperationInfo>) session.getAttribute("operationInfoMap");
 		if(operationInfoMap==null)
 			return;
@@ -18,6 +18,8 @@ package edu.stanford.muse.webapp;
 import java.util.Date;
 
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
@@ -29,7 +31,7 @@ import org.apache.logging.log4j.Logger;
 import edu.stanford.muse.index.Archive;
 import edu.stanford.muse.util.Util;
 
-public class SessionListener implements HttpSessionListener {
+public class SessionListener implements HttpSessionListener, HttpSessionAttributeListener {
     private static final Logger log =  LogManager.getLogger(JSPHelper.class);
     static {
     	log.info ("Initializing class edu.stanford.muse.webapp.SessionListener");
@@ -66,4 +68,27 @@ public class SessionListener implements HttpSessionListener {
 			log.info("Current number of sessions: " + sessionCount);
 		}
 	}
-}
\ No newline at end of file
+
+	// an archive held by a session is pinned for as long as the session holds it, so that it is not evicted (and closed) under the session.
+	// attributes are removed when a session is destroyed, which releases the pin
+	public void attributeAdded(HttpSessionBindingEvent event) {
+		if ("archive".equals(event.getName()) && event.getValue() instanceof Archive)
+			ArchiveReaderWriter.acquireArchive(ArchiveReaderWriter.getArchiveIDForArchive((Archive) event.getValue()));
+	}
+
+	public void attributeRemoved(HttpSessionBindingEvent event) {
+		if ("archive".equals(event.getName()) && event.getValue() instanceof Archive)
+			ArchiveReaderWriter.releaseArchive(ArchiveReaderWriter.getArchiveIDForArchive((Archive) event.getValue()));
+	}
+
+	public void attributeReplaced(HttpSessionBindingEvent event) {
+		// the event has the old value, the session has the new one
+		if (!"archive".equals(event.getName()))
+			return;
+		Object value = event.getSession().getAttribute(event.getName());
+		if (value instanceof Archive)
+			ArchiveReaderWriter.acquireArchive(ArchiveReaderWriter.getArchiveIDForArchive((Archive) value));
+		if (event.getValue() instanceof Archive)
+			ArchiveReaderWriter.releaseArchive(ArchiveReaderWriter.getArchiveIDForArchive((Archive) event.getValue()));
+	}
+}
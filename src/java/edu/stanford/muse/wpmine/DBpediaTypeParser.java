@@ -63,19 +63,55 @@ public class DBpediaTypeParser {
         }
     }
 
+    //max. number of entries buffered in memory by the table builder before spilling to disk
+    private static final int MAX_ENTRIES_IN_MEMORY = 2000000;
+
+    /** splits the line on whitespace into at most 3 fields (subject, predicate, rest), without a regex. returns null if there are fewer than 3 fields */
+    private static String[] fields(String line) {
+        String[] fields = new String[3];
+        int n = 0, i = 0, len = line.length();
+        while (n < 3) {
+            while (i < len && Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (i == len)
+                return null;
+            int start = i;
+            while (i < len && !Character.isWhitespace(line.charAt(i)))
+                i++;
+            fields[n++] = line.substring(start, i);
+        }
+        return fields;
+    }
+
+    /** name of the sorted string table for the types file, in the out path */
+    private static File tableFile(String typesFile, String outPath) {
+        String[] toks = typesFile.split("\\/");
+        String fn = toks[toks.length-1];
+        String name = fn.split("\\.")[0];
+        return new File(outPath + File.separator + name + ".en.sst");
+    }
+
+    /**
+     * Streams the instance types file into a sorted string table of title -> type path (see parseOntology), which can be looked up off-heap.
+     * Also writes out the same as a bzipped text file in the format expected by EmailUtils.readDBpedia.
+     */
     private static void parse(String typesFile, String typeOntologyFile, String outPath) {
-        try {
-            Map<String,String> ontology = parseOntology(typeOntologyFile);
-            if(ontology==null)
-                return;
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new BZip2CompressorInputStream(new FileInputStream(typesFile), true), StandardCharsets.UTF_8));
+        Map<String,String> ontology = parseOntology(typeOntologyFile);
+        if(ontology==null)
+            return;
+        File table = tableFile(typesFile, outPath);
+        int titleS = "<http://dbpedia.org/resource/".length();
+        int typeS = "<http://dbpedia.org/ontology/".length();
+        //sometimes, the same title has multiple entries for type, considering the first one is the right one based on observation on a small sample set
+        try (SortedStringTable.Builder builder = new SortedStringTable.Builder(table, MAX_ENTRIES_IN_MEMORY, true);
+             BufferedReader br = new BufferedReader(new InputStreamReader(ReadAheadInputStream.bzip2(new File(typesFile)), StandardCharsets.UTF_8), 1 << 16)) {
             String line;
-            int titleS = "<http://dbpedia.org/resource/".length();
-            int typeS = "<http://dbpedia.org/ontology/".length();
-            Map<String,String> dbpedia = new LinkedHashMap<>();
-            while((line=lnr.readLine())!=null){
-                String[] fields = line.split("\\s+");
-                if(fields.length<3 || !fields[2].startsWith("<http://dbpedia.org/ontology/") || fields[0].contains("__"))
+            long lineNum = 0;
+            while((line=br.readLine())!=null){
+                if(++lineNum%1000000 == 0)
+                    System.err.println("Done: " + lineNum);
+                String[] fields = fields(line);
+                if(fields == null || !fields[2].startsWith("<http://dbpedia.org/ontology/") || fields[0].contains("__"))
                     continue;
                 String title = fields[0].substring(titleS,fields[0].length()-1);
                 String type = fields[2].substring(typeS, fields[2].length()-1);
@@ -85,69 +121,50 @@ public class DBpediaTypeParser {
                         System.err.println("NULL for type: " + type + " -- " + line);
                     continue;
                 }
-                //sometimes, the same title has multiple entries for type, considering the first one is the right one based on observation on a small sample set
-                if(!dbpedia.containsKey(title))
-                    dbpedia.put(title, ontology.get(type));
-                if(lnr.getLineNumber()%10000 == 0)
-                    System.err.println("Done: " + lnr.getLineNumber());
-            }
-            lnr.close();
-            String[] toks = typesFile.split("\\/");
-            String fn = toks[toks.length-1];
-            String name = fn.split("\\.")[0];
-            OutputStreamWriter osw = new OutputStreamWriter(new BZip2CompressorOutputStream(new FileOutputStream(new File(outPath + File.separator + name+".en.txt.bz2"))));
-            int numRecords = 0;
-            for(String str: dbpedia.keySet()) {
-                osw.write(str + " " + dbpedia.get(str) + "\n");
-                numRecords++;
+                builder.add(title, ontology.get(type));
             }
-            System.err.println("Wrote: "+numRecords+" to "+outPath+File.separator+name+".en.txt.bz2");
-            osw.flush();
-            osw.close();
-        }catch(IOException e){
+            builder.finish();
+        } catch(IOException e){
             log.info("Exception while reading types file: "+typesFile);
             edu.stanford.muse.util.Util.print_exception(e,log);
+            return;
+        }
+
+        String out = table.getPath().replaceAll("\\.sst$", ".txt.bz2");
+        try (SortedStringTable dbpedia = SortedStringTable.open(table);
+             Writer osw = new BufferedWriter(new OutputStreamWriter(new BZip2CompressorOutputStream(new FileOutputStream(out)), StandardCharsets.UTF_8))) {
+            dbpedia.forEach((title, type) -> {
+                try {
+                    osw.write(title + " " + type + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.err.println("Wrote: " + dbpedia.size() + " to " + out);
+        } catch(IOException | UncheckedIOException e){
+            log.info("Exception while writing types file: " + out);
+            edu.stanford.muse.util.Util.print_exception(e,log);
         }
     }
 
-    private static void printStats(String typesFile, String ontologyFile){
+    /** stats over the table written by parse, the type of a title is the first one seen for the title */
+    private static void printStats(String typesFile, String ontologyFile, String outPath){
         Map<String,String> ontology = parseOntology(ontologyFile);
-        int nlines = 0;
-        Set<String> uniqetitles = new LinkedHashSet<>();
-        Map<Short,Set<String>> typeTitles = new LinkedHashMap<>();
-        try {
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new BZip2CompressorInputStream(new FileInputStream(typesFile), true), StandardCharsets.UTF_8));
-            String line;
-            int titleS = "<http://dbpedia.org/resource/".length();
-            int typeS = "<http://dbpedia.org/ontology/".length();
-            while ((line = lnr.readLine()) != null) {
-                nlines++;
-                String[] fields = line.split("\\s+");
-                if (fields.length < 3 || !fields[2].startsWith("<http://dbpedia.org/ontology/") || fields[0].contains("__"))
-                    continue;
-                String title = fields[0].substring(titleS, fields[0].length() - 1);
-                String type = ontology.get(fields[2].substring(typeS, fields[2].length() - 1));
-                if(type == null)
-                    continue;
-                uniqetitles.add(title);
+        if(ontology == null)
+            return;
+        Map<Short,Integer> typeCounts = new LinkedHashMap<>();
+        try (SortedStringTable dbpedia = SortedStringTable.open(tableFile(typesFile, outPath))) {
+            dbpedia.forEach((title, type) -> {
                 Short ct = NEType.parseDBpediaType(type).getCode();
-                if(!typeTitles.containsKey(ct))
-                    typeTitles.put(ct, new LinkedHashSet<>());
-                typeTitles.get(ct).add(title);
-
-                if (lnr.getLineNumber() % 10000 == 0)
-                    System.err.println("Done: " + lnr.getLineNumber());
-            }
-            lnr.close();
+                typeCounts.put(ct, typeCounts.getOrDefault(ct, 0) + 1);
+            });
+            System.out.println("Total number of types in DBpedia ontology: "+ontology.size());
+            System.out.println(typesFile+" contains "+dbpedia.size()+" unique titles");
         }catch(Exception e){
             e.printStackTrace();
         }
-        Set<String> allTypes = new LinkedHashSet<>();
-        allTypes.addAll(ontology.keySet());
-        System.out.println("Total number of types in DBpedia ontology: "+allTypes.size());
-        System.out.println(typesFile+" contains "+nlines+" lines and "+uniqetitles.size()+" unique titles");
-        for(Short type: typeTitles.keySet())
-            System.out.println(NEType.getTypeForCode(type) + " : "+typeTitles.get(type).size());
+        for(Short type: typeCounts.keySet())
+            System.out.println(NEType.getTypeForCode(type) + " : "+typeCounts.get(type));
     }
 
     //The first argument should be the full path to the DBpedia instance file resource (for ex: instance_types_en.nt.bz2 from http://data.dws.informatik.uni-mannheim.de/dbpedia/2014/en/instance_types_en.nt.bz2), the second argument should point to the DBpedia ontology file (for ex: dbpedia_2015-04.nt.bz2 from http://downloads.dbpedia.org/2015-04/dbpedia_2015-04.nt.bz2)
@@ -156,6 +173,6 @@ public class DBpediaTypeParser {
         //String fldr = System.getProperty("user.home")+File.separator+"epadd-data"+File.separator;
         //fldr+"instance_types_2014-04.en.nt.bz2",fldr+"dbpedia_2015-04.nt.bz2"
         parse(args[0], args[1], args[2]);
-        printStats(args[0], args[1]);
+        printStats(args[0], args[1], args[2]);
     }
 }
@@ -0,0 +1,111 @@
+package edu.stanford.muse.wpmine;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An input stream that reads (and decompresses) its source on a background thread, a few blocks ahead of the consumer.
+ * Decompressing the Wikipedia and DBpedia dumps takes about as much time as parsing them, this way the two happen in parallel.
+ * Note: a single gzip/bzip2 stream can only be inflated sequentially, so this is one decompressing thread overlapped with the parsing thread.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int MAX_BLOCKS_AHEAD = 16;
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<>(MAX_BLOCKS_AHEAD);
+    private final Thread reader;
+    private volatile IOException error;
+    private volatile boolean closed;
+
+    private byte[] block;
+    private int pos;
+
+    public ReadAheadInputStream(InputStream source, String name) {
+        reader = new Thread(() -> {
+            try (InputStream in = source) {
+                while (!closed) {
+                    byte[] buf = new byte[BLOCK_SIZE];
+                    int n = 0, r;
+                    while (n < buf.length && (r = in.read(buf, n, buf.length - n)) > 0)
+                        n += r;
+                    if (n == 0)
+                        break;
+                    blocks.put(n == buf.length ? buf : Arrays.copyOf(buf, n));
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                blocks.put(EOF);
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }, "read-ahead " + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** a gzipped file, decompressed on a background thread */
+    public static InputStream gzip(File f) throws IOException {
+        return new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(f), 1 << 16), f.getName());
+    }
+
+    /** a bzipped file (possibly with multiple streams), decompressed on a background thread */
+    public static InputStream bzip2(File f) throws IOException {
+        return new ReadAheadInputStream(new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16), true), f.getName());
+    }
+
+    /** returns false at the end of the stream */
+    private boolean fill() throws IOException {
+        if (block == EOF)
+            return false;
+        if (block != null && pos < block.length)
+            return true;
+        try {
+            block = blocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        pos = 0;
+        if (block == EOF) {
+            if (error != null)
+                throw error;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(len, block.length - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        reader.interrupt();
+    }
+}
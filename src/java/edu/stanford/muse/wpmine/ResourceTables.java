@@ -0,0 +1,164 @@
+package edu.stanford.muse.wpmine;
+
+import edu.stanford.muse.Config;
+import edu.stanford.muse.util.Util;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Memory mapped tables for the big text resources looked up at runtime (DBpedia types, Wikipedia token types), so that they don't have to be parsed into heap maps.
+ * The table for a resource is built from the resource the first time it is asked for, and kept in the tables dir of the settings dir for later runs.
+ * The checksum of the resource a table was built from is kept next to it, and the table is rebuilt when the resource that Config would load now
+ * (from the settings dir, or else the classpath) has a different checksum, e.g. after an upgrade that ships a new resource.
+ * Tables stay open (mapped) for the life of the process, like the maps they replace.
+ */
+public class ResourceTables {
+    private static final Logger log = LogManager.getLogger(ResourceTables.class);
+
+    //max. number of entries buffered in memory by the table builder before spilling to disk
+    private static final int MAX_ENTRIES_IN_MEMORY = 2000000;
+
+    /** adds the entries for a line of the resource to the table being built */
+    public interface LineParser {
+        void parse(String line, SortedStringTable.Builder builder) throws IOException;
+    }
+
+    private static final Map<String, SortedStringTable> tables = new LinkedHashMap<>();
+
+    private static File tableFile(String resource) {
+        return new File(Config.SETTINGS_DIR + File.separator + "tables" + File.separator + new File(resource).getName() + ".sst");
+    }
+
+    /** file with the checksum of the resource the table was built from */
+    private static File checksumFile(File tableFile) {
+        return new File(tableFile.getPath() + ".sha256");
+    }
+
+    private static String readChecksum(File tableFile) {
+        File f = checksumFile(tableFile);
+        try {
+            return f.exists() ? new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim() : null;
+        } catch (IOException e) {
+            Util.print_exception("Unable to read " + f, e, log);
+            return null;
+        }
+    }
+
+    /**
+     * @param firstValueOnly if true, only the first value for a key (in the order of the lines) is kept
+     * @return the table for the resource, null if the resource can't be read
+     */
+    public static synchronized SortedStringTable get(String resource, boolean firstValueOnly, LineParser parser) {
+        SortedStringTable table = tables.get(resource);
+        if (table != null)
+            return table;
+
+        File f = tableFile(resource);
+        try {
+            //reading the resource to checksum it is cheap compared to parsing it into a table
+            String checksum = Config.getResourceChecksum(resource);
+            if (!f.exists() || (checksum != null && !checksum.equals(readChecksum(f)))) {
+                if (!build(resource, f, firstValueOnly, parser))
+                    return null;
+            }
+            table = SortedStringTable.open(f);
+        } catch (IOException e) {
+            Util.print_exception("Unable to open the table for resource " + resource + " in " + f, e, log);
+            return null;
+        }
+        log.info("Opened table of " + table.size() + " entries for resource " + resource + " from " + f);
+        tables.put(resource, table);
+        return table;
+    }
+
+    /**
+     * streams the resource into a table written to a temp file, which is moved into place only once it is complete.
+     * the checksum of the bytes read is then written next to it, a table without a checksum file is rebuilt.
+     */
+    private static boolean build(String resource, File f, boolean firstValueOnly, LineParser parser) throws IOException {
+        InputStream is = Config.getResourceAsStream(resource);
+        if (is == null) {
+            log.warn("Resource " + resource + " could not be read, no table built for it");
+            return false;
+        }
+        long startMillis = System.currentTimeMillis();
+        f.getParentFile().mkdirs();
+        File tmp = new File(f.getPath() + ".tmp");
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        DigestInputStream dis = new DigestInputStream(is, digest);
+        try (SortedStringTable.Builder builder = new SortedStringTable.Builder(tmp, MAX_ENTRIES_IN_MEMORY, firstValueOnly);
+             BufferedReader br = new BufferedReader(new InputStreamReader(decompress(resource, dis), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = br.readLine()) != null)
+                parser.parse(line, builder);
+            //the checksum has to be of all the bytes of the resource, as Config.getResourceChecksum computes it, whatever the decompressor left unread
+            byte[] buf = new byte[1 << 16];
+            while (dis.read(buf) >= 0)
+                ;
+            builder.finish();
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        File checksumFile = checksumFile(f);
+        Files.deleteIfExists(checksumFile.toPath());
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.write(checksumFile.toPath(), Util.byteArrayToHexString(digest.digest()).getBytes(StandardCharsets.UTF_8));
+        log.info("Built table for resource " + resource + " in " + Util.commatize(System.currentTimeMillis() - startMillis) + "ms");
+        return true;
+    }
+
+    private static InputStream decompress(String resource, InputStream is) throws IOException {
+        if (resource.endsWith(".bz2"))
+            return new BZip2CompressorInputStream(new BufferedInputStream(is, 1 << 16), true);
+        if (resource.endsWith(".gz"))
+            return new GZIPInputStream(is, 1 << 16);
+        return is;
+    }
+
+    /**
+     * Table of the lower cased tokens of Wikipedia titles -> page (the title, or the page it redirects to) and its length, separated by a tab, read from TokenTypes.txt.
+     * A token has one entry per page it occurs in.
+     */
+    public static SortedStringTable tokenTypes() {
+        return get("TokenTypes.txt", false, (line, builder) -> {
+            String[] fields = line.split("\\t");
+            if (fields.length != 4) {
+                log.warn("Line --" + line + "-- has an unexpected pattern!");
+                return;
+            }
+            int pageLen;
+            try {
+                pageLen = Integer.parseInt(fields[3]);
+            } catch (NumberFormatException e) {
+                log.warn("Line --" + line + "-- has a bad page length!");
+                return;
+            }
+            //if the page is not a redirect, then itself is the title
+            String page = fields[2].equals("null") ? fields[1] : fields[2];
+            builder.add(fields[0].toLowerCase(), page + "\t" + pageLen);
+        });
+    }
+}
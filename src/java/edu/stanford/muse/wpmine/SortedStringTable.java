@@ -0,0 +1,366 @@
+package edu.stanford.muse.wpmine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable, sorted, string -> string table in a file that is memory mapped for lookups, so that big tables like
+ * Wikipedia titles or DBpedia types can be looked up in O(log n) without loading them into the heap.
+ *
+ * File layout:
+ * header: magic (int), version (int), number of entries (long)
+ * entries, sorted by the UTF-8 bytes of the key: key length (int), key bytes, value length (int), value bytes
+ * offsets of the entries (long each)
+ * trailer: position of the offsets (long)
+ *
+ * Tables are written with a {@link Builder}, which takes entries in any order and sorts them externally.
+ * Keys can repeat unless the builder is asked to keep only the first value for each key.
+ */
+public class SortedStringTable implements Closeable {
+    private static final Logger log = LogManager.getLogger(SortedStringTable.class);
+
+    private static final int MAGIC = 0x53535442; // SSTB
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final long SEGMENT_SIZE = 1L << 30; // a MappedByteBuffer is limited to 2GB
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long count, offsetsStart;
+
+    private SortedStringTable(File f) throws IOException {
+        channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        long size = channel.size();
+        int nSegments = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[nSegments];
+        for (int i = 0; i < nSegments; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+        if (size < HEADER_SIZE + 8 || readInt(0) != MAGIC)
+            throw new IOException("Not a sorted string table: " + f);
+        if (readInt(4) != VERSION)
+            throw new IOException("Unsupported sorted string table version " + readInt(4) + " in " + f);
+        count = readLong(8);
+        offsetsStart = readLong(size - 8);
+    }
+
+    public static SortedStringTable open(File f) throws IOException {
+        return new SortedStringTable(f);
+    }
+
+    private byte byteAt(long pos) {
+        return segments[(int) (pos / SEGMENT_SIZE)].get((int) (pos % SEGMENT_SIZE));
+    }
+
+    private int readInt(long pos) {
+        int seg = (int) (pos / SEGMENT_SIZE), off = (int) (pos % SEGMENT_SIZE);
+        if (off + 4 <= segments[seg].limit())
+            return segments[seg].getInt(off);
+        int v = 0;
+        for (int i = 0; i < 4; i++)
+            v = (v << 8) | (byteAt(pos + i) & 0xff);
+        return v;
+    }
+
+    private long readLong(long pos) {
+        return ((long) readInt(pos) << 32) | (readInt(pos + 4) & 0xffffffffL);
+    }
+
+    private String readString(long pos, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++)
+            b[i] = byteAt(pos + i);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** compares key with the key of the i'th entry, without materializing the entry */
+    private int compare(byte[] key, long i) {
+        long pos = readLong(offsetsStart + 8 * i);
+        int len = readInt(pos);
+        pos += 4;
+        int n = Math.min(len, key.length);
+        for (int j = 0; j < n; j++) {
+            int c = (key[j] & 0xff) - (byteAt(pos + j) & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return key.length - len;
+    }
+
+    /** index of the first entry with key >= the given key */
+    private long lowerBound(byte[] key) {
+        long lo = 0, hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (compare(key, mid) > 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private String valueAt(long i) {
+        long pos = readLong(offsetsStart + 8 * i);
+        pos += 4 + readInt(pos);
+        return readString(pos + 4, readInt(pos));
+    }
+
+    private String keyAt(long i) {
+        long pos = readLong(offsetsStart + 8 * i);
+        return readString(pos + 4, readInt(pos));
+    }
+
+    /** @return the (first) value for the key, null if absent */
+    public String get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        long i = lowerBound(k);
+        if (i < count && compare(k, i) == 0)
+            return valueAt(i);
+        return null;
+    }
+
+    /** @return all the values for the key, in the order in which they were added */
+    public List<String> getAll(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        List<String> result = new ArrayList<>();
+        for (long i = lowerBound(k); i < count && compare(k, i) == 0; i++)
+            result.add(valueAt(i));
+        return result;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /** sequential scan over all the entries in key order */
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (long i = 0; i < count; i++)
+            consumer.accept(keyAt(i), valueAt(i));
+    }
+
+    /**
+     * @return a read-only map view of the table, for code that expects a map. lookups are binary searches and iteration is in key order, nothing is copied into the heap.
+     * @param lowerCaseLookups if true, keys are lower cased before lookup, for tables whose keys are all lower case
+     */
+    public Map<String, String> asMap(boolean lowerCaseLookups) {
+        return new AbstractMap<String, String>() {
+            @Override
+            public String get(Object key) {
+                if (!(key instanceof String))
+                    return null;
+                return SortedStringTable.this.get(lowerCaseLookups ? ((String) key).toLowerCase() : (String) key);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return (int) Math.min(count, Integer.MAX_VALUE);
+            }
+
+            @Override
+            public Set<Entry<String, String>> entrySet() {
+                return new AbstractSet<Entry<String, String>>() {
+                    @Override
+                    public Iterator<Entry<String, String>> iterator() {
+                        return new Iterator<Entry<String, String>>() {
+                            long i = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return i < count;
+                            }
+
+                            @Override
+                            public Entry<String, String> next() {
+                                if (i >= count)
+                                    throw new NoSuchElementException();
+                                Entry<String, String> e = new SimpleImmutableEntry<>(keyAt(i), valueAt(i));
+                                i++;
+                                return e;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return (int) Math.min(count, Integer.MAX_VALUE);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * Writes a table. Entries are buffered in memory up to a limit, sorted and spilled to run files, which are merged in finish().
+     * Entries with equal keys keep the order in which they were added.
+     */
+    public static class Builder implements Closeable {
+        private final File out, tmpDir;
+        private final int maxEntriesInMemory;
+        private final boolean firstValueOnly;
+        private final List<byte[][]> buffer = new ArrayList<>();
+        private final List<File> runs = new ArrayList<>();
+
+        /**
+         * @param firstValueOnly if true, only the first value added for a key is kept
+         */
+        public Builder(File out, int maxEntriesInMemory, boolean firstValueOnly) throws IOException {
+            this.out = out;
+            this.maxEntriesInMemory = maxEntriesInMemory;
+            this.firstValueOnly = firstValueOnly;
+            this.tmpDir = Files.createTempDirectory("sst-runs").toFile();
+        }
+
+        public void add(String key, String value) throws IOException {
+            buffer.add(new byte[][]{key.getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8)});
+            if (buffer.size() >= maxEntriesInMemory)
+                spill();
+        }
+
+        private void spill() throws IOException {
+            // List.sort is stable, so equal keys stay in insertion order
+            buffer.sort((e1, e2) -> compareBytes(e1[0], e2[0]));
+            File run = new File(tmpDir, "run-" + runs.size());
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+                for (byte[][] e : buffer) {
+                    writeBytes(dos, e[0]);
+                    writeBytes(dos, e[1]);
+                }
+            }
+            runs.add(run);
+            buffer.clear();
+        }
+
+        private static class Run {
+            final int seq;
+            final DataInputStream in;
+            byte[] key, value;
+
+            Run(File f, int seq) throws IOException {
+                this.seq = seq;
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            }
+
+            boolean next() throws IOException {
+                try {
+                    key = readBytes(in);
+                } catch (EOFException e) {
+                    return false;
+                }
+                value = readBytes(in);
+                return true;
+            }
+        }
+
+        /** merges the runs into the table file. @return the number of entries in the table */
+        public long finish() throws IOException {
+            if (!buffer.isEmpty())
+                spill();
+
+            PriorityQueue<Run> heap = new PriorityQueue<>((r1, r2) -> {
+                int c = compareBytes(r1.key, r2.key);
+                return c != 0 ? c : Integer.compare(r1.seq, r2.seq);
+            });
+            List<Run> open = new ArrayList<>();
+            File offsetsFile = new File(tmpDir, "offsets");
+            long count = 0;
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+                 DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile), 1 << 16))) {
+                for (int i = 0; i < runs.size(); i++) {
+                    Run r = new Run(runs.get(i), i);
+                    open.add(r);
+                    if (r.next())
+                        heap.add(r);
+                }
+
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeLong(0); // count, filled in below
+                long pos = HEADER_SIZE;
+                byte[] lastKey = null;
+                while (!heap.isEmpty()) {
+                    Run r = heap.poll();
+                    if (!firstValueOnly || lastKey == null || compareBytes(lastKey, r.key) != 0) {
+                        offsets.writeLong(pos);
+                        writeBytes(dos, r.key);
+                        writeBytes(dos, r.value);
+                        pos += 8 + r.key.length + r.value.length;
+                        lastKey = r.key;
+                        count++;
+                    }
+                    if (r.next())
+                        heap.add(r);
+                }
+                offsets.close();
+
+                try (InputStream in = new BufferedInputStream(new FileInputStream(offsetsFile), 1 << 16)) {
+                    byte[] b = new byte[1 << 16];
+                    int n;
+                    while ((n = in.read(b)) > 0)
+                        dos.write(b, 0, n);
+                }
+                dos.writeLong(pos); // offsets start right after the entries
+            } finally {
+                for (Run r : open)
+                    r.in.close();
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+                raf.seek(8);
+                raf.writeLong(count);
+            }
+            log.info("Wrote " + count + " entries from " + runs.size() + " runs to " + out);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            File[] files = tmpDir.listFiles();
+            if (files != null)
+                for (File f : files)
+                    f.delete();
+            tmpDir.delete();
+        }
+    }
+}
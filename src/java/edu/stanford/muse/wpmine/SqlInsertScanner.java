@@ -0,0 +1,145 @@
+package edu.stanford.muse.wpmine;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single pass scanner over the INSERT statements of a MySQL dump (as in the Wikipedia SQL dumps), that hands out one tuple at a time.
+ * The statements look like:
+ * INSERT INTO `redirect` VALUES (10,0,'Computer_accessibility','',''),(13,0,'History_of_Afghanistan','','');
+ * Each statement is a single line of about a MB, the scanner does not build strings for the lines or use regexes, so memory use is independent of the line length.
+ * Quoted values are unescaped (\' \\ \n etc.), NULL is returned as null and everything else (numbers) as is.
+ */
+public class SqlInsertScanner {
+    public interface TupleHandler {
+        void handle(String[] tuple) throws IOException;
+    }
+
+    private final Reader in;
+    private final char[] prefix;
+    private final char[] buf = new char[1 << 16];
+    private int len = 0, pos = 0;
+
+    /** @param in should be buffered or read-ahead, since the scanner pulls a block at a time */
+    public SqlInsertScanner(Reader in, String table) {
+        this.in = in;
+        this.prefix = ("INSERT INTO `" + table + "` VALUES ").toCharArray();
+    }
+
+    private int next() throws IOException {
+        if (pos == len) {
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+        return buf[pos++];
+    }
+
+    private int peek() throws IOException {
+        int c = next();
+        if (c >= 0)
+            pos--;
+        return c;
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = next()) >= 0 && c != '\n') ;
+    }
+
+    /** @return true if the line starting at the current position is an insert statement for the table, the prefix is consumed if so */
+    private boolean matchPrefix() throws IOException {
+        for (char p : prefix) {
+            int c = next();
+            if (c < 0)
+                return false;
+            if (c != p) {
+                if (c != '\n')
+                    skipLine();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char unescape(int c) {
+        switch (c) {
+            case '0': return '\0';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'Z': return '\u001a';
+            default: return (char) c; // \\ \' \" etc.
+        }
+    }
+
+    /** reads a value, leaves the position at the , or ) after it */
+    private String value(StringBuilder sb) throws IOException {
+        sb.setLength(0);
+        int c = peek();
+        if (c == '\'') {
+            next();
+            while ((c = next()) >= 0) {
+                if (c == '\\') {
+                    c = next();
+                    if (c < 0)
+                        break;
+                    sb.append(unescape(c));
+                } else if (c == '\'')
+                    break;
+                else
+                    sb.append((char) c);
+            }
+            return sb.toString();
+        }
+        while ((c = peek()) >= 0 && c != ',' && c != ')') {
+            sb.append((char) c);
+            next();
+        }
+        String s = sb.toString();
+        return "NULL".equals(s) ? null : s;
+    }
+
+    /**
+     * Scans the whole input, calling the handler for every tuple of every insert statement into the table.
+     * @return the number of tuples scanned
+     */
+    public long scan(TupleHandler handler) throws IOException {
+        long nTuples = 0;
+        StringBuilder sb = new StringBuilder();
+        List<String> vals = new ArrayList<>();
+        while (peek() >= 0) {
+            if (!matchPrefix())
+                continue;
+            // tuples: (v,v,...),(v,v,...);
+            while (true) {
+                int c = next();
+                if (c != '(') {
+                    // ; or something unexpected, done with this statement
+                    if (c >= 0 && c != '\n')
+                        skipLine();
+                    break;
+                }
+                vals.clear();
+                while (true) {
+                    vals.add(value(sb));
+                    c = next();
+                    if (c != ',')
+                        break;
+                }
+                if (c != ')')
+                    throw new IOException("Malformed tuple in INSERT statement, expected ) found: " + (c < 0 ? "EOF" : (char) c));
+                handler.handle(vals.toArray(new String[vals.size()]));
+                nTuples++;
+                if (peek() == ',')
+                    next();
+            }
+        }
+        return nTuples;
+    }
+}
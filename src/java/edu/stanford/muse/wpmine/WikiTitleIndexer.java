@@ -2,8 +2,6 @@ package edu.stanford.muse.wpmine;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.*;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -13,7 +11,7 @@ import org.apache.commons.lang.StringUtils;
  *
  * Indexing completed in 838298ms (10 mins)
  *
- * Reads pages and redirect tables from Wikipedia dumps and builds a lucene index with documents and fields as described towards the end of this comment box.
+ * Reads pages and redirect tables from Wikipedia dumps and builds a lookup of single word titles, see extractAllSingleWordTypes.
  * See the method indexTitlesWithRedirects, set the variables REDIRECT_FILE, PAGE_FILE and indexPath to the right locations
  * The code is a little less organized in comparison to the PageLinksIndexer.java in the same folder, it is not resilient to the table structure.
  * The tables were defined as shown when this code was last used.
@@ -34,94 +32,37 @@ public class WikiTitleIndexer {
     //https://dumps.wikimedia.org/enwiki/latest/enwiki-latest-page.sql.gz
     private static final String			PAGE_FILE       = System.getProperty("user.home") + File.separator + "data" + File.separator + "enwiki-latest-page.sql.gz";
 
-    private static String[] parseTuple(String str) {
-        List<String> vals = new ArrayList<>();
-        boolean inside = false;
-        String val = "";
-        for (int i = 0; i < str.length(); i++) {
-            char c = str.charAt(i);
-            if ((c == ',') && (!inside)) {
-                if (val.charAt(0) == '\'') {
-                    val = StringUtils.stripEnd(val, "'");
-                    val = StringUtils.stripStart(val, "'");
-                    val = StringUtils.replaceChars(val, '_', ' ');
-                }
-                vals.add(val);
-                val = "";
-                continue;
-            }
-            val += c;
-            //' - 39  '\'-92
-            if (c == '\'') {
-                int j = i - 1;
-                int numEscape = 0;
-                while ((j >= 0) && (str.charAt(j) == 92)) {
-                    numEscape++;
-                    j--;
-                }
-                if (numEscape % 2 == 0)
-                    inside = !inside;
-            }
-        }
-        if (val.charAt(0) == '\'') {
-            val = StringUtils.stripEnd(val, "'");
-            val = StringUtils.stripStart(val, "'");
-            val = StringUtils.replaceChars(val, '_', ' ');
-            //System.err.println(prev + " stripped to " + val);
-        }
-        vals.add(val);
+    //max. number of entries buffered in memory by the table builders before spilling to disk
+    private static final int MAX_ENTRIES_IN_MEMORY = 2000000;
 
-        return vals.toArray(new String[vals.size()]);
+    //values in the dumps have spaces replaced by '_'
+    private static String title(String val) {
+        return val == null ? null : StringUtils.replaceChars(val, '_', ' ');
     }
 
-    //start parsing line from offset
-    private static String[][] parseLine(String line, int offset) {
-        line = line.substring(offset);
-        //remove the last ')'
-        line = line.substring(0, line.length() - 1);
-        //StringTokenizer st = new StringTokenizer(line, "\\),\\(");
-        String[] tuples = StringUtils.splitByWholeSeparator(line, "),(");
-        List<String[]> records = new ArrayList<>();
-        for (String tuple : tuples) {
-            //String tuple = st.nextToken();
-            String[] vals = parseTuple(tuple);
-            records.add(vals);
-        }
-        return records.toArray(new String[records.size()][]);
+    private static Reader gzipReader(String file) throws IOException {
+        return new InputStreamReader(ReadAheadInputStream.gzip(new File(file)), StandardCharsets.UTF_8);
     }
 
-    private static Map<String, String> readRedirectTable(){
-        //not so big, probably around 500MB
-        Map<String, String> redirects = new LinkedHashMap<>();
-        final String REDIRECT_INSERT_STATEMENT = "INSERT INTO `redirect` VALUES (";
-        try {
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(REDIRECT_FILE)))));
-            String line;
-            int ln = 0;
-            while ((line = lnr.readLine()) != null) {
-                if (!line.startsWith("INSERT INTO")) {
-                    System.err.println("Skipping initial comments...");
-                    continue;
-                }
-
-                String[][] tuples = parseLine(line, REDIRECT_INSERT_STATEMENT.length());
-                for (String[] tuple : tuples) {
-                    if (tuple.length < 3) {
-                        System.err.println("What?! Tuple size is less than 3 len:" + tuple.length);
-                        continue;
-                    }
-                    if ("0".equals(tuple[1]))
-                        redirects.put(tuple[0], tuple[2]);
+    /**
+     * Streams the redirect table into a sorted string table of page id -> title of the page it redirects to, only for pages in article namespace.
+     * The redirect table is not so big (~500MB) but there is no need to hold it in the heap either.
+     */
+    private static SortedStringTable readRedirectTable(File out) throws IOException {
+        try (SortedStringTable.Builder builder = new SortedStringTable.Builder(out, MAX_ENTRIES_IN_MEMORY, true);
+             Reader reader = gzipReader(REDIRECT_FILE)) {
+            long n = new SqlInsertScanner(reader, "redirect").scan(tuple -> {
+                if (tuple.length < 3) {
+                    System.err.println("What?! Tuple size is less than 3 len:" + tuple.length);
+                    return;
                 }
-
-                if ((ln++) % 100 == 0)
-                    System.err.println("Parsed: " + ln + " lines in redirect");
-            }
-            lnr.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+                if ("0".equals(tuple[1]) && tuple[2] != null)
+                    builder.add(tuple[0], title(tuple[2]));
+            });
+            System.err.println("Parsed: " + n + " tuples in redirect");
+            builder.finish();
         }
-        return redirects;
+        return SortedStringTable.open(out);
     }
 
     private static class WikiDocument{
@@ -139,113 +80,102 @@ public class WikiTitleIndexer {
     }
 
     /**
-     * Note: only parses lines corresponding to pages in Wiki article namespace (0); if the entire line does not contain
-     * any pages of 0 namespace then returns an empty list*/
-    private static Collection<WikiDocument> parseLineInPagesTable(String line) {
-        final String PAGES_INSERT_STATEMENT = "INSERT INTO `pages` VALUES (";
-
-        List<WikiDocument> wikiDocs = new ArrayList<>();
-        String[][] tuples = parseLine(line, PAGES_INSERT_STATEMENT.length());
-        for (String[] tuple : tuples) {
-            if (tuple.length < 13) {
-                System.err.println("What?! Tuple size is less than 13 len:" + tuple.length);
-                continue;
-            }
-            if ("0".equals(tuple[1])) {
-                //tuple[0] of page id tuple[2] is page title it redirects to
-                String id = tuple[0];
-                String title = tuple[2];
-                String is_redirect = tuple[5];
-                String len = tuple[11];
-
-                wikiDocs.add(new WikiDocument(id, title, is_redirect, Integer.parseInt(len)));
-            }
+     * Note: only returns pages in Wiki article namespace (0), returns null for everything else */
+    private static WikiDocument toWikiDocument(String[] tuple) {
+        if (tuple.length < 13) {
+            System.err.println("What?! Tuple size is less than 13 len:" + tuple.length);
+            return null;
+        }
+        if (!"0".equals(tuple[1]) || tuple[2] == null)
+            return null;
+        //tuple[0] of page id tuple[2] is page title
+        String id = tuple[0];
+        String title = title(tuple[2]);
+        String is_redirect = tuple[5];
+        String len = tuple[11];
+        try {
+            return new WikiDocument(id, title, is_redirect, Integer.parseInt(len));
+        } catch (NumberFormatException e) {
+            System.err.println("Bad page length: " + len + " for page: " + id);
+            return null;
         }
-        return wikiDocs;
+    }
+
+    //removes auxiliary content from the title
+    private static String stripTitle(String title) {
+        title = title.replaceAll(" \\(.+\\)", "");
+        title = title.replaceAll(", .+", "");
+        return title;
     }
 
     /**
      * This method is used to identify single word titles (including redirects) in the entire dump.
      * The titles are further filtered on page length
-     * This method outputs a file containing such titles, with their redirects (if exist) and page lengths*/
+     * This method outputs a sorted string table of such titles to their original title, redirect (if exist) and page length, tab separated.
+     * TokenTypes.txt, read by the NER models, is written out from the table.
+     * The dumps are streamed: the SQL is scanned a tuple at a time, decompression happens on a separate thread and
+     * the intermediate lookups (redirects and page lengths) are sorted string tables on disk rather than maps in the heap.*/
     private static void extractAllSingleWordTypes() {
-        try {
-            Map<String, String> redirects = readRedirectTable();
-
-            //a threshold page length for a page to be considered of quality
-            int qualityPageLength = 5000;
-            int numRecords = 0;
-            Writer fw = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(System.getProperty("user.home") + File.separator + "data" + File.separator + "TokenTypes.txt"), StandardCharsets.UTF_8));
-            Map<String, Integer> pageLens = new LinkedHashMap<>();
-
-            LineNumberReader lnr = new LineNumberReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(new File(PAGE_FILE))), StandardCharsets.UTF_8));
-            String line;
-            while ((line = lnr.readLine()) != null) {
-                if (!line.startsWith("INSERT INTO"))
-                    continue;
-
-                Collection<WikiDocument> wikiDocs = parseLineInPagesTable(line);
-
-                for (WikiDocument doc : wikiDocs)
-                    if ("0".equals(doc.is_redirect)) {
-                        int pageLen = doc.pageLength;
-                        String title = doc.title;
-                        if (title.contains("(disambiguation)"))
-                            continue;
-
-                        if (pageLen > qualityPageLength)
-                            pageLens.put(title, pageLen);
-                        else
-                            continue;
-                        String origTitle = title;
-
-                        //remove auxiliary content
-                        title = title.replaceAll(" \\(.+\\)", "");
-                        title = title.replaceAll(", .+", "");
-                        if (!title.contains(" ")) {
-                            fw.write(title + "\t" + origTitle + "\t" + null + "\t" + pageLen + "\n");
-                            numRecords++;
-                        }
-                    }
-
-                if (lnr.getLineNumber() % 1000 == 0)
-                    System.err.println("Step-1: Parsed " + lnr.getLineNumber() + " lines in page table");
+        String dataDir = System.getProperty("user.home") + File.separator + "data" + File.separator;
+        File redirectsFile = new File(dataDir + "redirects.sst"), pageLensFile = new File(dataDir + "pageLengths.sst"), typesFile = new File(dataDir + "TokenTypes.sst");
+        //a threshold page length for a page to be considered of quality
+        int qualityPageLength = 5000;
+        try (SortedStringTable redirects = readRedirectTable(redirectsFile);
+             SortedStringTable.Builder types = new SortedStringTable.Builder(typesFile, MAX_ENTRIES_IN_MEMORY, false)) {
+            try (SortedStringTable.Builder pageLens = new SortedStringTable.Builder(pageLensFile, MAX_ENTRIES_IN_MEMORY, true);
+                 Reader reader = gzipReader(PAGE_FILE)) {
+                long n = new SqlInsertScanner(reader, "page").scan(tuple -> {
+                    WikiDocument doc = toWikiDocument(tuple);
+                    if (doc == null || !"0".equals(doc.is_redirect))
+                        return;
+                    int pageLen = doc.pageLength;
+                    String title = doc.title;
+                    if (title.contains("(disambiguation)") || pageLen <= qualityPageLength)
+                        return;
+                    pageLens.add(title, Integer.toString(pageLen));
+                    title = stripTitle(title);
+                    if (!title.contains(" "))
+                        types.add(title, doc.title + "\t" + null + "\t" + pageLen);
+                });
+                System.err.println("Step-1: Parsed " + n + " tuples in page table");
+                pageLens.finish();
             }
-            lnr.setLineNumber(0);
 
-            while ((line = lnr.readLine()) != null) {
-                if (!line.startsWith("INSERT INTO"))
-                    continue;
-
-                Collection<WikiDocument> wikiDocs = parseLineInPagesTable(line);
-
-                for (WikiDocument doc : wikiDocs)
-                    if ("1".equals(doc.is_redirect)) {
-                        String title = doc.title;
-                        String origTitle = title;
-
-                        title = title.replaceAll(" \\(.+\\)", "");
-                        title = title.replaceAll(", .+", "");
-                        if (title.contains(" "))
-                            continue;
-
-                        String redirect = redirects.get(title);
-                        Integer pageLen = pageLens.get(redirect);
-                        if (pageLen != null && pageLen > qualityPageLength) {
-                            fw.write(title + "\t" + origTitle + "\t" + redirect + "\t" + pageLen + "\n");
-                            numRecords++;
-                        }
-                    }
-                if (lnr.getLineNumber() % 1000000 == 0)
-                    System.err.println("Step-2: Parsed "+ lnr.getLineNumber() + " lines in page table");
+            try (SortedStringTable pageLens = SortedStringTable.open(pageLensFile);
+                 Reader reader = gzipReader(PAGE_FILE)) {
+                long n = new SqlInsertScanner(reader, "page").scan(tuple -> {
+                    WikiDocument doc = toWikiDocument(tuple);
+                    if (doc == null || !"1".equals(doc.is_redirect))
+                        return;
+                    String title = stripTitle(doc.title);
+                    if (title.contains(" "))
+                        return;
+                    //the redirect table is keyed by the page id of the redirect page
+                    String redirect = redirects.get(doc.wiki_id);
+                    String pageLen = redirect == null ? null : pageLens.get(redirect);
+                    if (pageLen != null && Integer.parseInt(pageLen) > qualityPageLength)
+                        types.add(title, doc.title + "\t" + redirect + "\t" + pageLen);
+                });
+                System.err.println("Step-2: Parsed " + n + " tuples in page table");
             }
+            long numRecords = types.finish();
             System.out.println("Total number of records: " + numRecords);
-
-            lnr.close();
-            fw.close();
         } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+
+        try (SortedStringTable types = SortedStringTable.open(typesFile);
+             Writer fw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dataDir + "TokenTypes.txt"), StandardCharsets.UTF_8))) {
+            types.forEach((title, val) -> {
+                try {
+                    fw.write(title + "\t" + val + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -0,0 +1,61 @@
+package edu.stanford.epadd.util;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class JobSchedulerTest {
+
+    private static OperationInfo op(String opID, String archiveID, CountDownLatch done) {
+        Multimap<String, String> params = LinkedHashMultimap.create();
+        params.put("archiveID", archiveID);
+        return new OperationInfo("/epadd/ajax/async/save-archive.jsp", opID, params) {
+            @Override
+            public void onStart(JSONObject resultJSON) {
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                resultJSON.put("status", 0);
+            }
+
+            @Override
+            public void onCancel() {
+            }
+        };
+    }
+
+    @Test(timeout = 30000)
+    public void testCancelQueuedJobHasResult() throws Exception {
+        File journal = new File(Files.createTempDirectory("jobs").toFile(), "jobs.json");
+        JobScheduler scheduler = new JobScheduler(journal);
+        CountDownLatch done = new CountDownLatch(1);
+
+        //both need the archive exclusively, so the second waits for the first
+        OperationInfo running = op("op1", "archive1", done);
+        OperationInfo queued = op("op2", "archive1", done);
+        scheduler.submit(running);
+        scheduler.submit(queued);
+        assertEquals(JobScheduler.State.QUEUED, queued.getState());
+
+        scheduler.cancel(queued);
+        assertEquals(JobScheduler.State.CANCELLED, queued.getState());
+        JSONObject result = queued.getResultJSON();
+        assertNotNull("A cancelled job should have a result for the client polling for it", result);
+        assertEquals(0, result.getInt("status"));
+        assertTrue(result.getBoolean("cancelled"));
+
+        done.countDown();
+        while (running.getState() == JobScheduler.State.RUNNING)
+            Thread.sleep(10);
+        assertEquals(JobScheduler.State.DONE, running.getState());
+    }
+}